@@ -10,6 +10,8 @@ import java.lang.reflect.Modifier;
 
 public abstract class NetPacket {
 
+    public static final int RESERVED_ID_MIN = 0xFFF0; // unsigned, 0xFFF0..0xFFFF are used by internal frames
+
     private final short ID;
 
     public NetPacket() {
@@ -78,6 +80,10 @@ public abstract class NetPacket {
     }
 
 
+    public static boolean isReservedPacketID(short packetID) {
+        return ((packetID & 0xFFFF) >= RESERVED_ID_MIN);
+    }
+
     public static boolean isConcretePacketClass(Class<?> c) {
         return (
             NetPacket.class.isAssignableFrom(c) && // inherits NetPacket
@@ -0,0 +1,9 @@
+package generaloss.networkforge.packet;
+
+import generaloss.networkforge.tcp.TCPConnection;
+
+public interface NetPacketResponder<P extends NetPacket, R extends NetPacket> {
+
+    R respond(TCPConnection connection, P request) throws Exception;
+
+}
@@ -0,0 +1,37 @@
+package generaloss.networkforge.packet;
+
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.MessageDecoder;
+
+import java.nio.ByteBuffer;
+
+/** Reads frames into net-packets once, for the handlers after it and onReceiveMessage listeners.
+ * Frames of packets unknown to the reader go on as bytes. */
+public class PacketDecoder extends MessageDecoder<NetPacket> {
+
+    private final PacketReader reader;
+
+    public PacketDecoder(PacketReader reader) {
+        if(reader == null)
+            throw new IllegalArgumentException("Argument 'reader' cannot be null");
+
+        this.reader = reader;
+    }
+
+    public PacketReader getReader() {
+        return reader;
+    }
+
+    @Override
+    protected NetPacket decode(EventInvocationContext context, byte[] data) throws Exception {
+        if(data.length < Short.BYTES)
+            return null;
+
+        final short packetID = ByteBuffer.wrap(data).getShort();
+        if(reader.getFactory(packetID) == null)
+            return null;
+
+        return reader.read(data);
+    }
+
+}
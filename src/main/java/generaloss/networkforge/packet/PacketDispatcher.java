@@ -1,8 +1,10 @@
 package generaloss.networkforge.packet;
 
 import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.executor.ConnectionExecutorGroup;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
 public class PacketDispatcher {
@@ -10,7 +12,9 @@ public class PacketDispatcher {
     private static final int HANDLERS_BUFFER_SIZE = 65536; // short range
 
     private final NetPacketHandler<?>[] handlers;
+    private volatile NetPacketResponder<?, ?>[] responders; // allocated on first responder
     private Executor executor;
+    private ConnectionExecutorGroup executorGroup;
 
     public PacketDispatcher() {
         this.handlers = new NetPacketHandler[HANDLERS_BUFFER_SIZE]; // 512 KB
@@ -23,6 +27,9 @@ public class PacketDispatcher {
             throw new IllegalArgumentException("Argument 'handler' cannot be null");
 
         final short packetID = NetPacket.calculatePacketID(packetClass);
+        if(NetPacket.isReservedPacketID(packetID))
+            throw new IllegalArgumentException("Net-packet '" + packetClass.getSimpleName() + "' uses reserved ID=" + packetID + ", assign another one with @PacketID");
+
         final int index = (packetID & 0xFFFF);
         // check duplicate
         if(handlers[index] != null)
@@ -32,13 +39,46 @@ public class PacketDispatcher {
         return this;
     }
 
+    public final synchronized <P extends NetPacket, R extends NetPacket> PacketDispatcher registerResponder(Class<P> packetClass, NetPacketResponder<P, R> responder) {
+        if(packetClass == null)
+            throw new IllegalArgumentException("Argument 'packetClass' cannot be null");
+        if(responder == null)
+            throw new IllegalArgumentException("Argument 'responder' cannot be null");
+
+        final short packetID = NetPacket.calculatePacketID(packetClass);
+        if(NetPacket.isReservedPacketID(packetID))
+            throw new IllegalArgumentException("Net-packet '" + packetClass.getSimpleName() + "' uses reserved ID=" + packetID + ", assign another one with @PacketID");
+
+        if(responders == null)
+            responders = new NetPacketResponder<?, ?>[HANDLERS_BUFFER_SIZE];
+
+        final int index = (packetID & 0xFFFF);
+        // check duplicate
+        if(responders[index] != null)
+            throw new IllegalStateException("Responder already registered for net-packet '" + packetClass.getSimpleName() + "' (ID=" + packetID + ")");
+
+        responders[index] = responder;
+        return this;
+    }
+
+    /** Packets are handled independently: packets of one connection may run concurrently and out of order. */
     public PacketDispatcher async(Executor executor) {
         this.executor = executor;
+        this.executorGroup = null;
         return this;
     }
 
-    private void execute(Runnable runnable) {
-        if(executor != null) {
+    /** Packets of one connection are handled one at a time and in order, different connections in parallel. */
+    public PacketDispatcher async(ConnectionExecutorGroup executorGroup) {
+        this.executorGroup = executorGroup;
+        this.executor = null;
+        return this;
+    }
+
+    private void execute(TCPConnection connection, Runnable runnable) {
+        if(executorGroup != null && connection != null) {
+            executorGroup.execute(connection, runnable);
+        } else if(executor != null) {
             executor.execute(runnable);
         } else {
             runnable.run();
@@ -69,6 +109,17 @@ public class PacketDispatcher {
     }
 
 
+    @SuppressWarnings("unchecked")
+    public <P extends NetPacket, R extends NetPacket> NetPacketResponder<P, R> getResponder(int packetID) {
+        final NetPacketResponder<?, ?>[] responders = this.responders;
+        if(responders == null)
+            return null;
+
+        final int index = (packetID & 0xFFFF); // unsigned short
+        return (NetPacketResponder<P, R>) responders[index];
+    }
+
+
     public <P extends NetPacket> Runnable createHandleRunnable(TCPConnection connection, P packet) throws IllegalStateException {
         if(packet == null)
             throw new IllegalArgumentException("Argument 'packet' cannot be null");
@@ -115,19 +166,39 @@ public class PacketDispatcher {
         };
     }
 
+    /** Runs the registered responder (on the async executor if set). */
+    public <P extends NetPacket> CompletableFuture<NetPacket> dispatchRequest(TCPConnection connection, P request) throws IllegalStateException {
+        if(request == null)
+            throw new IllegalArgumentException("Argument 'request' cannot be null");
+
+        final NetPacketResponder<P, NetPacket> responder = this.getResponder(request.getPacketID());
+        if(responder == null)
+            throw new IllegalStateException("Responder not registered for net-packet with ID=" + request.getPacketID());
+
+        final CompletableFuture<NetPacket> future = new CompletableFuture<>();
+        this.execute(connection, () -> {
+            try {
+                future.complete(responder.respond(connection, request));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
     public <P extends NetPacket> void dispatch(TCPConnection connection, P packet) throws IllegalStateException {
         final Runnable handleTask = this.createHandleRunnable(connection, packet);
-        this.execute(handleTask);
+        this.execute(connection, handleTask);
     }
 
     public <P extends NetPacket> void dispatch(TCPConnection connection, P[] packets) throws IllegalStateException {
         final Runnable handleTask = this.createHandleRunnable(connection, packets);
-        this.execute(handleTask);
+        this.execute(connection, handleTask);
     }
 
     public <P extends NetPacket> void dispatch(TCPConnection connection, List<P> packets) throws IllegalStateException {
         final Runnable handleTask = this.createHandleRunnable(connection, packets);
-        this.execute(handleTask);
+        this.execute(connection, handleTask);
     }
 
 }
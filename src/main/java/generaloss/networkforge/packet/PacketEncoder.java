@@ -0,0 +1,18 @@
+package generaloss.networkforge.packet;
+
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.MessageEncoder;
+
+/** Writes sent net-packets into frames once, at its position in the pipeline. */
+public class PacketEncoder extends MessageEncoder<NetPacket> {
+
+    public PacketEncoder() {
+        super(NetPacket.class);
+    }
+
+    @Override
+    protected byte[] encode(EventInvocationContext context, NetPacket packet) throws Exception {
+        return packet.toByteArray();
+    }
+
+}
@@ -27,6 +27,9 @@ public class PacketReader {
             throw new IllegalArgumentException("Cannot register abstract net-packet class '" + packetClass.getSimpleName() + "'");
 
         final short packetID = NetPacket.calculatePacketID(packetClass);
+        if(NetPacket.isReservedPacketID(packetID))
+            throw new IllegalArgumentException("Net-packet '" + packetClass.getSimpleName() + "' uses reserved ID=" + packetID + ", assign another one with @PacketID");
+
         // check duplicate
         if(factories.containsKey(packetID))
             throw new IllegalStateException("Factory already registered for net-packet '" + packetClass.getSimpleName() + "' (ID=" + packetID + ")");
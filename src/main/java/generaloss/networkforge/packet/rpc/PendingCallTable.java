@@ -0,0 +1,157 @@
+package generaloss.networkforge.packet.rpc;
+
+import generaloss.networkforge.packet.NetPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/** Open-addressing table of in-flight calls keyed by sequential call ID.
+ * Sequential IDs hash to consecutive slots, so probing is rare while the table is half empty. */
+class PendingCallTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EMPTY_CALL_ID = 0;
+
+    private int[] callIDs;
+    private CompletableFuture<NetPacket>[] futures;
+    private long[] deadlines; // 0 - no deadline
+    private int mask;
+    private int size;
+    private int nextCallID;
+    private long nearestDeadline;
+
+    PendingCallTable() {
+        this.allocate(INITIAL_CAPACITY);
+        this.nextCallID = 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        callIDs = new int[capacity];
+        futures = (CompletableFuture<NetPacket>[]) new CompletableFuture<?>[capacity];
+        deadlines = new long[capacity];
+        mask = (capacity - 1);
+    }
+
+
+    synchronized int add(CompletableFuture<NetPacket> future, long deadlineMillis) {
+        if(size >= (futures.length >> 1))
+            this.grow();
+
+        final int callID = nextCallID++;
+        if(nextCallID == EMPTY_CALL_ID)
+            nextCallID++;
+
+        this.insert(callID, future, deadlineMillis);
+        size++;
+
+        if(deadlineMillis != 0L && (nearestDeadline == 0L || deadlineMillis < nearestDeadline))
+            nearestDeadline = deadlineMillis;
+        return callID;
+    }
+
+    private void insert(int callID, CompletableFuture<NetPacket> future, long deadlineMillis) {
+        int index = (callID & mask);
+        while(futures[index] != null)
+            index = ((index + 1) & mask);
+
+        callIDs[index] = callID;
+        futures[index] = future;
+        deadlines[index] = deadlineMillis;
+    }
+
+    private void grow() {
+        final int[] oldCallIDs = callIDs;
+        final CompletableFuture<NetPacket>[] oldFutures = futures;
+        final long[] oldDeadlines = deadlines;
+
+        this.allocate(oldFutures.length << 1);
+        for(int i = 0; i < oldFutures.length; i++)
+            if(oldFutures[i] != null)
+                this.insert(oldCallIDs[i], oldFutures[i], oldDeadlines[i]);
+    }
+
+    synchronized CompletableFuture<NetPacket> remove(int callID) {
+        int index = (callID & mask);
+        while(futures[index] != null) {
+            if(callIDs[index] == callID) {
+                final CompletableFuture<NetPacket> future = futures[index];
+                this.removeAt(index);
+                return future;
+            }
+            index = ((index + 1) & mask);
+        }
+        return null;
+    }
+
+    /** Backward shift deletion, keeps probe chains valid without tombstones. */
+    private void removeAt(int index) {
+        size--;
+        int hole = index;
+        int next = ((hole + 1) & mask);
+        while(futures[next] != null) {
+            final int home = (callIDs[next] & mask);
+            // move entry if its home slot is not in range (hole, next]
+            final boolean movable = (hole <= next)
+                ? (home <= hole || home > next)
+                : (home <= hole && home > next);
+            if(movable) {
+                callIDs[hole] = callIDs[next];
+                futures[hole] = futures[next];
+                deadlines[hole] = deadlines[next];
+                hole = next;
+            }
+            next = ((next + 1) & mask);
+        }
+        callIDs[hole] = EMPTY_CALL_ID;
+        futures[hole] = null;
+        deadlines[hole] = 0L;
+    }
+
+    /** @return expired futures, removed from the table (null if none) */
+    synchronized List<CompletableFuture<NetPacket>> removeExpired(long currentMillis) {
+        if(nearestDeadline == 0L || nearestDeadline > currentMillis)
+            return null;
+
+        List<CompletableFuture<NetPacket>> expired = null;
+        long newNearestDeadline = 0L;
+
+        int index = 0;
+        while(index < futures.length) {
+            final long deadline = deadlines[index];
+            if(futures[index] != null && deadline != 0L) {
+                if(deadline <= currentMillis) {
+                    if(expired == null)
+                        expired = new ArrayList<>();
+                    expired.add(futures[index]);
+                    this.removeAt(index);
+                    continue; // slot refilled by shift
+                }
+                if(newNearestDeadline == 0L || deadline < newNearestDeadline)
+                    newNearestDeadline = deadline;
+            }
+            index++;
+        }
+        nearestDeadline = newNearestDeadline;
+        return expired;
+    }
+
+    /** @return all pending futures, table is cleared */
+    synchronized List<CompletableFuture<NetPacket>> removeAll() {
+        final List<CompletableFuture<NetPacket>> all = new ArrayList<>(size);
+        for(CompletableFuture<NetPacket> future : futures)
+            if(future != null)
+                all.add(future);
+
+        this.allocate(INITIAL_CAPACITY);
+        size = 0;
+        nearestDeadline = 0L;
+        return all;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,12 @@
+package generaloss.networkforge.packet.rpc;
+
+/** Remote responder failure or missing responder. */
+public class RpcException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RpcException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,264 @@
+package generaloss.networkforge.packet.rpc;
+
+import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.packet.PacketDispatcher;
+import generaloss.networkforge.packet.PacketReader;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.EventPipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/** Request/response calls over the event pipeline.
+ * Frame: [short reserved ID][int call ID][net-packet bytes | UTF-8 error message] */
+public class RpcHandler extends EventHandler {
+
+    public static final short REQUEST_FRAME_ID = (short) 0xFFFD;
+    public static final short RESPONSE_FRAME_ID = (short) 0xFFFE;
+    public static final short ERROR_FRAME_ID = (short) 0xFFFF;
+    private static final int HEADER_SIZE = (Short.BYTES + Integer.BYTES);
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000L;
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 50L;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, RpcHandler.class.getSimpleName() + "-timer-thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PacketReader packetReader;
+    private final PacketDispatcher packetDispatcher; // can be null - calls only
+    private final AttributeKey<PendingCallTable> pendingCallsKey;
+    private final Set<PendingCallTable> pendingCallTables; // swept for deadlines
+    private volatile long defaultTimeoutMillis;
+    private ScheduledFuture<?> sweepTask;
+
+    public RpcHandler(PacketReader packetReader, PacketDispatcher packetDispatcher) {
+        if(packetReader == null)
+            throw new IllegalArgumentException("Argument 'packetReader' cannot be null");
+
+        this.packetReader = packetReader;
+        this.packetDispatcher = packetDispatcher;
+        this.pendingCallsKey = new AttributeKey<>("rpc pending calls");
+        this.pendingCallTables = ConcurrentHashMap.newKeySet();
+        this.defaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    public RpcHandler(PacketReader packetReader) {
+        this(packetReader, null);
+    }
+
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    public RpcHandler setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        if(defaultTimeoutMillis < 0L)
+            throw new IllegalArgumentException("Argument 'defaultTimeoutMillis' must be >= 0");
+
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        return this;
+    }
+
+    public int getPendingCallCount(TCPConnection connection) {
+        final PendingCallTable table = connection.getAttribute(pendingCallsKey);
+        return (table == null ? 0 : table.size());
+    }
+
+
+    /** @param timeoutMillis 0 - no deadline */
+    @SuppressWarnings("unchecked")
+    public <R extends NetPacket> CompletableFuture<R> call(TCPConnection connection, NetPacket request, long timeoutMillis) {
+        if(connection == null)
+            throw new IllegalArgumentException("Argument 'connection' cannot be null");
+        if(request == null)
+            throw new IllegalArgumentException("Argument 'request' cannot be null");
+
+        final byte[] packetBytes;
+        try {
+            packetBytes = request.toByteArray();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final CompletableFuture<NetPacket> future = new CompletableFuture<>();
+        final long deadlineMillis = (timeoutMillis > 0L ? System.currentTimeMillis() + timeoutMillis : 0L);
+        if(deadlineMillis != 0L)
+            this.startSweepTask();
+
+        final PendingCallTable table = connection.getAttributes().computeIfAbsent(pendingCallsKey, () -> {
+            final PendingCallTable newTable = new PendingCallTable();
+            pendingCallTables.add(newTable);
+            return newTable;
+        });
+        final int callID = table.add(future, deadlineMillis);
+
+        // closed meanwhile: disconnect may have failed the calls before this one was added
+        if(connection.isClosed()) {
+            this.failPendingCalls(connection, new IOException("Connection is closed"));
+            return (CompletableFuture<R>) future;
+        }
+
+        final byte[] frame = createFrame(REQUEST_FRAME_ID, callID, packetBytes);
+        if(!connection.send(frame)) {
+            table.remove(callID);
+            future.completeExceptionally(new IOException("Failed to send RPC request"));
+        }
+        return (CompletableFuture<R>) future;
+    }
+
+    public <R extends NetPacket> CompletableFuture<R> call(TCPConnection connection, NetPacket request) {
+        return this.call(connection, request, defaultTimeoutMillis);
+    }
+
+    private synchronized void startSweepTask() {
+        if(sweepTask == null)
+            sweepTask = TIMER.scheduleAtFixedRate(this::sweepExpiredCalls, DEFAULT_SWEEP_INTERVAL_MILLIS, DEFAULT_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sweepExpiredCalls() {
+        final long currentMillis = System.currentTimeMillis();
+        for(PendingCallTable table : pendingCallTables) {
+            final List<CompletableFuture<NetPacket>> expired = table.removeExpired(currentMillis);
+            if(expired == null)
+                continue;
+
+            for(CompletableFuture<NetPacket> future : expired)
+                future.completeExceptionally(new TimeoutException("RPC call timed out"));
+        }
+    }
+
+    /** Stops the deadline timer and fails every pending call. */
+    public void close() {
+        synchronized(this) {
+            if(sweepTask != null) {
+                sweepTask.cancel(false);
+                sweepTask = null;
+            }
+        }
+        for(PendingCallTable table : pendingCallTables)
+            failAll(table, new CancellationException("RPC handler closed"));
+    }
+
+    private void failPendingCalls(TCPConnection connection, Throwable cause) {
+        final PendingCallTable table = connection.getAttributes().remove(pendingCallsKey);
+        if(table == null)
+            return;
+
+        pendingCallTables.remove(table);
+        failAll(table, cause);
+    }
+
+    private static void failAll(PendingCallTable table, Throwable cause) {
+        for(CompletableFuture<NetPacket> future : table.removeAll())
+            future.completeExceptionally(cause);
+    }
+
+
+    @Override
+    public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
+        this.failPendingCalls(context.getConnection(), new IOException("Connection closed: " + reason, e));
+        return true;
+    }
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        if(data.length < HEADER_SIZE)
+            return true;
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final short frameID = buffer.getShort();
+        if(frameID != REQUEST_FRAME_ID && frameID != RESPONSE_FRAME_ID && frameID != ERROR_FRAME_ID)
+            return true; // not an RPC frame
+
+        final int callID = buffer.getInt();
+        final TCPConnection connection = context.getConnection();
+
+        if(frameID == REQUEST_FRAME_ID) {
+            this.handleRequest(context, callID, data);
+        } else {
+            final PendingCallTable table = connection.getAttribute(pendingCallsKey);
+            final CompletableFuture<NetPacket> future = (table == null ? null : table.remove(callID));
+            if(future == null)
+                return false; // late response to timed out call
+
+            if(frameID == ERROR_FRAME_ID) {
+                final String message = new String(data, HEADER_SIZE, data.length - HEADER_SIZE, StandardCharsets.UTF_8);
+                future.completeExceptionally(new RpcException(message));
+            } else {
+                try {
+                    final NetPacket response = packetReader.read(Arrays.copyOfRange(data, HEADER_SIZE, data.length));
+                    future.complete(response);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+        return false; // consumed
+    }
+
+    private void handleRequest(EventInvocationContext context, int callID, byte[] data) {
+        final TCPConnection connection = context.getConnection();
+
+        // reply from this handler position down, context is not used after return
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int replyHandlerIndex = (context.getHandlerIndex() - 1);
+
+        if(packetDispatcher == null) {
+            this.sendError(pipeline, handlers, replyHandlerIndex, connection, callID, "No responders on the remote side");
+            return;
+        }
+
+        final CompletableFuture<NetPacket> responseFuture;
+        try {
+            final NetPacket request = packetReader.read(Arrays.copyOfRange(data, HEADER_SIZE, data.length));
+            responseFuture = packetDispatcher.dispatchRequest(connection, request);
+        } catch (Exception e) {
+            this.sendError(pipeline, handlers, replyHandlerIndex, connection, callID, String.valueOf(e.getMessage()));
+            return;
+        }
+
+        responseFuture.whenComplete((response, throwable) -> {
+            if(throwable != null || response == null) {
+                final String message = (throwable != null ? String.valueOf(throwable.getMessage()) : "Responder returned null");
+                this.sendError(pipeline, handlers, replyHandlerIndex, connection, callID, message);
+                return;
+            }
+
+            try {
+                final byte[] frame = createFrame(RESPONSE_FRAME_ID, callID, response.toByteArray());
+                pipeline.fireSend(handlers, replyHandlerIndex, connection, frame);
+            } catch (IOException e) {
+                pipeline.fireError(connection, ErrorSource.SEND_HANDLER, e);
+                this.sendError(pipeline, handlers, replyHandlerIndex, connection, callID, String.valueOf(e.getMessage()));
+            }
+        });
+    }
+
+    private void sendError(EventPipeline pipeline, EventHandler[] handlers, int handlerIndex, TCPConnection connection, int callID, String message) {
+        final byte[] frame = createFrame(ERROR_FRAME_ID, callID, message.getBytes(StandardCharsets.UTF_8));
+        pipeline.fireSend(handlers, handlerIndex, connection, frame);
+    }
+
+    private static byte[] createFrame(short frameID, int callID, byte[] payload) {
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+            .putShort(frameID)
+            .putInt(callID)
+            .put(payload)
+            .array();
+    }
+
+}
@@ -12,11 +12,16 @@ public class AsyncSocketConnector {
     private final long deadlineMillis;
     private final CompletableFuture<TCPConnection> resultFuture;
 
-    public AsyncSocketConnector(SocketChannel channel, long timeoutMillis) {
+    /** @param resultFuture can be shared between connectors racing for the same connection */
+    public AsyncSocketConnector(SocketChannel channel, long timeoutMillis, CompletableFuture<TCPConnection> resultFuture) {
         this.channel = channel;
         this.hasDeadline = (timeoutMillis > 0L);
         this.deadlineMillis = (System.currentTimeMillis() + timeoutMillis);
-        this.resultFuture = new CompletableFuture<>();
+        this.resultFuture = resultFuture;
+    }
+
+    public AsyncSocketConnector(SocketChannel channel, long timeoutMillis) {
+        this(channel, timeoutMillis, new CompletableFuture<>());
     }
 
     public SocketChannel getChannel() {
@@ -0,0 +1,172 @@
+package generaloss.networkforge.tcp;
+
+import generaloss.networkforge.tcp.listener.CloseReason;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Memory shared by connections: receive buffers of codecs and queued writes.
+ * Past the soft limit the heaviest connections stop reading,
+ * past the hard limit sends are rejected and the heaviest readers are closed.
+ * A connection is heavy when it holds at least an average share of the used memory. */
+public class MemoryBudget {
+
+    private static final double RESUME_FACTOR = 0.9D; // reading resumes below this part of soft limit
+
+    private final long softLimitBytes;
+    private final long hardLimitBytes;
+
+    private final AtomicLong usedBytes;
+    private final AtomicLong peakUsedBytes;
+    private final AtomicInteger connectionCount;
+    private final Queue<TCPConnection> pausedConnections;
+
+    private final AtomicLong readPauseCount;
+    private final AtomicLong rejectedSendCount;
+    private final AtomicLong closedConnectionCount;
+
+    public MemoryBudget(long softLimitBytes, long hardLimitBytes) {
+        if(softLimitBytes < 1L)
+            throw new IllegalArgumentException("Argument 'softLimitBytes' must be > 0");
+        if(hardLimitBytes < softLimitBytes)
+            throw new IllegalArgumentException("Argument 'hardLimitBytes' must be >= 'softLimitBytes'");
+
+        this.softLimitBytes = softLimitBytes;
+        this.hardLimitBytes = hardLimitBytes;
+
+        this.usedBytes = new AtomicLong();
+        this.peakUsedBytes = new AtomicLong();
+        this.connectionCount = new AtomicInteger();
+        this.pausedConnections = new ConcurrentLinkedQueue<>();
+
+        this.readPauseCount = new AtomicLong();
+        this.rejectedSendCount = new AtomicLong();
+        this.closedConnectionCount = new AtomicLong();
+    }
+
+    public long getSoftLimitBytes() {
+        return softLimitBytes;
+    }
+
+    public long getHardLimitBytes() {
+        return hardLimitBytes;
+    }
+
+
+    protected void register() {
+        connectionCount.incrementAndGet();
+    }
+
+    protected void unregister(TCPConnection connection, long reservedBytes) {
+        pausedConnections.remove(connection);
+        connectionCount.decrementAndGet();
+        this.release(reservedBytes);
+    }
+
+    protected void reserve(long bytes) {
+        final long used = usedBytes.addAndGet(bytes);
+        peakUsedBytes.accumulateAndGet(used, Math::max);
+    }
+
+    protected void release(long bytes) {
+        final long used = usedBytes.addAndGet(-bytes);
+        if(!pausedConnections.isEmpty() && used < softLimitBytes * RESUME_FACTOR)
+            this.resumeReading();
+    }
+
+    private void resumeReading() {
+        TCPConnection connection;
+        while((connection = pausedConnections.poll()) != null)
+            connection.resumeReading();
+    }
+
+
+    protected boolean isHeavy(long connectionBytes) {
+        final int connections = Math.max(1, connectionCount.get());
+        return (connectionBytes > 0L && connectionBytes * connections >= usedBytes.get());
+    }
+
+    /** Called after connection reads with its reserved memory updated. */
+    protected void checkReading(TCPConnection connection, long connectionBytes) {
+        if(!this.isSoftLimitExceeded() || !this.isHeavy(connectionBytes))
+            return;
+
+        if(this.isHardLimitExceeded()) {
+            closedConnectionCount.incrementAndGet();
+            connection.close(CloseReason.MEMORY_LIMIT_EXCEEDED, null);
+            return;
+        }
+
+        if(connection.pauseReading()) {
+            readPauseCount.incrementAndGet();
+            pausedConnections.add(connection);
+
+            // memory may have been released meanwhile
+            if(usedBytes.get() < softLimitBytes * RESUME_FACTOR)
+                this.resumeReading();
+        }
+    }
+
+    /** @return false when send must be rejected */
+    protected boolean checkSend() {
+        if(!this.isHardLimitExceeded())
+            return true;
+
+        rejectedSendCount.incrementAndGet();
+        return false;
+    }
+
+
+    public boolean isSoftLimitExceeded() {
+        return (usedBytes.get() > softLimitBytes);
+    }
+
+    public boolean isHardLimitExceeded() {
+        return (usedBytes.get() > hardLimitBytes);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getPeakUsedBytes() {
+        return peakUsedBytes.get();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public int getPausedConnectionCount() {
+        return pausedConnections.size();
+    }
+
+    public long getReadPauseCount() {
+        return readPauseCount.get();
+    }
+
+    public long getRejectedSendCount() {
+        return rejectedSendCount.get();
+    }
+
+    public long getClosedConnectionCount() {
+        return closedConnectionCount.get();
+    }
+
+
+    @Override
+    public String toString() {
+        return MemoryBudget.class.getSimpleName() + "{" +
+            "USED=" + usedBytes.get() +
+            ", PEAK=" + peakUsedBytes.get() +
+            ", SOFT_LIMIT=" + softLimitBytes +
+            ", HARD_LIMIT=" + hardLimitBytes +
+            ", CONNECTIONS=" + connectionCount.get() +
+            ", PAUSED=" + pausedConnections.size() +
+            ", REJECTED_SENDS=" + rejectedSendCount.get() +
+            ", CLOSED=" + closedConnectionCount.get() + "}";
+    }
+
+}
@@ -6,7 +6,9 @@ import generaloss.resourceflow.ResUtils;
 import java.io.IOException;
 import java.nio.channels.*;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.LongSupplier;
 
 public class SelectorLoop {
@@ -14,9 +16,11 @@ public class SelectorLoop {
     private volatile Selector selector;
     private volatile Thread selectorThread;
     private final Object openLock;
+    private final Queue<Runnable> tasks; // run by the loop after each select
 
     public SelectorLoop() {
         this.openLock = new Object();
+        this.tasks = new ConcurrentLinkedQueue<>();
     }
 
 
@@ -28,25 +32,34 @@ public class SelectorLoop {
     }
 
     public void close() {
+        final Thread thread;
         synchronized (openLock) {
-            if(selectorThread != null)
-                selectorThread.interrupt();
+            thread = selectorThread;
+            if(thread != null)
+                thread.interrupt();
 
             if(selector != null)
                 selector.wakeup();
+        }
 
-            // wait interrupted
-            if(selectorThread != null) {
-                System.out.println("  wait thread interrupt");
-                try {
-                    selectorThread.join();
-                } catch(InterruptedException ignored) { }
-                System.out.println("  thread interrupted");
-            }
+        // wait interrupted outside the lock: the loop may be closing itself meanwhile
+        // (closing from the loop itself must not join - it would clear the interrupt flag)
+        if(thread != null && thread != Thread.currentThread()) {
+            System.out.println("  wait thread interrupt");
+            try {
+                thread.join();
+            } catch(InterruptedException ignored) { }
+            System.out.println("  thread interrupted");
+        }
+
+        synchronized (openLock) {
+            if(selectorThread != thread)
+                return; // closed by the loop itself
 
             ResUtils.close(selector);
             selector = null;
             selectorThread = null;
+            tasks.clear();
         }
     }
 
@@ -68,13 +81,40 @@ public class SelectorLoop {
         return this.registerKey(channel, SelectionKey.OP_READ);
     }
 
+    public void wakeup() {
+        final Selector selector = this.selector;
+        if(selector != null)
+            selector.wakeup();
+    }
+
+    /** Runs the task on the loop thread after the current (or next) select, tasks run in submission order. */
+    public void execute(Runnable task) {
+        if(task == null)
+            throw new IllegalArgumentException("Argument 'task' cannot be null");
+
+        tasks.add(task);
+        this.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                // noinspection CallToPrintStackTrace
+                e.printStackTrace();
+            }
+        }
+    }
+
 
     public void startSelectionLoopThread(String threadName, SelectionKeyConsumer onKeySelected, LongSupplier nextTimeoutGetter) {
         if(selectorThread != null)
             return;
 
         selectorThread = new Thread(() -> {
-            while(!Thread.currentThread().isInterrupted()) {
+            while(!Thread.currentThread().isInterrupted() && selectorThread == Thread.currentThread()) {
                 try {
                     this.selectKeys(onKeySelected, nextTimeoutGetter);
                 } catch(ClosedSelectorException | CancelledKeyException | NullPointerException ignored) {
@@ -109,6 +149,7 @@ public class SelectorLoop {
             return;
         }
 
+        this.runTasks();
         if(selector == null)
             return;
 
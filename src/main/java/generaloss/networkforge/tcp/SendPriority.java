@@ -0,0 +1,22 @@
+package generaloss.networkforge.tcp;
+
+/** Send classes drained by a weighted scheduler, weight is the number of buffers per round. */
+public enum SendPriority {
+
+    HIGH   (8),
+    NORMAL (4),
+    LOW    (1);
+
+    private final int weight;
+
+    SendPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public static final SendPriority DEFAULT = NORMAL;
+
+}
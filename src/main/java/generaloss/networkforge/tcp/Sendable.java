@@ -17,4 +17,12 @@ public interface Sendable {
 
     boolean send(NetPacket packet);
 
+    default boolean send(byte[] data, SendPriority priority) {
+        return this.send(data);
+    }
+
+    default boolean send(NetPacket packet, SendPriority priority) {
+        return this.send(packet);
+    }
+
 }
@@ -6,28 +6,42 @@ import generaloss.networkforge.tcp.codec.CodecType;
 import generaloss.networkforge.tcp.listener.*;
 import generaloss.networkforge.tcp.listener.ListenersHolder;
 import generaloss.networkforge.tcp.pipeline.EventPipeline;
+import generaloss.networkforge.tcp.resolver.AddressResolver;
+import generaloss.networkforge.tcp.resolver.CachingAddressResolver;
+import generaloss.networkforge.tcp.resolver.ResolvedAddresses;
+import generaloss.networkforge.tcp.resolver.SystemAddressResolver;
 import generaloss.networkforge.tcp.options.TCPConnectionOptionsHolder;
 import generaloss.networkforge.packet.NetPacket;
+import generaloss.resourceflow.ResUtils;
 import generaloss.resourceflow.stream.BinaryStreamWriter;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AlreadyConnectedException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class TCPClient implements Sendable {
 
     private static final String CLASS_NAME = TCPClient.class.getSimpleName();
+    private static final long IDLE_BUFFERS_CHECK_INTERVAL_MILLIS = 1000L;
+
+    public static final long DEFAULT_CONNECT_ATTEMPT_DELAY_MILLIS = 250L; // RFC 8305
+    public static final AddressResolver DEFAULT_ADDRESS_RESOLVER = new CachingAddressResolver(new SystemAddressResolver());
 
     private ConnectionCodec connectionCodec;
     private TCPConnectionOptionsHolder initialOptions;
+    private volatile MemoryBudget memoryBudget;
     private final SelectorLoop selectorLoop;
 
     private final ListenersHolder listeners;
@@ -39,6 +53,14 @@ public class TCPClient implements Sendable {
     private final SyncSocketConnector syncConnector;
     private final Map<SocketChannel, AsyncSocketConnector> asyncConnectors;
 
+    private AddressResolver addressResolver;
+    private long connectAttemptDelayMillis;
+    private final Queue<SocketAddress> pendingConnectAddresses;
+    private volatile CompletableFuture<TCPConnection> connectRaceFuture;
+    private volatile long connectRaceDeadlineMillis;
+    private volatile long nextConnectAttemptMillis;
+    private long nextIdleBuffersCheckMillis;
+
     public TCPClient() {
         this.setCodec(CodecType.DEFAULT);
 
@@ -53,6 +75,10 @@ public class TCPClient implements Sendable {
         this.state = ConnectionState.CLOSED;
         this.syncConnector = new SyncSocketConnector();
         this.asyncConnectors = new ConcurrentHashMap<>();
+
+        this.addressResolver = DEFAULT_ADDRESS_RESOLVER;
+        this.connectAttemptDelayMillis = DEFAULT_CONNECT_ATTEMPT_DELAY_MILLIS;
+        this.pendingConnectAddresses = new ConcurrentLinkedQueue<>();
     }
 
 
@@ -86,7 +112,11 @@ public class TCPClient implements Sendable {
     }
 
     public TCPClient connect(String hostname, int port, int timeoutMillis) throws IOException, AlreadyConnectedException  {
-        return this.connect(new InetSocketAddress(hostname, port), timeoutMillis);
+        if(state != ConnectionState.CLOSED)
+            throw new AlreadyConnectedException();
+
+        final ResolvedAddresses resolved = this.resolveBlocking(hostname);
+        return this.connect(new InetSocketAddress(resolved.getFirst(), port), timeoutMillis);
     }
 
     public TCPClient connect(String hostname, int port) throws IOException, AlreadyConnectedException  {
@@ -132,7 +162,18 @@ public class TCPClient implements Sendable {
     }
 
     public CompletableFuture<TCPConnection> connectAsync(String hostname, int port, long timeoutMillis) throws IOException, AlreadyConnectedException  {
-        return this.connectAsync(new InetSocketAddress(hostname, port), timeoutMillis);
+        if(state != ConnectionState.CLOSED)
+            throw new AlreadyConnectedException();
+
+        final long startMillis = System.currentTimeMillis();
+        return this.resolveAsync(hostname, timeoutMillis).thenCompose(resolved -> {
+            try {
+                final long timeLeftMillis = remainingTimeout(startMillis, timeoutMillis);
+                return this.connectAsync(new InetSocketAddress(resolved.getFirst(), port), timeLeftMillis);
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
     }
 
     public CompletableFuture<TCPConnection> connectAsync(String hostname, int port) throws IOException, AlreadyConnectedException  {
@@ -140,6 +181,194 @@ public class TCPClient implements Sendable {
     }
 
 
+    /** Happy eyeballs: starts staggered parallel connects to every address,
+     * the first connected channel wins and the others are cancelled. */
+    public CompletableFuture<TCPConnection> connectAsyncRacing(InetAddress[] addresses, int port, long timeoutMillis) throws IOException, AlreadyConnectedException {
+        if(addresses == null || addresses.length == 0)
+            throw new IllegalArgumentException("Argument 'addresses' cannot be null or empty");
+
+        if(state != ConnectionState.CLOSED)
+            throw new AlreadyConnectedException();
+
+        state = ConnectionState.CONNECTING;
+
+        final CompletableFuture<TCPConnection> resultFuture = new CompletableFuture<>();
+        connectRaceFuture = resultFuture;
+        connectRaceDeadlineMillis = (timeoutMillis > 0L ? System.currentTimeMillis() + timeoutMillis : 0L);
+
+        for(InetAddress address : interleaveAddressFamilies(addresses))
+            pendingConnectAddresses.add(new InetSocketAddress(address, port));
+
+        selectorLoop.open();
+        this.startNextConnectAttempt();
+        this.startSelectorLoop();
+
+        return resultFuture;
+    }
+
+    public CompletableFuture<TCPConnection> connectAsyncRacing(String hostname, int port, long timeoutMillis) throws IOException, AlreadyConnectedException {
+        if(state != ConnectionState.CLOSED)
+            throw new AlreadyConnectedException();
+
+        final long startMillis = System.currentTimeMillis();
+        return this.resolveAsync(hostname, timeoutMillis).thenCompose(resolved -> {
+            try {
+                final long timeLeftMillis = remainingTimeout(startMillis, timeoutMillis);
+                return this.connectAsyncRacing(resolved.getAddresses(), port, timeLeftMillis);
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    public CompletableFuture<TCPConnection> connectAsyncRacing(String hostname, int port) throws IOException, AlreadyConnectedException {
+        return this.connectAsyncRacing(hostname, port, 0L);
+    }
+
+    private CompletableFuture<ResolvedAddresses> resolveAsync(String hostname) {
+        try {
+            return addressResolver.resolve(hostname);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<ResolvedAddresses> resolveAsync(String hostname, long timeoutMillis) {
+        final CompletableFuture<ResolvedAddresses> future = this.resolveAsync(hostname);
+        if(timeoutMillis <= 0L || future.isDone())
+            return future;
+
+        // copy, the resolver future may be shared between callers
+        return future.thenApply(resolved -> resolved).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private ResolvedAddresses resolveBlocking(String hostname) throws IOException {
+        try {
+            return this.resolveAsync(hostname).join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Failed to resolve '" + hostname + "'", cause);
+        }
+    }
+
+    /** @return 0 when there is no timeout */
+    private static long remainingTimeout(long startMillis, long timeoutMillis) throws TimeoutException {
+        if(timeoutMillis <= 0L)
+            return 0L;
+
+        final long timeLeftMillis = (timeoutMillis - (System.currentTimeMillis() - startMillis));
+        if(timeLeftMillis <= 0L)
+            throw new TimeoutException("Connect timed out while resolving address");
+        return timeLeftMillis;
+    }
+
+    /** Alternates address families starting with the first one (RFC 8305). */
+    private static List<InetAddress> interleaveAddressFamilies(InetAddress[] addresses) {
+        final Class<?> firstFamily = addresses[0].getClass();
+
+        final Queue<InetAddress> preferred = new ArrayDeque<>();
+        final Queue<InetAddress> other = new ArrayDeque<>();
+        for(InetAddress address : addresses) {
+            if(address.getClass() == firstFamily) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        final List<InetAddress> result = new ArrayList<>(addresses.length);
+        while(!preferred.isEmpty() || !other.isEmpty()) {
+            if(!preferred.isEmpty())
+                result.add(preferred.poll());
+            if(!other.isEmpty())
+                result.add(other.poll());
+        }
+        return result;
+    }
+
+    /** @return false when there are no addresses left to try */
+    private boolean startNextConnectAttempt() {
+        final CompletableFuture<TCPConnection> resultFuture = connectRaceFuture;
+        if(resultFuture == null || state != ConnectionState.CONNECTING)
+            return false;
+
+        while(true) {
+            final SocketAddress address = pendingConnectAddresses.poll();
+            if(address == null)
+                return false;
+
+            final long currentMillis = System.currentTimeMillis();
+            long timeoutMillis = 0L;
+            if(connectRaceDeadlineMillis != 0L) {
+                timeoutMillis = (connectRaceDeadlineMillis - currentMillis);
+                if(timeoutMillis <= 0L) {
+                    pendingConnectAddresses.clear();
+                    return false;
+                }
+            }
+            nextConnectAttemptMillis = (currentMillis + connectAttemptDelayMillis);
+
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                initialOptions.applyPreConnect(channel);
+                channel.configureBlocking(false);
+
+                final AsyncSocketConnector connector = new AsyncSocketConnector(channel, timeoutMillis, resultFuture);
+                asyncConnectors.put(channel, connector);
+
+                if(channel.connect(address)) {
+                    this.createTCPConnection(channel);
+                    this.completeConnector(connector, connection);
+                } else {
+                    selectorLoop.registerConnectKey(channel);
+                    selectorLoop.wakeup();
+                }
+                return true;
+
+            } catch (IOException e) {
+                // unreachable address - try next one right away
+                eventPipeline.fireError(null, ErrorSource.CONNECT, e);
+                if(channel != null) {
+                    asyncConnectors.remove(channel);
+                    ResUtils.close(channel);
+                }
+                if(pendingConnectAddresses.isEmpty() && asyncConnectors.isEmpty()) {
+                    resultFuture.completeExceptionally(e);
+                    return false;
+                }
+            }
+        }
+    }
+
+    public AddressResolver getAddressResolver() {
+        return addressResolver;
+    }
+
+    public TCPClient setAddressResolver(AddressResolver addressResolver) {
+        if(addressResolver == null)
+            throw new IllegalArgumentException("Argument 'addressResolver' cannot be null");
+
+        this.addressResolver = addressResolver;
+        return this;
+    }
+
+    public long getConnectAttemptDelayMillis() {
+        return connectAttemptDelayMillis;
+    }
+
+    /** Delay between staggered attempts of {@link #connectAsyncRacing}. */
+    public TCPClient setConnectAttemptDelayMillis(long connectAttemptDelayMillis) {
+        if(connectAttemptDelayMillis < 0L)
+            throw new IllegalArgumentException("Argument 'connectAttemptDelayMillis' must be >= 0");
+
+        this.connectAttemptDelayMillis = connectAttemptDelayMillis;
+        return this;
+    }
+
+
     private void startSelectorLoop() {
         final String threadName = (CLASS_NAME + "-selector-thread-#" + this.hashCode());
         selectorLoop.startSelectionLoopThread(threadName, this::onKeySelected, this::getNextSelectionTimeout);
@@ -148,6 +377,27 @@ public class TCPClient implements Sendable {
     private long getNextSelectionTimeout() {
         System.out.println("  getNextSelectionTimeout()");
         long minMillisLeft = Long.MAX_VALUE;
+
+        // trim buffers of an idle connection
+        final TCPConnection connection = this.connection;
+        if(state == ConnectionState.CONNECTED && connection != null) {
+            final long currentMillis = System.currentTimeMillis();
+            if(currentMillis >= nextIdleBuffersCheckMillis) {
+                connection.releaseIdleBuffers();
+                nextIdleBuffersCheckMillis = (currentMillis + IDLE_BUFFERS_CHECK_INTERVAL_MILLIS);
+            }
+            minMillisLeft = Math.max(1L, nextIdleBuffersCheckMillis - currentMillis);
+        }
+
+        // staggered racing attempts
+        if(state == ConnectionState.CONNECTING && !pendingConnectAddresses.isEmpty()) {
+            if(nextConnectAttemptMillis <= System.currentTimeMillis())
+                this.startNextConnectAttempt();
+
+            if(!pendingConnectAddresses.isEmpty())
+                minMillisLeft = Math.max(1L, nextConnectAttemptMillis - System.currentTimeMillis());
+        }
+
         for(AsyncSocketConnector connector : asyncConnectors.values()) {
             if(!connector.hasDeadline())
                 continue;
@@ -199,7 +449,8 @@ public class TCPClient implements Sendable {
                     System.out.println("      onKeySelected() [try] finishConnect() failed");
                     asyncConnectors.remove(channel);
 
-                    if(asyncConnectors.isEmpty()) {
+                    final boolean nextAttemptStarted = this.startNextConnectAttempt();
+                    if(!nextAttemptStarted && asyncConnectors.isEmpty()) {
                         connector.getResultFuture().completeExceptionally(new IOException("Connection closed during connect"));
                         System.out.println("      onKeySelected() [try] future exception + null");
                     }
@@ -221,7 +472,8 @@ public class TCPClient implements Sendable {
                 asyncConnectors.remove(channel);
                 System.out.println("        onKeySelected() [catch] removed async connector (" + asyncConnectors.size() + ")");
 
-                if(asyncConnectors.isEmpty()) {
+                final boolean nextAttemptStarted = this.startNextConnectAttempt();
+                if(!nextAttemptStarted && asyncConnectors.isEmpty()) {
                     connector.getResultFuture().completeExceptionally(e);
                     System.out.println("        onKeySelected() [catch] future exeption + null");
                 }
@@ -234,10 +486,11 @@ public class TCPClient implements Sendable {
 
         final SelectionKey key = selectorLoop.registerReadKey(channel);
 
-        connection = new TCPConnection(channel, key, connectionCodec, eventPipeline);
+        connection = new TCPConnection(channel, key, connectionCodec, eventPipeline, selectorLoop);
         final String name = (CLASS_NAME + "-connection-#" + this.hashCode());
         connection.setName(name);
         initialOptions.copyTo(connection.getOptions());
+        connection.setMemoryBudget(memoryBudget);
 
         state = ConnectionState.CONNECTED;
         connection.onConnected();
@@ -253,6 +506,9 @@ public class TCPClient implements Sendable {
     private void clearConnectors() {
         syncConnector.cancel();
 
+        pendingConnectAddresses.clear();
+        connectRaceFuture = null;
+
         for(AsyncSocketConnector connector : asyncConnectors.values())
             connector.cancel();
         System.out.println("  clearConnectors() cleared async connectors " + asyncConnectors.size());
@@ -341,6 +597,17 @@ public class TCPClient implements Sendable {
     }
 
 
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Applies to connections opened after the call. Can be shared between servers and clients, null to not limit. */
+    public TCPClient setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+
     public EventPipeline getEventPipeline() {
         return eventPipeline;
     }
@@ -365,6 +632,26 @@ public class TCPClient implements Sendable {
         return this;
     }
 
+    public TCPClient registerOnReceiveChunk(ChunkListener onReceiveChunk) {
+        listeners.registerOnReceiveChunk(onReceiveChunk);
+        return this;
+    }
+
+    public TCPClient registerOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        listeners.registerOnReceiveComposite(onReceiveComposite);
+        return this;
+    }
+
+    public TCPClient registerOnReceiveMessage(MessageListener onReceiveMessage) {
+        listeners.registerOnReceiveMessage(onReceiveMessage);
+        return this;
+    }
+
+    public TCPClient registerOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        listeners.registerOnReceiveBatch(onReceiveBatch);
+        return this;
+    }
+
     public TCPClient registerOnReadComplete(TCPConnectionConsumer onReadComplete) {
         listeners.registerOnReadComplete(onReadComplete);
         return this;
@@ -396,6 +683,26 @@ public class TCPClient implements Sendable {
         return this;
     }
 
+    public TCPClient unregisterOnReceiveChunk(ChunkListener onReceiveChunk) {
+        listeners.unregisterOnReceiveChunk(onReceiveChunk);
+        return this;
+    }
+
+    public TCPClient unregisterOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        listeners.unregisterOnReceiveComposite(onReceiveComposite);
+        return this;
+    }
+
+    public TCPClient unregisterOnReceiveMessage(MessageListener onReceiveMessage) {
+        listeners.unregisterOnReceiveMessage(onReceiveMessage);
+        return this;
+    }
+
+    public TCPClient unregisterOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        listeners.unregisterOnReceiveBatch(onReceiveBatch);
+        return this;
+    }
+
     public TCPClient unregisterOnReadComplete(TCPConnectionConsumer onReadComplete) {
         listeners.unregisterOnReadComplete(onReadComplete);
         return this;
@@ -453,4 +760,18 @@ public class TCPClient implements Sendable {
         return false;
     }
 
+    @Override
+    public boolean send(byte[] data, SendPriority priority) {
+        if(state == ConnectionState.CONNECTED)
+            return connection.send(data, priority);
+        return false;
+    }
+
+    @Override
+    public boolean send(NetPacket packet, SendPriority priority) {
+        if(state == ConnectionState.CONNECTED)
+            return connection.send(packet, priority);
+        return false;
+    }
+
 }
@@ -0,0 +1,645 @@
+package generaloss.networkforge.tcp;
+
+import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.codec.CodecType;
+import generaloss.networkforge.tcp.codec.ConnectionCodec;
+import generaloss.networkforge.tcp.codec.ConnectionCodecFactory;
+import generaloss.networkforge.tcp.listener.*;
+import generaloss.networkforge.tcp.options.TCPConnectionOptionsHolder;
+import generaloss.networkforge.tcp.pipeline.EventPipeline;
+import generaloss.resourceflow.ResUtils;
+import generaloss.resourceflow.stream.BinaryStreamWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/** Keeps between min and max connections to a single endpoint.
+ * All connections share one selector thread.
+ * Sends go to the connection with the least queued and in-progress sends, equally loaded ones take turns. */
+public class TCPClientPool implements Sendable {
+
+    private static final String CLASS_NAME = TCPClientPool.class.getSimpleName();
+
+    public static final int DEFAULT_MIN_CONNECTIONS = 1;
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000L;
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 1000L;
+
+    private final SocketAddress address;
+    private ConnectionCodecFactory codecFactory;
+    private TCPConnectionOptionsHolder initialOptions;
+    private volatile MemoryBudget memoryBudget;
+    private final SelectorLoop selectorLoop;
+
+    private final ListenersHolder listeners;
+    private final EventPipeline eventPipeline;
+
+    private final List<TCPConnection> connections;
+    private final Map<SocketChannel, AsyncSocketConnector> connectors;
+    private final Queue<CompletableFuture<TCPConnection>> waiters;
+    private final AtomicInteger connectionCounter;
+    private final AtomicInteger nextConnectionIndex;
+    private final AttributeKey<AtomicInteger> inFlightSendsKey;
+    private final Object poolLock;
+
+    private int minConnections;
+    private int maxConnections;
+    private long connectTimeoutMillis;
+    private long healthCheckIntervalMillis;
+    private volatile long nextHealthCheckMillis;
+
+    private volatile boolean running;
+
+    public TCPClientPool(SocketAddress address) {
+        if(address == null)
+            throw new IllegalArgumentException("Argument 'address' cannot be null");
+
+        this.address = address;
+        this.setCodecFactory(CodecType.DEFAULT);
+
+        this.initialOptions = new TCPConnectionOptionsHolder();
+        this.selectorLoop = new SelectorLoop();
+
+        this.listeners = new ListenersHolder();
+        this.listeners.registerOnDisconnect(this::onConnectionClosed);
+
+        this.eventPipeline = new EventPipeline(listeners);
+
+        this.connections = new CopyOnWriteArrayList<>();
+        this.connectors = new ConcurrentHashMap<>();
+        this.waiters = new ConcurrentLinkedQueue<>();
+        this.connectionCounter = new AtomicInteger();
+        this.nextConnectionIndex = new AtomicInteger();
+        this.inFlightSendsKey = new AttributeKey<>("pool in-flight sends");
+        this.poolLock = new Object();
+
+        this.minConnections = DEFAULT_MIN_CONNECTIONS;
+        this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+        this.connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        this.healthCheckIntervalMillis = DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS;
+    }
+
+    public TCPClientPool(String hostname, int port) {
+        this(new InetSocketAddress(hostname, port));
+    }
+
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public TCPClientPool setCodecFactory(ConnectionCodecFactory codecFactory) {
+        if(codecFactory == null)
+            throw new IllegalArgumentException("Argument 'codecFactory' cannot be null");
+
+        this.codecFactory = codecFactory;
+        return this;
+    }
+
+    public TCPClientPool setCodecFactory(CodecType codecType) {
+        if(codecType == null)
+            throw new IllegalArgumentException("Argument 'codecType' cannot be null");
+
+        this.codecFactory = codecType.getFactory();
+        return this;
+    }
+
+
+    public TCPConnectionOptionsHolder getInitialOptions() {
+        return initialOptions;
+    }
+
+    public TCPClientPool setInitialOptions(TCPConnectionOptionsHolder initialOptions) {
+        if(initialOptions == null)
+            throw new IllegalArgumentException("Argument 'initialOptions' cannot be null");
+
+        this.initialOptions = initialOptions;
+        return this;
+    }
+
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Applies to connections opened after the call. Can be shared between servers and clients, null to not limit. */
+    public TCPClientPool setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public TCPClientPool setConnectionsLimits(int minConnections, int maxConnections) {
+        if(minConnections < 0)
+            throw new IllegalArgumentException("Argument 'minConnections' must be >= 0");
+        if(maxConnections < 1 || maxConnections < minConnections)
+            throw new IllegalArgumentException("Argument 'maxConnections' must be > 0 and >= 'minConnections'");
+
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public TCPClientPool setConnectTimeoutMillis(long connectTimeoutMillis) {
+        if(connectTimeoutMillis < 0L)
+            throw new IllegalArgumentException("Argument 'connectTimeoutMillis' must be >= 0");
+
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    public TCPClientPool setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+        if(healthCheckIntervalMillis < 1L)
+            throw new IllegalArgumentException("Argument 'healthCheckIntervalMillis' must be > 0");
+
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        return this;
+    }
+
+
+    public EventPipeline getEventPipeline() {
+        return eventPipeline;
+    }
+
+    public Collection<TCPConnection> getConnections() {
+        return Collections.unmodifiableList(connections);
+    }
+
+    public int getPendingConnectsCount() {
+        return connectors.size();
+    }
+
+
+    public TCPClientPool start() throws IOException, IllegalStateException {
+        if(running)
+            throw new IllegalStateException("TCP client pool is already running");
+
+        selectorLoop.open();
+        running = true;
+
+        // pre-warm
+        this.openMissingConnections();
+
+        nextHealthCheckMillis = (System.currentTimeMillis() + healthCheckIntervalMillis);
+        selectorLoop.startSelectionLoopThread(this.makeSelectorThreadName(), this::onKeySelected, this::getNextSelectionTimeout);
+        return this;
+    }
+
+    private String makeSelectorThreadName() {
+        return (CLASS_NAME + "-selector-thread-#" + this.hashCode());
+    }
+
+    private int getTotalCount() {
+        return (connections.size() + connectors.size());
+    }
+
+
+    /** @return connected connection with the least load (queued writes and sends through the pool in progress),
+     * or null when there is none yet */
+    public TCPConnection acquireNow() {
+        final TCPConnection[] snapshot = connections.toArray(new TCPConnection[0]);
+        TCPConnection best = null;
+        int bestLoad = Integer.MAX_VALUE;
+
+        // start from the next connection each time: idle connections take turns
+        final int start = (snapshot.length == 0 ? 0 : Math.floorMod(nextConnectionIndex.getAndIncrement(), snapshot.length));
+        for(int i = 0; i < snapshot.length; i++) {
+            final TCPConnection connection = snapshot[(start + i) % snapshot.length];
+            if(connection.isClosed())
+                continue;
+
+            final int load = this.getLoad(connection);
+            if(load < bestLoad) {
+                best = connection;
+                bestLoad = load;
+                if(load == 0)
+                    break;
+            }
+        }
+
+        // grow when every connection is busy
+        if(running && (best == null || bestLoad > 0))
+            this.growIfPossible(waiters.size() + 1);
+
+        return best;
+    }
+
+    private int getLoad(TCPConnection connection) {
+        final AtomicInteger inFlightSends = connection.getAttribute(inFlightSendsKey);
+        return (connection.getPendingWriteCount() + (inFlightSends == null ? 0 : inFlightSends.get()));
+    }
+
+    public CompletableFuture<TCPConnection> acquire() {
+        if(!running)
+            return CompletableFuture.failedFuture(new IllegalStateException("TCP client pool is not running"));
+
+        final TCPConnection connection = this.acquireNow();
+        if(connection != null)
+            return CompletableFuture.completedFuture(connection);
+
+        final CompletableFuture<TCPConnection> future = new CompletableFuture<>();
+        waiters.add(future);
+
+        // connection could be established in the meantime
+        this.serveWaiters();
+        return future;
+    }
+
+    private void openMissingConnections() {
+        synchronized(poolLock) {
+            final int missing = (minConnections - this.getTotalCount());
+            for(int i = 0; i < missing; i++)
+                this.openConnection();
+        }
+    }
+
+    /** Connects in parallel, up to one pending connect per demanded connection and within the max limit. */
+    private void growIfPossible(int demand) {
+        synchronized(poolLock) {
+            final int count = Math.min(demand - connectors.size(), maxConnections - this.getTotalCount());
+            for(int i = 0; i < count; i++)
+                this.openConnection();
+        }
+    }
+
+    private void serveWaiters() {
+        while(!waiters.isEmpty()) {
+            final TCPConnection connection = this.acquireNow();
+            if(connection == null)
+                return;
+
+            final CompletableFuture<TCPConnection> waiter = waiters.poll();
+            if(waiter == null)
+                return;
+
+            waiter.complete(connection);
+        }
+    }
+
+    private void failWaiters(Throwable throwable) {
+        CompletableFuture<TCPConnection> waiter;
+        while((waiter = waiters.poll()) != null)
+            waiter.completeExceptionally(throwable);
+    }
+
+
+    private void openConnection() {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            initialOptions.applyPreConnect(channel);
+            channel.configureBlocking(false);
+
+            final AsyncSocketConnector connector = new AsyncSocketConnector(channel, connectTimeoutMillis);
+            connectors.put(channel, connector);
+
+            if(channel.connect(address)) {
+                this.createTCPConnection(connector);
+            } else {
+                final SelectionKey key = selectorLoop.registerConnectKey(channel);
+                key.attach(connector);
+                selectorLoop.wakeup();
+            }
+        } catch (IOException e) {
+            this.onConnectFailed(channel, e);
+        }
+    }
+
+    private void onConnectFailed(SocketChannel channel, Throwable throwable) {
+        eventPipeline.fireError(null, ErrorSource.CONNECT, throwable);
+
+        if(channel != null) {
+            final AsyncSocketConnector connector = connectors.remove(channel);
+            if(connector != null)
+                connector.getResultFuture().completeExceptionally(throwable);
+            ResUtils.close(channel);
+        }
+
+        // no chance to serve waiters until next health check
+        if(connectors.isEmpty() && connections.isEmpty())
+            this.failWaiters(throwable);
+    }
+
+    private void createTCPConnection(AsyncSocketConnector connector) throws IOException {
+        final SocketChannel channel = connector.getChannel();
+        initialOptions.applyPostConnect(channel);
+
+        final SelectionKey key = selectorLoop.registerReadKey(channel);
+
+        final ConnectionCodec codec = codecFactory.create();
+        if(codec == null)
+            throw new IllegalStateException("TCP-connection codec factory returned null");
+
+        final TCPConnection connection = new TCPConnection(channel, key, codec, eventPipeline.derive(), selectorLoop);
+        connection.setName(this.makeConnectionName());
+        initialOptions.copyTo(connection.getOptions());
+        connection.setMemoryBudget(memoryBudget);
+        key.attach(connection);
+
+        connections.add(connection);
+        connectors.remove(channel);
+
+        connection.onConnected();
+        connector.getResultFuture().complete(connection);
+        this.serveWaiters();
+    }
+
+    private String makeConnectionName() {
+        final int number = connectionCounter.getAndIncrement();
+        return (CLASS_NAME + "-connection-" + number);
+    }
+
+
+    private void onKeySelected(SelectionKey key) {
+        final Object attachment = key.attachment();
+
+        if(attachment instanceof TCPConnection) {
+            ((TCPConnection) attachment).onKeySelected();
+
+        } else if(attachment instanceof AsyncSocketConnector && key.isConnectable()) {
+            final AsyncSocketConnector connector = (AsyncSocketConnector) attachment;
+            final SocketChannel channel = connector.getChannel();
+            try {
+                channel.finishConnect();
+                if(!channel.isConnected() || !channel.isOpen()) {
+                    this.onConnectFailed(channel, new IOException("Connection closed during connect"));
+                    return;
+                }
+
+                key.interestOpsAnd(~SelectionKey.OP_CONNECT);
+                this.createTCPConnection(connector);
+
+            } catch (IOException e) {
+                this.onConnectFailed(channel, e);
+            }
+        }
+    }
+
+    private long getNextSelectionTimeout() {
+        final long currentMillis = System.currentTimeMillis();
+        long minMillisLeft = (nextHealthCheckMillis - currentMillis);
+
+        if(minMillisLeft <= 0L) {
+            this.checkHealth();
+            nextHealthCheckMillis = (currentMillis + healthCheckIntervalMillis);
+            minMillisLeft = healthCheckIntervalMillis;
+        }
+
+        // connect deadlines
+        for(AsyncSocketConnector connector : connectors.values()) {
+            if(!connector.hasDeadline())
+                continue;
+
+            final long millisLeft = (connector.getDeadlineMillis() - currentMillis);
+            if(millisLeft <= 0L) {
+                this.onConnectFailed(connector.getChannel(), new TimeoutException());
+                continue;
+            }
+            minMillisLeft = Math.min(minMillisLeft, millisLeft);
+        }
+
+        return Math.max(1L, minMillisLeft);
+    }
+
+    private void checkHealth() {
+        if(!running)
+            return;
+
+        // drop dead connections, trim idle ones
+        for(TCPConnection connection : connections) {
+            if(connection.isClosed()) {
+                connections.remove(connection);
+            } else {
+                connection.releaseIdleBuffers();
+            }
+        }
+
+        // replace them
+        this.openMissingConnections();
+
+        if(!waiters.isEmpty()) {
+            this.growIfPossible(waiters.size());
+            this.serveWaiters();
+        }
+    }
+
+    private void onConnectionClosed(TCPConnection connection, CloseReason reason, Exception e) {
+        connections.remove(connection);
+        if(!running || reason == CloseReason.CLOSE_CLIENT)
+            return;
+
+        // schedule replacement
+        nextHealthCheckMillis = 0L;
+        selectorLoop.wakeup();
+    }
+
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isClosed() {
+        return !running;
+    }
+
+    public void close() {
+        if(!running)
+            return;
+
+        running = false;
+        selectorLoop.close();
+
+        for(TCPConnection connection : connections)
+            connection.close(CloseReason.CLOSE_CLIENT, null);
+        connections.clear();
+
+        for(AsyncSocketConnector connector : connectors.values())
+            connector.cancel();
+        connectors.clear();
+
+        this.failWaiters(new IllegalStateException("TCP client pool is closed"));
+    }
+
+
+    public TCPClientPool registerOnConnect(TCPConnectionConsumer onConnect) {
+        listeners.registerOnConnect(onConnect);
+        return this;
+    }
+
+    public TCPClientPool registerOnDisconnect(DisconnectListener onClose) {
+        listeners.registerOnDisconnect(onClose);
+        return this;
+    }
+
+    public TCPClientPool registerOnReceive(DataListener onReceive) {
+        listeners.registerOnReceive(onReceive);
+        return this;
+    }
+
+    public TCPClientPool registerOnReceiveChunk(ChunkListener onReceiveChunk) {
+        listeners.registerOnReceiveChunk(onReceiveChunk);
+        return this;
+    }
+
+    public TCPClientPool registerOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        listeners.registerOnReceiveComposite(onReceiveComposite);
+        return this;
+    }
+
+    public TCPClientPool registerOnReceiveMessage(MessageListener onReceiveMessage) {
+        listeners.registerOnReceiveMessage(onReceiveMessage);
+        return this;
+    }
+
+    public TCPClientPool registerOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        listeners.registerOnReceiveBatch(onReceiveBatch);
+        return this;
+    }
+
+    public TCPClientPool registerOnReadComplete(TCPConnectionConsumer onReadComplete) {
+        listeners.registerOnReadComplete(onReadComplete);
+        return this;
+    }
+
+    public TCPClientPool registerOnError(ErrorListener onError) {
+        listeners.registerOnError(onError);
+        return this;
+    }
+
+    public TCPClientPool registerOnSend(DataListener onSend) {
+        listeners.registerOnSend(onSend);
+        return this;
+    }
+
+
+    public TCPClientPool unregisterOnConnect(TCPConnectionConsumer onConnect) {
+        listeners.unregisterOnConnect(onConnect);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnDisconnect(DisconnectListener onClose) {
+        listeners.unregisterOnDisconnect(onClose);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnReceive(DataListener onReceive) {
+        listeners.unregisterOnReceive(onReceive);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnReceiveChunk(ChunkListener onReceiveChunk) {
+        listeners.unregisterOnReceiveChunk(onReceiveChunk);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        listeners.unregisterOnReceiveComposite(onReceiveComposite);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnReceiveMessage(MessageListener onReceiveMessage) {
+        listeners.unregisterOnReceiveMessage(onReceiveMessage);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        listeners.unregisterOnReceiveBatch(onReceiveBatch);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnReadComplete(TCPConnectionConsumer onReadComplete) {
+        listeners.unregisterOnReadComplete(onReadComplete);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnError(ErrorListener onError) {
+        listeners.unregisterOnError(onError);
+        return this;
+    }
+
+    public TCPClientPool unregisterOnSend(DataListener onSend) {
+        listeners.unregisterOnSend(onSend);
+        return this;
+    }
+
+
+    @Override
+    public boolean send(byte[] data) {
+        return this.sendThrough(connection -> connection.send(data));
+    }
+
+    @Override
+    public boolean send(ByteBuffer buffer) {
+        return this.sendThrough(connection -> connection.send(buffer));
+    }
+
+    @Override
+    public boolean send(String string) {
+        return this.sendThrough(connection -> connection.send(string));
+    }
+
+    @Override
+    public boolean send(BinaryStreamWriter streamWriter) {
+        return this.sendThrough(connection -> connection.send(streamWriter));
+    }
+
+    @Override
+    public boolean send(NetPacket packet) {
+        return this.sendThrough(connection -> connection.send(packet));
+    }
+
+    @Override
+    public boolean send(byte[] data, SendPriority priority) {
+        return this.sendThrough(connection -> connection.send(data, priority));
+    }
+
+    @Override
+    public boolean send(NetPacket packet, SendPriority priority) {
+        return this.sendThrough(connection -> connection.send(packet, priority));
+    }
+
+    private boolean sendThrough(Predicate<TCPConnection> send) {
+        final TCPConnection connection = this.acquireNow();
+        if(connection == null)
+            return false;
+
+        // counted until the send is queued, so concurrent senders spread over connections
+        final AtomicInteger inFlightSends = connection.getAttributes().computeIfAbsent(inFlightSendsKey, AtomicInteger::new);
+        inFlightSends.incrementAndGet();
+        try {
+            return send.test(connection);
+        } finally {
+            inFlightSends.decrementAndGet();
+        }
+    }
+
+}
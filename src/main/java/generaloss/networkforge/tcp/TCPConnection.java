@@ -1,6 +1,8 @@
 package generaloss.networkforge.tcp;
 
 import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.attribute.AttributeMap;
 import generaloss.networkforge.tcp.codec.ByteStreamReader;
 import generaloss.networkforge.tcp.codec.ByteStreamWriter;
 import generaloss.networkforge.tcp.codec.CodecType;
@@ -9,6 +11,7 @@ import generaloss.networkforge.tcp.codec.ConnectionCodec;
 import generaloss.networkforge.tcp.listener.CloseReason;
 import generaloss.networkforge.tcp.listener.ErrorSource;
 import generaloss.networkforge.tcp.pipeline.EventPipeline;
+import generaloss.networkforge.tcp.pipeline.FrameBatch;
 import generaloss.networkforge.tcp.options.TCPConnectionOptions;
 import generaloss.resourceflow.ResUtils;
 import generaloss.resourceflow.stream.BinaryStreamWriter;
@@ -18,10 +21,14 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TCPConnection implements Sendable, Closeable {
 
@@ -29,6 +36,7 @@ public class TCPConnection implements Sendable, Closeable {
 
     private final SocketChannel channel;
     private final SelectionKey key;
+    private final SelectorLoop selectorLoop; // null: wakeups go through the write interest
 
     private ConnectionCodec codec;
     private final CipherPair ciphers;
@@ -36,12 +44,30 @@ public class TCPConnection implements Sendable, Closeable {
     private final TCPConnectionOptions options;
 
     private volatile Object attachment;
+    private final AttributeMap attributes;
     private volatile String name;
 
-    private final Queue<ByteBuffer> sendQueue;
+    private static final SendPriority[] SEND_PRIORITIES = SendPriority.values();
+
+    private final Queue<ByteBuffer>[] sendQueues; // by priority ordinal
+    private final int[] sendCredits;
+    private ByteBuffer partiallyWrittenBuffer;
+    private volatile int pendingWriteCount;
     private final Object writeLock;
 
-    public TCPConnection(SocketChannel channel, SelectionKey key, ConnectionCodec codec, EventPipeline eventPipeline) {
+    private volatile MemoryBudget memoryBudget;
+    private final AtomicLong reservedMemory; // receive buffers + queued writes
+    private long reservedReadMemory; // selector thread only
+    private volatile boolean readPaused; // by the memory budget
+    private volatile boolean readSuspended; // by handlers
+    private final Object readInterestLock;
+    private volatile boolean readRequested;
+    private final Queue<Runnable> selectorTasks;
+    private final AtomicBoolean wakeupScheduled;
+    private FrameBatch receiveBatch; // selector thread only, reused between reads
+    private final AtomicBoolean closing; // close runs once, the codec may write before the channel is closed
+
+    public TCPConnection(SocketChannel channel, SelectionKey key, ConnectionCodec codec, EventPipeline eventPipeline, SelectorLoop selectorLoop) {
         if(channel == null)
             throw new IllegalArgumentException("Argument 'channel' cannot be null");
         if(key == null)
@@ -51,17 +77,37 @@ public class TCPConnection implements Sendable, Closeable {
 
         this.channel = channel;
         this.key = key;
+        this.selectorLoop = selectorLoop;
+        this.selectorTasks = new ConcurrentLinkedQueue<>();
+        this.wakeupScheduled = new AtomicBoolean(); // codec setup may already request reads
+        this.readInterestLock = new Object();
+        this.closing = new AtomicBoolean();
 
         this.setCodec(codec);
 
         this.ciphers = new CipherPair();
         this.eventPipeline = eventPipeline;
+        this.attributes = new AttributeMap();
 
         this.options = new TCPConnectionOptions(channel.socket());
         this.name = this.makeConnectionName();
 
-        this.sendQueue = new ConcurrentLinkedQueue<>();
+        this.sendQueues = createSendQueues();
+        this.sendCredits = new int[SEND_PRIORITIES.length];
         this.writeLock = new Object();
+        this.reservedMemory = new AtomicLong();
+    }
+
+    public TCPConnection(SocketChannel channel, SelectionKey key, ConnectionCodec codec, EventPipeline eventPipeline) {
+        this(channel, key, codec, eventPipeline, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<ByteBuffer>[] createSendQueues() {
+        final Queue<ByteBuffer>[] queues = (Queue<ByteBuffer>[]) new Queue<?>[SEND_PRIORITIES.length];
+        for(int i = 0; i < queues.length; i++)
+            queues[i] = new ArrayDeque<>();
+        return queues;
     }
 
     private String makeConnectionName() {
@@ -81,7 +127,16 @@ public class TCPConnection implements Sendable, Closeable {
         if(codec == null)
             throw new IllegalArgumentException("Argument 'codec' cannot be null");
 
-        final ByteStreamWriter writer = this::onCodecWrite;
+        final ByteStreamWriter writer = new ByteStreamWriter() {
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                TCPConnection.this.onCodecWrite(buffer, SendPriority.DEFAULT);
+            }
+            @Override
+            public void write(ByteBuffer buffer, SendPriority priority) throws IOException {
+                TCPConnection.this.onCodecWrite(buffer, priority);
+            }
+        };
         final ByteStreamReader reader = channel::read;
         codec.setup(this, writer, reader);
 
@@ -107,6 +162,108 @@ public class TCPConnection implements Sendable, Closeable {
         return options;
     }
 
+    public EventPipeline getEventPipeline() {
+        return eventPipeline;
+    }
+
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Should be set before any traffic. */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        final MemoryBudget previousBudget = this.memoryBudget;
+        if(previousBudget != null)
+            previousBudget.unregister(this, reservedMemory.getAndSet(0L));
+        reservedReadMemory = 0L;
+
+        this.memoryBudget = memoryBudget;
+        if(memoryBudget != null)
+            memoryBudget.register();
+    }
+
+    public long getReservedMemory() {
+        return reservedMemory.get();
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    public boolean isReadSuspended() {
+        return readSuspended;
+    }
+
+    /** Backpressure of handlers queueing received data: reading stops while suspended,
+     * independently of the memory budget pause. */
+    public void setReadSuspended(boolean readSuspended) {
+        synchronized(readInterestLock) {
+            if(this.readSuspended == readSuspended || this.isClosed())
+                return;
+
+            this.readSuspended = readSuspended;
+            this.updateReadInterest();
+        }
+    }
+
+    private void reserveMemory(long bytes) {
+        final MemoryBudget budget = memoryBudget;
+        if(budget == null || bytes == 0L)
+            return;
+
+        reservedMemory.addAndGet(bytes);
+        if(bytes > 0L) {
+            budget.reserve(bytes);
+        } else {
+            budget.release(-bytes);
+        }
+    }
+
+    private void updateReadMemory() {
+        if(memoryBudget == null)
+            return;
+
+        final long capacity = codec.getBufferCapacity();
+        final long delta = (capacity - reservedReadMemory);
+        reservedReadMemory = capacity;
+        this.reserveMemory(delta);
+    }
+
+    protected boolean pauseReading() {
+        synchronized(readInterestLock) {
+            if(readPaused || this.isClosed())
+                return false;
+
+            readPaused = true;
+            this.updateReadInterest();
+            return true;
+        }
+    }
+
+    protected void resumeReading() {
+        synchronized(readInterestLock) {
+            if(!readPaused || this.isClosed())
+                return;
+
+            readPaused = false;
+            this.updateReadInterest();
+        }
+    }
+
+    /** Guarded by readInterestLock. */
+    private void updateReadInterest() {
+        if(readPaused || readSuspended) {
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+            return;
+        }
+
+        key.interestOpsOr(SelectionKey.OP_READ);
+        key.selector().wakeup();
+        if(readRequested)
+            this.selectKeySoon(); // requested while paused, no socket data may come
+    }
+
 
     @SuppressWarnings("unchecked")
     public <O> O attachment() {
@@ -117,6 +274,19 @@ public class TCPConnection implements Sendable, Closeable {
         this.attachment = attachment;
     }
 
+    /** Per-connection state of handlers, without side tables keyed by connection. */
+    public AttributeMap getAttributes() {
+        return attributes;
+    }
+
+    public <T> T getAttribute(AttributeKey<T> key) {
+        return attributes.get(key);
+    }
+
+    public <T> void setAttribute(AttributeKey<T> key, T value) {
+        attributes.set(key, value);
+    }
+
 
     public String getName() {
         return name;
@@ -166,10 +336,19 @@ public class TCPConnection implements Sendable, Closeable {
             System.out.println("    TCPConnection.close() when channel is not open");
             return;
         }
+        if(!closing.compareAndSet(false, true))
+            return;
 
+        codec.beforeClose();
         key.cancel();
         ResUtils.close(channel);
 
+        final MemoryBudget budget = memoryBudget;
+        if(budget != null) {
+            memoryBudget = null;
+            budget.unregister(this, reservedMemory.getAndSet(0L));
+        }
+
         eventPipeline.fireDisconnect(this, reason, e);
         System.out.println("    TCPConnection.fireDisconnect('" + reason + "', " + e + ")");
     }
@@ -209,25 +388,71 @@ public class TCPConnection implements Sendable, Closeable {
         return eventPipeline.fireSend(this, packet);
     }
 
+    @Override
+    public boolean send(byte[] data, SendPriority priority) {
+        return eventPipeline.fireSend(this, data, priority);
+    }
+
+    @Override
+    public boolean send(NetPacket packet, SendPriority priority) {
+        return eventPipeline.fireSend(this, packet, priority);
+    }
+
+    /** Sends an object through the typed stages of the pipeline, an encoder stage turns it into a frame. */
+    public boolean sendMessage(Object message, SendPriority priority) {
+        return eventPipeline.fireSendMessage(this, message, priority);
+    }
+
+    public boolean sendMessage(Object message) {
+        return eventPipeline.fireSendMessage(this, message);
+    }
+
+
+    public boolean sendDirect(byte[] data, SendPriority priority) {
+        if(data == null || this.isClosed())
+            return false;
+
+        final MemoryBudget budget = memoryBudget;
+        if(budget != null && !budget.checkSend())
+            return false;
+
+        final byte[] encryptedData = ciphers.encrypt(data, priority);
+        return codec.write(encryptedData, priority);
+    }
 
     public boolean sendDirect(byte[] data) {
+        return this.sendDirect(data, SendPriority.DEFAULT);
+    }
+
+    /** Writes a frame that is already encrypted (e.g. an {@link generaloss.networkforge.tcp.crypto.EncryptionGroup} record),
+     * bypassing the pipeline and the connection ciphers. */
+    public boolean sendEncrypted(byte[] data, SendPriority priority) {
         if(data == null || this.isClosed())
             return false;
 
-        final byte[] encryptedData = ciphers.encrypt(data);
-        return codec.write(encryptedData);
+        final MemoryBudget budget = memoryBudget;
+        if(budget != null && !budget.checkSend())
+            return false;
+
+        return codec.write(data, priority);
     }
 
-    private void onCodecWrite(ByteBuffer buffer) throws IOException {
+    private void onCodecWrite(ByteBuffer buffer, SendPriority priority) throws IOException {
         synchronized(writeLock) {
-            // if first in queue
-            if(sendQueue.isEmpty())
+            // if nothing is queued
+            if(pendingWriteCount == 0)
                 channel.write(buffer); // write now
 
             // if data not fully written
             if(buffer.hasRemaining()) {
-                // add to queue
-                sendQueue.add(buffer);
+                if(pendingWriteCount == 0) {
+                    partiallyWrittenBuffer = buffer; // must be finished before any other buffer
+                } else {
+                    sendQueues[priority.ordinal()].add(buffer);
+                }
+                pendingWriteCount++;
+                this.reserveMemory(buffer.limit());
+
                 // enable write op & wake up selector
                 key.interestOpsOr(SelectionKey.OP_WRITE);
                 key.selector().wakeup();
@@ -236,14 +461,93 @@ public class TCPConnection implements Sendable, Closeable {
     }
 
 
+    /** Called by selector only, periodically. */
+    public void releaseIdleBuffers() {
+        if(this.isClosed())
+            return;
+
+        codec.releaseIdleBuffers();
+        this.updateReadMemory();
+    }
+
+    /** Makes the selector call codec read() soon, even without new socket data.
+     * For codecs that finish work on other threads with data already buffered. */
+    public void requestRead() {
+        if(this.isClosed())
+            return;
+
+        readRequested = true;
+        this.selectKeySoon();
+    }
+
+    /** Runs the task on the selector thread before the next read, tasks run in submission order.
+     * Lets work done on other threads change connection state without racing with received frames. */
+    public void executeOnSelector(Runnable task) {
+        if(task == null)
+            throw new IllegalArgumentException("Argument 'task' cannot be null");
+        if(this.isClosed())
+            return;
+
+        selectorTasks.add(task);
+        this.selectKeySoon();
+    }
+
+    private void selectKeySoon() {
+        if(selectorLoop != null) {
+            if(wakeupScheduled.compareAndSet(false, true))
+                selectorLoop.execute(this::onSelectorWakeup);
+            return;
+        }
+
+        try {
+            key.interestOpsOr(SelectionKey.OP_WRITE); // socket is writable: key is selected at once
+            key.selector().wakeup();
+        } catch (CancelledKeyException ignored) { }
+    }
+
+    private void onSelectorWakeup() {
+        wakeupScheduled.set(false); // requests from now on schedule another wakeup
+        if(this.isClosed() || !this.runSelectorTasks())
+            return;
+
+        if(this.takeReadRequest())
+            this.readOperationAvailable();
+    }
+
     public void onKeySelected() {
-        if(key.isReadable())
+        if(!this.runSelectorTasks())
+            return;
+
+        final boolean requested = this.takeReadRequest();
+        if(key.isReadable() || requested)
             this.readOperationAvailable();
         if(key.isWritable())
             this.writeOperationAvailable();
     }
 
+    /** @return false if a task failed and the connection is closed */
+    private boolean runSelectorTasks() {
+        Runnable task;
+        while((task = selectorTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                this.close(CloseReason.INTERNAL_ERROR, new IllegalStateException("Selector task failed", t));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean takeReadRequest() {
+        final boolean requested = (readRequested && !readPaused && !readSuspended);
+        if(requested)
+            readRequested = false;
+        return requested;
+    }
+
     private void readOperationAvailable() {
+        final FrameBatch batch = (eventPipeline.isBatchingReceive() ? this.receiveBatch() : null);
         int readCount = 0;
 
         while(true) {
@@ -252,8 +556,13 @@ public class TCPConnection implements Sendable, Closeable {
                 break;
 
             try {
+                // one frame at a time: handlers before batch handlers may change ciphers for the next one
                 final byte[] decryptedData = ciphers.decrypt(data);
-                eventPipeline.fireReceive(this, decryptedData);
+                if(batch != null) {
+                    eventPipeline.fireReceiveCollecting(this, decryptedData, batch);
+                }else{
+                    eventPipeline.fireReceive(this, decryptedData);
+                }
                 readCount++;
 
             } catch (IllegalStateException e) {
@@ -261,8 +570,29 @@ public class TCPConnection implements Sendable, Closeable {
             }
         }
 
+        if(batch != null && !batch.isEmpty()) {
+            try {
+                eventPipeline.fireCollectedBatch(this, batch);
+            } finally {
+                batch.clear();
+            }
+        }
+
         if(readCount > 0)
             eventPipeline.fireReadComplete(this);
+
+        // memory accounting
+        final MemoryBudget budget = memoryBudget;
+        if(budget != null && !this.isClosed()) {
+            this.updateReadMemory();
+            budget.checkReading(this, reservedMemory.get());
+        }
+    }
+
+    private FrameBatch receiveBatch() {
+        if(receiveBatch == null)
+            receiveBatch = new FrameBatch();
+        return receiveBatch;
     }
 
     private void writeOperationAvailable() {
@@ -272,6 +602,10 @@ public class TCPConnection implements Sendable, Closeable {
                 if(queueFullyWritten) {
                     key.interestOpsAnd(~SelectionKey.OP_WRITE); // disable write operation
                     writeLock.notifyAll();
+
+                    // wakeup requested meanwhile through the write interest
+                    if(selectorLoop == null && (readRequested || !selectorTasks.isEmpty()))
+                        this.selectKeySoon();
                 }
             }
         } catch (Exception e) {
@@ -280,19 +614,39 @@ public class TCPConnection implements Sendable, Closeable {
     }
 
     private boolean writeQueuedBuffers() throws Exception {
-        while(!sendQueue.isEmpty()) {
-            final ByteBuffer buffer = sendQueue.peek();
+        while(true) {
+            if(partiallyWrittenBuffer == null) {
+                partiallyWrittenBuffer = this.pollNextBuffer();
+                if(partiallyWrittenBuffer == null)
+                    return true; // queue fully written
+            }
 
-            channel.write(buffer);
+            channel.write(partiallyWrittenBuffer);
 
             // check is it can no longer write
-            if(buffer.hasRemaining())
+            if(partiallyWrittenBuffer.hasRemaining())
                 return false;
 
-            sendQueue.poll();
+            this.reserveMemory(-partiallyWrittenBuffer.limit());
+            partiallyWrittenBuffer = null;
+            pendingWriteCount--;
         }
-        // queue fully written
-        return true;
+    }
+
+    /** Weighted round: higher priorities go first while they have credits left. */
+    private ByteBuffer pollNextBuffer() {
+        for(int round = 0; round < 2; round++) {
+            for(int i = 0; i < sendQueues.length; i++) {
+                if(sendCredits[i] > 0 && !sendQueues[i].isEmpty()) {
+                    sendCredits[i]--;
+                    return sendQueues[i].poll();
+                }
+            }
+            // refill credits
+            for(int i = 0; i < sendCredits.length; i++)
+                sendCredits[i] = SEND_PRIORITIES[i].getWeight();
+        }
+        return null;
     }
 
     public void awaitWriteDrain(long timeoutMillis) throws InterruptedException {
@@ -303,7 +657,7 @@ public class TCPConnection implements Sendable, Closeable {
                 if(this.isClosed())
                     return;
 
-                final boolean queueEmpty = sendQueue.isEmpty();
+                final boolean queueEmpty = (pendingWriteCount == 0);
                 final boolean writeDisabled = (key.interestOps() & SelectionKey.OP_WRITE) == 0;
                 if(queueEmpty && writeDisabled)
                     return;
@@ -322,7 +676,7 @@ public class TCPConnection implements Sendable, Closeable {
     }
 
     public int getPendingWriteCount() {
-        return sendQueue.size();
+        return pendingWriteCount;
     }
 
 }
@@ -25,9 +25,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class TCPServer {
 
     private static final String CLASS_NAME = TCPServer.class.getSimpleName();
+    private static final long IDLE_BUFFERS_CHECK_INTERVAL_MILLIS = 1000L;
 
     private ConnectionCodecFactory codecFactory;
     private TCPConnectionOptionsHolder initialOptions;
+    private volatile MemoryBudget memoryBudget;
     private final SelectorLoop selectorLoop;
 
     private final ConcurrentLinkedQueue<TCPConnection> connections;
@@ -40,6 +42,7 @@ public class TCPServer {
     private int pendingConnectionsLimit;
 
     private volatile boolean running;
+    private long nextIdleBuffersCheckMillis;
 
     public TCPServer() {
         this.setCodecFactory(CodecType.DEFAULT);
@@ -91,6 +94,17 @@ public class TCPServer {
     }
 
 
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Applies to connections opened after the call. Can be shared between servers and clients, null to not limit. */
+    public TCPServer setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+
     public EventPipeline getEventPipeline() {
         return eventPipeline;
     }
@@ -111,6 +125,26 @@ public class TCPServer {
         return this;
     }
 
+    public TCPServer registerOnReceiveChunk(ChunkListener onReceiveChunk) {
+        listeners.registerOnReceiveChunk(onReceiveChunk);
+        return this;
+    }
+
+    public TCPServer registerOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        listeners.registerOnReceiveComposite(onReceiveComposite);
+        return this;
+    }
+
+    public TCPServer registerOnReceiveMessage(MessageListener onReceiveMessage) {
+        listeners.registerOnReceiveMessage(onReceiveMessage);
+        return this;
+    }
+
+    public TCPServer registerOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        listeners.registerOnReceiveBatch(onReceiveBatch);
+        return this;
+    }
+
     public TCPServer registerOnReadComplete(TCPConnectionConsumer onReadComplete) {
         listeners.registerOnReadComplete(onReadComplete);
         return this;
@@ -142,6 +176,26 @@ public class TCPServer {
         return this;
     }
 
+    public TCPServer unregisterOnReceiveChunk(ChunkListener onReceiveChunk) {
+        listeners.unregisterOnReceiveChunk(onReceiveChunk);
+        return this;
+    }
+
+    public TCPServer unregisterOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        listeners.unregisterOnReceiveComposite(onReceiveComposite);
+        return this;
+    }
+
+    public TCPServer unregisterOnReceiveMessage(MessageListener onReceiveMessage) {
+        listeners.unregisterOnReceiveMessage(onReceiveMessage);
+        return this;
+    }
+
+    public TCPServer unregisterOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        listeners.unregisterOnReceiveBatch(onReceiveBatch);
+        return this;
+    }
+
     public TCPServer unregisterOnReadComplete(TCPConnectionConsumer onReadComplete) {
         listeners.unregisterOnReadComplete(onReadComplete);
         return this;
@@ -197,7 +251,7 @@ public class TCPServer {
             serverChannels[i] = serverChannel;
         }
 
-        selectorLoop.startSelectionLoopThread(this.makeSelectorThreadName(), this::onKeySelected);
+        selectorLoop.startSelectionLoopThread(this.makeSelectorThreadName(), this::onKeySelected, this::getNextSelectionTimeout);
 
         running = true;
         return this;
@@ -220,6 +274,16 @@ public class TCPServer {
     }
 
 
+    private long getNextSelectionTimeout() {
+        final long currentMillis = System.currentTimeMillis();
+        if(currentMillis >= nextIdleBuffersCheckMillis) {
+            for(TCPConnection connection : connections)
+                connection.releaseIdleBuffers();
+            nextIdleBuffersCheckMillis = (currentMillis + IDLE_BUFFERS_CHECK_INTERVAL_MILLIS);
+        }
+        return Math.max(1L, nextIdleBuffersCheckMillis - currentMillis);
+    }
+
     private void onKeySelected(SelectionKey key) {
         if(key.isAcceptable()) {
             this.acceptNewConnection((ServerSocketChannel) key.channel());
@@ -245,9 +309,10 @@ public class TCPServer {
             if(codec == null)
                 throw new IllegalStateException("TCP-connection codec factory returned null");
 
-            final TCPConnection connection = new TCPConnection(channel, key, codec, eventPipeline);
+            final TCPConnection connection = new TCPConnection(channel, key, codec, eventPipeline.derive(), selectorLoop);
             connection.setName(this.makeConnectionName());
             initialOptions.copyTo(connection.getOptions());
+            connection.setMemoryBudget(memoryBudget);
             key.attach(connection);
 
             connections.add(connection);
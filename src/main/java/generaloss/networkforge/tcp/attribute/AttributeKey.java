@@ -0,0 +1,35 @@
+package generaloss.networkforge.tcp.attribute;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Typed key of a connection attribute. Keys are compared by identity,
+ * handlers keep them in (static) final fields. */
+public final class AttributeKey<T> {
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final String name;
+    private final int id;
+
+    public AttributeKey(String name) {
+        if(name == null)
+            throw new IllegalArgumentException("Argument 'name' cannot be null");
+
+        this.name = name;
+        this.id = NEXT_ID.getAndIncrement();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int id() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,150 @@
+package generaloss.networkforge.tcp.attribute;
+
+import java.util.function.Supplier;
+
+/** Small open-addressing table of attributes: reads are lock-free,
+ * adding a key copies the table, setting a value of a present key does not. */
+public class AttributeMap {
+
+    private static final int INITIAL_CAPACITY = 8; // power of two
+
+    private volatile Attribute<?>[] table;
+
+    public AttributeMap() {
+        this.table = new Attribute<?>[INITIAL_CAPACITY];
+    }
+
+
+    public <T> T get(AttributeKey<T> key) {
+        if(key == null)
+            throw new IllegalArgumentException("Argument 'key' cannot be null");
+
+        final Attribute<T> attribute = find(table, key);
+        return (attribute == null ? null : attribute.value);
+    }
+
+    public boolean has(AttributeKey<?> key) {
+        return (this.get(key) != null);
+    }
+
+    /** @param value null removes the value */
+    public <T> void set(AttributeKey<T> key, T value) {
+        final Attribute<T> attribute = this.attribute(key);
+        synchronized(attribute) {
+            attribute.value = value;
+        }
+    }
+
+    /** @return previous value */
+    public <T> T remove(AttributeKey<T> key) {
+        if(key == null)
+            throw new IllegalArgumentException("Argument 'key' cannot be null");
+
+        final Attribute<T> attribute = find(table, key);
+        if(attribute == null)
+            return null;
+
+        synchronized(attribute) {
+            final T value = attribute.value;
+            attribute.value = null;
+            return value;
+        }
+    }
+
+    /** @return present value, or null if the value was set */
+    public <T> T setIfAbsent(AttributeKey<T> key, T value) {
+        final Attribute<T> attribute = this.attribute(key);
+        synchronized(attribute) {
+            final T present = attribute.value;
+            if(present == null)
+                attribute.value = value;
+            return present;
+        }
+    }
+
+    /** @return present value, or the created one */
+    public <T> T computeIfAbsent(AttributeKey<T> key, Supplier<T> supplier) {
+        final Attribute<T> attribute = this.attribute(key);
+        final T present = attribute.value;
+        if(present != null)
+            return present;
+
+        synchronized(attribute) {
+            if(attribute.value == null)
+                attribute.value = supplier.get();
+            return attribute.value;
+        }
+    }
+
+
+    private <T> Attribute<T> attribute(AttributeKey<T> key) {
+        if(key == null)
+            throw new IllegalArgumentException("Argument 'key' cannot be null");
+
+        final Attribute<T> attribute = find(table, key);
+        if(attribute != null)
+            return attribute;
+
+        synchronized(this) {
+            final Attribute<T> added = find(table, key);
+            if(added != null)
+                return added;
+
+            Attribute<?>[] newTable = table.clone();
+            if(count(newTable) * 2 >= newTable.length)
+                newTable = resize(newTable);
+
+            final Attribute<T> newAttribute = new Attribute<>(key);
+            insert(newTable, newAttribute);
+            table = newTable;
+            return newAttribute;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Attribute<T> find(Attribute<?>[] table, AttributeKey<T> key) {
+        final int mask = (table.length - 1);
+        for(int i = (key.id() & mask); ; i = ((i + 1) & mask)) {
+            final Attribute<?> attribute = table[i];
+            if(attribute == null)
+                return null;
+            if(attribute.key == key)
+                return (Attribute<T>) attribute;
+        }
+    }
+
+    private static void insert(Attribute<?>[] table, Attribute<?> attribute) {
+        final int mask = (table.length - 1);
+        int i = (attribute.key.id() & mask);
+        while(table[i] != null)
+            i = ((i + 1) & mask);
+        table[i] = attribute;
+    }
+
+    private static Attribute<?>[] resize(Attribute<?>[] table) {
+        final Attribute<?>[] newTable = new Attribute<?>[table.length * 2];
+        for(Attribute<?> attribute : table)
+            if(attribute != null)
+                insert(newTable, attribute);
+        return newTable;
+    }
+
+    private static int count(Attribute<?>[] table) {
+        int count = 0;
+        for(Attribute<?> attribute : table)
+            if(attribute != null)
+                count++;
+        return count;
+    }
+
+
+    private static class Attribute<T> {
+        final AttributeKey<T> key;
+        volatile T value;
+
+        Attribute(AttributeKey<T> key) {
+            this.key = key;
+        }
+    }
+
+}
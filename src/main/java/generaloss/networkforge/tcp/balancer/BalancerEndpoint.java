@@ -0,0 +1,104 @@
+package generaloss.networkforge.tcp.balancer;
+
+import generaloss.networkforge.ConnectionState;
+import generaloss.networkforge.tcp.TCPClient;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AlreadyConnectedException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BalancerEndpoint {
+
+    private final SocketAddress address;
+    private final TCPClient client;
+    private final LatencyTracker latencyTracker;
+    private final AtomicInteger inFlight;
+    private volatile long lastConnectAttemptMillis;
+
+    public BalancerEndpoint(SocketAddress address, TCPClient client) {
+        if(address == null)
+            throw new IllegalArgumentException("Argument 'address' cannot be null");
+        if(client == null)
+            throw new IllegalArgumentException("Argument 'client' cannot be null");
+
+        this.address = address;
+        this.client = client;
+        this.latencyTracker = new LatencyTracker();
+        this.inFlight = new AtomicInteger();
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public TCPClient getClient() {
+        return client;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    protected void onCallStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    protected void onCallFinished(long latencyNanos, boolean success) {
+        inFlight.decrementAndGet();
+        if(success)
+            latencyTracker.record(latencyNanos);
+    }
+
+
+    public TCPConnection getConnection() {
+        return client.getConnection();
+    }
+
+    public boolean isAvailable() {
+        return client.isOpen();
+    }
+
+    /** Lower is better: latency estimate scaled by the outstanding load. */
+    public double getCost() {
+        final double latency = Math.max(1D, latencyTracker.getEwmaNanos());
+        final TCPConnection connection = client.getConnection();
+        final int pendingWrites = (connection == null ? 0 : connection.getPendingWriteCount());
+        return latency * (inFlight.get() + pendingWrites + 1);
+    }
+
+
+    protected synchronized void connectIfClosed(long connectTimeoutMillis, long reconnectDelayMillis) {
+        if(client.getState() != ConnectionState.CLOSED)
+            return;
+
+        final long currentMillis = System.currentTimeMillis();
+        if(currentMillis - lastConnectAttemptMillis < reconnectDelayMillis)
+            return;
+        lastConnectAttemptMillis = currentMillis;
+
+        try {
+            client.connectAsync(address, connectTimeoutMillis);
+        } catch (AlreadyConnectedException ignored) {
+            // another thread is already connecting
+        } catch (IOException e) {
+            client.getEventPipeline().fireError(null, ErrorSource.CONNECT, e);
+        }
+    }
+
+    protected void close() {
+        client.close();
+    }
+
+    @Override
+    public String toString() {
+        return BalancerEndpoint.class.getSimpleName() + "{" + address + "}";
+    }
+
+}
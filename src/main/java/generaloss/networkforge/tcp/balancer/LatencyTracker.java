@@ -0,0 +1,92 @@
+package generaloss.networkforge.tcp.balancer;
+
+import java.util.Arrays;
+
+public class LatencyTracker {
+
+    public static final double DEFAULT_EWMA_ALPHA = 0.2D;
+    public static final int DEFAULT_SAMPLES_CAPACITY = 256;
+    private static final int PERCENTILE_RECALCULATION_SAMPLES = 16;
+
+    private final double alpha;
+    private final long[] samples;
+    private int sampleIndex;
+    private long samplesRecorded;
+    private final Object lock;
+
+    private volatile double ewmaNanos;
+
+    private double cachedPercentile;
+    private long cachedPercentileNanos;
+    private long cachedAtSamplesRecorded;
+
+    public LatencyTracker(double alpha, int samplesCapacity) {
+        if(alpha <= 0D || alpha > 1D)
+            throw new IllegalArgumentException("Argument 'alpha' must be in range (0, 1]");
+        if(samplesCapacity < 1)
+            throw new IllegalArgumentException("Argument 'samplesCapacity' must be > 0");
+
+        this.alpha = alpha;
+        this.samples = new long[samplesCapacity];
+        this.lock = new Object();
+        this.cachedPercentile = -1D;
+    }
+
+    public LatencyTracker() {
+        this(DEFAULT_EWMA_ALPHA, DEFAULT_SAMPLES_CAPACITY);
+    }
+
+
+    public void record(long latencyNanos) {
+        synchronized(lock) {
+            samples[sampleIndex] = latencyNanos;
+            sampleIndex = (sampleIndex + 1) % samples.length;
+
+            if(samplesRecorded == 0L) {
+                ewmaNanos = latencyNanos;
+            } else {
+                ewmaNanos += alpha * (latencyNanos - ewmaNanos);
+            }
+            samplesRecorded++;
+        }
+    }
+
+    public boolean hasSamples() {
+        return (samplesRecorded > 0L);
+    }
+
+    public double getEwmaNanos() {
+        return ewmaNanos;
+    }
+
+    /** @param percentile in range [0, 1]
+     * @return latency percentile over the recent samples, or 0 when nothing was recorded */
+    public long getPercentileNanos(double percentile) {
+        if(percentile < 0D || percentile > 1D)
+            throw new IllegalArgumentException("Argument 'percentile' must be in range [0, 1]");
+
+        synchronized(lock) {
+            if(samplesRecorded == 0L)
+                return 0L;
+
+            // reuse last result while only a few samples were added
+            final boolean cacheValid = (
+                cachedPercentile == percentile &&
+                samplesRecorded - cachedAtSamplesRecorded < PERCENTILE_RECALCULATION_SAMPLES
+            );
+            if(cacheValid)
+                return cachedPercentileNanos;
+
+            final int count = (int) Math.min(samplesRecorded, samples.length);
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+
+            final int index = (int) Math.min(count - 1, Math.round(percentile * (count - 1)));
+            cachedPercentile = percentile;
+            cachedPercentileNanos = sorted[index];
+            cachedAtSamplesRecorded = samplesRecorded;
+            return cachedPercentileNanos;
+        }
+    }
+
+}
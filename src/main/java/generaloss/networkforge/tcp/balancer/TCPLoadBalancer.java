@@ -0,0 +1,296 @@
+package generaloss.networkforge.tcp.balancer;
+
+import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.tcp.Sendable;
+import generaloss.networkforge.tcp.TCPClient;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.resourceflow.stream.BinaryStreamWriter;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/** Client-side balancer over several endpoints.
+ * Picks endpoints with power-of-two-choices by latency-weighted load and optionally hedges slow calls. */
+public class TCPLoadBalancer implements Sendable {
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000L;
+    public static final long DEFAULT_RECONNECT_DELAY_MILLIS = 1000L;
+
+    private final List<BalancerEndpoint> endpoints;
+    private Consumer<TCPClient> clientInitializer;
+    private long connectTimeoutMillis;
+    private long reconnectDelayMillis;
+
+    private volatile boolean hedgingEnabled;
+    private volatile double hedgePercentile;
+
+    public TCPLoadBalancer() {
+        this.endpoints = new CopyOnWriteArrayList<>();
+        this.clientInitializer = (client) -> { };
+        this.connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        this.reconnectDelayMillis = DEFAULT_RECONNECT_DELAY_MILLIS;
+    }
+
+
+    /** Called for every endpoint client before it connects (codec, handlers, listeners). */
+    public TCPLoadBalancer setClientInitializer(Consumer<TCPClient> clientInitializer) {
+        if(clientInitializer == null)
+            throw new IllegalArgumentException("Argument 'clientInitializer' cannot be null");
+
+        this.clientInitializer = clientInitializer;
+        return this;
+    }
+
+    public TCPLoadBalancer setConnectTimeoutMillis(long connectTimeoutMillis) {
+        if(connectTimeoutMillis < 0L)
+            throw new IllegalArgumentException("Argument 'connectTimeoutMillis' must be >= 0");
+
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public TCPLoadBalancer setReconnectDelayMillis(long reconnectDelayMillis) {
+        if(reconnectDelayMillis < 0L)
+            throw new IllegalArgumentException("Argument 'reconnectDelayMillis' must be >= 0");
+
+        this.reconnectDelayMillis = reconnectDelayMillis;
+        return this;
+    }
+
+    /** Duplicates a call to a second endpoint when it is not completed
+     * within the given latency percentile of the first endpoint.
+     * @param percentile in range (0, 1], e.g. 0.95 */
+    public TCPLoadBalancer enableHedging(double percentile) {
+        if(percentile <= 0D || percentile > 1D)
+            throw new IllegalArgumentException("Argument 'percentile' must be in range (0, 1]");
+
+        this.hedgePercentile = percentile;
+        this.hedgingEnabled = true;
+        return this;
+    }
+
+    public TCPLoadBalancer disableHedging() {
+        this.hedgingEnabled = false;
+        return this;
+    }
+
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+
+    public BalancerEndpoint addEndpoint(SocketAddress address) {
+        final TCPClient client = new TCPClient();
+        clientInitializer.accept(client);
+
+        final BalancerEndpoint endpoint = new BalancerEndpoint(address, client);
+        endpoints.add(endpoint);
+        endpoint.connectIfClosed(connectTimeoutMillis, 0L);
+        return endpoint;
+    }
+
+    public BalancerEndpoint addEndpoint(String hostname, int port) {
+        return this.addEndpoint(new InetSocketAddress(hostname, port));
+    }
+
+    public boolean removeEndpoint(BalancerEndpoint endpoint) {
+        if(!endpoints.remove(endpoint))
+            return false;
+
+        endpoint.close();
+        return true;
+    }
+
+    public Collection<BalancerEndpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+
+    public BalancerEndpoint select() {
+        return this.select(null);
+    }
+
+    /** Power-of-two-choices: samples two random available endpoints and takes the cheaper one.
+     * @return null when no endpoint is available */
+    public BalancerEndpoint select(BalancerEndpoint except) {
+        final int size = endpoints.size();
+        if(size == 0)
+            return null;
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        BalancerEndpoint first = null;
+        BalancerEndpoint second = null;
+
+        // scan from random offset, reconnect closed endpoints by the way
+        final int offset = random.nextInt(size);
+        int availableSeen = 0;
+        for(int i = 0; i < size; i++) {
+            final BalancerEndpoint endpoint;
+            try {
+                endpoint = endpoints.get((offset + i) % size);
+            } catch (IndexOutOfBoundsException ignored) {
+                break; // endpoint was removed concurrently
+            }
+
+            if(!endpoint.isAvailable()) {
+                endpoint.connectIfClosed(connectTimeoutMillis, reconnectDelayMillis);
+                continue;
+            }
+            if(endpoint == except)
+                continue;
+
+            // reservoir sampling of two distinct candidates
+            availableSeen++;
+            if(first == null) {
+                first = endpoint;
+            } else if(second == null) {
+                second = endpoint;
+            } else if(random.nextInt(availableSeen) < 2) {
+                if(random.nextBoolean()) {
+                    first = endpoint;
+                } else {
+                    second = endpoint;
+                }
+            }
+        }
+
+        if(second == null)
+            return first;
+        return (first.getCost() <= second.getCost() ? first : second);
+    }
+
+
+    /** @param request sends the request over the given connection and returns future of the response */
+    public <R> CompletableFuture<R> call(Function<TCPConnection, CompletableFuture<R>> request) {
+        if(request == null)
+            throw new IllegalArgumentException("Argument 'request' cannot be null");
+
+        final BalancerEndpoint primary = this.select();
+        if(primary == null)
+            return CompletableFuture.failedFuture(new IllegalStateException("No available endpoints"));
+
+        final HedgedCall<R> call = new HedgedCall<>();
+        call.attempt(primary, request);
+
+        if(hedgingEnabled && endpoints.size() > 1) {
+            final long delayNanos = primary.getLatencyTracker().getPercentileNanos(hedgePercentile);
+            if(delayNanos > 0L) {
+                final Executor delayed = CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS);
+                delayed.execute(() -> {
+                    if(call.result.isDone())
+                        return;
+
+                    final BalancerEndpoint secondary = this.select(primary);
+                    if(secondary != null)
+                        call.attempt(secondary, request);
+                });
+            }
+        }
+        return call.result;
+    }
+
+    private static class HedgedCall<R> {
+
+        private final CompletableFuture<R> result;
+        private final AtomicInteger attemptsLeft;
+
+        private HedgedCall() {
+            this.result = new CompletableFuture<>();
+            this.attemptsLeft = new AtomicInteger();
+        }
+
+        private void attempt(BalancerEndpoint endpoint, Function<TCPConnection, CompletableFuture<R>> request) {
+            attemptsLeft.incrementAndGet();
+            endpoint.onCallStarted();
+            final long startNanos = System.nanoTime();
+
+            CompletableFuture<R> future;
+            try {
+                final TCPConnection connection = endpoint.getConnection();
+                if(connection == null)
+                    throw new IllegalStateException("Endpoint " + endpoint + " is not connected");
+
+                future = request.apply(connection);
+                if(future == null)
+                    throw new IllegalStateException("Request function returned null");
+            } catch (Throwable t) {
+                future = CompletableFuture.failedFuture(t);
+            }
+
+            future.whenComplete((response, throwable) -> {
+                final boolean success = (throwable == null);
+                endpoint.onCallFinished(System.nanoTime() - startNanos, success);
+
+                // first success wins, failure only when every attempt failed
+                final int left = attemptsLeft.decrementAndGet();
+                if(success) {
+                    result.complete(response);
+                } else if(left == 0) {
+                    result.completeExceptionally(throwable);
+                }
+            });
+        }
+
+    }
+
+
+    public void close() {
+        for(BalancerEndpoint endpoint : endpoints)
+            endpoint.close();
+        endpoints.clear();
+    }
+
+
+    @Override
+    public boolean send(byte[] data) {
+        final BalancerEndpoint endpoint = this.select();
+        if(endpoint != null)
+            return endpoint.getClient().send(data);
+        return false;
+    }
+
+    @Override
+    public boolean send(ByteBuffer buffer) {
+        final BalancerEndpoint endpoint = this.select();
+        if(endpoint != null)
+            return endpoint.getClient().send(buffer);
+        return false;
+    }
+
+    @Override
+    public boolean send(String string) {
+        final BalancerEndpoint endpoint = this.select();
+        if(endpoint != null)
+            return endpoint.getClient().send(string);
+        return false;
+    }
+
+    @Override
+    public boolean send(BinaryStreamWriter streamWriter) {
+        final BalancerEndpoint endpoint = this.select();
+        if(endpoint != null)
+            return endpoint.getClient().send(streamWriter);
+        return false;
+    }
+
+    @Override
+    public boolean send(NetPacket packet) {
+        final BalancerEndpoint endpoint = this.select();
+        if(endpoint != null)
+            return endpoint.getClient().send(packet);
+        return false;
+    }
+
+}
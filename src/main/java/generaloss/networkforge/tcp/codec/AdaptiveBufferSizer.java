@@ -0,0 +1,129 @@
+package generaloss.networkforge.tcp.codec;
+
+/** Per-connection buffer size advisor.
+ * Recent read/frame sizes are kept in a decaying histogram of power-of-two buckets:
+ * the size grows at once to fit a larger sample and shrinks when most recent weight fits into a smaller one. */
+public class AdaptiveBufferSizer {
+
+    public static final int MIN_BUFFER_SIZE = 512;
+    public static final long DEFAULT_IDLE_RELEASE_MILLIS = 10_000L;
+
+    private static final int MIN_BUCKET_SHIFT = 9; // 512 bytes
+    private static final int BUCKETS_COUNT = (31 - MIN_BUCKET_SHIFT); // up to 1 Gb
+    private static final float DECAY = 0.9F; // weight left after each sample
+    private static final float SHRINK_WEIGHT = 0.95F; // part of weight the smaller size must cover
+    private static final float MAX_SCALE = 1e30F;
+
+    private final int maxBufferSize;
+    private final long idleReleaseNanos;
+
+    private final float[] weights;
+    private float sampleScale; // growing instead of decaying all weights
+    private float totalWeight;
+    private int bufferSize;
+    private long lastActivityNanos;
+
+    /** @param maxBufferSize retained size limit, 0 to not limit
+     * @param idleReleaseMillis buffers may be released after this time without traffic, 0 to never release */
+    public AdaptiveBufferSizer(int initialBufferSize, int maxBufferSize, long idleReleaseMillis) {
+        if(initialBufferSize < 1)
+            throw new IllegalArgumentException("Argument 'initialBufferSize' must be > 0");
+        if(maxBufferSize < 0)
+            throw new IllegalArgumentException("Argument 'maxBufferSize' must be >= 0");
+        if(idleReleaseMillis < 0L)
+            throw new IllegalArgumentException("Argument 'idleReleaseMillis' must be >= 0");
+
+        this.maxBufferSize = (maxBufferSize == 0 ? Integer.MAX_VALUE : Math.max(maxBufferSize, MIN_BUFFER_SIZE));
+        this.idleReleaseNanos = (idleReleaseMillis * 1_000_000L);
+        this.weights = new float[BUCKETS_COUNT];
+        this.sampleScale = 1F;
+        this.bufferSize = this.limit(roundUpToPowerOfTwo(initialBufferSize));
+        this.lastActivityNanos = System.nanoTime();
+    }
+
+    public AdaptiveBufferSizer(int initialBufferSize, int maxBufferSize) {
+        this(initialBufferSize, maxBufferSize, DEFAULT_IDLE_RELEASE_MILLIS);
+    }
+
+
+    /** Records observed read or frame size. */
+    public void record(int size) {
+        lastActivityNanos = System.nanoTime();
+
+        // add sample
+        weights[bucketOf(size)] += sampleScale;
+        totalWeight += sampleScale;
+        sampleScale /= DECAY;
+        if(sampleScale > MAX_SCALE)
+            this.normalize();
+
+        // grow at once
+        final int requiredSize = this.limit(roundUpToPowerOfTwo(size));
+        if(requiredSize > bufferSize) {
+            bufferSize = requiredSize;
+            return;
+        }
+
+        // shrink when recent traffic fits into a smaller size
+        final int fittingSize = this.limit(this.getFittingSize());
+        if(fittingSize < bufferSize)
+            bufferSize = fittingSize;
+    }
+
+    /** @return smallest bucket size covering the most of recent weight */
+    private int getFittingSize() {
+        final float requiredWeight = (totalWeight * SHRINK_WEIGHT);
+        float weight = 0F;
+        for(int i = 0; i < BUCKETS_COUNT; i++) {
+            weight += weights[i];
+            if(weight >= requiredWeight)
+                return (1 << (i + MIN_BUCKET_SHIFT));
+        }
+        return bufferSize;
+    }
+
+    private void normalize() {
+        for(int i = 0; i < BUCKETS_COUNT; i++)
+            weights[i] /= sampleScale;
+        totalWeight /= sampleScale;
+        sampleScale = 1F;
+    }
+
+    private int limit(int size) {
+        return Math.max(MIN_BUFFER_SIZE, Math.min(size, maxBufferSize));
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+
+    public boolean isIdle(long nowNanos) {
+        return (idleReleaseNanos > 0L && nowNanos - lastActivityNanos >= idleReleaseNanos);
+    }
+
+    public boolean isIdle() {
+        return this.isIdle(System.nanoTime());
+    }
+
+
+    private static int bucketOf(int size) {
+        if(size <= MIN_BUFFER_SIZE)
+            return 0;
+        final int shift = (32 - Integer.numberOfLeadingZeros(size - 1)); // ceil(log2(size))
+        return Math.min(shift - MIN_BUCKET_SHIFT, BUCKETS_COUNT - 1);
+    }
+
+    private static int roundUpToPowerOfTwo(int size) {
+        if(size <= 1)
+            return 1;
+        if(size > (1 << 30))
+            return Integer.MAX_VALUE;
+        return (1 << (32 - Integer.numberOfLeadingZeros(size - 1)));
+    }
+
+}
@@ -0,0 +1,72 @@
+package generaloss.networkforge.tcp.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Fixed-size buffers shared by connections (composite frame chunks, TLS records). */
+public class BufferChunkPool {
+
+    public static final int DEFAULT_CHUNK_SIZE = (64 * 1024); // 64 Kb.
+    public static final int DEFAULT_MAX_POOLED_CHUNKS = 256; // 16 Mb. of 64 Kb. chunks
+    public static final BufferChunkPool DEFAULT = new BufferChunkPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+
+    private final int chunkSize;
+    private final int maxPooledChunks;
+    private final boolean direct;
+    private final Queue<ByteBuffer> chunks;
+    private final AtomicInteger pooledCount;
+
+    public BufferChunkPool(int chunkSize, int maxPooledChunks, boolean direct) {
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("Argument 'chunkSize' must be > 0");
+        if(maxPooledChunks < 0)
+            throw new IllegalArgumentException("Argument 'maxPooledChunks' must be >= 0");
+
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = maxPooledChunks;
+        this.direct = direct;
+        this.chunks = new ConcurrentLinkedQueue<>();
+        this.pooledCount = new AtomicInteger();
+    }
+
+    public BufferChunkPool(int chunkSize, int maxPooledChunks) {
+        this(chunkSize, maxPooledChunks, false);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getPooledCount() {
+        return pooledCount.get();
+    }
+
+    /** @return cleared chunk */
+    public ByteBuffer acquire() {
+        final ByteBuffer chunk = chunks.poll();
+        if(chunk == null)
+            return (direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize));
+
+        pooledCount.decrementAndGet();
+        chunk.clear();
+        return chunk;
+    }
+
+    public void release(ByteBuffer chunk) {
+        if(chunk == null || chunk.capacity() != chunkSize || chunk.isReadOnly() || chunk.isDirect() != direct)
+            return;
+
+        if(pooledCount.incrementAndGet() > maxPooledChunks) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        chunks.add(chunk);
+    }
+
+}
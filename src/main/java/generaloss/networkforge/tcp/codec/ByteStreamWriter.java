@@ -1,5 +1,7 @@
 package generaloss.networkforge.tcp.codec;
 
+import generaloss.networkforge.tcp.SendPriority;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -8,4 +10,8 @@ public interface ByteStreamWriter {
 
     void write(ByteBuffer buffer) throws IOException;
 
+    default void write(ByteBuffer buffer, SendPriority priority) throws IOException {
+        this.write(buffer);
+    }
+
 }
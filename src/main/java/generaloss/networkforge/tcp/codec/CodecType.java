@@ -2,8 +2,11 @@ package generaloss.networkforge.tcp.codec;
 
 public enum CodecType {
 
-    FRAMED (FramedConnectionCodec::new),
-    STREAM (StreamConnectionCodec::new);
+    FRAMED       (FramedConnectionCodec::new),
+    STREAM       (StreamConnectionCodec::new),
+    VARINT       (VarintConnectionCodec::new),
+    LENGTH_FIELD (LengthFieldConnectionCodec::new),
+    LINE         (DelimiterConnectionCodec::new);
 
     private final ConnectionCodecFactory factory;
 
@@ -0,0 +1,148 @@
+package generaloss.networkforge.tcp.codec;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Received frame stored in pooled fixed-size chunks instead of one contiguous array.
+ * Valid only during the receive call: chunks return to the pool afterwards. */
+public class CompositeFrame {
+
+    private static final ByteBuffer[] NO_CHUNKS = new ByteBuffer[0];
+
+    private final BufferChunkPool pool;
+    private ByteBuffer[] chunks; // write mode, all but the last are full
+    private int chunkCount;
+    private byte[] flattened;
+    private boolean released;
+
+    protected CompositeFrame(BufferChunkPool pool) {
+        this.pool = pool;
+        this.chunks = NO_CHUNKS;
+    }
+
+    public int size() {
+        if(chunkCount == 0)
+            return 0;
+        return ((chunkCount - 1) * pool.getChunkSize() + chunks[chunkCount - 1].position());
+    }
+
+    /** @return bytes held by chunks */
+    public int getCapacity() {
+        return (chunkCount * pool.getChunkSize());
+    }
+
+
+    /** @return chunk with free space to read into */
+    protected ByteBuffer writableChunk() {
+        if(chunkCount != 0 && chunks[chunkCount - 1].hasRemaining())
+            return chunks[chunkCount - 1];
+
+        if(chunkCount == chunks.length)
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunkCount * 2));
+
+        final ByteBuffer chunk = pool.acquire();
+        chunks[chunkCount++] = chunk;
+        return chunk;
+    }
+
+    protected void release() {
+        for(int i = 0; i < chunkCount; i++) {
+            pool.release(chunks[i]);
+            chunks[i] = null;
+        }
+        chunkCount = 0;
+        released = true;
+    }
+
+    private void checkReleased() {
+        if(released)
+            throw new IllegalStateException("Composite frame is used after the receive call");
+    }
+
+
+    /** @return read-only views of the chunks, for scatter/gather */
+    public ByteBuffer[] getBuffers() {
+        this.checkReleased();
+
+        final ByteBuffer[] buffers = new ByteBuffer[chunkCount];
+        for(int i = 0; i < chunkCount; i++) {
+            final ByteBuffer view = chunks[i].duplicate();
+            view.flip();
+            buffers[i] = view.asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    public InputStream newInputStream() {
+        return new CompositeInputStream(this.getBuffers());
+    }
+
+    /** Copies the frame into one array (once, the result is cached). */
+    public byte[] toByteArray() {
+        if(flattened != null)
+            return flattened;
+        this.checkReleased();
+
+        final byte[] array = new byte[this.size()];
+        int offset = 0;
+        for(int i = 0; i < chunkCount; i++) {
+            final ByteBuffer chunk = chunks[i].duplicate();
+            chunk.flip();
+            final int length = chunk.remaining();
+            chunk.get(array, offset, length);
+            offset += length;
+        }
+        flattened = array;
+        return array;
+    }
+
+
+    private static class CompositeInputStream extends InputStream {
+
+        private final ByteBuffer[] buffers;
+        private int bufferIndex;
+
+        public CompositeInputStream(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        private ByteBuffer currentBuffer() {
+            while(bufferIndex < buffers.length && !buffers[bufferIndex].hasRemaining())
+                bufferIndex++;
+            return (bufferIndex < buffers.length ? buffers[bufferIndex] : null);
+        }
+
+        @Override
+        public int read() {
+            final ByteBuffer buffer = this.currentBuffer();
+            if(buffer == null)
+                return -1;
+            return (buffer.get() & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] array, int offset, int length) {
+            if(length == 0)
+                return 0;
+
+            final ByteBuffer buffer = this.currentBuffer();
+            if(buffer == null)
+                return -1;
+
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(array, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            int available = 0;
+            for(int i = bufferIndex; i < buffers.length; i++)
+                available += buffers[i].remaining();
+            return available;
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package generaloss.networkforge.tcp.codec;
 
+import generaloss.networkforge.tcp.SendPriority;
 import generaloss.networkforge.tcp.TCPConnection;
 
 public interface ConnectionCodec {
@@ -10,8 +11,26 @@ public interface ConnectionCodec {
      * @return false when cannot write data */
     boolean write(byte[] data);
 
+    /** Codecs without send classes write in call order. */
+    default boolean write(byte[] data, SendPriority priority) {
+        return this.write(data);
+    }
+
     /** Called by selector only.
      * @return null when has no data available */
     byte[] read();
 
+    /** Called by selector only, periodically.
+     * Codec may drop buffers that do not hold a partially read frame. */
+    default void releaseIdleBuffers() { }
+
+    /** Called once before the channel is closed, codec may write a final message.
+     * Best effort: bytes the socket does not accept right away are dropped. */
+    default void beforeClose() { }
+
+    /** @return bytes held by receive buffers, for memory accounting */
+    default int getBufferCapacity() {
+        return 0;
+    }
+
 }
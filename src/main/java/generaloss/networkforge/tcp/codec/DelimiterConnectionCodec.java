@@ -0,0 +1,269 @@
+package generaloss.networkforge.tcp.codec;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.listener.CloseReason;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/** Frames separated by a 1-4 byte delimiter ('\n' by default). The delimiter is not included in received frames.
+ * Delimiter bytes are searched 8 at a time (SWAR). */
+public class DelimiterConnectionCodec implements ConnectionCodec {
+
+    private static final String CLASS_NAME = DelimiterConnectionCodec.class.getSimpleName();
+    private static final int INPUT_BUFFER_SIZE = 8192; // 8 kb
+    private static final byte[] LINE_DELIMITER = { '\n' };
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final byte[] delimiter;
+    private final long firstBytePattern;
+
+    private TCPConnection connection;
+    private ByteStreamWriter writer;
+    private ByteStreamReader reader;
+
+    private ByteBuffer inputBuffer; // read mode between calls, position = frame start
+    private int scannedLength; // bytes after frame start known to contain no delimiter start
+    private boolean discarding;
+
+    public DelimiterConnectionCodec(byte... delimiter) {
+        if(delimiter == null)
+            throw new IllegalArgumentException("Argument 'delimiter' cannot be null");
+        if(delimiter.length < 1 || delimiter.length > 4)
+            throw new IllegalArgumentException("Argument 'delimiter' must be 1-4 bytes long");
+
+        this.delimiter = delimiter.clone();
+        this.firstBytePattern = ((delimiter[0] & 0xFFL) * LOW_BITS);
+        this.inputBuffer = this.createInputBuffer(INPUT_BUFFER_SIZE);
+    }
+
+    public DelimiterConnectionCodec(String delimiter) {
+        this(delimiter.getBytes());
+    }
+
+    public DelimiterConnectionCodec() {
+        this(LINE_DELIMITER);
+    }
+
+    public byte[] getDelimiter() {
+        return delimiter.clone();
+    }
+
+    private ByteBuffer createInputBuffer(int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.flip(); // empty, read mode
+        return buffer;
+    }
+
+    @Override
+    public void setup(TCPConnection connection, ByteStreamWriter writer, ByteStreamReader reader) {
+        this.connection = connection;
+        this.writer = writer;
+        this.reader = reader;
+
+        this.inputBuffer.clear().flip();
+        this.scannedLength = 0;
+        this.discarding = false;
+    }
+
+
+    @Override
+    public boolean write(byte[] data) {
+        return this.write(data, SendPriority.DEFAULT);
+    }
+
+    @Override
+    public boolean write(byte[] data, SendPriority priority) {
+        if(connection == null || connection.isClosed())
+            return false;
+
+        // check data size
+        final int size = data.length;
+        final int maxSize = connection.getOptions().getMaxWriteFrameSize();
+
+        if(size > maxSize) {
+            System.err.printf(
+                "[%1$s %2$s] Frame to send is too large: %3$d bytes. " +
+                "Maximum allowed: %4$d bytes (adjustable).%n",
+                connection.getName(), CLASS_NAME, size, maxSize
+            );
+            return false;
+        }
+
+        // allocate buffer
+        final ByteBuffer buffer = ByteBuffer.allocate(size + delimiter.length);
+        buffer.put(data);
+        buffer.put(delimiter);
+        buffer.flip();
+
+        // write
+        try {
+            writer.write(buffer, priority);
+            return true;
+        } catch (IOException e) {
+            connection.close(CloseReason.INTERNAL_ERROR, e);
+            return false;
+        }
+    }
+
+
+    @Override
+    public byte[] read() {
+        if(connection == null)
+            return null;
+
+        try {
+            final int maxFrameSize = connection.getOptions().getMaxReadFrameSize();
+
+            // auxiliary loop
+            while(true) {
+                final byte[] array = inputBuffer.array();
+                final int frameStart = inputBuffer.position();
+                final int dataEnd = inputBuffer.limit();
+
+                final int delimiterIndex = this.indexOfDelimiter(array, frameStart + scannedLength, dataEnd);
+                if(delimiterIndex != -1) {
+                    final int frameSize = (delimiterIndex - frameStart);
+                    inputBuffer.position(delimiterIndex + delimiter.length);
+                    scannedLength = 0;
+
+                    // tail of a discarded frame
+                    if(discarding) {
+                        discarding = false;
+                        continue;
+                    }
+
+                    // whole oversized frame is already consumed
+                    if(frameSize > maxFrameSize) {
+                        if(this.closeOnOversizedFrame())
+                            return null;
+                        continue;
+                    }
+                    return Arrays.copyOfRange(array, frameStart, delimiterIndex);
+                }
+
+                // last bytes may be the beginning of a delimiter
+                scannedLength = Math.max(0, (dataEnd - frameStart) - (delimiter.length - 1));
+
+                // enter discard mode
+                if(!discarding && scannedLength > maxFrameSize) {
+                    if(this.closeOnOversizedFrame())
+                        return null;
+                    discarding = true;
+                }
+
+                // drop already scanned bytes of a discarded frame
+                if(discarding) {
+                    inputBuffer.position(frameStart + scannedLength);
+                    scannedLength = 0;
+                }
+
+                if(!this.fillInputBuffer(maxFrameSize))
+                    return null; // continue reading frame next time
+            }
+
+        } catch (IOException e) {
+            connection.close(CloseReason.INTERNAL_ERROR, e);
+            return null;
+        }
+    }
+
+    /** @return true when connection was closed */
+    private boolean closeOnOversizedFrame() {
+        if(!connection.getOptions().isCloseOnFrameReadSizeExceed())
+            return false;
+
+        connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+        return true;
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        return inputBuffer.capacity();
+    }
+
+    private boolean fillInputBuffer(int maxFrameSize) throws IOException {
+        final int remaining = inputBuffer.remaining();
+        final int sizeUpperBound = connection.getOptions().getFrameBufferSizeUpperBound();
+        final int maxCapacity = (int) Math.min(Integer.MAX_VALUE, (long) maxFrameSize + delimiter.length);
+
+        final boolean expand = (remaining == inputBuffer.capacity() && remaining < maxCapacity);
+        final boolean narrow = (
+            sizeUpperBound != 0 &&
+            inputBuffer.capacity() > sizeUpperBound &&
+            remaining < INPUT_BUFFER_SIZE
+        );
+
+        if(expand || narrow) {
+            final int newCapacity = (expand
+                ? (int) Math.min(maxCapacity, (long) inputBuffer.capacity() * 2)
+                : INPUT_BUFFER_SIZE
+            );
+            final ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+            newBuffer.put(inputBuffer);
+            inputBuffer = newBuffer;
+        } else {
+            inputBuffer.compact();
+        }
+
+        // read bytes (write mode)
+        final int bytesRead = reader.read(inputBuffer);
+        inputBuffer.flip();
+
+        // check remote close
+        if(bytesRead == -1) {
+            connection.close(CloseReason.CLOSE_BY_OTHER_SIDE, null);
+            return false;
+        }
+        return (bytesRead > 0);
+    }
+
+
+    private int indexOfDelimiter(byte[] array, int fromIndex, int toIndex) {
+        final int lastStart = (toIndex - delimiter.length);
+
+        int index = fromIndex;
+        while(index <= lastStart) {
+            final int candidate = this.indexOfFirstByte(array, index, lastStart + 1);
+            if(candidate == -1)
+                return -1;
+            if(this.isDelimiterAt(array, candidate))
+                return candidate;
+            index = (candidate + 1);
+        }
+        return -1;
+    }
+
+    private int indexOfFirstByte(byte[] array, int fromIndex, int toIndex) {
+        int index = fromIndex;
+
+        // 8 bytes per step: zero byte of (word ^ pattern) marks a match
+        for(; index + Long.BYTES <= toIndex; index += Long.BYTES) {
+            final long word = ((long) LONG_VIEW.get(array, index) ^ firstBytePattern);
+            final long found = ((word - LOW_BITS) & ~word & HIGH_BITS);
+            if(found != 0L)
+                return (index + (Long.numberOfTrailingZeros(found) >>> 3));
+        }
+
+        for(; index < toIndex; index++)
+            if(array[index] == delimiter[0])
+                return index;
+        return -1;
+    }
+
+    private boolean isDelimiterAt(byte[] array, int index) {
+        for(int i = 1; i < delimiter.length; i++)
+            if(array[index + i] != delimiter[i])
+                return false;
+        return true;
+    }
+
+}
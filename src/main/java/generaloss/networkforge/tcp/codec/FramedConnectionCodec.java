@@ -1,5 +1,6 @@
 package generaloss.networkforge.tcp.codec;
 
+import generaloss.networkforge.tcp.SendPriority;
 import generaloss.networkforge.tcp.TCPConnection;
 import generaloss.networkforge.tcp.listener.CloseReason;
 
@@ -11,17 +12,65 @@ public class FramedConnectionCodec implements ConnectionCodec {
     private static final String CLASS_NAME = FramedConnectionCodec.class.getSimpleName();
     private static final int HEADER_BUFFER_SIZE = Integer.BYTES; // 4 bytes for data size
     private static final int DISCARD_BUFFER_SIZE = 8192; // 8 kb
+    private static final int STREAM_BUFFER_SIZE = 16384; // 16 kb
+
+    // chunk: [int (CHUNK_FLAG | size)][byte (LAST_FLAG | channel)][data]
+    private static final int CHUNK_FLAG = 0x80000000;
+    private static final int CHUNK_INFO_SIZE = Byte.BYTES;
+    private static final int CHUNK_LAST_FLAG = 0x80;
+    private static final int CHUNK_CHANNEL_MASK = 0x7F;
+    private static final int CHUNK_CHANNELS = SendPriority.values().length;
 
     private TCPConnection connection;
     private ByteStreamWriter writer;
     private ByteStreamReader reader;
 
     private final ByteBuffer headerBuffer;
+    private final AdaptiveBufferSizer dataBufferSizer;
     private ByteBuffer dataBuffer;
     private int discardRemaining;
 
+    private final ByteBuffer chunkInfoBuffer;
+    private final CompositeFrame[] chunkAssemblies; // by channel, allocated on first chunk
+    private final boolean[] discardingChannels;
+    private final Object[] chunkWriteLocks;
+    private boolean chunked;
+    private int chunkChannel;
+    private boolean chunkLast;
+
+    // streaming receive: data goes to handleReceiveChunk through a constant-size buffer
+    private ByteBuffer streamBuffer; // allocated on first streamed frame
+    private final boolean[] streamingChannels;
+    private final int[] streamingChannelFrameIDs;
+    private boolean streaming;
+    private int streamFrameID;
+    private int streamRemaining;
+    private int nextStreamFrameID;
+
+    private final BufferChunkPool chunkPool;
+    private CompositeFrame compositeTarget; // frame or chunk assembly being read into pooled chunks
+    private int compositeRemaining;
+
     public FramedConnectionCodec() {
+        this(BufferChunkPool.DEFAULT);
+    }
+
+    public FramedConnectionCodec(BufferChunkPool chunkPool) {
+        if(chunkPool == null)
+            throw new IllegalArgumentException("Argument 'chunkPool' cannot be null");
+
+        this.chunkPool = chunkPool;
         this.headerBuffer = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+        this.dataBufferSizer = new AdaptiveBufferSizer(AdaptiveBufferSizer.MIN_BUFFER_SIZE, 0);
+
+        this.chunkInfoBuffer = ByteBuffer.allocate(CHUNK_INFO_SIZE);
+        this.chunkAssemblies = new CompositeFrame[CHUNK_CHANNELS];
+        this.discardingChannels = new boolean[CHUNK_CHANNELS];
+        this.streamingChannels = new boolean[CHUNK_CHANNELS];
+        this.streamingChannelFrameIDs = new int[CHUNK_CHANNELS];
+        this.chunkWriteLocks = new Object[CHUNK_CHANNELS];
+        for(int i = 0; i < CHUNK_CHANNELS; i++)
+            this.chunkWriteLocks[i] = new Object();
     }
 
     @Override
@@ -32,10 +81,25 @@ public class FramedConnectionCodec implements ConnectionCodec {
 
         this.headerBuffer.clear();
         this.discardRemaining = 0;
+        this.chunked = false;
+        this.streaming = false;
+        this.compositeTarget = null;
+        for(int i = 0; i < CHUNK_CHANNELS; i++) {
+            if(this.chunkAssemblies[i] != null)
+                this.chunkAssemblies[i].release();
+            this.chunkAssemblies[i] = null;
+            this.discardingChannels[i] = false;
+            this.streamingChannels[i] = false;
+        }
     }
 
     @Override
     public boolean write(byte[] data) {
+        return this.write(data, SendPriority.DEFAULT);
+    }
+
+    @Override
+    public boolean write(byte[] data, SendPriority priority) {
         if(connection == null || connection.isClosed())
             return false;
 
@@ -52,6 +116,11 @@ public class FramedConnectionCodec implements ConnectionCodec {
             return false;
         }
 
+        // split large frame so that higher priorities can go in between
+        final int chunkSize = connection.getOptions().getSendChunkSize();
+        if(chunkSize > 0 && size > chunkSize && priority != SendPriority.HIGH)
+            return this.writeChunked(data, priority, chunkSize);
+
         // allocate buffer
         final int capacity = (HEADER_BUFFER_SIZE + size);
         final ByteBuffer buffer = ByteBuffer.allocate(capacity);
@@ -62,7 +131,7 @@ public class FramedConnectionCodec implements ConnectionCodec {
 
         // write
         try {
-            writer.write(buffer);
+            writer.write(buffer, priority);
             return true;
         } catch (IOException e) {
             connection.close(CloseReason.INTERNAL_ERROR, e);
@@ -70,6 +139,34 @@ public class FramedConnectionCodec implements ConnectionCodec {
         }
     }
 
+    private boolean writeChunked(byte[] data, SendPriority priority, int chunkSize) {
+        final int channel = priority.ordinal();
+
+        // chunks of two frames must not mix within one channel
+        synchronized(chunkWriteLocks[channel]) {
+            try {
+                int offset = 0;
+                while(offset < data.length) {
+                    final int length = Math.min(chunkSize, data.length - offset);
+                    final boolean last = (offset + length == data.length);
+
+                    final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BUFFER_SIZE + CHUNK_INFO_SIZE + length);
+                    buffer.putInt(CHUNK_FLAG | length);
+                    buffer.put((byte) (last ? (CHUNK_LAST_FLAG | channel) : channel));
+                    buffer.put(data, offset, length);
+                    buffer.flip();
+
+                    writer.write(buffer, priority);
+                    offset += length;
+                }
+                return true;
+            } catch (IOException e) {
+                connection.close(CloseReason.INTERNAL_ERROR, e);
+                return false;
+            }
+        }
+    }
+
     @Override
     public byte[] read() {
         if(connection == null)
@@ -92,10 +189,61 @@ public class FramedConnectionCodec implements ConnectionCodec {
 
                     // get data size
                     headerBuffer.flip();
-                    final int dataSize = headerBuffer.getInt();
+                    final int header = headerBuffer.getInt();
+                    chunked = ((header & CHUNK_FLAG) != 0);
+
+                    if(chunked) {
+                        // chunk info is read next
+                        chunkInfoBuffer.clear();
+                    } else if(this.isStreamingFrame(header)) {
+                        // stream large frame
+                        this.beginStreaming(nextStreamFrameID++, header);
+                    } else {
+                        // check data size
+                        final int dataSize = header;
+                        final int checkResult = this.checkDataSize(dataSize);
+                        if(checkResult == -1) {
+                            // connection closed
+                            return null;
+                        } else if(checkResult == 1) {
+                            // discard
+                            if(this.drainDiscardBytes())
+                                continue;
+                            return null; // continue reading/discarding next time
+                        }
+
+                        // setup buffer
+                        if(this.isCompositeFrame(dataSize)) {
+                            this.beginComposite(new CompositeFrame(chunkPool), dataSize);
+                        } else {
+                            this.setupDataBuffer(dataSize);
+                        }
+                    }
+                }
+
+                // if needed to read chunk info
+                if(chunked && chunkInfoBuffer.hasRemaining()) {
+                    final boolean infoFullyRead = this.readPartiallyTo(chunkInfoBuffer);
+                    if(!infoFullyRead)
+                        return null; // continue reading chunk info next time
+
+                    final int info = (chunkInfoBuffer.get(0) & 0xFF);
+                    chunkChannel = (info & CHUNK_CHANNEL_MASK);
+                    chunkLast = ((info & CHUNK_LAST_FLAG) != 0);
+                    if(chunkChannel >= CHUNK_CHANNELS) {
+                        connection.close(CloseReason.INVALID_FRAME_SIZE, null);
+                        return null;
+                    }
+
+                    // stream large chunked frame
+                    final int dataSize = (headerBuffer.getInt(0) & ~CHUNK_FLAG);
+                    if(this.isStreamingChunk(dataSize)) {
+                        this.beginChunkStreaming(dataSize);
+                        continue;
+                    }
 
-                    // check data size
-                    final int checkResult = this.checkDataSize(dataSize);
+                    // check chunk size
+                    final int checkResult = this.checkChunkSize(dataSize);
                     if(checkResult == -1) {
                         // connection closed
                         return null;
@@ -106,8 +254,8 @@ public class FramedConnectionCodec implements ConnectionCodec {
                         return null; // continue reading/discarding next time
                     }
 
-                    // setup buffer
-                    this.setupDataBuffer(dataSize);
+                    // chunks are read straight into the channel assembly
+                    this.beginComposite(chunkAssemblies[chunkChannel], dataSize);
                 }
 
                 // if discard required
@@ -117,6 +265,42 @@ public class FramedConnectionCodec implements ConnectionCodec {
                     return null; // continue reading/discarding next time
                 }
 
+                // if streaming
+                if(streaming) {
+                    if(!this.streamData())
+                        return null; // continue streaming next time
+
+                    headerBuffer.clear();
+                    continue;
+                }
+
+                // if reading into pooled chunks
+                if(compositeTarget != null) {
+                    if(!this.readComposite())
+                        return null; // continue reading data next time
+
+                    // prepare header buffer for next frame
+                    headerBuffer.clear();
+
+                    final CompositeFrame frame = compositeTarget;
+                    compositeTarget = null;
+                    if(chunked) {
+                        if(!chunkLast)
+                            continue; // collect chunks
+                        chunkAssemblies[chunkChannel] = null;
+                    }
+
+                    // pass large frame without flattening
+                    if(this.isCompositeFrame(frame.size())) {
+                        this.fireReceiveComposite(frame);
+                        continue;
+                    }
+
+                    final byte[] data = frame.toByteArray();
+                    frame.release();
+                    return data;
+                }
+
                 // read data
                 final boolean dataFullyRead = this.readPartiallyTo(dataBuffer);
                 if(!dataFullyRead)
@@ -124,8 +308,9 @@ public class FramedConnectionCodec implements ConnectionCodec {
 
                 // prepare header buffer for next frame
                 headerBuffer.clear();
-                // get data
                 dataBuffer.flip();
+
+                // get data
                 final byte[] data = new byte[dataBuffer.remaining()];
                 dataBuffer.get(data);
                 return data;
@@ -137,28 +322,193 @@ public class FramedConnectionCodec implements ConnectionCodec {
         }
     }
 
+    private boolean isStreamingFrame(long size) {
+        final int threshold = connection.getOptions().getStreamingReceiveThreshold();
+        return (
+            threshold > 0 &&
+            size > threshold &&
+            !connection.getCiphers().isDecryptionEnabled() // whole frame is needed to decrypt
+        );
+    }
+
+    private boolean isStreamingChunk(int size) {
+        if(streamingChannels[chunkChannel])
+            return true;
+        if(discardingChannels[chunkChannel])
+            return false;
+
+        final CompositeFrame assembly = chunkAssemblies[chunkChannel];
+        final int assembledSize = (assembly == null ? 0 : assembly.size());
+        return this.isStreamingFrame((long) assembledSize + size);
+    }
+
+    private void beginChunkStreaming(int size) {
+        // switch channel to streaming: assembled part goes first
+        if(!streamingChannels[chunkChannel]) {
+            streamingChannels[chunkChannel] = true;
+            streamingChannelFrameIDs[chunkChannel] = nextStreamFrameID++;
+
+            final CompositeFrame assembly = chunkAssemblies[chunkChannel];
+            if(assembly != null) {
+                chunkAssemblies[chunkChannel] = null;
+                try {
+                    for(ByteBuffer assembled : assembly.getBuffers())
+                        this.fireReceiveChunk(streamingChannelFrameIDs[chunkChannel], assembled, false);
+                } finally {
+                    assembly.release();
+                }
+            }
+        }
+        this.beginStreaming(streamingChannelFrameIDs[chunkChannel], size);
+    }
+
+    private void beginStreaming(int frameID, int size) {
+        if(streamBuffer == null)
+            streamBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+
+        streaming = true;
+        streamFrameID = frameID;
+        streamRemaining = size;
+    }
+
+    /** @return true when the current frame or chunk is fully streamed */
+    private boolean streamData() throws IOException {
+        while(streamRemaining > 0) {
+            streamBuffer.clear();
+            streamBuffer.limit(Math.min(streamBuffer.capacity(), streamRemaining));
+
+            // read bytes
+            final int bytesRead = reader.read(streamBuffer);
+            if(bytesRead == -1) {
+                connection.close(CloseReason.CLOSE_BY_OTHER_SIDE, null);
+                return false;
+            }
+            if(bytesRead == 0)
+                return false;
+
+            streamRemaining -= bytesRead;
+            streamBuffer.flip();
+
+            final boolean last = (streamRemaining == 0 && (!chunked || chunkLast));
+            this.fireReceiveChunk(streamFrameID, streamBuffer.asReadOnlyBuffer(), last);
+        }
+
+        streaming = false;
+        if(chunked && chunkLast)
+            streamingChannels[chunkChannel] = false;
+        return true;
+    }
+
+    private void fireReceiveChunk(int frameID, ByteBuffer chunk, boolean last) {
+        connection.getEventPipeline().fireReceiveChunk(connection, frameID, chunk, last);
+    }
+
+    private boolean isCompositeFrame(int size) {
+        final int threshold = connection.getOptions().getCompositeReceiveThreshold();
+        return (
+            threshold > 0 &&
+            size > threshold &&
+            !connection.getCiphers().isDecryptionEnabled() // decryption needs contiguous frame
+        );
+    }
+
+    private void beginComposite(CompositeFrame frame, int size) {
+        compositeTarget = frame;
+        compositeRemaining = size;
+    }
+
+    /** @return true when the current frame or chunk is fully read */
+    private boolean readComposite() throws IOException {
+        while(compositeRemaining > 0) {
+            final ByteBuffer chunk = compositeTarget.writableChunk();
+            final int limit = chunk.limit();
+            chunk.limit(Math.min(limit, chunk.position() + compositeRemaining));
+
+            // read bytes
+            final int bytesRead = reader.read(chunk);
+            chunk.limit(limit);
+            if(bytesRead == -1) {
+                connection.close(CloseReason.CLOSE_BY_OTHER_SIDE, null);
+                return false;
+            }
+            if(bytesRead == 0)
+                return false;
+
+            compositeRemaining -= bytesRead;
+        }
+        return true;
+    }
+
+    private void fireReceiveComposite(CompositeFrame frame) {
+        try {
+            connection.getEventPipeline().fireReceiveComposite(connection, frame);
+        } finally {
+            frame.release(); // chunks are reused by next frames
+        }
+    }
+
     private void setupDataBuffer(int size) {
-        final int sizeUpperBound = connection.getOptions().getFrameBufferSizeUpperBound();
+        dataBufferSizer.record(size);
+        final int targetCapacity = this.getTargetDataBufferCapacity();
 
         final boolean allocateBuffer = (
                 dataBuffer == null ||        // initialize buffer
                 size > dataBuffer.capacity() // expand
         );
-        final boolean exceedsUpperBound = (size > sizeUpperBound);
         final boolean reduceBufferSize = (
-                !allocateBuffer &&     // buffer exists & bigger than required
-                sizeUpperBound != 0 && // can be reduced
-                exceedsUpperBound      // exceeds size bound
+                !allocateBuffer &&                      // buffer exists & bigger than required
+                dataBuffer.capacity() > targetCapacity && // recent frames are smaller
+                size <= targetCapacity
         );
 
-        if(allocateBuffer || reduceBufferSize) {
-            // allocate
-            dataBuffer = ByteBuffer.allocate(size);
-        } else {
-            // set limit
-            dataBuffer.clear();
-            dataBuffer.limit(size);
-        }
+        // allocate
+        if(allocateBuffer || reduceBufferSize)
+            dataBuffer = ByteBuffer.allocate(Math.max(size, targetCapacity));
+
+        // set limit
+        dataBuffer.clear();
+        dataBuffer.limit(size);
+    }
+
+    private int getTargetDataBufferCapacity() {
+        final int sizeUpperBound = connection.getOptions().getFrameBufferSizeUpperBound();
+        final int adaptiveCapacity = dataBufferSizer.getBufferSize();
+        if(sizeUpperBound == 0)
+            return adaptiveCapacity;
+        return Math.min(adaptiveCapacity, sizeUpperBound);
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        long capacity = 0L;
+        if(dataBuffer != null)
+            capacity += dataBuffer.capacity();
+        if(streamBuffer != null)
+            capacity += streamBuffer.capacity();
+        for(CompositeFrame assembly : chunkAssemblies)
+            if(assembly != null)
+                capacity += assembly.getCapacity();
+        if(compositeTarget != null && !chunked)
+            capacity += compositeTarget.getCapacity();
+        return (int) Math.min(capacity, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void releaseIdleBuffers() {
+        if(connection == null || !dataBufferSizer.isIdle())
+            return;
+
+        // keep buffers of a partially read frame
+        if(headerBuffer.position() != 0 || discardRemaining > 0 || streaming)
+            return;
+
+        dataBuffer = null;
+        streamBuffer = null;
+        for(int i = 0; i < CHUNK_CHANNELS; i++)
+            if(chunkAssemblies[i] != null && chunkAssemblies[i].size() == 0) {
+                chunkAssemblies[i].release();
+                chunkAssemblies[i] = null;
+            }
     }
 
     /** @return result code:
@@ -196,6 +546,38 @@ public class FramedConnectionCodec implements ConnectionCodec {
         return 0;
     }
 
+    /** Size check for the whole frame being assembled in the chunk channel.
+     * @return result code, same as {@link #checkDataSize} */
+    private int checkChunkSize(int size) {
+        final CompositeFrame assembly = chunkAssemblies[chunkChannel];
+
+        final int maxSize = connection.getOptions().getMaxReadFrameSize();
+        final long assembledSize = ((assembly == null ? 0L : assembly.size()) + (long) size);
+        if(discardingChannels[chunkChannel] || assembledSize > maxSize) {
+            // close connection if needed
+            if(connection.getOptions().isCloseOnFrameReadSizeExceed()) {
+                connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+                return -1;
+            }
+
+            // drop the whole frame: this chunk and the rest of the channel until the last one
+            if(assembly != null)
+                assembly.release();
+            chunkAssemblies[chunkChannel] = null;
+            discardingChannels[chunkChannel] = !chunkLast;
+
+            discardRemaining = size;
+            headerBuffer.clear();
+            if(dataBuffer == null || dataBuffer.capacity() < DISCARD_BUFFER_SIZE)
+                dataBuffer = ByteBuffer.allocate(DISCARD_BUFFER_SIZE);
+            return 1; // discard
+        }
+
+        if(assembly == null)
+            chunkAssemblies[chunkChannel] = new CompositeFrame(chunkPool);
+        return 0;
+    }
+
     private boolean readPartiallyTo(ByteBuffer buffer) throws IOException {
         // check read necessity
         if(!buffer.hasRemaining())
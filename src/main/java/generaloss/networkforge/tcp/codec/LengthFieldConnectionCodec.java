@@ -0,0 +1,107 @@
+package generaloss.networkforge.tcp.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Fixed-width length field for interoperating with other wire formats.
+ * Wire: [prefix (lengthFieldOffset bytes)][length field][body].
+ * Field value = body size - lengthAdjustment. The prefix stays at the start of frame data. */
+public class LengthFieldConnectionCodec extends LengthPrefixedConnectionCodec {
+
+    public static final int DEFAULT_LENGTH_FIELD_SIZE = 4;
+
+    private final int lengthFieldSize;
+    private final ByteOrder byteOrder;
+    private final int lengthFieldOffset;
+    private final int lengthAdjustment;
+    private final long maxFieldValue;
+
+    public LengthFieldConnectionCodec(int lengthFieldSize, ByteOrder byteOrder, int lengthFieldOffset, int lengthAdjustment) {
+        if(lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 3 && lengthFieldSize != 4 && lengthFieldSize != 8)
+            throw new IllegalArgumentException("Argument 'lengthFieldSize' must be 1, 2, 3, 4 or 8");
+        if(byteOrder == null)
+            throw new IllegalArgumentException("Argument 'byteOrder' cannot be null");
+        if(lengthFieldOffset < 0)
+            throw new IllegalArgumentException("Argument 'lengthFieldOffset' must be >= 0");
+
+        this.lengthFieldSize = lengthFieldSize;
+        this.byteOrder = byteOrder;
+        this.lengthFieldOffset = lengthFieldOffset;
+        this.lengthAdjustment = lengthAdjustment;
+        this.maxFieldValue = (lengthFieldSize == 8 ? Long.MAX_VALUE : (1L << (lengthFieldSize * 8)) - 1L);
+    }
+
+    public LengthFieldConnectionCodec(int lengthFieldSize, ByteOrder byteOrder) {
+        this(lengthFieldSize, byteOrder, 0, 0);
+    }
+
+    public LengthFieldConnectionCodec() {
+        this(DEFAULT_LENGTH_FIELD_SIZE, ByteOrder.BIG_ENDIAN);
+    }
+
+
+    public int getLengthFieldSize() {
+        return lengthFieldSize;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    public int getLengthFieldOffset() {
+        return lengthFieldOffset;
+    }
+
+    public int getLengthAdjustment() {
+        return lengthAdjustment;
+    }
+
+
+    @Override
+    protected int getHeaderSize(ByteBuffer buffer) {
+        final int headerSize = (lengthFieldOffset + lengthFieldSize);
+        if(buffer.remaining() < headerSize)
+            return NEED_MORE_BYTES;
+        return headerSize;
+    }
+
+    @Override
+    protected long getBodySize(ByteBuffer buffer) {
+        final int fieldStart = (buffer.position() + lengthFieldOffset);
+        long value = 0L;
+        for(int i = 0; i < lengthFieldSize; i++) {
+            final int index = (byteOrder == ByteOrder.BIG_ENDIAN ? i : (lengthFieldSize - 1 - i));
+            value = (value << 8) | (buffer.get(fieldStart + index) & 0xFFL);
+        }
+        if(value < 0L)
+            return -1L; // 8-byte field overflow
+        return (value + lengthAdjustment);
+    }
+
+    @Override
+    protected int getKeptPrefixSize() {
+        return lengthFieldOffset;
+    }
+
+    @Override
+    protected int getEncodedHeaderSize(byte[] data) {
+        return (lengthFieldOffset + lengthFieldSize);
+    }
+
+    @Override
+    protected void writeHeader(ByteBuffer buffer, byte[] data) {
+        if(data.length < lengthFieldOffset)
+            throw new IllegalArgumentException("Frame is shorter than the length field offset (" + lengthFieldOffset + " bytes)");
+
+        final long fieldValue = ((long) (data.length - lengthFieldOffset) - lengthAdjustment);
+        if(fieldValue < 0L || fieldValue > maxFieldValue)
+            throw new IllegalArgumentException("Frame size does not fit into " + lengthFieldSize + "-byte length field");
+
+        buffer.put(data, 0, lengthFieldOffset);
+        for(int i = 0; i < lengthFieldSize; i++) {
+            final int shift = (byteOrder == ByteOrder.BIG_ENDIAN ? (lengthFieldSize - 1 - i) : i) * 8;
+            buffer.put((byte) (fieldValue >>> shift));
+        }
+    }
+
+}
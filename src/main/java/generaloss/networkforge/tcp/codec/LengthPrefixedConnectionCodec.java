@@ -0,0 +1,224 @@
+package generaloss.networkforge.tcp.codec;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.listener.CloseReason;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Base of codecs with a length header before each frame.
+ * Bytes are read into one input buffer and as many frames as available are parsed from it. */
+public abstract class LengthPrefixedConnectionCodec implements ConnectionCodec {
+
+    private static final String CLASS_NAME = LengthPrefixedConnectionCodec.class.getSimpleName();
+    protected static final int INPUT_BUFFER_SIZE = 16384; // 16 kb
+    protected static final int NEED_MORE_BYTES = -1;
+
+    private TCPConnection connection;
+    private ByteStreamWriter writer;
+    private ByteStreamReader reader;
+
+    private ByteBuffer inputBuffer; // read mode between calls
+    private long discardRemaining;
+
+    public LengthPrefixedConnectionCodec() {
+        this.inputBuffer = this.createInputBuffer(INPUT_BUFFER_SIZE);
+    }
+
+    private ByteBuffer createInputBuffer(int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.flip(); // empty, read mode
+        return buffer;
+    }
+
+    @Override
+    public void setup(TCPConnection connection, ByteStreamWriter writer, ByteStreamReader reader) {
+        this.connection = connection;
+        this.writer = writer;
+        this.reader = reader;
+
+        this.inputBuffer.clear().flip();
+        this.discardRemaining = 0L;
+    }
+
+
+    /** @param buffer read mode, positioned at the frame start
+     * @return header size, or {@link #NEED_MORE_BYTES} when the header is incomplete */
+    protected abstract int getHeaderSize(ByteBuffer buffer) throws IOException;
+
+    /** @param buffer read mode, positioned at the frame start, header is complete
+     * @return frame body size (bytes after the header) */
+    protected abstract long getBodySize(ByteBuffer buffer) throws IOException;
+
+    /** Leading header bytes that also belong to the frame data. */
+    protected int getKeptPrefixSize() {
+        return 0;
+    }
+
+    protected abstract int getEncodedHeaderSize(byte[] data);
+
+    /** Writes the header, including kept prefix bytes taken from the start of data. */
+    protected abstract void writeHeader(ByteBuffer buffer, byte[] data) throws IOException;
+
+
+    @Override
+    public boolean write(byte[] data) {
+        return this.write(data, SendPriority.DEFAULT);
+    }
+
+    @Override
+    public boolean write(byte[] data, SendPriority priority) {
+        if(connection == null || connection.isClosed())
+            return false;
+
+        // check data size
+        final int size = data.length;
+        final int maxSize = connection.getOptions().getMaxWriteFrameSize();
+
+        if(size > maxSize) {
+            System.err.printf(
+                "[%1$s %2$s] Frame to send is too large: %3$d bytes. " +
+                "Maximum allowed: %4$d bytes (adjustable).%n",
+                connection.getName(), CLASS_NAME, size, maxSize
+            );
+            return false;
+        }
+
+        try {
+            // allocate buffer
+            final int prefixSize = this.getKeptPrefixSize();
+            final int capacity = (this.getEncodedHeaderSize(data) + size - prefixSize);
+            final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+
+            this.writeHeader(buffer, data);
+            buffer.put(data, prefixSize, size - prefixSize);
+            buffer.flip();
+
+            // write
+            writer.write(buffer, priority);
+            return true;
+
+        } catch (IllegalArgumentException e) {
+            System.err.printf("[%1$s %2$s] %3$s%n", connection.getName(), CLASS_NAME, e.getMessage());
+            return false;
+        } catch (IOException e) {
+            connection.close(CloseReason.INTERNAL_ERROR, e);
+            return false;
+        }
+    }
+
+
+    @Override
+    public byte[] read() {
+        if(connection == null)
+            return null;
+
+        try {
+            // auxiliary loop
+            while(true) {
+                // if discard required
+                if(discardRemaining > 0L) {
+                    final int skip = (int) Math.min(discardRemaining, inputBuffer.remaining());
+                    inputBuffer.position(inputBuffer.position() + skip);
+                    discardRemaining -= skip;
+
+                    if(discardRemaining > 0L) {
+                        if(!this.fillInputBuffer(0))
+                            return null; // continue discarding next time
+                        continue;
+                    }
+                }
+
+                // parse header
+                final int headerSize = this.getHeaderSize(inputBuffer);
+                if(headerSize == NEED_MORE_BYTES) {
+                    if(!this.fillInputBuffer(0))
+                        return null; // continue reading header next time
+                    continue;
+                }
+
+                final int prefixSize = this.getKeptPrefixSize();
+                final long bodySize = this.getBodySize(inputBuffer);
+                if(bodySize < 0L || (bodySize + prefixSize) > Integer.MAX_VALUE) {
+                    connection.close(CloseReason.INVALID_FRAME_SIZE, null);
+                    return null;
+                }
+                final int frameSize = (int) (bodySize + prefixSize);
+
+                // oversized frame handling
+                if(frameSize > connection.getOptions().getMaxReadFrameSize()) {
+                    // close connection if needed
+                    if(connection.getOptions().isCloseOnFrameReadSizeExceed()) {
+                        connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+                        return null;
+                    }
+
+                    // enter discard mode
+                    inputBuffer.position(inputBuffer.position() + headerSize);
+                    discardRemaining = bodySize;
+                    continue;
+                }
+
+                // wait for the whole frame
+                final int wireSize = (int) (headerSize + bodySize);
+                if(inputBuffer.remaining() < wireSize) {
+                    if(!this.fillInputBuffer(wireSize))
+                        return null; // continue reading frame next time
+                    continue;
+                }
+
+                // get data
+                final byte[] data = new byte[frameSize];
+                final int frameStart = inputBuffer.position();
+                inputBuffer.get(data, 0, prefixSize);
+                inputBuffer.position(frameStart + headerSize);
+                inputBuffer.get(data, prefixSize, (int) bodySize);
+                return data;
+            }
+
+        } catch (IOException e) {
+            connection.close(CloseReason.INTERNAL_ERROR, e);
+            return null;
+        }
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        return inputBuffer.capacity();
+    }
+
+    /** @param requiredSize bytes the buffer must be able to hold from the current position
+     * @return true when new bytes were read */
+    private boolean fillInputBuffer(int requiredSize) throws IOException {
+        // grow or narrow
+        final int sizeUpperBound = connection.getOptions().getFrameBufferSizeUpperBound();
+        final int targetCapacity = Math.max(requiredSize, INPUT_BUFFER_SIZE);
+        final boolean expand = (targetCapacity > inputBuffer.capacity());
+        final boolean narrow = (
+            sizeUpperBound != 0 &&
+            inputBuffer.capacity() > sizeUpperBound &&
+            targetCapacity <= sizeUpperBound
+        );
+
+        if(expand || narrow) {
+            final ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(targetCapacity, inputBuffer.remaining()));
+            newBuffer.put(inputBuffer);
+            inputBuffer = newBuffer;
+        } else {
+            inputBuffer.compact();
+        }
+
+        // read bytes (write mode)
+        final int bytesRead = reader.read(inputBuffer);
+        inputBuffer.flip();
+
+        // check remote close
+        if(bytesRead == -1) {
+            connection.close(CloseReason.CLOSE_BY_OTHER_SIDE, null);
+            return false;
+        }
+        return (bytesRead > 0);
+    }
+
+}
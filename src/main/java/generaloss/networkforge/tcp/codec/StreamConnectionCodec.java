@@ -3,9 +3,9 @@ package generaloss.networkforge.tcp.codec;
 import generaloss.networkforge.tcp.TCPConnection;
 import generaloss.networkforge.tcp.listener.CloseReason;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class StreamConnectionCodec implements ConnectionCodec {
 
@@ -16,10 +16,11 @@ public class StreamConnectionCodec implements ConnectionCodec {
     private ByteStreamWriter writer;
     private ByteStreamReader reader;
 
-    private final ByteBuffer dataBuffer;
+    private final AdaptiveBufferSizer dataBufferSizer;
+    private ByteBuffer dataBuffer; // allocated on read, sized by recent reads
 
     public StreamConnectionCodec() {
-        this.dataBuffer = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+        this.dataBufferSizer = new AdaptiveBufferSizer(DATA_BUFFER_SIZE, 0);
     }
 
     @Override
@@ -74,31 +75,34 @@ public class StreamConnectionCodec implements ConnectionCodec {
             return null;
 
         try {
-            // read all available data
-            final ByteArrayOutputStream bytesStream = new ByteArrayOutputStream();
+            final int maxSize = connection.getOptions().getMaxReadFrameSize();
+            this.setupDataBuffer();
 
+            // read all available data
             int length;
             while(true) {
+                if(!dataBuffer.hasRemaining()) {
+                    // check size
+                    if(dataBuffer.position() > maxSize) {
+                        this.onReadSizeExceeded();
+                        return null;
+                    }
+                    this.expandDataBuffer(maxSize);
+                }
+
                 length = reader.read(dataBuffer);
                 if(length < 1)
                     break;
+            }
 
-                // write buffer to bytesStream
-                dataBuffer.flip();
-                final byte[] chunk = new byte[length];
-                dataBuffer.get(chunk);
-                bytesStream.write(chunk);
-                dataBuffer.clear();
-
-                // check size
-                if(bytesStream.size() > connection.getOptions().getMaxReadFrameSize()) {
-                    // close connection
-                    if(connection.getOptions().isCloseOnFrameReadSizeExceed())
-                        connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
-
-                    this.discardAvailableBytes();
-                    return null;
-                }
+            final int size = dataBuffer.position();
+            if(size > 0)
+                dataBufferSizer.record(size);
+
+            // check size
+            if(size > maxSize) {
+                this.onReadSizeExceeded();
+                return null;
             }
 
             // check remote close
@@ -107,10 +111,12 @@ public class StreamConnectionCodec implements ConnectionCodec {
                 return null;
             }
 
-            if(bytesStream.size() == 0)
+            if(size == 0)
                 return null;
 
-            return bytesStream.toByteArray();
+            final byte[] data = Arrays.copyOf(dataBuffer.array(), size);
+            dataBuffer.clear();
+            return data;
 
         } catch (IOException e) {
             connection.close(CloseReason.INTERNAL_ERROR, e);
@@ -118,6 +124,44 @@ public class StreamConnectionCodec implements ConnectionCodec {
         }
     }
 
+    private void setupDataBuffer() {
+        int targetCapacity = dataBufferSizer.getBufferSize();
+        final int sizeUpperBound = connection.getOptions().getFrameBufferSizeUpperBound();
+        if(sizeUpperBound != 0)
+            targetCapacity = Math.min(targetCapacity, sizeUpperBound);
+
+        if(dataBuffer == null || dataBuffer.capacity() != targetCapacity)
+            dataBuffer = ByteBuffer.allocate(targetCapacity);
+    }
+
+    private void expandDataBuffer(int maxSize) {
+        final int capacity = (int) Math.min((long) dataBuffer.capacity() * 2, (long) maxSize + 1);
+        final ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        dataBuffer.flip();
+        newBuffer.put(dataBuffer);
+        dataBuffer = newBuffer;
+    }
+
+    private void onReadSizeExceeded() throws IOException {
+        // close connection
+        if(connection.getOptions().isCloseOnFrameReadSizeExceed())
+            connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+
+        this.discardAvailableBytes();
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        final ByteBuffer buffer = dataBuffer;
+        return (buffer == null ? 0 : buffer.capacity());
+    }
+
+    @Override
+    public void releaseIdleBuffers() {
+        if(dataBufferSizer.isIdle())
+            dataBuffer = null;
+    }
+
     private void discardAvailableBytes() throws IOException {
         dataBuffer.clear();
         while(true) {
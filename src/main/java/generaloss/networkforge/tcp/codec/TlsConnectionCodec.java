@@ -0,0 +1,466 @@
+package generaloss.networkforge.tcp.codec;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/** TLS over SSLEngine under another codec, which frames the decrypted stream (FRAMED by default).
+ * Client engines are created for the peer host and port, so a shared SSLContext resumes sessions on reconnect,
+ * and verify the server certificate against that host (HTTPS endpoint identification, SNI for host names).
+ * Records are written in wrap order, send priorities are applied by the inner codec only.
+ * Close sends close_notify before the channel is closed. */
+public class TlsConnectionCodec implements ConnectionCodec {
+
+    private static final int BUFFER_SIZE = (32 * 1024); // fits a TLS record (16709 bytes) and its plaintext
+    public static final BufferChunkPool BUFFER_POOL = new BufferChunkPool(BUFFER_SIZE, 256, true);
+    public static final String[] DEFAULT_PROTOCOLS = { "TLSv1.3" };
+    public static final String DEFAULT_ENDPOINT_IDENTIFICATION = "HTTPS";
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final SSLContext context;
+    private final boolean clientMode;
+    private final ConnectionCodec innerCodec;
+    private final Executor taskExecutor;
+    private Consumer<SSLEngine> engineConfigurator;
+
+    private TCPConnection connection;
+    private ByteStreamWriter writer;
+    private ByteStreamReader reader;
+    private volatile SSLEngine engine;
+
+    private ByteBuffer netInBuffer; // write mode, selector thread only
+    private ByteBuffer appInBuffer; // read mode, selector thread only
+    private long lastReadNanos;
+
+    private final Object wrapLock;
+    private ByteBuffer netOutBuffer; // under wrap lock
+    private final Queue<ByteBuffer> pendingWrites; // written before handshake completion, under wrap lock
+    private volatile boolean handshakeComplete;
+    private volatile boolean runningTasks;
+
+    public TlsConnectionCodec(SSLContext context, boolean clientMode, ConnectionCodec innerCodec, Executor taskExecutor) {
+        if(context == null)
+            throw new IllegalArgumentException("Argument 'context' cannot be null");
+        if(innerCodec == null)
+            throw new IllegalArgumentException("Argument 'innerCodec' cannot be null");
+        if(taskExecutor == null)
+            throw new IllegalArgumentException("Argument 'taskExecutor' cannot be null");
+
+        this.context = context;
+        this.clientMode = clientMode;
+        this.innerCodec = innerCodec;
+        this.taskExecutor = taskExecutor;
+        this.wrapLock = new Object();
+        this.pendingWrites = new ArrayDeque<>();
+    }
+
+    public TlsConnectionCodec(SSLContext context, boolean clientMode, ConnectionCodec innerCodec) {
+        this(context, clientMode, innerCodec, ForkJoinPool.commonPool());
+    }
+
+    public TlsConnectionCodec(SSLContext context, boolean clientMode) {
+        this(context, clientMode, new FramedConnectionCodec());
+    }
+
+    public static ConnectionCodecFactory serverFactory(SSLContext context) {
+        return () -> new TlsConnectionCodec(context, false);
+    }
+
+
+    /** Called for every new engine, after the defaults are applied:
+     * TLSv1.3 only, client/server mode, and for clients HTTPS endpoint identification and SNI of the peer host. */
+    public TlsConnectionCodec setEngineConfigurator(Consumer<SSLEngine> engineConfigurator) {
+        this.engineConfigurator = engineConfigurator;
+        return this;
+    }
+
+    public ConnectionCodec getInnerCodec() {
+        return innerCodec;
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+
+    @Override
+    public void setup(TCPConnection connection, ByteStreamWriter writer, ByteStreamReader reader) {
+        this.releaseReadBuffers();
+        synchronized(wrapLock) {
+            this.releaseWriteBuffer();
+            pendingWrites.clear();
+            handshakeComplete = false;
+        }
+        runningTasks = false;
+
+        this.connection = connection;
+        this.writer = writer;
+        this.reader = reader;
+
+        if(connection == null) {
+            engine = null;
+            innerCodec.setup(null, null, null);
+            return;
+        }
+
+        try {
+            engine = this.createEngine(connection);
+            engine.beginHandshake();
+        } catch (SSLException e) {
+            throw new IllegalStateException("Cannot start TLS handshake", e);
+        }
+
+        innerCodec.setup(connection, this::writePlaintext, this::readPlaintext);
+        connection.requestRead(); // handshake runs on the selector thread
+    }
+
+    private SSLEngine createEngine(TCPConnection connection) {
+        final SSLEngine engine;
+        String peerHost = null;
+        final SocketAddress address = connection.getSocket().getRemoteSocketAddress();
+        if(clientMode && address instanceof InetSocketAddress) {
+            // peer host and port identify the session to resume
+            final InetSocketAddress peerAddress = (InetSocketAddress) address;
+            peerHost = peerAddress.getHostString();
+            engine = context.createSSLEngine(peerHost, peerAddress.getPort());
+        } else {
+            engine = context.createSSLEngine();
+        }
+
+        engine.setUseClientMode(clientMode);
+        engine.setEnabledProtocols(DEFAULT_PROTOCOLS);
+        if(clientMode) {
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm(DEFAULT_ENDPOINT_IDENTIFICATION);
+            if(peerHost != null && !isAddressLiteral(peerHost))
+                parameters.setServerNames(Collections.singletonList(new SNIHostName(peerHost)));
+            engine.setSSLParameters(parameters);
+        }
+        if(engineConfigurator != null)
+            engineConfigurator.accept(engine);
+        return engine;
+    }
+
+
+    @Override
+    public boolean write(byte[] data) {
+        return this.write(data, SendPriority.DEFAULT);
+    }
+
+    @Override
+    public boolean write(byte[] data, SendPriority priority) {
+        if(connection == null)
+            return false;
+        return innerCodec.write(data, priority);
+    }
+
+    private void writePlaintext(ByteBuffer buffer) throws IOException {
+        synchronized(wrapLock) {
+            if(!handshakeComplete) {
+                final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                copy.put(buffer).flip();
+                pendingWrites.add(copy);
+                return;
+            }
+            this.wrap(buffer);
+        }
+    }
+
+    /** Under wrap lock.
+     * @return bytes produced */
+    private int wrap(ByteBuffer source) throws IOException {
+        int produced = 0;
+        do {
+            if(netOutBuffer == null)
+                netOutBuffer = acquireBuffer(engine.getSession().getPacketBufferSize());
+
+            final SSLEngineResult result = engine.wrap(source, netOutBuffer);
+            if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                this.flushNetOut();
+                if(netOutBuffer != null && netOutBuffer.position() == 0) // record does not fit pooled buffer
+                    netOutBuffer = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new SSLException("TLS engine is closed");
+
+            this.flushNetOut();
+            if(result.bytesProduced() == 0)
+                break;
+            produced += result.bytesProduced();
+        } while(source.hasRemaining() || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+        return produced;
+    }
+
+    /** Under wrap lock. */
+    private void flushNetOut() throws IOException {
+        netOutBuffer.flip();
+        if(netOutBuffer.hasRemaining())
+            writer.write(netOutBuffer);
+
+        if(netOutBuffer.hasRemaining()) {
+            netOutBuffer = null; // queued by connection, cannot be reused
+        } else {
+            netOutBuffer.clear();
+        }
+    }
+
+
+    @Override
+    public byte[] read() {
+        if(connection == null)
+            return null;
+        return innerCodec.read();
+    }
+
+    /** Selector thread only: feeds the inner codec with decrypted bytes.
+     * Fills the destination from all buffered records, the selector is not woken up for bytes already read from the socket. */
+    private int readPlaintext(ByteBuffer destination) throws IOException {
+        int total = 0;
+        while(destination.hasRemaining()) {
+            final int length = this.readRecord(destination);
+            if(length <= 0)
+                return (total > 0 ? total : length);
+            total += length;
+        }
+        return total;
+    }
+
+    /** Selector thread only. */
+    private int readRecord(ByteBuffer destination) throws IOException {
+        if(appInBuffer != null && appInBuffer.hasRemaining())
+            return this.copyAppData(destination);
+
+        this.processHandshake();
+        if(runningTasks)
+            return 0;
+
+        if(netInBuffer == null) {
+            netInBuffer = acquireBuffer(engine.getSession().getPacketBufferSize());
+            appInBuffer = acquireBuffer(engine.getSession().getApplicationBufferSize());
+            appInBuffer.limit(0);
+        }
+
+        while(true) {
+            // unwrap buffered records
+            if(netInBuffer.position() > 0) {
+                netInBuffer.flip();
+                appInBuffer.clear();
+                final SSLEngineResult result = engine.unwrap(netInBuffer, appInBuffer);
+                netInBuffer.compact();
+                appInBuffer.flip();
+
+                final SSLEngineResult.Status status = result.getStatus();
+                if(status == SSLEngineResult.Status.CLOSED)
+                    return -1;
+                if(status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appInBuffer = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+                    appInBuffer.limit(0);
+                    continue;
+                }
+                if(status == SSLEngineResult.Status.BUFFER_UNDERFLOW && !netInBuffer.hasRemaining()) {
+                    // record is larger than the buffer
+                    final ByteBuffer expanded = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+                    netInBuffer.flip();
+                    expanded.put(netInBuffer);
+                    BUFFER_POOL.release(netInBuffer);
+                    netInBuffer = expanded;
+                }
+
+                if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+                    this.onHandshakeFinished();
+                this.processHandshake();
+
+                if(appInBuffer.hasRemaining())
+                    return this.copyAppData(destination);
+                if(runningTasks)
+                    return 0; // continue when tasks are done
+                if(status == SSLEngineResult.Status.OK && result.bytesConsumed() > 0)
+                    continue; // next buffered record
+            }
+
+            // read socket
+            final int bytesRead = reader.read(netInBuffer);
+            if(bytesRead <= 0)
+                return bytesRead;
+            lastReadNanos = System.nanoTime();
+        }
+    }
+
+    private int copyAppData(ByteBuffer destination) {
+        final int length = Math.min(destination.remaining(), appInBuffer.remaining());
+        final int limit = appInBuffer.limit();
+        appInBuffer.limit(appInBuffer.position() + length);
+        destination.put(appInBuffer);
+        appInBuffer.limit(limit);
+        return length;
+    }
+
+    /** Selector thread only. */
+    private void processHandshake() throws IOException {
+        while(!runningTasks) {
+            switch(engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    this.runDelegatedTasks();
+                    return;
+                case NEED_WRAP:
+                    synchronized(wrapLock) {
+                        if(this.wrap(EMPTY_BUFFER) == 0)
+                            return;
+                    }
+                    break;
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    this.onHandshakeFinished();
+                    return;
+                default: // unwrap needs peer data
+                    return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        final List<Runnable> tasks = new ArrayList<>();
+        Runnable task;
+        while((task = engine.getDelegatedTask()) != null)
+            tasks.add(task);
+
+        final TCPConnection connection = this.connection;
+        final Runnable runTasks = () -> {
+            try {
+                for(Runnable delegatedTask : tasks)
+                    delegatedTask.run();
+            } finally {
+                runningTasks = false;
+                connection.requestRead(); // continue handshake on the selector thread
+            }
+        };
+
+        runningTasks = true;
+        try {
+            taskExecutor.execute(runTasks);
+        } catch (RejectedExecutionException e) {
+            runTasks.run();
+        }
+    }
+
+    @Override
+    public void beforeClose() {
+        final SSLEngine engine = this.engine;
+        if(connection == null || engine == null)
+            return;
+
+        synchronized(wrapLock) {
+            engine.closeOutbound();
+            try {
+                while(!engine.isOutboundDone()) {
+                    if(netOutBuffer == null)
+                        netOutBuffer = acquireBuffer(engine.getSession().getPacketBufferSize());
+
+                    final SSLEngineResult result = engine.wrap(EMPTY_BUFFER, netOutBuffer);
+                    this.flushNetOut();
+                    if(result.bytesProduced() == 0)
+                        break;
+                }
+            } catch (IOException ignored) { } // peer is gone already
+        }
+    }
+
+    private void onHandshakeFinished() throws IOException {
+        synchronized(wrapLock) {
+            if(handshakeComplete)
+                return;
+
+            handshakeComplete = true;
+            while(!pendingWrites.isEmpty())
+                this.wrap(pendingWrites.poll());
+        }
+    }
+
+
+    /** IPv4 or IPv6 address, not allowed in SNI. */
+    private static boolean isAddressLiteral(String host) {
+        if(host.indexOf(':') != -1)
+            return true;
+        for(int i = 0; i < host.length(); i++) {
+            final char c = host.charAt(i);
+            if(c != '.' && (c < '0' || c > '9'))
+                return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer acquireBuffer(int requiredSize) {
+        if(requiredSize > BUFFER_POOL.getChunkSize())
+            return ByteBuffer.allocateDirect(requiredSize);
+        return BUFFER_POOL.acquire();
+    }
+
+    private void releaseReadBuffers() {
+        BUFFER_POOL.release(netInBuffer);
+        BUFFER_POOL.release(appInBuffer);
+        netInBuffer = null;
+        appInBuffer = null;
+    }
+
+    /** Under wrap lock. */
+    private void releaseWriteBuffer() {
+        BUFFER_POOL.release(netOutBuffer);
+        netOutBuffer = null;
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        long capacity = innerCodec.getBufferCapacity();
+        if(netInBuffer != null)
+            capacity += netInBuffer.capacity();
+        if(appInBuffer != null)
+            capacity += appInBuffer.capacity();
+        return (int) Math.min(capacity, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void releaseIdleBuffers() {
+        if(connection == null)
+            return;
+        innerCodec.releaseIdleBuffers();
+
+        final long idleNanos = (AdaptiveBufferSizer.DEFAULT_IDLE_RELEASE_MILLIS * 1_000_000L);
+        if(System.nanoTime() - lastReadNanos < idleNanos || runningTasks)
+            return;
+
+        // keep buffers holding a part of a record
+        if(netInBuffer != null && (netInBuffer.position() != 0 || appInBuffer.hasRemaining()))
+            return;
+
+        this.releaseReadBuffers();
+        synchronized(wrapLock) {
+            this.releaseWriteBuffer();
+        }
+    }
+
+}
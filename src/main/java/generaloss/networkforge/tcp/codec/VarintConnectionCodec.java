@@ -0,0 +1,57 @@
+package generaloss.networkforge.tcp.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Unsigned LEB128 length before each frame: 1 byte for frames up to 127 bytes. */
+public class VarintConnectionCodec extends LengthPrefixedConnectionCodec {
+
+    private static final int MAX_VARINT_SIZE = 5; // 32 bits
+
+    @Override
+    protected int getHeaderSize(ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        final int available = Math.min(buffer.remaining(), MAX_VARINT_SIZE);
+
+        for(int i = 0; i < available; i++)
+            if((buffer.get(start + i) & 0x80) == 0)
+                return (i + 1);
+
+        if(available == MAX_VARINT_SIZE)
+            throw new IOException("Malformed varint frame length");
+        return NEED_MORE_BYTES;
+    }
+
+    @Override
+    protected long getBodySize(ByteBuffer buffer) {
+        final int start = buffer.position();
+        long value = 0L;
+        for(int i = 0; i < MAX_VARINT_SIZE; i++) {
+            final int b = buffer.get(start + i);
+            value |= ((long) (b & 0x7F) << (7 * i));
+            if((b & 0x80) == 0)
+                break;
+        }
+        return value;
+    }
+
+    @Override
+    protected int getEncodedHeaderSize(byte[] data) {
+        int value = data.length;
+        int size = 1;
+        while((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    @Override
+    protected void writeHeader(ByteBuffer buffer, byte[] data) {
+        int value = data.length;
+        while((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+}
@@ -0,0 +1,84 @@
+package generaloss.networkforge.tcp.compression;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Reuses raw (no zlib header) Deflater and Inflater instances, their native memory outlives connections. */
+public class DeflaterPool {
+
+    public static final int DEFAULT_MAX_POOLED = 64;
+    public static final DeflaterPool DEFAULT = new DeflaterPool(DEFAULT_MAX_POOLED);
+
+    private final int maxPooled;
+    private final Queue<Deflater> deflaters;
+    private final Queue<Inflater> inflaters;
+    private final AtomicInteger pooledDeflaters;
+    private final AtomicInteger pooledInflaters;
+
+    public DeflaterPool(int maxPooled) {
+        if(maxPooled < 0)
+            throw new IllegalArgumentException("Argument 'maxPooled' must be >= 0");
+
+        this.maxPooled = maxPooled;
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.inflaters = new ConcurrentLinkedQueue<>();
+        this.pooledDeflaters = new AtomicInteger();
+        this.pooledInflaters = new AtomicInteger();
+    }
+
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    public int getPooledDeflatersCount() {
+        return pooledDeflaters.get();
+    }
+
+    public int getPooledInflatersCount() {
+        return pooledInflaters.get();
+    }
+
+
+    public Deflater acquireDeflater(int level) {
+        final Deflater deflater = deflaters.poll();
+        if(deflater == null)
+            return new Deflater(level, true);
+
+        pooledDeflaters.decrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public void releaseDeflater(Deflater deflater) {
+        if(pooledDeflaters.incrementAndGet() > maxPooled) {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        deflaters.add(deflater);
+    }
+
+    public Inflater acquireInflater() {
+        final Inflater inflater = inflaters.poll();
+        if(inflater == null)
+            return new Inflater(true);
+
+        pooledInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    public void releaseInflater(Inflater inflater) {
+        if(pooledInflaters.incrementAndGet() > maxPooled) {
+            pooledInflaters.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        inflaters.add(inflater);
+    }
+
+}
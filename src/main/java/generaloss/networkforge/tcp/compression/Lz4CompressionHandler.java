@@ -0,0 +1,298 @@
+package generaloss.networkforge.tcp.compression;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Fast per-frame LZ4 compression, optionally against a trained {@link Lz4Dictionary}.
+ * Frames are independent, so priorities and concurrent senders need no ordering.
+ * Compression of a connection is paused for a while when it saves too little.
+ * Peers exchange hello frames on connect, the dictionary is used once the peer has the same one.
+ * Requires a message-preserving codec.
+ * Hello: [short reserved ID][byte type][byte has dictionary][int dictionary ID]
+ * Frame: [byte mode][varint original size][LZ4 block] or [byte mode (0)][data] */
+public class Lz4CompressionHandler extends EventHandler {
+
+    public static final short LZ4_FRAME_ID = (short) 0xFFF8;
+    static final byte FRAME_HELLO = 1;
+    static final int HELLO_SIZE = (Short.BYTES + Byte.BYTES + Byte.BYTES + Integer.BYTES);
+
+    static final byte MODE_RAW = 0;
+    static final byte MODE_LZ4 = 1;
+    static final byte MODE_LZ4_DICTIONARY = 2;
+
+    public static final int DEFAULT_MIN_SIZE_TO_COMPRESS = 16;
+    public static final double DEFAULT_MIN_SAVINGS = 0.1;
+    public static final int SAMPLE_FRAMES = 64; // measured before deciding
+    public static final int PAUSE_FRAMES = 1024; // sent as is after a bad sample
+
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int MAX_RETAINED_BUFFER_SIZE = (64 * 1024);
+
+    private final Lz4Dictionary dictionary;
+    private final AttributeKey<Lz4Session> sessionKey;
+    private final Queue<CompressorSlot> compressors; // senders may be concurrent, compressors are reused
+    private volatile int minSizeToCompress;
+    private volatile double minSavings;
+
+    /** @param dictionary null for none */
+    public Lz4CompressionHandler(Lz4Dictionary dictionary) {
+        this.dictionary = dictionary;
+        this.sessionKey = new AttributeKey<>("lz4 session");
+        this.compressors = new ConcurrentLinkedQueue<>();
+        this.minSizeToCompress = DEFAULT_MIN_SIZE_TO_COMPRESS;
+        this.minSavings = DEFAULT_MIN_SAVINGS;
+    }
+
+    public Lz4CompressionHandler() {
+        this(null);
+    }
+
+
+    public Lz4Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getMinSizeToCompress() {
+        return minSizeToCompress;
+    }
+
+    public Lz4CompressionHandler setMinSizeToCompress(int minSizeToCompress) {
+        if(minSizeToCompress < 0)
+            throw new IllegalArgumentException("Argument 'minSizeToCompress' must be >= 0");
+
+        this.minSizeToCompress = minSizeToCompress;
+        return this;
+    }
+
+    public double getMinSavings() {
+        return minSavings;
+    }
+
+    /** Part of traffic compression must save, otherwise it is paused for {@link #PAUSE_FRAMES} frames. */
+    public Lz4CompressionHandler setMinSavings(double minSavings) {
+        if(minSavings < 0 || minSavings >= 1)
+            throw new IllegalArgumentException("Argument 'minSavings' must be in range [0, 1)");
+
+        this.minSavings = minSavings;
+        return this;
+    }
+
+    public boolean isCompressing(TCPConnection connection) {
+        final Lz4Session session = connection.getAttribute(sessionKey);
+        return (session != null && session.isCompressing());
+    }
+
+    public boolean isDictionaryNegotiated(TCPConnection connection) {
+        final Lz4Session session = connection.getAttribute(sessionKey);
+        return (session != null && session.peerHasDictionary);
+    }
+
+
+    @Override
+    public boolean handleConnect(EventInvocationContext context) {
+        final TCPConnection connection = context.getConnection();
+        connection.setAttribute(sessionKey, new Lz4Session());
+
+        final byte[] hello = ByteBuffer.allocate(HELLO_SIZE)
+            .putShort(LZ4_FRAME_ID)
+            .put(FRAME_HELLO)
+            .put((byte) (dictionary == null ? 0 : 1))
+            .putInt(dictionary == null ? 0 : dictionary.getID())
+            .array();
+        context.getEventPipeline().fireSendFrom(this, connection, hello, SendPriority.HIGH);
+        return true; // frames are compressed without the dictionary until the peer's hello
+    }
+
+    @Override
+    public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
+        context.setAttribute(sessionKey, null);
+        return true;
+    }
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        if(isHelloFrame(data)) {
+            final Lz4Session session = context.getAttribute(sessionKey);
+            if(session != null) {
+                final ByteBuffer hello = ByteBuffer.wrap(data, Short.BYTES + Byte.BYTES, HELLO_SIZE - Short.BYTES - Byte.BYTES);
+                final boolean hasDictionary = (hello.get() == 1);
+                session.peerHasDictionary = (hasDictionary && dictionary != null && hello.getInt() == dictionary.getID());
+            }
+            return false;
+        }
+
+        try {
+            final byte[] frame = this.readFrame(context.getConnection(), data);
+            if(frame != null)
+                context.receive(frame);
+        } catch (IllegalStateException e) {
+            context.error(ErrorSource.RECEIVE_HANDLER, e);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean handleSend(EventInvocationContext context, byte[] data) {
+        final Lz4Session session = context.getAttribute(sessionKey);
+        if(data.length < minSizeToCompress || (session != null && !session.shouldCompress())) {
+            context.send(rawFrame(data));
+            return false;
+        }
+
+        final boolean useDictionary = (session != null && session.peerHasDictionary);
+        final byte[] frame = this.compress(data, useDictionary);
+        if(session != null)
+            session.record(data.length, (frame == null ? data.length : frame.length), minSavings);
+
+        context.send(frame == null ? rawFrame(data) : frame);
+        return false;
+    }
+
+
+    /** @return null if compression does not make the frame smaller */
+    private byte[] compress(byte[] data, boolean useDictionary) {
+        CompressorSlot slot = compressors.poll();
+        if(slot == null)
+            slot = new CompressorSlot();
+        try {
+            final int capacity = (1 + MAX_VARINT_SIZE + Lz4Compressor.maxCompressedLength(data.length));
+            if(slot.buffer.length < capacity)
+                slot.buffer = new byte[capacity];
+
+            final ByteBuffer output = ByteBuffer.wrap(slot.buffer);
+            output.put(useDictionary ? MODE_LZ4_DICTIONARY : MODE_LZ4);
+            writeVarint(data.length, output);
+            slot.compressor.compress(ByteBuffer.wrap(data), output, (useDictionary ? dictionary : null));
+
+            if(output.position() >= 1 + data.length)
+                return null;
+
+            final byte[] frame = new byte[output.position()];
+            System.arraycopy(slot.buffer, 0, frame, 0, frame.length);
+            return frame;
+
+        } finally {
+            if(slot.buffer.length > MAX_RETAINED_BUFFER_SIZE)
+                slot.buffer = new byte[0];
+            compressors.add(slot);
+        }
+    }
+
+    private byte[] readFrame(TCPConnection connection, byte[] data) throws IllegalStateException {
+        if(data.length == 0)
+            throw new IllegalStateException("Empty compressed frame");
+
+        final byte mode = data[0];
+        if(mode == MODE_RAW) {
+            final byte[] frame = new byte[data.length - 1];
+            System.arraycopy(data, 1, frame, 0, frame.length);
+            return frame;
+        }
+        if(mode != MODE_LZ4 && mode != MODE_LZ4_DICTIONARY)
+            throw new IllegalStateException("Invalid compression mode: " + mode);
+        if(mode == MODE_LZ4_DICTIONARY && dictionary == null)
+            throw new IllegalStateException("Frame is compressed with a dictionary, but there is none");
+
+        final ByteBuffer input = ByteBuffer.wrap(data, 1, data.length - 1);
+        final int size = readVarint(input);
+        if(size < 0 || size > connection.getOptions().getMaxReadFrameSize()) {
+            connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+            return null;
+        }
+
+        final byte[] frame = new byte[size];
+        final int decompressedSize = Lz4Compressor.decompress(input, ByteBuffer.wrap(frame), (mode == MODE_LZ4_DICTIONARY ? dictionary : null));
+        if(decompressedSize != size)
+            throw new IllegalStateException("Decompression error: size mismatch");
+        return frame;
+    }
+
+    private static byte[] rawFrame(byte[] data) {
+        final byte[] frame = new byte[1 + data.length];
+        frame[0] = MODE_RAW;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        return frame;
+    }
+
+    private static void writeVarint(int value, ByteBuffer output) {
+        while((value & ~0x7F) != 0) {
+            output.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer input) throws IllegalStateException {
+        int value = 0;
+        for(int shift = 0; shift < Integer.SIZE; shift += 7) {
+            if(!input.hasRemaining())
+                break;
+            final byte b = input.get();
+            if(shift == 28 && (b & 0xF0) != 0)
+                break; // 5th byte carries only the top 4 bits
+            value |= ((b & 0x7F) << shift);
+            if(b >= 0)
+                return value;
+        }
+        throw new IllegalStateException("Invalid frame size");
+    }
+
+    private static boolean isHelloFrame(byte[] data) {
+        if(data.length != HELLO_SIZE)
+            return false;
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        return (buffer.getShort() == LZ4_FRAME_ID && buffer.get() == FRAME_HELLO);
+    }
+
+
+    private static class CompressorSlot {
+        final Lz4Compressor compressor = new Lz4Compressor();
+        byte[] buffer = new byte[0];
+    }
+
+    private static class Lz4Session {
+        volatile boolean peerHasDictionary;
+        private int sampleFrames; // guarded by session
+        private long sampleRawSize;
+        private long sampleSentSize;
+        private int pausedFrames;
+
+        synchronized boolean isCompressing() {
+            return (pausedFrames == 0);
+        }
+
+        /** Counts a frame of the pause. */
+        synchronized boolean shouldCompress() {
+            if(pausedFrames == 0)
+                return true;
+            pausedFrames--;
+            return false;
+        }
+
+        synchronized void record(int rawSize, int sentSize, double minSavings) {
+            sampleFrames++;
+            sampleRawSize += rawSize;
+            sampleSentSize += sentSize;
+            if(sampleFrames < SAMPLE_FRAMES)
+                return;
+
+            final double savings = (1D - (double) sampleSentSize / sampleRawSize);
+            if(savings < minSavings)
+                pausedFrames = PAUSE_FRAMES;
+
+            sampleFrames = 0;
+            sampleRawSize = 0;
+            sampleSentSize = 0;
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package generaloss.networkforge.tcp.compression;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/** LZ4 block format, with an optional dictionary preceding the data.
+ * Not thread-safe: the hash table is kept between calls (entries of previous calls are told apart by position base). */
+public class Lz4Compressor {
+
+    static final int MIN_MATCH = 4;
+    static final int MAX_DISTANCE = 65535;
+    static final int LAST_LITERALS = 5; // block ends with literals
+    static final int MATCH_FIND_LIMIT = 12; // no match starts closer to the end
+    static final int HASH_LOG = 12;
+    static final int HASH_SIZE = (1 << HASH_LOG);
+    private static final int SKIP_TRIGGER = 6; // search step grows on incompressible data
+    private static final int RUN_MASK = 15;
+
+    private final int[] table; // base + position
+    private int base;
+
+    public Lz4Compressor() {
+        this.table = new int[HASH_SIZE];
+        this.base = 1; // zero entries are invalid
+    }
+
+    public static int maxCompressedLength(int length) {
+        return (length + length / 255 + 16);
+    }
+
+    static int hash(int sequence) {
+        return ((sequence * -1640531535) >>> (Integer.SIZE - HASH_LOG));
+    }
+
+
+    /** Compresses src remaining bytes into dst, advances both positions.
+     * @param dictionary null for none, must be the same for decompression
+     * @return compressed length */
+    public int compress(ByteBuffer src, ByteBuffer dst, Lz4Dictionary dictionary) {
+        final int length = src.remaining();
+        if(dst.remaining() < maxCompressedLength(length))
+            throw new IllegalArgumentException("Argument 'dst' has not enough space");
+
+        if(base > Integer.MAX_VALUE - length - 1) {
+            Arrays.fill(table, 0);
+            base = 1;
+        }
+
+        final ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int start = in.position();
+        final int end = (start + length);
+        final int dstStart = dst.position();
+        final int dictionarySize = (dictionary == null ? 0 : dictionary.size());
+
+        int anchor = start;
+        if(length > MATCH_FIND_LIMIT) {
+            final int searchLimit = (end - MATCH_FIND_LIMIT);
+            final int matchLimit = (end - LAST_LITERALS);
+
+            int i = start;
+            while(i <= searchLimit) {
+                final int sequence = in.getInt(i);
+                final int hash = hash(sequence);
+                final int candidate = table[hash];
+                table[hash] = (base + i - start);
+
+                int distance = 0;
+                int matchLength = 0;
+                if(candidate >= base) {
+                    final int reference = (start + candidate - base);
+                    distance = (i - reference);
+                    if(distance <= MAX_DISTANCE && in.getInt(reference) == sequence)
+                        matchLength = MIN_MATCH + countMatch(in, reference + MIN_MATCH, end, in, i + MIN_MATCH, matchLimit);
+                }
+                if(matchLength == 0 && dictionary != null) {
+                    final int reference = dictionary.find(hash);
+                    if(reference != -1) {
+                        distance = (i - start + dictionarySize - reference);
+                        if(distance <= MAX_DISTANCE && dictionary.getInt(reference) == sequence)
+                            matchLength = MIN_MATCH + countMatch(dictionary.buffer(), reference + MIN_MATCH, dictionarySize, in, i + MIN_MATCH, matchLimit);
+                    }
+                }
+
+                if(matchLength == 0) {
+                    i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+
+                writeSequence(in, anchor, i - anchor, distance, matchLength, dst);
+                i += matchLength;
+                anchor = i;
+
+                // position inside the match helps the next search
+                if(i - 2 <= searchLimit)
+                    table[hash(in.getInt(i - 2))] = (base + i - 2 - start);
+            }
+        }
+        writeLastLiterals(in, anchor, end - anchor, dst);
+
+        base += (length + 1);
+        src.position(end);
+        return (dst.position() - dstStart);
+    }
+
+    /** Decompresses src remaining bytes (one block) into dst, advances both positions.
+     * @param dictionary the one used for compression, or null
+     * @return decompressed length */
+    public static int decompress(ByteBuffer src, ByteBuffer dst, Lz4Dictionary dictionary) throws IllegalStateException {
+        final int dstStart = dst.position();
+        final int dictionarySize = (dictionary == null ? 0 : dictionary.size());
+        try {
+            while(true) {
+                final int token = (src.get() & 0xFF);
+
+                int literalLength = (token >>> 4);
+                if(literalLength == RUN_MASK)
+                    literalLength += readLength(src);
+                copy(src, src.position(), literalLength, dst);
+                src.position(src.position() + literalLength);
+
+                if(!src.hasRemaining())
+                    break; // last sequence has no match
+
+                final int distance = ((src.get() & 0xFF) | ((src.get() & 0xFF) << 8));
+                int matchLength = (token & RUN_MASK);
+                if(matchLength == RUN_MASK)
+                    matchLength += readLength(src);
+                matchLength += MIN_MATCH;
+
+                final int produced = (dst.position() - dstStart);
+                if(distance == 0 || distance > produced + dictionarySize)
+                    throw new IllegalStateException("Decompression error: invalid match distance");
+                if(dst.remaining() < matchLength)
+                    throw new IllegalStateException("Decompression error: output is too small");
+
+                if(distance <= produced && distance >= matchLength) {
+                    copy(dst, dst.position() - distance, matchLength, dst); // no overlap
+                    continue;
+                }
+                for(int k = 0; k < matchLength; k++) {
+                    final int from = (dst.position() - distance);
+                    dst.put(from >= dstStart ? dst.get(from) : dictionary.get(dictionarySize - (dstStart - from)));
+                }
+            }
+        } catch (BufferUnderflowException | BufferOverflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Decompression error: malformed block", e);
+        }
+        return (dst.position() - dstStart);
+    }
+
+
+    private static int countMatch(ByteBuffer reference, int referenceIndex, int referenceLimit, ByteBuffer in, int index, int limit) {
+        final int start = index;
+        while(index + Long.BYTES <= limit && referenceIndex + Long.BYTES <= referenceLimit) {
+            final long difference = (reference.getLong(referenceIndex) ^ in.getLong(index));
+            if(difference != 0)
+                return (index - start + Long.numberOfTrailingZeros(difference) / Byte.SIZE); // little endian
+            index += Long.BYTES;
+            referenceIndex += Long.BYTES;
+        }
+        while(index < limit && referenceIndex < referenceLimit && reference.get(referenceIndex) == in.get(index)) {
+            index++;
+            referenceIndex++;
+        }
+        return (index - start);
+    }
+
+    private static void writeSequence(ByteBuffer in, int literalStart, int literalLength, int distance, int matchLength, ByteBuffer dst) {
+        final int tokenPosition = dst.position();
+        dst.put((byte) 0);
+
+        int token;
+        if(literalLength >= RUN_MASK) {
+            token = (RUN_MASK << 4);
+            writeLength(literalLength - RUN_MASK, dst);
+        }else{
+            token = (literalLength << 4);
+        }
+        copy(in, literalStart, literalLength, dst);
+
+        dst.put((byte) distance);
+        dst.put((byte) (distance >>> 8));
+
+        final int length = (matchLength - MIN_MATCH);
+        if(length >= RUN_MASK) {
+            token |= RUN_MASK;
+            writeLength(length - RUN_MASK, dst);
+        }else{
+            token |= length;
+        }
+        dst.put(tokenPosition, (byte) token);
+    }
+
+    private static void writeLastLiterals(ByteBuffer in, int literalStart, int literalLength, ByteBuffer dst) {
+        if(literalLength >= RUN_MASK) {
+            dst.put((byte) (RUN_MASK << 4));
+            writeLength(literalLength - RUN_MASK, dst);
+        }else{
+            dst.put((byte) (literalLength << 4));
+        }
+        copy(in, literalStart, literalLength, dst);
+    }
+
+    private static void writeLength(int length, ByteBuffer dst) {
+        while(length >= 255) {
+            dst.put((byte) 255);
+            length -= 255;
+        }
+        dst.put((byte) length);
+    }
+
+    private static int readLength(ByteBuffer src) {
+        int length = 0;
+        int value;
+        do {
+            value = (src.get() & 0xFF);
+            length += value;
+            if(length < 0)
+                throw new IllegalStateException("Decompression error: invalid length");
+        } while(value == 255);
+        return length;
+    }
+
+    /** Absolute read from src, relative write to dst. */
+    private static void copy(ByteBuffer src, int index, int length, ByteBuffer dst) {
+        if(length > dst.remaining() || index + length > src.limit())
+            throw new BufferOverflowException();
+
+        if(src.hasArray() && dst.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + index, dst.array(), dst.arrayOffset() + dst.position(), length);
+            dst.position(dst.position() + length);
+            return;
+        }
+        for(int i = 0; i < length; i++)
+            dst.put(src.get(index + i));
+    }
+
+}
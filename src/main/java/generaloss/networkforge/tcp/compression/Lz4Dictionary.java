@@ -0,0 +1,177 @@
+package generaloss.networkforge.tcp.compression;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/** Content that frames are compressed against, so that even small frames find matches.
+ * Immutable, may be shared between connections and threads. */
+public class Lz4Dictionary {
+
+    public static final int MAX_SIZE = Lz4Compressor.MAX_DISTANCE;
+    public static final int DEFAULT_SIZE = (16 * 1024);
+
+    private static final int KMER_SIZE = 6;
+    private static final int SEGMENT_SIZE = 48;
+
+    private final byte[] content;
+    private final ByteBuffer buffer;
+    private final int[] table; // position + 1 by hash, latest position wins
+    private final int id;
+
+    /** @param content the most valuable data goes last (closest to the compressed data) */
+    public Lz4Dictionary(byte[] content) {
+        if(content == null)
+            throw new IllegalArgumentException("Argument 'content' cannot be null");
+
+        this.content = (content.length > MAX_SIZE ? Arrays.copyOfRange(content, content.length - MAX_SIZE, content.length) : content.clone());
+        this.buffer = ByteBuffer.wrap(this.content).order(ByteOrder.LITTLE_ENDIAN);
+
+        this.table = new int[Lz4Compressor.HASH_SIZE];
+        for(int i = 0; i + Lz4Compressor.MIN_MATCH <= this.content.length; i++)
+            table[Lz4Compressor.hash(buffer.getInt(i))] = (i + 1);
+
+        final CRC32 crc = new CRC32();
+        crc.update(this.content);
+        this.id = (int) crc.getValue();
+    }
+
+    /** Checksum of the content: peers compare it before using the dictionary. */
+    public int getID() {
+        return id;
+    }
+
+    public int size() {
+        return content.length;
+    }
+
+    public byte[] getContent() {
+        return content.clone();
+    }
+
+
+    /** @return position of the latest 4 bytes with this hash, or -1 */
+    int find(int hash) {
+        return (table[hash] - 1);
+    }
+
+    int getInt(int position) {
+        return buffer.getInt(position);
+    }
+
+    byte get(int position) {
+        return content[position];
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+
+    /** Picks the segments of samples whose byte sequences occur in most samples (simplified COVER algorithm).
+     * @param samples frames captured from typical traffic
+     * @param maxSize dictionary size limit, at most {@link #MAX_SIZE} */
+    public static Lz4Dictionary train(Collection<byte[]> samples, int maxSize) {
+        if(samples == null)
+            throw new IllegalArgumentException("Argument 'samples' cannot be null");
+        if(maxSize < 1 || maxSize > MAX_SIZE)
+            throw new IllegalArgumentException("Argument 'maxSize' must be in range [1, " + MAX_SIZE + "]");
+
+        // number of samples containing each k-mer
+        final Map<Long, Integer> frequencies = new HashMap<>();
+        for(byte[] sample : samples) {
+            final Set<Long> sampleKmers = new HashSet<>();
+            for(int i = 0; i + KMER_SIZE <= sample.length; i++)
+                if(sampleKmers.add(kmer(sample, i)))
+                    frequencies.merge(kmer(sample, i), 1, Integer::sum);
+        }
+
+        // half-overlapping segments, best first
+        final PriorityQueue<Segment> queue = new PriorityQueue<>((a, b) -> Long.compare(b.score, a.score));
+        for(byte[] sample : samples) {
+            for(int offset = 0; offset + KMER_SIZE <= sample.length; offset += SEGMENT_SIZE / 2) {
+                final Segment segment = new Segment(sample, offset, Math.min(sample.length, offset + SEGMENT_SIZE));
+                segment.score = segment.score(frequencies);
+                if(segment.score > 0)
+                    queue.add(segment);
+            }
+        }
+
+        // lazy greedy: k-mers of a selected segment stop counting for the others
+        final List<Segment> selected = new ArrayList<>();
+        int size = 0;
+        while(size < maxSize && !queue.isEmpty()) {
+            final Segment segment = queue.poll();
+            final long score = segment.score(frequencies);
+            if(score == 0)
+                continue;
+            if(!queue.isEmpty() && score < queue.peek().score) {
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+
+            selected.add(segment);
+            size += (segment.end - segment.start);
+            for(int i = segment.start; i + KMER_SIZE <= segment.end; i++)
+                frequencies.put(kmer(segment.sample, i), 0);
+        }
+
+        // best segments last
+        final byte[] content = new byte[Math.min(size, maxSize)];
+        int position = content.length;
+        for(Segment segment : selected) {
+            final int length = Math.min(position, segment.end - segment.start);
+            position -= length;
+            System.arraycopy(segment.sample, segment.end - length, content, position, length);
+            if(position == 0)
+                break;
+        }
+        return new Lz4Dictionary(content);
+    }
+
+    public static Lz4Dictionary train(Collection<byte[]> samples) {
+        return train(samples, DEFAULT_SIZE);
+    }
+
+    private static long kmer(byte[] data, int offset) {
+        long value = 0;
+        for(int i = 0; i < KMER_SIZE; i++)
+            value = ((value << Byte.SIZE) | (data[offset + i] & 0xFF));
+        return value;
+    }
+
+
+    private static class Segment {
+        final byte[] sample;
+        final int start;
+        final int end;
+        long score;
+
+        Segment(byte[] sample, int start, int end) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+        }
+
+        long score(Map<Long, Integer> frequencies) {
+            long score = 0;
+            for(int i = start; i + KMER_SIZE <= end; i++) {
+                final int frequency = frequencies.getOrDefault(kmer(sample, i), 0);
+                if(frequency > 1)
+                    score += frequency;
+            }
+            return score;
+        }
+    }
+
+}
@@ -0,0 +1,447 @@
+package generaloss.networkforge.tcp.compression;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.EventPipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Deflate with history shared between frames: each connection keeps one compression stream per direction,
+ * flushed with SYNC_FLUSH after every frame. Send priorities reorder frames, so each priority has its own stream.
+ * Peers exchange hello frames on connect, connect event is delayed until then and frames sent meanwhile are buffered.
+ * Frames go uncompressed if the first frame of the peer is not a hello, or if the peer sends nothing for a while.
+ * Requires a message-preserving codec.
+ * Hello: [short reserved ID][byte type][byte version]
+ * Frame: [byte stream (0 - not compressed, 1 + priority)][data] */
+public class StreamingDeflateHandler extends EventHandler {
+
+    public static final short DEFLATE_FRAME_ID = (short) 0xFFF9;
+    static final byte FRAME_HELLO = 1;
+    static final byte PROTOCOL_VERSION = 1;
+    static final int HELLO_SIZE = (Short.BYTES + Byte.BYTES + Byte.BYTES);
+
+    static final byte STREAM_NONE = 0;
+    private static final byte[] SYNC_FLUSH_TRAILER = { 0, 0, (byte) 0xFF, (byte) 0xFF }; // stripped on send
+
+    public static final int DEFAULT_MIN_SIZE_TO_COMPRESS = 32;
+    public static final long DEFAULT_HELLO_TIMEOUT_MILLIS = 5000L;
+    public static final int DEFAULT_MAX_PENDING_SIZE = (1024 * 1024);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = (64 * 1024);
+    private static final int STREAMS = SendPriority.values().length;
+
+    private static final int MODE_NEGOTIATING = 0;
+    private static final int MODE_COMPRESSED = 1;
+    private static final int MODE_RAW = 2; // peer has other protocol version or no handler
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, StreamingDeflateHandler.class.getSimpleName() + "-timer-thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int level;
+    private final DeflaterPool pool;
+    private final AttributeKey<DeflateSession> sessionKey;
+    private volatile int minSizeToCompress;
+    private volatile long helloTimeoutMillis;
+    private volatile int maxPendingSize;
+
+    public StreamingDeflateHandler(int level, DeflaterPool pool) {
+        if(pool == null)
+            throw new IllegalArgumentException("Argument 'pool' cannot be null");
+
+        this.level = level;
+        this.pool = pool;
+        this.sessionKey = new AttributeKey<>("deflate session");
+        this.minSizeToCompress = DEFAULT_MIN_SIZE_TO_COMPRESS;
+        this.helloTimeoutMillis = DEFAULT_HELLO_TIMEOUT_MILLIS;
+        this.maxPendingSize = DEFAULT_MAX_PENDING_SIZE;
+    }
+
+    public StreamingDeflateHandler(int level) {
+        this(level, DeflaterPool.DEFAULT);
+    }
+
+    public StreamingDeflateHandler() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+
+    public int getLevel() {
+        return level;
+    }
+
+    public DeflaterPool getPool() {
+        return pool;
+    }
+
+    public int getMinSizeToCompress() {
+        return minSizeToCompress;
+    }
+
+    /** Smaller frames are sent as is, without touching the compression stream. */
+    public StreamingDeflateHandler setMinSizeToCompress(int minSizeToCompress) {
+        if(minSizeToCompress < 0)
+            throw new IllegalArgumentException("Argument 'minSizeToCompress' must be >= 0");
+
+        this.minSizeToCompress = minSizeToCompress;
+        return this;
+    }
+
+    public long getHelloTimeoutMillis() {
+        return helloTimeoutMillis;
+    }
+
+    /** Frames go uncompressed if the peer sends nothing for this time after connect.
+     * @param helloTimeoutMillis 0 - wait for the first frame of the peer */
+    public StreamingDeflateHandler setHelloTimeoutMillis(long helloTimeoutMillis) {
+        if(helloTimeoutMillis < 0L)
+            throw new IllegalArgumentException("Argument 'helloTimeoutMillis' must be >= 0");
+
+        this.helloTimeoutMillis = helloTimeoutMillis;
+        return this;
+    }
+
+    public int getMaxPendingSize() {
+        return maxPendingSize;
+    }
+
+    /** Bytes buffered before the peer's hello, further sends fail with an error. */
+    public StreamingDeflateHandler setMaxPendingSize(int maxPendingSize) {
+        if(maxPendingSize < 0)
+            throw new IllegalArgumentException("Argument 'maxPendingSize' must be >= 0");
+
+        this.maxPendingSize = maxPendingSize;
+        return this;
+    }
+
+    public boolean isNegotiated(TCPConnection connection) {
+        final DeflateSession session = connection.getAttribute(sessionKey);
+        return (session != null && session.mode == MODE_COMPRESSED);
+    }
+
+
+    @Override
+    public boolean handleConnect(EventInvocationContext context) {
+        final TCPConnection connection = context.getConnection();
+        final DeflateSession session = new DeflateSession(connection, context.getEventPipeline());
+        connection.setAttribute(sessionKey, session);
+
+        final byte[] hello = ByteBuffer.allocate(HELLO_SIZE)
+            .putShort(DEFLATE_FRAME_ID)
+            .put(FRAME_HELLO)
+            .put(PROTOCOL_VERSION)
+            .array();
+        session.pipeline.fireSendFrom(this, connection, hello, SendPriority.HIGH); // ahead of frames sent later
+
+        final long timeoutMillis = helloTimeoutMillis;
+        if(timeoutMillis > 0L) {
+            session.helloTimeout = TIMER.schedule(
+                () -> connection.executeOnSelector(() -> this.onHelloTimeout(session)),
+                timeoutMillis, TimeUnit.MILLISECONDS
+            );
+        }
+        return false; // fired after the peer's hello
+    }
+
+    @Override
+    public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
+        final DeflateSession session = context.getConnection().getAttributes().remove(sessionKey);
+        if(session != null) {
+            session.cancelHelloTimeout();
+            session.release(pool);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        final DeflateSession session = context.getAttribute(sessionKey);
+        if(session == null)
+            return true;
+
+        switch(session.mode) {
+            case MODE_NEGOTIATING:
+                // a peer with this handler sends its hello first
+                if(isHelloFrame(data)) {
+                    this.negotiate(session, (data[HELLO_SIZE - 1] == PROTOCOL_VERSION));
+                    return false;
+                }
+                this.negotiate(session, false);
+                return true; // after the connect event
+            case MODE_COMPRESSED:
+                final byte[] frame = this.readFrame(session, data);
+                if(frame != null)
+                    context.receive(frame);
+                return false;
+            default:
+                if(isHelloFrame(data) && data[HELLO_SIZE - 1] == PROTOCOL_VERSION) {
+                    this.fail(session, new IllegalStateException("Peer's hello arrived after the hello timeout"));
+                    return false;
+                }
+                return true;
+        }
+    }
+
+    @Override
+    public boolean handleSend(EventInvocationContext context, byte[] data) {
+        final DeflateSession session = context.getAttribute(sessionKey);
+        if(session == null || session.mode == MODE_RAW)
+            return true;
+
+        if(session.mode == MODE_NEGOTIATING) {
+            boolean overflow = false;
+            synchronized(session) {
+                if(session.mode == MODE_NEGOTIATING) {
+                    if(session.pendingSize + data.length <= maxPendingSize) {
+                        session.pendingSends.add(new PendingSend(data, context.getSendPriority()));
+                        session.pendingSize += data.length;
+                        context.acceptSend();
+                        return false;
+                    }
+                    overflow = true;
+                }
+            }
+            if(overflow) {
+                context.error(ErrorSource.SEND_HANDLER, new IllegalStateException("Too much data is sent before the peer's hello"));
+                return false;
+            }
+            if(session.mode == MODE_RAW)
+                return true;
+        }
+
+        if(this.writeFrame(session, data, context.getSendPriority()))
+            context.acceptSend();
+        return false;
+    }
+
+
+    /** Selector thread only. */
+    private void onHelloTimeout(DeflateSession session) {
+        if(session.mode == MODE_NEGOTIATING && !session.released)
+            this.negotiate(session, false);
+    }
+
+    /** Selector thread only.
+     * @param compatible false - frames go uncompressed */
+    private void negotiate(DeflateSession session, boolean compatible) {
+        session.cancelHelloTimeout();
+        synchronized(session) {
+            for(PendingSend send : session.pendingSends) {
+                if(compatible) {
+                    this.writeFrame(session, send.data, send.priority);
+                }else{
+                    session.pipeline.fireSendFrom(this, session.connection, send.data, send.priority);
+                }
+            }
+            session.pendingSends.clear();
+            session.pendingSize = 0L;
+            session.mode = (compatible ? MODE_COMPRESSED : MODE_RAW);
+        }
+
+        session.pipeline.fireConnectFrom(this, session.connection);
+    }
+
+    /** @return true if the frame was sent */
+    private boolean writeFrame(DeflateSession session, byte[] data, SendPriority priority) {
+        final TCPConnection connection = session.connection;
+
+        if(data.length < minSizeToCompress) {
+            final byte[] frame = new byte[1 + data.length];
+            frame[0] = STREAM_NONE;
+            System.arraycopy(data, 0, frame, 1, data.length);
+            return session.pipeline.fireSendFrom(this, connection, frame, priority);
+        }
+
+        final DeflateStream stream = session.deflateStreams[priority.ordinal()];
+        synchronized(stream) {
+            if(session.released)
+                return false;
+            if(stream.deflater == null)
+                stream.deflater = pool.acquireDeflater(level);
+
+            final Deflater deflater = stream.deflater;
+            deflater.setInput(data);
+
+            byte[] buffer = stream.buffer;
+            buffer[0] = (byte) (1 + priority.ordinal());
+            int size = 1;
+            while(true) {
+                final int space = (buffer.length - size);
+                size += deflater.deflate(buffer, size, space, Deflater.SYNC_FLUSH);
+                if(size < buffer.length)
+                    break; // flushed completely
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            final byte[] frame = Arrays.copyOf(buffer, size - SYNC_FLUSH_TRAILER.length);
+            stream.buffer = (buffer.length > MAX_RETAINED_BUFFER_SIZE ? new byte[INITIAL_BUFFER_SIZE] : buffer);
+
+            // sent under the lock: frames of a stream must reach the socket in compression order
+            return session.pipeline.fireSendFrom(this, connection, frame, priority);
+        }
+    }
+
+    /** @return null if the frame is invalid, the connection is closed then */
+    private byte[] readFrame(DeflateSession session, byte[] data) {
+        final TCPConnection connection = session.connection;
+        if(data.length == 0) {
+            this.fail(session, new IllegalStateException("Empty compressed frame"));
+            return null;
+        }
+
+        final int streamIndex = (data[0] - 1);
+        if(streamIndex == -1)
+            return Arrays.copyOfRange(data, 1, data.length);
+        if(streamIndex < 0 || streamIndex >= STREAMS) {
+            this.fail(session, new IllegalStateException("Invalid compression stream: " + streamIndex));
+            return null;
+        }
+
+        final InflateStream stream = session.inflateStreams[streamIndex];
+        synchronized(stream) {
+            if(session.released)
+                return null;
+            if(stream.inflater == null)
+                stream.inflater = pool.acquireInflater();
+
+            final int maxSize = connection.getOptions().getMaxReadFrameSize();
+            try {
+                final Inflater inflater = stream.inflater;
+                inflater.setInput(data, 1, data.length - 1);
+                int size = inflate(stream, 0, maxSize);
+                inflater.setInput(SYNC_FLUSH_TRAILER);
+                size = inflate(stream, size, maxSize);
+
+                if(size > maxSize) {
+                    connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+                    return null;
+                }
+
+                final byte[] frame = Arrays.copyOf(stream.buffer, size);
+                if(stream.buffer.length > MAX_RETAINED_BUFFER_SIZE)
+                    stream.buffer = new byte[INITIAL_BUFFER_SIZE];
+                return frame;
+
+            } catch (DataFormatException e) {
+                this.fail(session, e);
+                return null;
+            }
+        }
+    }
+
+    /** @return total inflated size, more than maxSize if the limit is exceeded */
+    private static int inflate(InflateStream stream, int size, int maxSize) throws DataFormatException {
+        final Inflater inflater = stream.inflater;
+        while(size <= maxSize) {
+            if(size == stream.buffer.length)
+                stream.buffer = Arrays.copyOf(stream.buffer, stream.buffer.length * 2);
+
+            final int space = (stream.buffer.length - size);
+            final int count = inflater.inflate(stream.buffer, size, space);
+            size += count;
+            if(count < space && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                break;
+        }
+        return size;
+    }
+
+    private void fail(DeflateSession session, Exception e) {
+        session.pipeline.fireError(session.connection, ErrorSource.RECEIVE_HANDLER, e);
+        session.connection.close(CloseReason.INTERNAL_ERROR, e); // stream state is lost
+    }
+
+    private static boolean isHelloFrame(byte[] data) {
+        if(data.length != HELLO_SIZE)
+            return false;
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        return (buffer.getShort() == DEFLATE_FRAME_ID && buffer.get() == FRAME_HELLO);
+    }
+
+
+    private static class PendingSend {
+        final byte[] data;
+        final SendPriority priority;
+
+        PendingSend(byte[] data, SendPriority priority) {
+            this.data = data;
+            this.priority = priority;
+        }
+    }
+
+    private static class DeflateStream { // guarded by itself
+        Deflater deflater; // acquired on first use
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    private static class InflateStream { // guarded by itself
+        Inflater inflater; // acquired on first use
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    private static class DeflateSession {
+        final TCPConnection connection;
+        final EventPipeline pipeline;
+        final DeflateStream[] deflateStreams;
+        final InflateStream[] inflateStreams;
+        final List<PendingSend> pendingSends; // guarded by session
+        long pendingSize; // guarded by session
+        volatile ScheduledFuture<?> helloTimeout;
+        volatile int mode;
+        volatile boolean released;
+
+        DeflateSession(TCPConnection connection, EventPipeline pipeline) {
+            this.connection = connection;
+            this.pipeline = pipeline;
+            this.deflateStreams = new DeflateStream[STREAMS];
+            this.inflateStreams = new InflateStream[STREAMS];
+            for(int i = 0; i < STREAMS; i++) {
+                deflateStreams[i] = new DeflateStream();
+                inflateStreams[i] = new InflateStream();
+            }
+            this.pendingSends = new ArrayList<>();
+            this.mode = MODE_NEGOTIATING;
+        }
+
+        void cancelHelloTimeout() {
+            final ScheduledFuture<?> timeout = helloTimeout;
+            if(timeout != null)
+                timeout.cancel(false);
+        }
+
+        void release(DeflaterPool pool) {
+            released = true;
+            for(DeflateStream stream : deflateStreams) {
+                synchronized(stream) {
+                    if(stream.deflater != null)
+                        pool.releaseDeflater(stream.deflater);
+                    stream.deflater = null;
+                }
+            }
+            for(InflateStream stream : inflateStreams) {
+                synchronized(stream) {
+                    if(stream.inflater != null)
+                        pool.releaseInflater(stream.inflater);
+                    stream.inflater = null;
+                }
+            }
+        }
+    }
+
+}
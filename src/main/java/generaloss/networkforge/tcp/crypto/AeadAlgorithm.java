@@ -0,0 +1,60 @@
+package generaloss.networkforge.tcp.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+public enum AeadAlgorithm {
+
+    AES_128_GCM       ("AES/GCM/NoPadding",  "AES",      16),
+    AES_256_GCM       ("AES/GCM/NoPadding",  "AES",      32),
+    CHACHA20_POLY1305 ("ChaCha20-Poly1305",  "ChaCha20", 32);
+
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+
+    private final String transformation;
+    private final String keyAlgorithm;
+    private final int keySize;
+
+    AeadAlgorithm(String transformation, String keyAlgorithm, int keySize) {
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keySize = keySize;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    public SecretKey createKey(byte[] key) {
+        if(key == null)
+            throw new IllegalArgumentException("Argument 'key' cannot be null");
+        if(key.length != keySize)
+            throw new IllegalArgumentException("Argument 'key' must be " + keySize + " bytes long");
+        return new SecretKeySpec(key, keyAlgorithm);
+    }
+
+    protected Cipher createCipher() {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Algorithm " + transformation + " is not available", e);
+        }
+    }
+
+    protected AlgorithmParameterSpec createParameterSpec(byte[] nonce) {
+        if(this == CHACHA20_POLY1305)
+            return new IvParameterSpec(nonce);
+        return new GCMParameterSpec(TAG_SIZE * Byte.SIZE, nonce);
+    }
+
+}
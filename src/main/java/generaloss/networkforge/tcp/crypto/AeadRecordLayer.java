@@ -0,0 +1,213 @@
+package generaloss.networkforge.tcp.crypto;
+
+import generaloss.networkforge.tcp.SendPriority;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Authenticated encryption of frames (AES-GCM or ChaCha20-Poly1305).
+ * Record: [8 bytes sequence number][ciphertext][16 bytes tag], nonce = IV xor sequence number.
+ * Each send priority has its own sequence, the receiver accepts a record once within a sliding window,
+ * since priorities and concurrent senders may reorder frames. */
+public class AeadRecordLayer {
+
+    public static final int SEQUENCE_SIZE = Long.BYTES;
+    public static final int OVERHEAD = (SEQUENCE_SIZE + AeadAlgorithm.TAG_SIZE);
+    public static final int REPLAY_WINDOW_SIZE = 1024;
+
+    private static final int CHANNEL_SHIFT = 56; // high byte of sequence number
+    private static final long COUNTER_MASK = ((1L << CHANNEL_SHIFT) - 1);
+    private static final int CHANNELS = SendPriority.values().length;
+
+    private final AeadAlgorithm algorithm;
+
+    private final SecretKey encryptKey;
+    private final byte[] encryptIV;
+    private final AtomicLong[] encryptCounters; // by priority
+    private final Queue<Cipher> encryptCiphers; // senders may be concurrent, ciphers are reused
+
+    private final SecretKey decryptKey;
+    private final byte[] decryptIV;
+    private final ReplayWindow[] replayWindows; // by priority
+    private final Cipher decryptCipher; // used only by the reading thread
+    private final byte[] decryptNonce;
+    private final byte[] decryptSequence;
+
+    public AeadRecordLayer(AeadAlgorithm algorithm, SecretKey encryptKey, byte[] encryptIV, SecretKey decryptKey, byte[] decryptIV) {
+        if(algorithm == null)
+            throw new IllegalArgumentException("Argument 'algorithm' cannot be null");
+        if(encryptKey == null)
+            throw new IllegalArgumentException("Argument 'encryptKey' cannot be null");
+        if(decryptKey == null)
+            throw new IllegalArgumentException("Argument 'decryptKey' cannot be null");
+        if(encryptIV == null || encryptIV.length != AeadAlgorithm.NONCE_SIZE)
+            throw new IllegalArgumentException("Argument 'encryptIV' must be " + AeadAlgorithm.NONCE_SIZE + " bytes long");
+        if(decryptIV == null || decryptIV.length != AeadAlgorithm.NONCE_SIZE)
+            throw new IllegalArgumentException("Argument 'decryptIV' must be " + AeadAlgorithm.NONCE_SIZE + " bytes long");
+
+        this.algorithm = algorithm;
+
+        this.encryptKey = encryptKey;
+        this.encryptIV = encryptIV.clone();
+        this.encryptCounters = new AtomicLong[CHANNELS];
+        this.encryptCiphers = new ConcurrentLinkedQueue<>();
+
+        this.decryptKey = decryptKey;
+        this.decryptIV = decryptIV.clone();
+        this.replayWindows = new ReplayWindow[CHANNELS];
+        this.decryptCipher = algorithm.createCipher();
+        this.decryptNonce = new byte[AeadAlgorithm.NONCE_SIZE];
+        this.decryptSequence = new byte[SEQUENCE_SIZE];
+
+        for(int i = 0; i < CHANNELS; i++) {
+            this.encryptCounters[i] = new AtomicLong();
+            this.replayWindows[i] = new ReplayWindow();
+        }
+    }
+
+    public AeadAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+
+    public byte[] encrypt(byte[] data, SendPriority priority) throws IllegalStateException {
+        final byte[] record = new byte[data.length + OVERHEAD];
+        this.encrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(record), priority);
+        return record;
+    }
+
+    /** Writes record of plaintext.remaining() + OVERHEAD bytes.
+     * Buffers may share the same array, record starting SEQUENCE_SIZE bytes before plaintext. */
+    public void encrypt(ByteBuffer plaintext, ByteBuffer record, SendPriority priority) throws IllegalStateException {
+        if(record.remaining() < plaintext.remaining() + OVERHEAD)
+            throw new IllegalArgumentException("Argument 'record' has not enough space");
+
+        final long sequence = this.nextSequence(priority);
+        final byte[] sequenceBytes = new byte[SEQUENCE_SIZE];
+        ByteBuffer.wrap(sequenceBytes).putLong(sequence);
+        final byte[] nonce = new byte[AeadAlgorithm.NONCE_SIZE];
+        makeNonce(encryptIV, sequence, nonce);
+
+        Cipher cipher = encryptCiphers.poll();
+        if(cipher == null)
+            cipher = algorithm.createCipher();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, encryptKey, algorithm.createParameterSpec(nonce));
+            cipher.updateAAD(sequenceBytes);
+            record.put(sequenceBytes);
+            cipher.doFinal(plaintext, record);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Encryption error", e);
+        } finally {
+            encryptCiphers.add(cipher);
+        }
+    }
+
+    private long nextSequence(SendPriority priority) {
+        final int channel = priority.ordinal();
+        final long counter = encryptCounters[channel].getAndIncrement();
+        if(counter > COUNTER_MASK)
+            throw new IllegalStateException("Sequence numbers are exhausted, new keys are required");
+        return (((long) channel << CHANNEL_SHIFT) | counter);
+    }
+
+
+    public byte[] decrypt(byte[] record) throws IllegalStateException {
+        if(record.length < OVERHEAD)
+            throw new IllegalStateException("Decryption error: record is too short");
+
+        final byte[] data = new byte[record.length - OVERHEAD];
+        this.decrypt(ByteBuffer.wrap(record), ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /** Reads plaintext of record.remaining() - OVERHEAD bytes. Buffers may share the same array.
+     * Not thread-safe: records are expected from one reading thread. */
+    public void decrypt(ByteBuffer record, ByteBuffer plaintext) throws IllegalStateException {
+        if(record.remaining() < OVERHEAD)
+            throw new IllegalStateException("Decryption error: record is too short");
+        if(plaintext.remaining() < record.remaining() - OVERHEAD)
+            throw new IllegalArgumentException("Argument 'plaintext' has not enough space");
+
+        record.get(decryptSequence);
+        final long sequence = ByteBuffer.wrap(decryptSequence).getLong();
+        final int channel = (int) (sequence >>> CHANNEL_SHIFT);
+        if(channel >= CHANNELS)
+            throw new IllegalStateException("Decryption error: invalid sequence number");
+
+        final long counter = (sequence & COUNTER_MASK);
+        final ReplayWindow window = replayWindows[channel];
+        if(!window.isFresh(counter))
+            throw new IllegalStateException("Decryption error: replayed or too old record");
+
+        makeNonce(decryptIV, sequence, decryptNonce);
+        try {
+            decryptCipher.init(Cipher.DECRYPT_MODE, decryptKey, algorithm.createParameterSpec(decryptNonce));
+            decryptCipher.updateAAD(decryptSequence);
+            decryptCipher.doFinal(record, plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Decryption error", e);
+        }
+        window.mark(counter); // only authenticated records move the window
+    }
+
+
+    private static void makeNonce(byte[] iv, long sequence, byte[] nonce) {
+        System.arraycopy(iv, 0, nonce, 0, AeadAlgorithm.NONCE_SIZE);
+        final int offset = (AeadAlgorithm.NONCE_SIZE - SEQUENCE_SIZE);
+        for(int i = 0; i < SEQUENCE_SIZE; i++)
+            nonce[offset + i] ^= (byte) (sequence >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+    }
+
+
+    private static class ReplayWindow {
+
+        private final long[] bits = new long[REPLAY_WINDOW_SIZE / Long.SIZE];
+        private long highest = -1L;
+
+        public boolean isFresh(long counter) {
+            if(counter > highest)
+                return true;
+            if(highest - counter >= REPLAY_WINDOW_SIZE)
+                return false;
+            return !this.isSet(counter);
+        }
+
+        public void mark(long counter) {
+            if(counter > highest) {
+                // slots of counters leaving the window are reused
+                if(counter - highest >= REPLAY_WINDOW_SIZE) {
+                    Arrays.fill(bits, 0L);
+                } else {
+                    for(long i = highest + 1; i < counter; i++)
+                        this.clear(i);
+                }
+                highest = counter;
+            }
+            this.set(counter);
+        }
+
+        private boolean isSet(long counter) {
+            final int slot = (int) (counter % REPLAY_WINDOW_SIZE);
+            return ((bits[slot >>> 6] & (1L << slot)) != 0);
+        }
+
+        private void set(long counter) {
+            final int slot = (int) (counter % REPLAY_WINDOW_SIZE);
+            bits[slot >>> 6] |= (1L << slot);
+        }
+
+        private void clear(long counter) {
+            final int slot = (int) (counter % REPLAY_WINDOW_SIZE);
+            bits[slot >>> 6] &= ~(1L << slot);
+        }
+
+    }
+
+}
@@ -1,17 +1,25 @@
 package generaloss.networkforge.tcp.crypto;
 
+import generaloss.networkforge.tcp.SendPriority;
+
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CipherPair {
 
     private volatile Cipher encryptCipher;
     private volatile Cipher decryptCipher;
+    private volatile AeadRecordLayer recordLayer;
+    private final Map<Integer, GroupKeys> groupKeys; // by group ID
     private final Object encryptLock;
     private final Object decryptLock;
 
     public CipherPair() {
+        this.groupKeys = new ConcurrentHashMap<>();
         this.encryptLock = new Object();
         this.decryptLock = new Object();
     }
@@ -40,10 +48,51 @@ public class CipherPair {
     }
 
 
-    public byte[] encrypt(byte[] data) throws IllegalStateException {
+    public AeadRecordLayer getRecordLayer() {
+        return recordLayer;
+    }
+
+    /** Record layer takes precedence over ciphers while set. */
+    public void setRecordLayer(AeadRecordLayer recordLayer) {
+        this.recordLayer = recordLayer;
+    }
+
+
+    /** Key of an {@link EncryptionGroup} epoch, a few previous epochs are retained for records still in flight. */
+    public void setGroupKey(int groupID, int epoch, AeadRecordLayer recordLayer) {
+        if(recordLayer == null)
+            throw new IllegalArgumentException("Argument 'recordLayer' cannot be null");
+
+        groupKeys.computeIfAbsent(groupID, (id) -> new GroupKeys()).put(epoch, recordLayer);
+    }
+
+    public boolean hasGroupKey(int groupID, int epoch) {
+        final GroupKeys keys = groupKeys.get(groupID);
+        return (keys != null && keys.get(epoch) != null);
+    }
+
+    public void removeGroupKeys(int groupID) {
+        groupKeys.remove(groupID);
+    }
+
+
+    public boolean isEncryptionEnabled() {
+        return (encryptCipher != null || recordLayer != null);
+    }
+
+    public boolean isDecryptionEnabled() {
+        return (decryptCipher != null || recordLayer != null || !groupKeys.isEmpty());
+    }
+
+
+    public byte[] encrypt(byte[] data, SendPriority priority) throws IllegalStateException {
         if(data == null)
             return null;
 
+        final AeadRecordLayer layer = recordLayer;
+        if(layer != null)
+            return layer.encrypt(data, priority);
+
         final Cipher cipher = encryptCipher;
         if(cipher == null)
             return data;
@@ -57,10 +106,24 @@ public class CipherPair {
         }
     }
 
+    public byte[] encrypt(byte[] data) throws IllegalStateException {
+        return this.encrypt(data, SendPriority.DEFAULT);
+    }
+
     public byte[] decrypt(byte[] data) throws IllegalStateException {
         if(data == null)
             return null;
 
+        if(!groupKeys.isEmpty() && EncryptionGroup.isGroupRecord(data)) {
+            final byte[] plaintext = this.decryptGroupRecord(data);
+            if(plaintext != null)
+                return plaintext;
+        }
+
+        final AeadRecordLayer layer = recordLayer;
+        if(layer != null)
+            return layer.decrypt(data);
+
         final Cipher cipher = decryptCipher;
         if(cipher == null)
             return data;
@@ -74,7 +137,28 @@ public class CipherPair {
         }
     }
 
+    /** @return null if there is no key for the record */
+    private byte[] decryptGroupRecord(byte[] data) throws IllegalStateException {
+        final ByteBuffer record = ByteBuffer.wrap(data);
+        record.position(Short.BYTES + Byte.BYTES);
+        final int groupID = record.getInt();
+        final int epoch = record.getInt();
+
+        final GroupKeys keys = groupKeys.get(groupID);
+        final AeadRecordLayer layer = (keys == null ? null : keys.get(epoch));
+        if(layer == null)
+            return null;
+        if(record.remaining() < AeadRecordLayer.OVERHEAD)
+            throw new IllegalStateException("Decryption error: record is too short");
+
+        final byte[] plaintext = new byte[record.remaining() - AeadRecordLayer.OVERHEAD];
+        layer.decrypt(record, ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
     public int getEncryptedSize(int inputSize) {
+        if(recordLayer != null)
+            return (inputSize + AeadRecordLayer.OVERHEAD);
         if(encryptCipher == null)
             return inputSize;
 
@@ -84,6 +168,8 @@ public class CipherPair {
     }
 
     public int getDecryptedSize(int inputSize) {
+        if(recordLayer != null)
+            return Math.max(0, inputSize - AeadRecordLayer.OVERHEAD);
         if(decryptCipher == null)
             return inputSize;
 
@@ -0,0 +1,311 @@
+package generaloss.networkforge.tcp.crypto;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.codec.TlsConnectionCodec;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Shared key of a set of connections: a broadcast is encrypted once and the same record is written to every member.
+ * Keys are delivered to members over their own connections (which must be encrypted) and rotated on membership change,
+ * receiving side installs them with {@link GroupKeyHandler}. Closed connections leave the group on the next broadcast.
+ * Key frame: [short reserved ID][byte type][int group ID][int epoch][byte algorithm][key][IV]
+ * Record: [short reserved ID][byte type][int group ID][int epoch][AEAD record] */
+public class EncryptionGroup {
+
+    public static final short GROUP_FRAME_ID = (short) 0xFFFA;
+    static final int HEADER_SIZE = (Short.BYTES + Byte.BYTES + Integer.BYTES + Integer.BYTES);
+
+    static final byte FRAME_KEY = 1;
+    static final byte FRAME_RECORD = 2;
+    static final byte FRAME_LEAVE = 3;
+
+    private static final SendPriority[] SEND_PRIORITIES = SendPriority.values();
+
+    private final int id;
+    private final AeadAlgorithm algorithm;
+    private final SecureRandom random;
+    private final Set<TCPConnection> memberSet; // guarded by itself
+    private volatile GroupState state;
+    private volatile boolean rotateOnJoin;
+    private volatile boolean rotateOnLeave;
+
+    public EncryptionGroup(int id, AeadAlgorithm algorithm) {
+        if(algorithm == null)
+            throw new IllegalArgumentException("Argument 'algorithm' cannot be null");
+
+        this.id = id;
+        this.algorithm = algorithm;
+        this.random = new SecureRandom();
+        this.memberSet = new HashSet<>();
+        this.state = this.createState(0, new TCPConnection[0]);
+        this.rotateOnJoin = true;
+        this.rotateOnLeave = true;
+    }
+
+    public EncryptionGroup(int id) {
+        this(id, AeadAlgorithm.AES_128_GCM);
+    }
+
+
+    public int getID() {
+        return id;
+    }
+
+    public AeadAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getEpoch() {
+        return state.epoch;
+    }
+
+    public List<TCPConnection> getMembers() {
+        return Collections.unmodifiableList(Arrays.asList(state.members));
+    }
+
+    public int size() {
+        return state.members.length;
+    }
+
+    public boolean isRotateOnJoin() {
+        return rotateOnJoin;
+    }
+
+    /** New members cannot read earlier broadcasts, costs a key frame per member on each join. */
+    public EncryptionGroup setRotateOnJoin(boolean rotateOnJoin) {
+        this.rotateOnJoin = rotateOnJoin;
+        return this;
+    }
+
+    public boolean isRotateOnLeave() {
+        return rotateOnLeave;
+    }
+
+    /** Former members cannot read later broadcasts, costs a key frame per member on each leave. */
+    public EncryptionGroup setRotateOnLeave(boolean rotateOnLeave) {
+        this.rotateOnLeave = rotateOnLeave;
+        return this;
+    }
+
+
+    /** @return false if the connection is a member already or closed
+     * @throws IllegalArgumentException if the connection is not encrypted (the key would be sent in plaintext) */
+    public boolean join(TCPConnection connection) {
+        if(connection == null)
+            throw new IllegalArgumentException("Argument 'connection' cannot be null");
+        if(!isEncrypted(connection))
+            throw new IllegalArgumentException("Connection " + connection.getName() + " is not encrypted, group key cannot be sent over it");
+        if(connection.isClosed())
+            return false;
+
+        synchronized(memberSet) {
+            if(!memberSet.add(connection))
+                return false;
+
+            final TCPConnection[] liveMembers = this.dropClosedMembers();
+            final TCPConnection[] members = Arrays.copyOf(liveMembers, liveMembers.length + 1);
+            members[members.length - 1] = connection;
+
+            if(rotateOnJoin) {
+                this.rotate(members);
+            }else{
+                final GroupState current = state;
+                this.sendKey(connection, current);
+                state = new GroupState(current, members);
+            }
+            return true;
+        }
+    }
+
+    public boolean leave(TCPConnection connection) {
+        if(connection == null)
+            throw new IllegalArgumentException("Argument 'connection' cannot be null");
+
+        synchronized(memberSet) {
+            if(!memberSet.remove(connection))
+                return false;
+
+            final TCPConnection[] members = Arrays.stream(this.dropClosedMembers())
+                .filter(member -> member != connection)
+                .toArray(TCPConnection[]::new);
+
+            this.sendLeave(connection);
+            if(rotateOnLeave) {
+                this.rotate(members);
+            }else{
+                state = new GroupState(state, members);
+            }
+            return true;
+        }
+    }
+
+    public void rotateKey() {
+        synchronized(memberSet) {
+            this.rotate(this.dropClosedMembers());
+        }
+    }
+
+    /** Closed members can still hold the key: the group key is rotated if rotate on leave is set. */
+    private void removeClosedMembers() {
+        synchronized(memberSet) {
+            final TCPConnection[] members = this.dropClosedMembers();
+            if(members.length == state.members.length)
+                return;
+
+            if(rotateOnLeave) {
+                this.rotate(members);
+            }else{
+                state = new GroupState(state, members);
+            }
+        }
+    }
+
+    /** Guarded by memberSet.
+     * @return members without closed connections */
+    private TCPConnection[] dropClosedMembers() {
+        final TCPConnection[] members = state.members;
+        if(!memberSet.removeIf(TCPConnection::isClosed))
+            return members;
+
+        return Arrays.stream(members)
+            .filter(memberSet::contains)
+            .toArray(TCPConnection[]::new);
+    }
+
+    /** Keys are delivered before the new epoch is used, broadcasts meanwhile use the previous one. */
+    private void rotate(TCPConnection[] members) {
+        final GroupState next = this.createState(state.epoch + 1, members);
+        for(TCPConnection member : members)
+            this.sendKey(member, next);
+        state = next;
+    }
+
+
+    /** @return number of failed sends to open members */
+    public int broadcast(byte[] data, SendPriority priority) {
+        if(data == null)
+            throw new IllegalArgumentException("Argument 'data' cannot be null");
+        if(priority == null)
+            throw new IllegalArgumentException("Argument 'priority' cannot be null");
+
+        final GroupState current = state;
+        final byte[] record = new byte[HEADER_SIZE + data.length + AeadRecordLayer.OVERHEAD];
+        ByteBuffer.wrap(record)
+            .putShort(GROUP_FRAME_ID)
+            .put(FRAME_RECORD)
+            .putInt(id)
+            .putInt(current.epoch);
+        current.recordLayer.encrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(record, HEADER_SIZE, record.length - HEADER_SIZE), priority);
+
+        int failedSends = 0;
+        boolean hasClosed = false;
+        for(TCPConnection member : current.members) {
+            if(member.isClosed()) {
+                hasClosed = true;
+            }else if(!member.sendEncrypted(record, priority)) {
+                failedSends++;
+            }
+        }
+
+        if(hasClosed)
+            this.removeClosedMembers();
+        return failedSends;
+    }
+
+    public int broadcast(byte[] data) {
+        return this.broadcast(data, SendPriority.DEFAULT);
+    }
+
+    public int broadcast(String string) {
+        if(string == null)
+            throw new IllegalArgumentException("Argument 'string' cannot be null");
+        return this.broadcast(string.getBytes());
+    }
+
+
+    private GroupState createState(int epoch, TCPConnection[] members) {
+        final byte[] key = new byte[algorithm.getKeySize()];
+        final byte[] iv = new byte[AeadAlgorithm.NONCE_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+
+        final byte[] keyFrame = ByteBuffer.allocate(HEADER_SIZE + Byte.BYTES + key.length + iv.length)
+            .putShort(GROUP_FRAME_ID)
+            .put(FRAME_KEY)
+            .putInt(id)
+            .putInt(epoch)
+            .put((byte) algorithm.ordinal())
+            .put(key)
+            .put(iv)
+            .array();
+
+        final AeadRecordLayer recordLayer = createRecordLayer(algorithm, key, iv);
+        Arrays.fill(key, (byte) 0);
+        return new GroupState(epoch, recordLayer, keyFrame, members);
+    }
+
+    private void sendKey(TCPConnection member, GroupState state) {
+        // on every priority: each record follows its key in the same send queue
+        for(SendPriority priority : SEND_PRIORITIES)
+            member.send(state.keyFrame, priority);
+    }
+
+    private void sendLeave(TCPConnection member) {
+        final byte[] leaveFrame = ByteBuffer.allocate(HEADER_SIZE)
+            .putShort(GROUP_FRAME_ID)
+            .put(FRAME_LEAVE)
+            .putInt(id)
+            .putInt(state.epoch)
+            .array();
+        member.send(leaveFrame, SendPriority.LOW); // after records already queued
+    }
+
+
+    private static boolean isEncrypted(TCPConnection connection) {
+        return (connection.getCiphers().isEncryptionEnabled() || connection.getCodec() instanceof TlsConnectionCodec);
+    }
+
+    static AeadRecordLayer createRecordLayer(AeadAlgorithm algorithm, byte[] key, byte[] iv) {
+        // one sender: records are encrypted only by the group
+        return new AeadRecordLayer(algorithm, algorithm.createKey(key), iv, algorithm.createKey(key), iv);
+    }
+
+    static boolean isGroupFrame(byte[] data) {
+        return (
+            data.length >= HEADER_SIZE &&
+            data[0] == (byte) (GROUP_FRAME_ID >> 8) &&
+            data[1] == (byte) GROUP_FRAME_ID
+        );
+    }
+
+    static boolean isGroupRecord(byte[] data) {
+        return (isGroupFrame(data) && data[Short.BYTES] == FRAME_RECORD);
+    }
+
+
+    private static class GroupState {
+        final int epoch;
+        final AeadRecordLayer recordLayer;
+        final byte[] keyFrame;
+        final TCPConnection[] members;
+
+        GroupState(int epoch, AeadRecordLayer recordLayer, byte[] keyFrame, TCPConnection[] members) {
+            this.epoch = epoch;
+            this.recordLayer = recordLayer;
+            this.keyFrame = keyFrame;
+            this.members = members;
+        }
+
+        GroupState(GroupState state, TCPConnection[] members) {
+            this(state.epoch, state.recordLayer, state.keyFrame, members);
+        }
+    }
+
+}
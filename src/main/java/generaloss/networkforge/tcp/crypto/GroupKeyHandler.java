@@ -0,0 +1,70 @@
+package generaloss.networkforge.tcp.crypto;
+
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+
+import java.nio.ByteBuffer;
+
+/** Receiving side of {@link EncryptionGroup}: installs group keys into the connection ciphers,
+ * which then decrypt group records before the pipeline. Requires a message-preserving codec. */
+public class GroupKeyHandler extends EventHandler {
+
+    private static final AeadAlgorithm[] ALGORITHMS = AeadAlgorithm.values();
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        if(!EncryptionGroup.isGroupFrame(data))
+            return true;
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(Short.BYTES);
+        final byte type = buffer.get();
+        final int groupID = buffer.getInt();
+        final int epoch = buffer.getInt();
+
+        final CipherPair ciphers = context.getConnection().getCiphers();
+        switch(type) {
+            case EncryptionGroup.FRAME_KEY: {
+                if(ciphers.hasGroupKey(groupID, epoch))
+                    break; // sent on every priority
+
+                if(!buffer.hasRemaining()) {
+                    this.closeOnShortFrame(context);
+                    break;
+                }
+                final int algorithmIndex = buffer.get();
+                if(algorithmIndex < 0 || algorithmIndex >= ALGORITHMS.length) {
+                    context.error(ErrorSource.RECEIVE_HANDLER, new IllegalStateException("Unknown group key algorithm"));
+                    break;
+                }
+                final AeadAlgorithm algorithm = ALGORITHMS[algorithmIndex];
+                final byte[] key = new byte[algorithm.getKeySize()];
+                final byte[] iv = new byte[AeadAlgorithm.NONCE_SIZE];
+                if(buffer.remaining() < key.length + iv.length) {
+                    this.closeOnShortFrame(context);
+                    break;
+                }
+                buffer.get(key).get(iv);
+
+                ciphers.setGroupKey(groupID, epoch, EncryptionGroup.createRecordLayer(algorithm, key, iv));
+                break;
+            }
+            case EncryptionGroup.FRAME_LEAVE:
+                ciphers.removeGroupKeys(groupID);
+                break;
+            case EncryptionGroup.FRAME_RECORD:
+                context.error(ErrorSource.RECEIVE_HANDLER, new IllegalStateException("No key for group " + groupID + " epoch " + epoch));
+                break;
+            default:
+                return true;
+        }
+        return false; // consumed
+    }
+
+    private void closeOnShortFrame(EventInvocationContext context) {
+        context.getConnection().close(CloseReason.PROTOCOL_ERROR, new IllegalStateException("Group key frame is too short"));
+    }
+
+}
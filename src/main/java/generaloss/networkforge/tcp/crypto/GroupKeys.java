@@ -0,0 +1,36 @@
+package generaloss.networkforge.tcp.crypto;
+
+/** Record layers of the last few epochs of one group. */
+class GroupKeys {
+
+    static final int RETAINED_EPOCHS = 4;
+
+    private final int[] epochs;
+    private final AeadRecordLayer[] layers;
+    private int next;
+
+    GroupKeys() {
+        this.epochs = new int[RETAINED_EPOCHS];
+        this.layers = new AeadRecordLayer[RETAINED_EPOCHS];
+    }
+
+    synchronized void put(int epoch, AeadRecordLayer layer) {
+        for(int i = 0; i < RETAINED_EPOCHS; i++) {
+            if(layers[i] != null && epochs[i] == epoch) {
+                layers[i] = layer;
+                return;
+            }
+        }
+        epochs[next] = epoch;
+        layers[next] = layer; // replaces the oldest
+        next = (next + 1) % RETAINED_EPOCHS;
+    }
+
+    synchronized AeadRecordLayer get(int epoch) {
+        for(int i = 0; i < RETAINED_EPOCHS; i++)
+            if(layers[i] != null && epochs[i] == epoch)
+                return layers[i];
+        return null;
+    }
+
+}
@@ -0,0 +1,62 @@
+package generaloss.networkforge.tcp.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/** HKDF with HMAC-SHA256 (RFC 5869). */
+public class Hkdf {
+
+    public static final String MAC_ALGORITHM = "HmacSHA256";
+    public static final int HASH_SIZE = 32;
+
+    public static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws IllegalStateException {
+        if(inputKeyMaterial == null)
+            throw new IllegalArgumentException("Argument 'inputKeyMaterial' cannot be null");
+        if(salt == null || salt.length == 0)
+            salt = new byte[HASH_SIZE];
+
+        return createMac(salt).doFinal(inputKeyMaterial);
+    }
+
+    public static byte[] expand(byte[] pseudoRandomKey, byte[] info, int length) throws IllegalStateException {
+        if(pseudoRandomKey == null)
+            throw new IllegalArgumentException("Argument 'pseudoRandomKey' cannot be null");
+        if(length < 1 || length > 255 * HASH_SIZE)
+            throw new IllegalArgumentException("Argument 'length' must be in range [1, " + (255 * HASH_SIZE) + "]");
+        if(info == null)
+            info = new byte[0];
+
+        final Mac mac = createMac(pseudoRandomKey);
+        final byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for(int i = 1; offset < length; i++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) i);
+            block = mac.doFinal();
+
+            final int count = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, count);
+            offset += count;
+        }
+        return output;
+    }
+
+    public static byte[] expand(byte[] pseudoRandomKey, String label, int length) throws IllegalStateException {
+        return expand(pseudoRandomKey, label.getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    private static Mac createMac(byte[] key) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC is not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,433 @@
+package generaloss.networkforge.tcp.crypto;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.EventPipeline;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Ephemeral X25519 key agreement on connect, installs an {@link AeadRecordLayer} into the connection ciphers.
+ * Keys are derived with HKDF-SHA256, salted with the hash of both hello frames,
+ * and confirmed by a finished frame with an HMAC of that hash before they are installed.
+ * <p>
+ * Without a pre-shared key ({@link #setPreSharedKey(byte[])}) the peer is NOT authenticated:
+ * a man in the middle can run a separate handshake with each end and read all traffic.
+ * The pre-shared key is mixed into the key derivation, so an end without the same key fails the handshake.
+ * <p>
+ * Key generation and agreement run on the executor, connect event is delayed until keys are installed,
+ * frames sent or received before that are buffered up to {@link #getMaxBufferedSize()} in each direction.
+ * Requires a message-preserving codec.
+ * Hello frame: [short reserved ID][byte type][byte algorithm][X.509 encoded public key]
+ * Finished frame: [short reserved ID][byte type][byte algorithm][HMAC-SHA256 of the transcript hash] */
+public class X25519HandshakeHandler extends EventHandler {
+
+    public static final short HANDSHAKE_FRAME_ID = (short) 0xFFFB;
+    public static final int DEFAULT_MAX_BUFFERED_SIZE = (1024 * 1024);
+    static final int HEADER_SIZE = (Short.BYTES + Byte.BYTES + Byte.BYTES);
+
+    static final byte FRAME_HELLO = 1;
+    static final byte FRAME_FINISHED = 2;
+
+    private static final String KEY_ALGORITHM = "X25519";
+    private static final String KEY_FACTORY_ALGORITHM = "XDH";
+    private static final String TRANSCRIPT_HASH_ALGORITHM = "SHA-256";
+
+    private static final String LABEL_CLIENT_KEY = "networkforge client key";
+    private static final String LABEL_SERVER_KEY = "networkforge server key";
+    private static final String LABEL_CLIENT_IV = "networkforge client iv";
+    private static final String LABEL_SERVER_IV = "networkforge server iv";
+    private static final String LABEL_CLIENT_FINISHED = "networkforge client finished";
+    private static final String LABEL_SERVER_FINISHED = "networkforge server finished";
+
+    private final boolean clientSide;
+    private final AeadAlgorithm algorithm;
+    private final Executor executor;
+    private final AttributeKey<HandshakeSession> sessionKey;
+    private volatile int maxBufferedSize;
+    private volatile byte[] preSharedKey;
+
+    /** @param clientSide selects key derivation labels, must differ on the two ends
+     * @param algorithm must be equal on the two ends
+     * @param executor runs key generation and agreement */
+    public X25519HandshakeHandler(boolean clientSide, AeadAlgorithm algorithm, Executor executor) {
+        if(algorithm == null)
+            throw new IllegalArgumentException("Argument 'algorithm' cannot be null");
+        if(executor == null)
+            throw new IllegalArgumentException("Argument 'executor' cannot be null");
+
+        this.clientSide = clientSide;
+        this.algorithm = algorithm;
+        this.executor = executor;
+        this.sessionKey = new AttributeKey<>("x25519 handshake session");
+        this.maxBufferedSize = DEFAULT_MAX_BUFFERED_SIZE;
+    }
+
+    public X25519HandshakeHandler(boolean clientSide, AeadAlgorithm algorithm) {
+        this(clientSide, algorithm, ForkJoinPool.commonPool());
+    }
+
+    public X25519HandshakeHandler(boolean clientSide) {
+        this(clientSide, AeadAlgorithm.AES_128_GCM);
+    }
+
+
+    public boolean isClientSide() {
+        return clientSide;
+    }
+
+    public AeadAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getMaxBufferedSize() {
+        return maxBufferedSize;
+    }
+
+    /** Over this size received frames close the connection, sent frames fail with an error. */
+    public X25519HandshakeHandler setMaxBufferedSize(int maxBufferedSize) {
+        if(maxBufferedSize < 0)
+            throw new IllegalArgumentException("Argument 'maxBufferedSize' must be >= 0");
+
+        this.maxBufferedSize = maxBufferedSize;
+        return this;
+    }
+
+    public boolean hasPreSharedKey() {
+        return (preSharedKey != null);
+    }
+
+    /** Authenticates the peer as a holder of the same key, must be equal on the two ends.
+     * @param preSharedKey secret of at least 16 bytes, or null to disable */
+    public X25519HandshakeHandler setPreSharedKey(byte[] preSharedKey) {
+        if(preSharedKey != null && preSharedKey.length < 16)
+            throw new IllegalArgumentException("Argument 'preSharedKey' must be at least 16 bytes long");
+
+        this.preSharedKey = (preSharedKey == null ? null : preSharedKey.clone());
+        return this;
+    }
+
+    public boolean isHandshakeComplete(TCPConnection connection) {
+        final HandshakeSession session = connection.getAttribute(sessionKey);
+        return (session != null && session.complete);
+    }
+
+
+    @Override
+    public boolean handleConnect(EventInvocationContext context) {
+        final TCPConnection connection = context.getConnection();
+        final HandshakeSession session = new HandshakeSession(connection, context.getEventPipeline());
+        connection.setAttribute(sessionKey, session);
+
+        this.executeOnWorker(session, () -> this.sendHello(session));
+        return false; // fired after keys are installed
+    }
+
+    @Override
+    public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
+        context.setAttribute(sessionKey, null);
+        return true;
+    }
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        final HandshakeSession session = context.getAttribute(sessionKey);
+        if(session == null || session.complete)
+            return true;
+
+        if(isHandshakeFrame(data, FRAME_HELLO)) {
+            synchronized(session) {
+                if(session.peerHello != null) {
+                    this.fail(session, new IllegalStateException("Duplicate hello frame"));
+                    return false;
+                }
+                session.peerHello = data;
+            }
+            this.deriveKeysIfReady(session);
+        }else if(isHandshakeFrame(data, FRAME_FINISHED)) {
+            synchronized(session) {
+                if(session.peerFinished != null) {
+                    this.fail(session, new IllegalStateException("Duplicate finished frame"));
+                    return false;
+                }
+                session.peerFinished = data;
+            }
+            this.installIfConfirmed(session);
+        }else{
+            if(session.receivedSize + data.length > maxBufferedSize) {
+                this.fail(session, new IllegalStateException("Too much data is received before the handshake"));
+                return false;
+            }
+            session.receivedFrames.add(data); // encrypted by the peer, decrypted after keys are installed
+            session.receivedSize += data.length;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean handleSend(EventInvocationContext context, byte[] data) {
+        final HandshakeSession session = context.getAttribute(sessionKey);
+        if(session == null || session.complete)
+            return true;
+
+        synchronized(session) {
+            if(session.complete)
+                return true;
+            if(session.pendingSize + data.length <= maxBufferedSize) {
+                session.pendingSends.add(new PendingSend(data, context.getSendPriority()));
+                session.pendingSize += data.length;
+                context.acceptSend();
+                return false;
+            }
+        }
+        context.error(ErrorSource.SEND_HANDLER, new IllegalStateException("Too much data is sent before the handshake"));
+        return false;
+    }
+
+
+    private void sendHello(HandshakeSession session) throws GeneralSecurityException {
+        final KeyPair keyPair = KeyPairGenerator.getInstance(KEY_ALGORITHM).generateKeyPair();
+        final byte[] publicKey = keyPair.getPublic().getEncoded();
+
+        final byte[] hello = ByteBuffer.allocate(HEADER_SIZE + publicKey.length)
+            .putShort(HANDSHAKE_FRAME_ID)
+            .put(FRAME_HELLO)
+            .put((byte) algorithm.ordinal())
+            .put(publicKey)
+            .array();
+
+        // hello is queued before any encrypted frame can be sent
+        session.pipeline.fireSendFrom(this, session.connection, hello);
+
+        synchronized(session) {
+            session.keyPair = keyPair;
+            session.localHello = hello;
+        }
+        this.deriveKeysIfReady(session);
+    }
+
+    private void deriveKeysIfReady(HandshakeSession session) {
+        synchronized(session) {
+            if(session.localHello == null || session.peerHello == null || session.deriving)
+                return;
+            session.deriving = true;
+        }
+        this.executeOnWorker(session, () -> this.deriveKeys(session));
+    }
+
+    private void deriveKeys(HandshakeSession session) throws GeneralSecurityException {
+        final byte[] peerHello = session.peerHello;
+        if(peerHello[Short.BYTES + Byte.BYTES] != (byte) algorithm.ordinal())
+            throw new IllegalStateException("Peer uses another algorithm");
+
+        final byte[] encodedPeerKey = Arrays.copyOfRange(peerHello, HEADER_SIZE, peerHello.length);
+        final PublicKey peerKey = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM).generatePublic(new X509EncodedKeySpec(encodedPeerKey));
+
+        final KeyAgreement agreement = KeyAgreement.getInstance(KEY_ALGORITHM);
+        agreement.init(session.keyPair.getPrivate());
+        agreement.doPhase(peerKey, true);
+        final byte[] sharedSecret = agreement.generateSecret(); // rejects small order points
+
+        // transcript: client hello, server hello
+        final MessageDigest digest = MessageDigest.getInstance(TRANSCRIPT_HASH_ALGORITHM);
+        digest.update(clientSide ? session.localHello : peerHello);
+        digest.update(clientSide ? peerHello : session.localHello);
+        final byte[] salt = digest.digest();
+
+        final byte[] inputKeyMaterial = this.mixPreSharedKey(sharedSecret);
+        final byte[] pseudoRandomKey = Hkdf.extract(salt, inputKeyMaterial);
+        Arrays.fill(sharedSecret, (byte) 0);
+        Arrays.fill(inputKeyMaterial, (byte) 0);
+
+        final int keySize = algorithm.getKeySize();
+        final byte[] clientKey = Hkdf.expand(pseudoRandomKey, LABEL_CLIENT_KEY, keySize);
+        final byte[] serverKey = Hkdf.expand(pseudoRandomKey, LABEL_SERVER_KEY, keySize);
+        final byte[] clientIV = Hkdf.expand(pseudoRandomKey, LABEL_CLIENT_IV, AeadAlgorithm.NONCE_SIZE);
+        final byte[] serverIV = Hkdf.expand(pseudoRandomKey, LABEL_SERVER_IV, AeadAlgorithm.NONCE_SIZE);
+        final byte[] clientFinishedKey = Hkdf.expand(pseudoRandomKey, LABEL_CLIENT_FINISHED, Hkdf.HASH_SIZE);
+        final byte[] serverFinishedKey = Hkdf.expand(pseudoRandomKey, LABEL_SERVER_FINISHED, Hkdf.HASH_SIZE);
+        Arrays.fill(pseudoRandomKey, (byte) 0);
+
+        final AeadRecordLayer recordLayer = (clientSide ?
+            new AeadRecordLayer(algorithm, algorithm.createKey(clientKey), clientIV, algorithm.createKey(serverKey), serverIV) :
+            new AeadRecordLayer(algorithm, algorithm.createKey(serverKey), serverIV, algorithm.createKey(clientKey), clientIV)
+        );
+        Arrays.fill(clientKey, (byte) 0);
+        Arrays.fill(serverKey, (byte) 0);
+
+        final byte[] localFinishedMac = computeFinishedMac(clientSide ? clientFinishedKey : serverFinishedKey, salt);
+        final byte[] peerFinishedMac = computeFinishedMac(clientSide ? serverFinishedKey : clientFinishedKey, salt);
+        Arrays.fill(clientFinishedKey, (byte) 0);
+        Arrays.fill(serverFinishedKey, (byte) 0);
+
+        final byte[] finished = ByteBuffer.allocate(HEADER_SIZE + localFinishedMac.length)
+            .putShort(HANDSHAKE_FRAME_ID)
+            .put(FRAME_FINISHED)
+            .put((byte) algorithm.ordinal())
+            .put(localFinishedMac)
+            .array();
+
+        // sent before the record layer is installed, so it goes in plaintext
+        session.pipeline.fireSendFrom(this, session.connection, finished);
+
+        synchronized(session) {
+            session.recordLayer = recordLayer;
+            session.expectedPeerFinished = peerFinishedMac;
+        }
+        this.installIfConfirmed(session);
+    }
+
+    private void installIfConfirmed(HandshakeSession session) {
+        final AeadRecordLayer recordLayer;
+        synchronized(session) {
+            if(session.recordLayer == null || session.peerFinished == null || session.installing)
+                return;
+            session.installing = true;
+            recordLayer = session.recordLayer;
+        }
+
+        final byte[] peerFinishedMac = Arrays.copyOfRange(session.peerFinished, HEADER_SIZE, session.peerFinished.length);
+        if(!MessageDigest.isEqual(peerFinishedMac, session.expectedPeerFinished)) {
+            this.fail(session, new IllegalStateException("Handshake is not confirmed by the peer (different pre-shared key?)"));
+            return;
+        }
+
+        // installed between reads, so every frame is either buffered raw or decrypted by the connection
+        session.connection.executeOnSelector(() -> this.install(session, recordLayer));
+    }
+
+    private byte[] mixPreSharedKey(byte[] sharedSecret) {
+        final byte[] preSharedKey = this.preSharedKey;
+        if(preSharedKey == null)
+            return sharedSecret.clone();
+
+        final byte[] inputKeyMaterial = Arrays.copyOf(sharedSecret, sharedSecret.length + preSharedKey.length);
+        System.arraycopy(preSharedKey, 0, inputKeyMaterial, sharedSecret.length, preSharedKey.length);
+        return inputKeyMaterial;
+    }
+
+    private static byte[] computeFinishedMac(byte[] finishedKey, byte[] transcriptHash) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(Hkdf.MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(finishedKey, Hkdf.MAC_ALGORITHM));
+        return mac.doFinal(transcriptHash);
+    }
+
+    /** Selector thread only. */
+    private void install(HandshakeSession session, AeadRecordLayer recordLayer) {
+        final TCPConnection connection = session.connection;
+        if(connection.isClosed())
+            return;
+
+        synchronized(session) {
+            connection.getCiphers().setRecordLayer(recordLayer);
+            for(PendingSend send: session.pendingSends)
+                session.pipeline.fireSendFrom(this, connection, send.data, send.priority);
+            session.pendingSends.clear();
+            session.pendingSize = 0L;
+            session.keyPair = null;
+            session.recordLayer = null;
+            session.complete = true;
+        }
+
+        session.pipeline.fireConnectFrom(this, connection);
+
+        byte[] frame;
+        while((frame = session.receivedFrames.poll()) != null) {
+            try {
+                final byte[] data = connection.getCiphers().decrypt(frame); // group keys may arrive in buffered frames
+                session.pipeline.fireReceiveFrom(this, connection, data);
+            } catch (IllegalStateException e) {
+                session.pipeline.fireError(connection, ErrorSource.READ, e);
+            }
+        }
+        session.receivedSize = 0L;
+    }
+
+    private void executeOnWorker(HandshakeSession session, HandshakeTask task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    this.fail(session, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.fail(session, e);
+        }
+    }
+
+    private void fail(HandshakeSession session, Exception e) {
+        session.connection.close(CloseReason.HANDSHAKE_FAILED, e);
+    }
+
+    private static boolean isHandshakeFrame(byte[] data, byte type) {
+        if(data.length <= HEADER_SIZE)
+            return false;
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        return (buffer.getShort() == HANDSHAKE_FRAME_ID && buffer.get() == type);
+    }
+
+
+    private interface HandshakeTask {
+        void run() throws Exception;
+    }
+
+    private static class PendingSend {
+        final byte[] data;
+        final SendPriority priority;
+
+        PendingSend(byte[] data, SendPriority priority) {
+            this.data = data;
+            this.priority = priority;
+        }
+    }
+
+    private static class HandshakeSession {
+        final TCPConnection connection;
+        final EventPipeline pipeline;
+        final Queue<byte[]> receivedFrames; // selector thread only
+        long receivedSize; // selector thread only
+        final List<PendingSend> pendingSends; // guarded by session
+        long pendingSize; // guarded by session
+        KeyPair keyPair;
+        byte[] localHello;
+        byte[] peerHello;
+        byte[] peerFinished;
+        byte[] expectedPeerFinished;
+        AeadRecordLayer recordLayer; // derived, not confirmed yet
+        boolean deriving;
+        boolean installing;
+        volatile boolean complete;
+
+        HandshakeSession(TCPConnection connection, EventPipeline pipeline) {
+            this.connection = connection;
+            this.pipeline = pipeline;
+            this.receivedFrames = new ArrayDeque<>();
+            this.pendingSends = new ArrayList<>();
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package generaloss.networkforge.tcp.executor;
+
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+
+import java.util.concurrent.Executor;
+
+/** Executor shared by connections, each connection gets its own {@link SerialExecutor} on it:
+ * tasks of one connection run in order, tasks of different connections in parallel. */
+public class ConnectionExecutorGroup {
+
+    private final Executor executor;
+    private final AttributeKey<SerialExecutor> mailboxKey;
+
+    public ConnectionExecutorGroup(Executor executor) {
+        if(executor == null)
+            throw new IllegalArgumentException("Argument 'executor' cannot be null");
+
+        this.executor = executor;
+        this.mailboxKey = new AttributeKey<>("executor group mailbox");
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /** Created on first use, kept in the connection attributes. */
+    public SerialExecutor executorOf(TCPConnection connection) {
+        if(connection == null)
+            throw new IllegalArgumentException("Argument 'connection' cannot be null");
+
+        return connection.getAttributes().computeIfAbsent(mailboxKey, () -> new SerialExecutor(executor));
+    }
+
+    public void execute(TCPConnection connection, Runnable task) {
+        this.executorOf(connection).execute(task);
+    }
+
+}
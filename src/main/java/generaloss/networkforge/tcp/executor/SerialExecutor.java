@@ -0,0 +1,98 @@
+package generaloss.networkforge.tcp.executor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Mailbox on a shared executor: tasks run one at a time, in submission order,
+ * but not always on the same thread. Costs one queue while idle. */
+public class SerialExecutor implements Executor {
+
+    public static final int MAX_TASKS_PER_RUN = 64; // then the thread is yielded to other mailboxes
+
+    private static final ThreadLocal<SerialExecutor> CURRENT = new ThreadLocal<>();
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks;
+    private final AtomicInteger queuedCount; // ConcurrentLinkedQueue size is not constant time
+    private final AtomicBoolean scheduled;
+    private final Runnable drainTask;
+
+    public SerialExecutor(Executor executor) {
+        if(executor == null)
+            throw new IllegalArgumentException("Argument 'executor' cannot be null");
+
+        this.executor = executor;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.queuedCount = new AtomicInteger();
+        this.scheduled = new AtomicBoolean();
+        this.drainTask = this::drain;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /** @return true if called from a task of this mailbox */
+    public boolean inExecutor() {
+        return (CURRENT.get() == this);
+    }
+
+    /** @return tasks waiting to run, without the running one */
+    public int getQueuedTaskCount() {
+        return queuedCount.get();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if(task == null)
+            throw new IllegalArgumentException("Argument 'task' cannot be null");
+
+        queuedCount.incrementAndGet();
+        tasks.add(task);
+        this.schedule();
+    }
+
+    private void schedule() {
+        if(!scheduled.compareAndSet(false, true))
+            return; // already running or about to run
+
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void drain() {
+        final SerialExecutor outer = CURRENT.get(); // direct executors may nest mailboxes
+        CURRENT.set(this);
+        try {
+            for(int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                final Runnable task = tasks.poll();
+                if(task == null)
+                    break;
+                queuedCount.decrementAndGet();
+
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    final Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                }
+            }
+        } finally {
+            CURRENT.set(outer);
+            scheduled.set(false);
+        }
+
+        // tasks added after the last poll, or left over the limit
+        if(!tasks.isEmpty())
+            this.schedule();
+    }
+
+}
@@ -0,0 +1,13 @@
+package generaloss.networkforge.tcp.listener;
+
+import generaloss.networkforge.tcp.TCPConnection;
+
+import java.nio.ByteBuffer;
+
+@FunctionalInterface
+public interface ChunkListener {
+
+    /** @param chunk read-only, valid only during the call */
+    void onChunk(TCPConnection connection, int frameID, ByteBuffer chunk, boolean last);
+
+}
@@ -10,6 +10,9 @@ public enum CloseReason {
     CLOSE_BY_OTHER_SIDE            (false, "Connection closed by the other side"    , false),
     FRAME_READ_SIZE_LIMIT_EXCEEDED (true,  "Frame read size limit has been exceeded", false),
     INVALID_FRAME_SIZE             (true,  "Invalid packet size"                    , false),
+    MEMORY_LIMIT_EXCEEDED          (true,  "Memory limit has been exceeded"         , false),
+    HANDSHAKE_FAILED               (true,  "Handshake failed"                       , true),
+    PROTOCOL_ERROR                 (true,  "Protocol violated by the other side"    , true),
     INTERNAL_ERROR                 (true,  "Internal error occurred"                , true);
 
     private final boolean isError;
@@ -0,0 +1,12 @@
+package generaloss.networkforge.tcp.listener;
+
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.codec.CompositeFrame;
+
+@FunctionalInterface
+public interface CompositeFrameListener {
+
+    /** @param frame valid only during the call */
+    void onFrame(TCPConnection connection, CompositeFrame frame);
+
+}
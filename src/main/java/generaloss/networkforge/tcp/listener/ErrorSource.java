@@ -9,6 +9,7 @@ public enum ErrorSource {
     CONNECT_HANDLER,
     DISCONNECT_HANDLER,
     RECEIVE_HANDLER,
+    RECEIVE_CHUNK_HANDLER,
     READ_COMPLETE_HANDLER,
     ERROR_HANDLER,
     SEND_HANDLER,
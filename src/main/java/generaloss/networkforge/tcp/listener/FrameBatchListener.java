@@ -0,0 +1,12 @@
+package generaloss.networkforge.tcp.listener;
+
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.pipeline.FrameBatch;
+
+@FunctionalInterface
+public interface FrameBatchListener {
+
+    /** @param batch frames of one read cycle, valid only during the call */
+    void onBatch(TCPConnection connection, FrameBatch batch);
+
+}
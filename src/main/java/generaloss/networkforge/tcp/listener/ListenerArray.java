@@ -0,0 +1,47 @@
+package generaloss.networkforge.tcp.listener;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/** Copy-on-write array: registration copies, invocation iterates a snapshot without locking or allocation. */
+final class ListenerArray<T> {
+
+    private final IntFunction<T[]> arrayFactory;
+    private volatile T[] listeners;
+
+    ListenerArray(IntFunction<T[]> arrayFactory) {
+        this.arrayFactory = arrayFactory;
+        this.listeners = arrayFactory.apply(0);
+    }
+
+    T[] get() {
+        return listeners;
+    }
+
+    boolean isEmpty() {
+        return (listeners.length == 0);
+    }
+
+    synchronized void add(T listener) {
+        final T[] array = Arrays.copyOf(listeners, listeners.length + 1);
+        array[listeners.length] = listener;
+        listeners = array;
+    }
+
+    synchronized boolean remove(T listener) {
+        final T[] array = listeners;
+        for(int i = 0; i < array.length; i++) {
+            if(!Objects.equals(array[i], listener))
+                continue;
+
+            final T[] newArray = arrayFactory.apply(array.length - 1);
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 1, newArray, i, array.length - i - 1);
+            listeners = newArray;
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -1,27 +1,35 @@
 package generaloss.networkforge.tcp.listener;
 
 import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.codec.CompositeFrame;
+import generaloss.networkforge.tcp.pipeline.FrameBatch;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 public class ListenersHolder {
 
-    private final List<TCPConnectionConsumer> connectListeners;
-    private final List<DisconnectListener> disconnectListener;
-    private final List<DataListener> receiveListeners;
-    private final List<TCPConnectionConsumer> readCompleteListeners;
-    private final List<ErrorListener> errorListeners;
-    private final List<DataListener> sendListeners;
+    private final ListenerArray<TCPConnectionConsumer> connectListeners;
+    private final ListenerArray<DisconnectListener> disconnectListener;
+    private final ListenerArray<DataListener> receiveListeners;
+    private final ListenerArray<ChunkListener> receiveChunkListeners;
+    private final ListenerArray<CompositeFrameListener> receiveCompositeListeners;
+    private final ListenerArray<MessageListener> receiveMessageListeners;
+    private final ListenerArray<FrameBatchListener> receiveBatchListeners;
+    private final ListenerArray<TCPConnectionConsumer> readCompleteListeners;
+    private final ListenerArray<ErrorListener> errorListeners;
+    private final ListenerArray<DataListener> sendListeners;
 
     public ListenersHolder() {
-        this.connectListeners = Collections.synchronizedList(new ArrayList<>());
-        this.disconnectListener = Collections.synchronizedList(new ArrayList<>());
-        this.receiveListeners = Collections.synchronizedList(new ArrayList<>());
-        this.readCompleteListeners = Collections.synchronizedList(new ArrayList<>());
-        this.errorListeners = Collections.synchronizedList(new ArrayList<>());
-        this.sendListeners = Collections.synchronizedList(new ArrayList<>());
+        this.connectListeners = new ListenerArray<>(TCPConnectionConsumer[]::new);
+        this.disconnectListener = new ListenerArray<>(DisconnectListener[]::new);
+        this.receiveListeners = new ListenerArray<>(DataListener[]::new);
+        this.receiveChunkListeners = new ListenerArray<>(ChunkListener[]::new);
+        this.receiveCompositeListeners = new ListenerArray<>(CompositeFrameListener[]::new);
+        this.receiveMessageListeners = new ListenerArray<>(MessageListener[]::new);
+        this.receiveBatchListeners = new ListenerArray<>(FrameBatchListener[]::new);
+        this.readCompleteListeners = new ListenerArray<>(TCPConnectionConsumer[]::new);
+        this.errorListeners = new ListenerArray<>(ErrorListener[]::new);
+        this.sendListeners = new ListenerArray<>(DataListener[]::new);
     }
 
     public void registerOnConnect(TCPConnectionConsumer onConnect) {
@@ -36,6 +44,22 @@ public class ListenersHolder {
         receiveListeners.add(onReceive);
     }
 
+    public void registerOnReceiveChunk(ChunkListener onReceiveChunk) {
+        receiveChunkListeners.add(onReceiveChunk);
+    }
+
+    public void registerOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        receiveCompositeListeners.add(onReceiveComposite);
+    }
+
+    public void registerOnReceiveMessage(MessageListener onReceiveMessage) {
+        receiveMessageListeners.add(onReceiveMessage);
+    }
+
+    public void registerOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        receiveBatchListeners.add(onReceiveBatch);
+    }
+
     public void registerOnReadComplete(TCPConnectionConsumer onReadComplete) {
         readCompleteListeners.add(onReadComplete);
     }
@@ -61,6 +85,26 @@ public class ListenersHolder {
         return receiveListeners.remove(onReceive);
     }
 
+    public boolean unregisterOnReceiveChunk(ChunkListener onReceiveChunk) {
+        return receiveChunkListeners.remove(onReceiveChunk);
+    }
+
+    public boolean unregisterOnReceiveComposite(CompositeFrameListener onReceiveComposite) {
+        return receiveCompositeListeners.remove(onReceiveComposite);
+    }
+
+    public boolean unregisterOnReceiveMessage(MessageListener onReceiveMessage) {
+        return receiveMessageListeners.remove(onReceiveMessage);
+    }
+
+    public boolean unregisterOnReceiveBatch(FrameBatchListener onReceiveBatch) {
+        return receiveBatchListeners.remove(onReceiveBatch);
+    }
+
+    public boolean hasReceiveBatchListeners() {
+        return !receiveBatchListeners.isEmpty();
+    }
+
     public boolean unregisterOnReadComplete(TCPConnectionConsumer onReadComplete) {
         return readCompleteListeners.remove(onReadComplete);
     }
@@ -75,32 +119,65 @@ public class ListenersHolder {
 
 
     public void invokeOnConnect(TCPConnection connection) {
-        for(TCPConnectionConsumer onConnect : connectListeners)
+        for(TCPConnectionConsumer onConnect : connectListeners.get())
             onConnect.accept(connection);
     }
 
     public void invokeOnDisconnect(TCPConnection connection, CloseReason reason, Exception e) {
-        for(DisconnectListener onDisconnect : disconnectListener)
+        for(DisconnectListener onDisconnect : disconnectListener.get())
             onDisconnect.onDisconnect(connection, reason, e);
     }
 
     public void invokeOnReceive(TCPConnection connection, byte[] data) {
-        for(DataListener onReceive : receiveListeners)
+        for(DataListener onReceive : receiveListeners.get())
             onReceive.onData(connection, data);
     }
 
+    public void invokeOnReceiveChunk(TCPConnection connection, int frameID, ByteBuffer chunk, boolean last) {
+        final int position = chunk.position();
+        final int limit = chunk.limit();
+        for(ChunkListener onReceiveChunk : receiveChunkListeners.get()) {
+            onReceiveChunk.onChunk(connection, frameID, chunk, last);
+            chunk.limit(limit).position(position); // each listener reads the same bytes
+        }
+    }
+
+    public void invokeOnReceiveComposite(TCPConnection connection, CompositeFrame frame) {
+        for(CompositeFrameListener onReceiveComposite : receiveCompositeListeners.get())
+            onReceiveComposite.onFrame(connection, frame);
+
+        // flatten only for byte[] listeners
+        if(!receiveListeners.isEmpty())
+            this.invokeOnReceive(connection, frame.toByteArray());
+    }
+
+    public void invokeOnReceiveMessage(TCPConnection connection, Object message) {
+        for(MessageListener onReceiveMessage : receiveMessageListeners.get())
+            onReceiveMessage.onMessage(connection, message);
+    }
+
+    public void invokeOnReceiveBatch(TCPConnection connection, FrameBatch batch) {
+        for(FrameBatchListener onReceiveBatch : receiveBatchListeners.get())
+            onReceiveBatch.onBatch(connection, batch);
+
+        // frame by frame for byte[] listeners
+        if(!receiveListeners.isEmpty())
+            for(int i = 0; i < batch.size(); i++)
+                this.invokeOnReceive(connection, batch.get(i));
+    }
+
     public void invokeOnReadComplete(TCPConnection connection) {
-        for(TCPConnectionConsumer onReadComplete : readCompleteListeners)
+        for(TCPConnectionConsumer onReadComplete : readCompleteListeners.get())
             onReadComplete.accept(connection);
     }
 
     public void invokeOnError(TCPConnection connection, ErrorSource source, Throwable throwable) {
-        for(ErrorListener onError : errorListeners)
+        for(ErrorListener onError : errorListeners.get())
             onError.onError(connection, source, throwable);
     }
 
     public void invokeOnSend(TCPConnection connection, byte[] data) {
-        for(DataListener onSend : sendListeners)
+        for(DataListener onSend : sendListeners.get())
             onSend.onData(connection, data);
     }
 
@@ -0,0 +1,11 @@
+package generaloss.networkforge.tcp.listener;
+
+import generaloss.networkforge.tcp.TCPConnection;
+
+@FunctionalInterface
+public interface MessageListener {
+
+    /** @param message object decoded by a decoder stage of the pipeline */
+    void onMessage(TCPConnection connection, Object message);
+
+}
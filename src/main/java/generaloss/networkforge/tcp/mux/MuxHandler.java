@@ -0,0 +1,169 @@
+package generaloss.networkforge.tcp.mux;
+
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/** Logical streams over one connection with credit-based flow control.
+ * Requires a message-preserving codec ({@link generaloss.networkforge.tcp.codec.CodecType#FRAMED}).
+ * Frame: [short reserved ID][byte type][int stream ID][payload] */
+public class MuxHandler extends EventHandler {
+
+    public static final short MUX_FRAME_ID = (short) 0xFFFC;
+    static final int HEADER_SIZE = (Short.BYTES + Byte.BYTES + Integer.BYTES);
+
+    static final byte FRAME_OPEN = 1;
+    static final byte FRAME_DATA = 2;
+    static final byte FRAME_DATA_END = 3;
+    static final byte FRAME_CREDIT = 4;
+    static final byte FRAME_CLOSE = 5;
+
+    public static final int DEFAULT_CHUNK_SIZE = (16 * 1024);
+    public static final int DEFAULT_INITIAL_WINDOW = (256 * 1024);
+    public static final int DEFAULT_MAX_PEER_STREAMS = 1024;
+    public static final int DEFAULT_MAX_QUEUED_BYTES = (4 * 1024 * 1024);
+
+    private final boolean clientSide;
+    private final AttributeKey<MuxSession> sessionKey;
+    private final List<Consumer<MuxStream>> streamOpenListeners;
+    private volatile int chunkSize;
+    private volatile int initialWindow;
+    private volatile int maxPeerStreams;
+    private volatile int maxQueuedBytes;
+
+    /** @param clientSide selects stream ID parity, must differ on the two ends */
+    public MuxHandler(boolean clientSide) {
+        this.clientSide = clientSide;
+        this.sessionKey = new AttributeKey<>("mux session");
+        this.streamOpenListeners = Collections.synchronizedList(new ArrayList<>());
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.initialWindow = DEFAULT_INITIAL_WINDOW;
+        this.maxPeerStreams = DEFAULT_MAX_PEER_STREAMS;
+        this.maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    }
+
+
+    public boolean isClientSide() {
+        return clientSide;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public MuxHandler setChunkSize(int chunkSize) {
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("Argument 'chunkSize' must be > 0");
+
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getInitialWindow() {
+        return initialWindow;
+    }
+
+    /** Per-stream receive window, must be equal on the two ends. */
+    public MuxHandler setInitialWindow(int initialWindow) {
+        if(initialWindow < 2)
+            throw new IllegalArgumentException("Argument 'initialWindow' must be > 1");
+
+        this.initialWindow = initialWindow;
+        return this;
+    }
+
+    public int getMaxPeerStreams() {
+        return maxPeerStreams;
+    }
+
+    /** Streams opened by the other end at once, further ones are refused (closed right away). */
+    public MuxHandler setMaxPeerStreams(int maxPeerStreams) {
+        if(maxPeerStreams < 0)
+            throw new IllegalArgumentException("Argument 'maxPeerStreams' must be >= 0");
+
+        this.maxPeerStreams = maxPeerStreams;
+        return this;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /** Per-stream bytes waiting for credit, over it {@code send} returns false.
+     * A message is always accepted into an empty queue. */
+    public MuxHandler setMaxQueuedBytes(int maxQueuedBytes) {
+        if(maxQueuedBytes < 0)
+            throw new IllegalArgumentException("Argument 'maxQueuedBytes' must be >= 0");
+
+        this.maxQueuedBytes = maxQueuedBytes;
+        return this;
+    }
+
+
+    public void registerOnStreamOpen(Consumer<MuxStream> onStreamOpen) {
+        streamOpenListeners.add(onStreamOpen);
+    }
+
+    public boolean unregisterOnStreamOpen(Consumer<MuxStream> onStreamOpen) {
+        return streamOpenListeners.remove(onStreamOpen);
+    }
+
+    void invokeOnStreamOpen(MuxStream stream) {
+        synchronized(streamOpenListeners) {
+            for(Consumer<MuxStream> listener : streamOpenListeners)
+                listener.accept(stream);
+        }
+    }
+
+
+    private MuxSession getSession(TCPConnection connection) {
+        return connection.getAttributes().computeIfAbsent(sessionKey, () -> new MuxSession(this, connection));
+    }
+
+    public MuxStream openStream(TCPConnection connection) {
+        if(connection == null)
+            throw new IllegalArgumentException("Argument 'connection' cannot be null");
+        if(connection.isClosed())
+            throw new IllegalStateException("Connection is closed");
+
+        return this.getSession(connection).openStream();
+    }
+
+    public int getStreamCount(TCPConnection connection) {
+        final MuxSession session = connection.getAttribute(sessionKey);
+        return (session == null ? 0 : session.getStreamCount());
+    }
+
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        if(data.length < HEADER_SIZE)
+            return true;
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        if(buffer.getShort() != MUX_FRAME_ID)
+            return true; // not a mux frame
+
+        final byte type = buffer.get();
+        final int streamID = buffer.getInt();
+        this.getSession(context.getConnection()).onFrame(type, streamID, data, HEADER_SIZE, data.length - HEADER_SIZE);
+        return false; // consumed
+    }
+
+    @Override
+    public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
+        final MuxSession session = context.getConnection().getAttributes().remove(sessionKey);
+        if(session != null)
+            session.close();
+        return true;
+    }
+
+}
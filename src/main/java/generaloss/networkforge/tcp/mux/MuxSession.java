@@ -0,0 +1,326 @@
+package generaloss.networkforge.tcp.mux;
+
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.listener.CloseReason;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Streams of one connection. Chunks are scheduled round-robin over streams that have data and credit.
+ * Frames are queued under the lock and sent outside of it, in order, by one thread at a time.
+ * Close listeners of removed streams are invoked outside of the lock too. */
+class MuxSession {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final MuxHandler handler;
+    private final TCPConnection connection;
+    private final Map<Integer, MuxStream> streams;
+    private final Queue<MuxStream> readyStreams;
+    private final Queue<byte[]> outbox; // guarded by lock
+    private final List<MuxStream> removedStreams; // guarded by lock
+    private final Object lock;
+    private int nextStreamID;
+    private int peerStreamCount;
+    private boolean sending;
+    private boolean closed;
+
+    MuxSession(MuxHandler handler, TCPConnection connection) {
+        this.handler = handler;
+        this.connection = connection;
+        this.streams = new ConcurrentHashMap<>();
+        this.readyStreams = new ArrayDeque<>();
+        this.outbox = new ArrayDeque<>();
+        this.removedStreams = new ArrayList<>();
+        this.lock = new Object();
+        this.nextStreamID = (handler.isClientSide() ? 1 : 2); // odd - client, even - server
+    }
+
+    TCPConnection getConnection() {
+        return connection;
+    }
+
+    int getStreamCount() {
+        return streams.size();
+    }
+
+
+    MuxStream openStream() {
+        final MuxStream stream;
+        synchronized(lock) {
+            if(closed)
+                throw new IllegalStateException("Connection is closed");
+
+            final int streamID = nextStreamID;
+            nextStreamID += 2;
+
+            stream = new MuxStream(this, streamID, handler.getInitialWindow());
+            streams.put(streamID, stream);
+            this.sendFrame(MuxHandler.FRAME_OPEN, streamID, EMPTY, 0, 0);
+        }
+        this.sendQueuedFrames();
+        return stream;
+    }
+
+    boolean enqueue(MuxStream stream, byte[] data) {
+        synchronized(lock) {
+            if(closed || stream.closed || stream.closeRequested)
+                return false;
+            if(stream.outgoingSize > 0L && stream.outgoingSize + data.length > handler.getMaxQueuedBytes())
+                return false; // peer does not keep up
+
+            stream.outgoing.add(data);
+            stream.outgoingSize += data.length;
+            this.markReady(stream);
+            this.flush();
+        }
+        this.invokeRemovedStreams();
+        this.sendQueuedFrames();
+        return true;
+    }
+
+    void requestClose(MuxStream stream) {
+        synchronized(lock) {
+            if(closed || stream.closed || stream.closeRequested)
+                return;
+
+            stream.closeRequested = true;
+            this.markReady(stream);
+            this.flush();
+        }
+        this.invokeRemovedStreams();
+        this.sendQueuedFrames();
+    }
+
+    private void markReady(MuxStream stream) {
+        if(stream.ready)
+            return;
+
+        stream.ready = true;
+        readyStreams.add(stream);
+    }
+
+    private void flush() {
+        final int chunkSize = handler.getChunkSize();
+
+        while(!readyStreams.isEmpty()) {
+            final MuxStream stream = readyStreams.poll();
+            stream.ready = false;
+            if(stream.closed)
+                continue;
+
+            final byte[] message = stream.outgoing.peek();
+            if(message == null) {
+                if(stream.closeRequested) {
+                    this.sendFrame(MuxHandler.FRAME_CLOSE, stream.getStreamID(), EMPTY, 0, 0);
+                    this.removeStream(stream);
+                }
+                continue;
+            }
+
+            final int offset = stream.outgoingOffset;
+            final int remaining = (message.length - offset);
+            if(remaining > 0 && stream.sendCredit <= 0L)
+                continue; // parked until credit arrives
+
+            final int length = (int) Math.min(Math.min(remaining, chunkSize), Math.max(stream.sendCredit, 0L));
+            final boolean last = (length == remaining);
+            this.sendFrame((last ? MuxHandler.FRAME_DATA_END : MuxHandler.FRAME_DATA), stream.getStreamID(), message, offset, length);
+
+            stream.sendCredit -= length;
+            stream.outgoingSize -= length;
+            if(last) {
+                stream.outgoing.poll();
+                stream.outgoingOffset = 0;
+            } else {
+                stream.outgoingOffset += length;
+            }
+
+            // one chunk per turn - interleave with other streams
+            if(!stream.outgoing.isEmpty() || stream.closeRequested)
+                this.markReady(stream);
+        }
+    }
+
+    /** Queues the frame, called under the lock. */
+    private void sendFrame(byte type, int streamID, byte[] data, int offset, int length) {
+        final byte[] frame = ByteBuffer.allocate(MuxHandler.HEADER_SIZE + length)
+            .putShort(MuxHandler.MUX_FRAME_ID)
+            .put(type)
+            .putInt(streamID)
+            .put(data, offset, length)
+            .array();
+        outbox.add(frame);
+    }
+
+    /** Sends queued frames outside the lock: a slow pipeline does not block other streams.
+     * Frames queued meanwhile by other threads are sent by the thread already sending. */
+    private void sendQueuedFrames() {
+        synchronized(lock) {
+            if(sending)
+                return;
+            sending = true;
+        }
+
+        while(true) {
+            final byte[] frame;
+            synchronized(lock) {
+                frame = outbox.poll();
+                if(frame == null) {
+                    sending = false; // with the check: frames queued later find nobody sending
+                    return;
+                }
+            }
+
+            try {
+                connection.getEventPipeline().fireSendFrom(handler, connection, frame);
+            } catch (RuntimeException e) {
+                synchronized(lock) {
+                    sending = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /** Called under the lock, the close listener is invoked later by {@link #invokeRemovedStreams()}. */
+    private void removeStream(MuxStream stream) {
+        stream.closed = true;
+        stream.outgoing.clear();
+        stream.outgoingSize = 0L;
+        streams.remove(stream.getStreamID());
+        if(this.isPeerStreamID(stream.getStreamID()))
+            peerStreamCount--;
+        removedStreams.add(stream);
+    }
+
+    private void invokeRemovedStreams() {
+        final List<MuxStream> removed;
+        synchronized(lock) {
+            if(removedStreams.isEmpty())
+                return;
+            removed = new ArrayList<>(removedStreams);
+            removedStreams.clear();
+        }
+        for(MuxStream stream : removed)
+            stream.invokeOnClose();
+    }
+
+    private boolean isPeerStreamID(int streamID) {
+        final boolean odd = ((streamID & 1) == 1);
+        return (odd != handler.isClientSide()); // odd - client, even - server
+    }
+
+
+    /** Called from the selector thread. */
+    void onFrame(byte type, int streamID, byte[] frame, int offset, int length) {
+        if(type == MuxHandler.FRAME_OPEN) {
+            if(streamID <= 0 || !this.isPeerStreamID(streamID)) {
+                connection.close(CloseReason.PROTOCOL_ERROR, new IllegalStateException("Stream ID " + streamID + " has the parity of locally opened streams"));
+                return;
+            }
+
+            final MuxStream stream;
+            synchronized(lock) {
+                if(closed || streams.containsKey(streamID))
+                    return;
+
+                if(peerStreamCount >= handler.getMaxPeerStreams()) {
+                    this.sendFrame(MuxHandler.FRAME_CLOSE, streamID, EMPTY, 0, 0); // refused
+                    stream = null;
+                }else{
+                    stream = new MuxStream(this, streamID, handler.getInitialWindow());
+                    streams.put(streamID, stream);
+                    peerStreamCount++;
+                }
+            }
+            this.sendQueuedFrames();
+            if(stream != null)
+                handler.invokeOnStreamOpen(stream);
+            return;
+        }
+
+        final MuxStream stream = streams.get(streamID);
+        if(stream == null)
+            return; // already closed
+
+        switch(type) {
+            case MuxHandler.FRAME_DATA:
+            case MuxHandler.FRAME_DATA_END:
+                // flow control limits data in flight, not the size of a message
+                if(stream.incoming.size() + (long) length > connection.getOptions().getMaxReadFrameSize()) {
+                    connection.close(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, null);
+                    return;
+                }
+                stream.incoming.write(frame, offset, length);
+                stream.receivedUnacknowledged += length;
+
+                if(type == MuxHandler.FRAME_DATA_END) {
+                    final byte[] message = stream.incoming.toByteArray();
+                    stream.incoming.reset();
+                    stream.invokeOnData(message);
+                }
+
+                // return credit when half of the window is consumed
+                if(stream.receivedUnacknowledged >= (handler.getInitialWindow() >> 1)) {
+                    final byte[] increment = ByteBuffer.allocate(Integer.BYTES).putInt(stream.receivedUnacknowledged).array();
+                    stream.receivedUnacknowledged = 0;
+                    synchronized(lock) {
+                        if(!stream.closed)
+                            this.sendFrame(MuxHandler.FRAME_CREDIT, streamID, increment, 0, increment.length);
+                    }
+                    this.sendQueuedFrames();
+                }
+                break;
+
+            case MuxHandler.FRAME_CREDIT:
+                if(length < Integer.BYTES)
+                    return;
+                final int increment = ByteBuffer.wrap(frame, offset, length).getInt();
+                synchronized(lock) {
+                    stream.sendCredit += increment;
+                    if(!stream.outgoing.isEmpty())
+                        this.markReady(stream);
+                    this.flush();
+                }
+                this.invokeRemovedStreams();
+                this.sendQueuedFrames();
+                break;
+
+            case MuxHandler.FRAME_CLOSE:
+                synchronized(lock) {
+                    if(stream.closed)
+                        return;
+                    this.removeStream(stream);
+                }
+                this.invokeRemovedStreams();
+                break;
+        }
+    }
+
+    void close() {
+        final List<MuxStream> closedStreams;
+        synchronized(lock) {
+            closed = true;
+            readyStreams.clear();
+            outbox.clear();
+            closedStreams = new ArrayList<>(removedStreams);
+            removedStreams.clear();
+            for(MuxStream stream : streams.values()) {
+                stream.closed = true;
+                stream.outgoing.clear();
+                stream.outgoingSize = 0L;
+                closedStreams.add(stream);
+            }
+            streams.clear();
+        }
+        for(MuxStream stream : closedStreams)
+            stream.invokeOnClose();
+    }
+
+}
@@ -0,0 +1,153 @@
+package generaloss.networkforge.tcp.mux;
+
+import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.tcp.Sendable;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.resourceflow.stream.BinaryStreamWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/** Logical stream inside a multiplexed connection.
+ * Sent arrays are queued without copying and must not be modified after {@code send}. */
+public class MuxStream implements Sendable {
+
+    private final MuxSession session;
+    private final int streamID;
+
+    private volatile MuxStreamListener dataListener;
+    private volatile Consumer<MuxStream> closeListener;
+    private volatile Object attachment;
+
+    // send state, guarded by session lock
+    final Queue<byte[]> outgoing;
+    int outgoingOffset;
+    long outgoingSize; // bytes not sent yet
+    long sendCredit;
+    boolean closeRequested;
+    boolean ready;
+
+    // receive state, selector thread only
+    final ByteArrayOutputStream incoming;
+    int receivedUnacknowledged;
+
+    volatile boolean closed;
+
+    MuxStream(MuxSession session, int streamID, int initialWindow) {
+        this.session = session;
+        this.streamID = streamID;
+        this.outgoing = new ArrayDeque<>();
+        this.sendCredit = initialWindow;
+        this.incoming = new ByteArrayOutputStream();
+    }
+
+
+    public int getStreamID() {
+        return streamID;
+    }
+
+    public TCPConnection getConnection() {
+        return session.getConnection();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public MuxStream setDataListener(MuxStreamListener dataListener) {
+        this.dataListener = dataListener;
+        return this;
+    }
+
+    public MuxStream setCloseListener(Consumer<MuxStream> closeListener) {
+        this.closeListener = closeListener;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <O> O attachment() {
+        return (O) attachment;
+    }
+
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /** Already queued data is sent before the stream is closed. */
+    public void close() {
+        session.requestClose(this);
+    }
+
+
+    void invokeOnData(byte[] data) {
+        final MuxStreamListener listener = dataListener;
+        if(listener != null)
+            listener.onData(this, data);
+    }
+
+    void invokeOnClose() {
+        final Consumer<MuxStream> listener = closeListener;
+        if(listener != null)
+            listener.accept(this);
+    }
+
+
+    /** @return false if the stream is closed or its queue is full ({@link MuxHandler#setMaxQueuedBytes(int)}) */
+    @Override
+    public boolean send(byte[] data) {
+        if(data == null)
+            throw new IllegalArgumentException("Argument 'data' cannot be null");
+        return session.enqueue(this, data);
+    }
+
+    @Override
+    public boolean send(ByteBuffer buffer) {
+        if(buffer == null)
+            throw new IllegalArgumentException("Argument 'buffer' cannot be null");
+
+        final byte[] byteArray = new byte[buffer.remaining()];
+        buffer.duplicate().get(byteArray);
+        return this.send(byteArray);
+    }
+
+    @Override
+    public boolean send(String string) {
+        if(string == null)
+            throw new IllegalArgumentException("Argument 'string' cannot be null");
+        return this.send(string.getBytes());
+    }
+
+    @Override
+    public boolean send(BinaryStreamWriter streamWriter) {
+        if(streamWriter == null)
+            throw new IllegalArgumentException("Argument 'streamWriter' cannot be null");
+
+        try {
+            return this.send(BinaryStreamWriter.toByteArray(streamWriter));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean send(NetPacket packet) {
+        if(packet == null)
+            throw new IllegalArgumentException("Argument 'packet' cannot be null");
+
+        try {
+            return this.send(packet.toByteArray());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (MuxStream.class.getSimpleName() + "#" + streamID);
+    }
+
+}
@@ -0,0 +1,8 @@
+package generaloss.networkforge.tcp.mux;
+
+@FunctionalInterface
+public interface MuxStreamListener {
+
+    void onData(MuxStream stream, byte[] data);
+
+}
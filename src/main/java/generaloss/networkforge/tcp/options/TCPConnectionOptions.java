@@ -78,6 +78,59 @@ public class TCPConnectionOptions extends SocketOptions {
     }
 
 
+    private int sendChunkSize;
+
+    public int getSendChunkSize() {
+        return sendChunkSize;
+    }
+
+    /** Used only by FramedConnectionCodec: larger non-HIGH frames are split into chunks of this size.
+      * Chunking is disabled while value is set to 0. */
+    public TCPConnectionOptions setSendChunkSize(int sendChunkSize) {
+        if(sendChunkSize < 0)
+            throw new IllegalArgumentException("Argument 'sendChunkSize' must be >= 0");
+
+        this.sendChunkSize = sendChunkSize;
+        return this;
+    }
+
+
+    private int streamingReceiveThreshold;
+
+    public int getStreamingReceiveThreshold() {
+        return streamingReceiveThreshold;
+    }
+
+    /** Used only by FramedConnectionCodec: larger received frames are delivered in chunks as bytes arrive
+      * (see EventHandler.handleReceiveChunk) and are not limited by maxReadFrameSize.
+      * Streaming is disabled while value is set to 0 or decryption is enabled. */
+    public TCPConnectionOptions setStreamingReceiveThreshold(int streamingReceiveThreshold) {
+        if(streamingReceiveThreshold < 0)
+            throw new IllegalArgumentException("Argument 'streamingReceiveThreshold' must be >= 0");
+
+        this.streamingReceiveThreshold = streamingReceiveThreshold;
+        return this;
+    }
+
+
+    private int compositeReceiveThreshold;
+
+    public int getCompositeReceiveThreshold() {
+        return compositeReceiveThreshold;
+    }
+
+    /** Used only by FramedConnectionCodec: larger received frames are kept in pooled 64 Kb. chunks
+      * and delivered as CompositeFrame (see EventHandler.handleReceiveComposite) without copying into one array.
+      * Disabled while value is set to 0 or decryption is enabled. */
+    public TCPConnectionOptions setCompositeReceiveThreshold(int compositeReceiveThreshold) {
+        if(compositeReceiveThreshold < 0)
+            throw new IllegalArgumentException("Argument 'compositeReceiveThreshold' must be >= 0");
+
+        this.compositeReceiveThreshold = compositeReceiveThreshold;
+        return this;
+    }
+
+
     @Override
     public String toString() {
         return TCPConnectionOptions.class.getSimpleName() + "{" +
@@ -85,6 +138,9 @@ public class TCPConnectionOptions extends SocketOptions {
             ", MAX_WRITE_FRAME_SIZE=" + maxWriteFrameSize +
             ", CLOSE_ON_FRAME_SIZE_LIMIT=" + closeOnFrameReadSizeExceed +
             ", FRAME_BUFFER_SIZE_UPEER_BOUND=" + frameBufferSizeUpperBound +
+            ", SEND_CHUNK_SIZE=" + sendChunkSize +
+            ", STREAMING_RECEIVE_THRESHOLD=" + streamingReceiveThreshold +
+            ", COMPOSITE_RECEIVE_THRESHOLD=" + compositeReceiveThreshold +
             ", " + super.optionsToString() + "}";
     }
 
@@ -4,6 +4,9 @@ public class TCPConnectionOptionsHolder extends SocketOptionsHolder {
 
     public static final int DEFAULT_MAX_FRAME_SIZE = (8 * 1024 * 1024); // 8 Mb.  (Integer.MAX_VALUE ≈ 2 Gb)
     public static final int DEFAULT_FRAME_BUFFER_SIZE_UPPER_BOUND = (2 * 1024 * 1024); // 2 Mb.
+    public static final int DEFAULT_SEND_CHUNK_SIZE = 0; // disabled: peers without chunk support reject chunked frames
+    public static final int DEFAULT_STREAMING_RECEIVE_THRESHOLD = 0; // disabled
+    public static final int DEFAULT_COMPOSITE_RECEIVE_THRESHOLD = 0; // disabled
 
 
     private int maxReadFrameSize = DEFAULT_MAX_FRAME_SIZE;
@@ -75,11 +78,67 @@ public class TCPConnectionOptionsHolder extends SocketOptionsHolder {
     }
 
 
+    private int sendChunkSize = DEFAULT_SEND_CHUNK_SIZE;
+
+    public int getSendChunkSize() {
+        return sendChunkSize;
+    }
+
+    /** Used only by FramedConnectionCodec: larger non-HIGH frames are split into chunks of this size.
+      * Chunking is disabled while value is set to 0. */
+    public TCPConnectionOptionsHolder setSendChunkSize(int sendChunkSize) {
+        if(sendChunkSize < 0)
+            throw new IllegalArgumentException("Argument 'sendChunkSize' must be >= 0");
+
+        this.sendChunkSize = sendChunkSize;
+        return this;
+    }
+
+
+    private int streamingReceiveThreshold = DEFAULT_STREAMING_RECEIVE_THRESHOLD;
+
+    public int getStreamingReceiveThreshold() {
+        return streamingReceiveThreshold;
+    }
+
+    /** Used only by FramedConnectionCodec: larger received frames are delivered in chunks as bytes arrive
+      * (see EventHandler.handleReceiveChunk) and are not limited by maxReadFrameSize.
+      * Streaming is disabled while value is set to 0 or decryption is enabled. */
+    public TCPConnectionOptionsHolder setStreamingReceiveThreshold(int streamingReceiveThreshold) {
+        if(streamingReceiveThreshold < 0)
+            throw new IllegalArgumentException("Argument 'streamingReceiveThreshold' must be >= 0");
+
+        this.streamingReceiveThreshold = streamingReceiveThreshold;
+        return this;
+    }
+
+
+    private int compositeReceiveThreshold = DEFAULT_COMPOSITE_RECEIVE_THRESHOLD;
+
+    public int getCompositeReceiveThreshold() {
+        return compositeReceiveThreshold;
+    }
+
+    /** Used only by FramedConnectionCodec: larger received frames are kept in pooled 64 Kb. chunks
+      * and delivered as CompositeFrame (see EventHandler.handleReceiveComposite) without copying into one array.
+      * Disabled while value is set to 0 or decryption is enabled. */
+    public TCPConnectionOptionsHolder setCompositeReceiveThreshold(int compositeReceiveThreshold) {
+        if(compositeReceiveThreshold < 0)
+            throw new IllegalArgumentException("Argument 'compositeReceiveThreshold' must be >= 0");
+
+        this.compositeReceiveThreshold = compositeReceiveThreshold;
+        return this;
+    }
+
+
     public void copyTo(TCPConnectionOptions options) {
         options.setMaxReadFrameSize(maxReadFrameSize);
         options.setMaxWriteFrameSize(maxWriteFrameSize);
         options.setCloseOnFrameReadSizeExceed(closeOnFrameReadSizeExceed);
         options.setFrameBufferSizeUpperBound(frameBufferSizeUpperBound);
+        options.setSendChunkSize(sendChunkSize);
+        options.setStreamingReceiveThreshold(streamingReceiveThreshold);
+        options.setCompositeReceiveThreshold(compositeReceiveThreshold);
     }
 
 
@@ -90,6 +149,9 @@ public class TCPConnectionOptionsHolder extends SocketOptionsHolder {
             ", MAX_WRITE_FRAME_SIZE=" + maxWriteFrameSize +
             ", CLOSE_ON_FRAME_SIZE_LIMIT=" + closeOnFrameReadSizeExceed +
             ", FRAME_BUFFER_SIZE_UPEER_BOUND=" + frameBufferSizeUpperBound +
+            ", SEND_CHUNK_SIZE=" + sendChunkSize +
+            ", STREAMING_RECEIVE_THRESHOLD=" + streamingReceiveThreshold +
+            ", COMPOSITE_RECEIVE_THRESHOLD=" + compositeReceiveThreshold +
             ", " + super.optionsToString() + "}";
     }
 
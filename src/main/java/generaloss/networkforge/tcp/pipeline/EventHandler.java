@@ -1,8 +1,11 @@
 package generaloss.networkforge.tcp.pipeline;
 
+import generaloss.networkforge.tcp.codec.CompositeFrame;
 import generaloss.networkforge.tcp.listener.CloseReason;
 import generaloss.networkforge.tcp.listener.ErrorSource;
 
+import java.nio.ByteBuffer;
+
 public abstract class EventHandler {
 
     public boolean handleConnect(EventInvocationContext context) {
@@ -17,6 +20,21 @@ public abstract class EventHandler {
         return true;
     }
 
+    /** Part of a frame received in streaming mode (see streamingReceiveThreshold option).
+     * @param chunk read-only, valid only during the call */
+    public boolean handleReceiveChunk(EventInvocationContext context, int frameID, ByteBuffer chunk, boolean last) {
+        return true;
+    }
+
+    /** Large frame kept in pooled chunks (see compositeReceiveThreshold option).
+     * By default it is flattened and passed to handleReceive, if the handler overrides it.
+     * @param frame valid only during the call */
+    public boolean handleReceiveComposite(EventInvocationContext context, CompositeFrame frame) {
+        if(!HandlerChain.overrides(this, HandlerChain.RECEIVE))
+            return true;
+        return this.handleReceive(context, frame.toByteArray());
+    }
+
     public boolean handleReadComplete(EventInvocationContext context) {
         return true;
     }
@@ -29,4 +47,22 @@ public abstract class EventHandler {
         return true;
     }
 
+    /** Frames of one read cycle, delivered instead of separate handleReceive calls
+     * once any handler overrides this method or a batch listener is registered.
+     * Handlers that override only handleReceive get the frames one by one.
+     * @param batch valid only during the call */
+    public boolean handleReceiveBatch(EventInvocationContext context, FrameBatch batch) {
+        return true;
+    }
+
+    /** Object decoded from frames by a decoder stage (see {@link MessageDecoder}). */
+    public boolean handleReceiveMessage(EventInvocationContext context, Object message) {
+        return true;
+    }
+
+    /** Object sent towards an encoder stage, which turns it into a frame (see {@link MessageEncoder}). */
+    public boolean handleSendMessage(EventInvocationContext context, Object message) {
+        return true;
+    }
+
 }
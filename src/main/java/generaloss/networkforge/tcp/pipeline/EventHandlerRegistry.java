@@ -1,34 +1,71 @@
 package generaloss.networkforge.tcp.pipeline;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 class EventHandlerRegistry {
 
+    private final EventHandlerRegistry template; // can be null
     private final List<EventHandler> handlersList;
     private final Object handlersLock;
 
-    private volatile EventHandler[] handlers;
+    private volatile HandlerChain chain; // null while the template's chain is used
 
     public EventHandlerRegistry() {
+        this(null);
+    }
+
+    /** @param template handlers are taken from it until this registry is changed */
+    EventHandlerRegistry(EventHandlerRegistry template) {
+        this.template = template;
         this.handlersList = new ArrayList<>();
         this.handlersLock = new Object();
 
-        this.handlers = new EventHandler[0];
+        this.chain = (template == null ? HandlerChain.EMPTY : null);
     }
 
 
     public EventHandler[] getHandlers() {
-        return handlers;
+        return this.getChain().getHandlers();
+    }
+
+    HandlerChain getChain() {
+        final HandlerChain chain = this.chain;
+        if(chain != null)
+            return chain;
+        return template.getChain();
+    }
+
+    /** @return true if handlers were changed here rather than following the template */
+    public boolean hasOwnHandlers() {
+        return (template != null && chain != null);
+    }
+
+    /** @return compiled chain of the handlers, usually the committed one */
+    HandlerChain chainOf(EventHandler[] handlers) {
+        final HandlerChain chain = this.getChain();
+        if(chain.getHandlers() == handlers)
+            return chain;
+        return new HandlerChain(handlers); // snapshot of an earlier commit
     }
 
     private void commit() {
-        handlers = handlersList.toArray(EventHandler[]::new);
+        chain = new HandlerChain(handlersList.toArray(EventHandler[]::new));
+    }
+
+    /** Takes a copy of the template handlers before the first change. */
+    private void detach() {
+        if(chain != null)
+            return;
+        handlersList.addAll(Arrays.asList(template.getHandlers()));
+        this.commit();
     }
 
 
     public void addHandlerLast(EventHandler handler) {
         synchronized(handlersLock) {
+            this.detach();
             handlersList.add(handler);
             this.commit();
         }
@@ -36,6 +73,7 @@ class EventHandlerRegistry {
 
     public void addHandlerFirst(EventHandler handler) {
         synchronized(handlersLock) {
+            this.detach();
             handlersList.add(0, handler);
             this.commit();
         }
@@ -43,19 +81,19 @@ class EventHandlerRegistry {
 
     public void addHandler(int index, EventHandler handler) {
         synchronized(handlersLock) {
+            this.detach();
             handlersList.add(index, handler);
             this.commit();
         }
     }
 
     public EventHandler getHandler(int index) {
-        synchronized(handlersLock) {
-            return handlersList.get(index);
-        }
+        return this.getHandlers()[index];
     }
 
     public void removeHandler(int index) {
         synchronized(handlersLock) {
+            this.detach();
             handlersList.remove(index);
             this.commit();
         }
@@ -63,6 +101,7 @@ class EventHandlerRegistry {
 
     public void removeHandler(EventHandler handler) {
         synchronized(handlersLock) {
+            this.detach();
             handlersList.remove(handler);
             this.commit();
         }
@@ -70,15 +109,14 @@ class EventHandlerRegistry {
 
     public void clearHandlers() {
         synchronized(handlersLock) {
+            this.detach();
             handlersList.clear();
             this.commit();
         }
     }
 
     public int size() {
-        synchronized(handlersLock) {
-            return handlersList.size();
-        }
+        return this.getHandlers().length;
     }
 
 }
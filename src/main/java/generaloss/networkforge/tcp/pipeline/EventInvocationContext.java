@@ -1,7 +1,11 @@
 package generaloss.networkforge.tcp.pipeline;
 
 import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.tcp.SendPriority;
 import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.attribute.AttributeMap;
+import generaloss.networkforge.tcp.codec.CompositeFrame;
 import generaloss.networkforge.tcp.listener.CloseReason;
 import generaloss.networkforge.tcp.listener.ErrorListener;
 import generaloss.networkforge.tcp.listener.ErrorSource;
@@ -10,17 +14,44 @@ import generaloss.resourceflow.stream.BinaryStreamWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+/** Position of an event in the pipeline. Contexts are reused by the dispatching thread,
+ * so a context is valid only during the handler call and must not be kept. */
 public class EventInvocationContext {
 
-    private final EventPipeline pipeline;
-    private final TCPConnection connection; // can be null
-    private final EventHandler[] handlersShapshot;
+    private EventPipeline pipeline;
+    private TCPConnection connection; // can be null
+    private HandlerChain chain;
+    private EventHandler[] handlersShapshot;
     private int handlerIndex;
+    private SendPriority sendPriority;
+    private FrameBatch receivedFrames; // collects frames received further while a frame handler goes through a batch
+    private boolean sendAccepted; // the handler took the send over and it went further
 
     public EventInvocationContext(EventPipeline pipeline, TCPConnection connection, EventHandler[] handlersShapshot) {
+        this(pipeline, connection, pipeline.chainOf(handlersShapshot));
+    }
+
+    EventInvocationContext(EventPipeline pipeline, TCPConnection connection, HandlerChain chain) {
+        this.reset(pipeline, connection, chain);
+    }
+
+    void reset(EventPipeline pipeline, TCPConnection connection, HandlerChain chain) {
         this.pipeline = pipeline;
         this.connection = connection;
-        this.handlersShapshot = handlersShapshot; // preserve handlers state within a single event
+        this.chain = chain; // preserve handlers state within a single event
+        this.handlersShapshot = chain.getHandlers();
+        this.handlerIndex = 0;
+        this.sendPriority = SendPriority.DEFAULT;
+        this.receivedFrames = null;
+        this.sendAccepted = false;
+    }
+
+    void clear() {
+        this.pipeline = null;
+        this.connection = null;
+        this.chain = null;
+        this.handlersShapshot = null;
+        this.receivedFrames = null;
     }
 
     public EventPipeline getEventPipeline() {
@@ -35,6 +66,18 @@ public class EventInvocationContext {
         return handlersShapshot;
     }
 
+    public AttributeMap getAttributes() {
+        return connection.getAttributes();
+    }
+
+    public <T> T getAttribute(AttributeKey<T> key) {
+        return connection.getAttribute(key);
+    }
+
+    public <T> void setAttribute(AttributeKey<T> key, T value) {
+        connection.setAttribute(key, value);
+    }
+
 
     protected void setHandlerIndex(int handlerIndex) {
         this.handlerIndex = handlerIndex;
@@ -45,6 +88,16 @@ public class EventInvocationContext {
     }
 
 
+    protected void setSendPriority(SendPriority sendPriority) {
+        this.sendPriority = sendPriority;
+    }
+
+    /** Priority of the send event, kept for data sent further by handlers. */
+    public SendPriority getSendPriority() {
+        return sendPriority;
+    }
+
+
     protected boolean invokeConnect() {
         if(handlerIndex == handlersShapshot.length) {
             pipeline.getTarget().invokeOnConnect(connection);
@@ -93,6 +146,43 @@ public class EventInvocationContext {
         }
     }
 
+    protected boolean invokeReceiveChunk(int frameID, ByteBuffer chunk, boolean last) {
+        if(handlerIndex == handlersShapshot.length) {
+            pipeline.getTarget().invokeOnReceiveChunk(connection, frameID, chunk, last);
+            return false; // break
+        }
+
+        final int position = chunk.position();
+        final int limit = chunk.limit();
+        try {
+            final EventHandler handler = handlersShapshot[handlerIndex];
+            return handler.handleReceiveChunk(this, frameID, chunk, last);
+
+        } catch (Throwable t) {
+            this.error(ErrorSource.RECEIVE_CHUNK_HANDLER, t);
+            return false; // break
+
+        } finally {
+            chunk.limit(limit).position(position); // next handler reads the same bytes
+        }
+    }
+
+    protected boolean invokeReceiveComposite(CompositeFrame frame) {
+        if(handlerIndex == handlersShapshot.length) {
+            pipeline.getTarget().invokeOnReceiveComposite(connection, frame);
+            return false; // break
+        }
+
+        try {
+            final EventHandler handler = handlersShapshot[handlerIndex];
+            return handler.handleReceiveComposite(this, frame);
+
+        } catch (Throwable t) {
+            this.error(ErrorSource.RECEIVE_HANDLER, t);
+            return false; // break
+        }
+    }
+
     protected boolean invokeReadComplete() {
         if(handlerIndex == handlersShapshot.length) {
             pipeline.getTarget().invokeOnReadComplete(connection);
@@ -125,13 +215,80 @@ public class EventInvocationContext {
         }
     }
 
+    protected boolean invokeReceiveBatch(FrameBatch batch) {
+        if(handlerIndex == handlersShapshot.length) {
+            pipeline.getTarget().invokeOnReceiveBatch(connection, batch);
+            return false; // break
+        }
+
+        final EventHandler handler = handlersShapshot[handlerIndex];
+        if(HandlerChain.overrides(handler, HandlerChain.RECEIVE_BATCH)) {
+            try {
+                return (handler.handleReceiveBatch(this, batch) && !batch.isEmpty());
+
+            } catch (Throwable t) {
+                this.error(ErrorSource.RECEIVE_HANDLER, t);
+                return false; // break
+            }
+        }
+
+        // frame by frame: frames passed or received further stay in the batch
+        receivedFrames = batch.spare();
+        try {
+            for(int i = 0; i < batch.size(); i++) {
+                final byte[] frame = batch.get(i);
+                try {
+                    if(handler.handleReceive(this, frame))
+                        receivedFrames.add(frame);
+                } catch (Throwable t) {
+                    this.error(ErrorSource.RECEIVE_HANDLER, t);
+                }
+            }
+        } finally {
+            receivedFrames = null;
+        }
+        batch.takeSpare();
+        return !batch.isEmpty();
+    }
+
+    protected boolean invokeReceiveMessage(Object message) {
+        if(handlerIndex == handlersShapshot.length) {
+            pipeline.getTarget().invokeOnReceiveMessage(connection, message);
+            return false; // break
+        }
+
+        try {
+            final EventHandler handler = handlersShapshot[handlerIndex];
+            return handler.handleReceiveMessage(this, message);
+
+        } catch (Throwable t) {
+            this.error(ErrorSource.RECEIVE_HANDLER, t);
+            return false; // break
+        }
+    }
+
+    protected boolean invokeSendMessage(Object message) {
+        sendAccepted = false;
+        try {
+            final EventHandler handler = handlersShapshot[handlerIndex];
+            return handler.handleSendMessage(this, message);
+
+        } catch (Throwable t) {
+            this.error(ErrorSource.SEND_HANDLER, t);
+            sendAccepted = false;
+            return false; // break
+        }
+    }
+
     protected boolean invokeSend(byte[] data) {
+        sendAccepted = false;
         try {
             final EventHandler handler = handlersShapshot[handlerIndex];
             return handler.handleSend(this, data);
 
         } catch (Throwable t) {
             this.error(ErrorSource.SEND_HANDLER, t);
+            sendAccepted = false;
             return false; // break
         }
     }
@@ -139,7 +296,7 @@ public class EventInvocationContext {
 
     public void connect(TCPConnection connection) {
         final int nextIndex = (handlerIndex + 1);
-        pipeline.fireConnect(handlersShapshot, nextIndex, connection);
+        pipeline.fireConnect(chain, nextIndex, connection);
     }
 
     public void connect() {
@@ -149,7 +306,7 @@ public class EventInvocationContext {
 
     public void disconnect(TCPConnection connection, CloseReason reason, Exception e) {
         final int nextIndex = (handlerIndex + 1);
-        pipeline.fireDisconnect(handlersShapshot, nextIndex, connection, reason, e);
+        pipeline.fireDisconnect(chain, nextIndex, connection, reason, e);
     }
 
     public void disconnect(CloseReason reason, Exception e) {
@@ -158,8 +315,15 @@ public class EventInvocationContext {
 
 
     public void receive(TCPConnection connection, byte[] data) {
+        if(receivedFrames != null && connection == this.connection) {
+            if(data == null)
+                throw new IllegalArgumentException("Argument 'data' cannot be null");
+            receivedFrames.add(data); // continues with the batch
+            return;
+        }
+
         final int nextIndex = (handlerIndex + 1);
-        pipeline.fireReceive(handlersShapshot, nextIndex, connection, data);
+        pipeline.fireReceive(chain, nextIndex, connection, data);
     }
 
     public void receive(byte[] data) {
@@ -224,9 +388,39 @@ public class EventInvocationContext {
     }
 
 
+    public void receiveChunk(TCPConnection connection, int frameID, ByteBuffer chunk, boolean last) {
+        final int nextIndex = (handlerIndex + 1);
+        pipeline.fireReceiveChunk(chain, nextIndex, connection, frameID, chunk, last);
+    }
+
+    public void receiveChunk(int frameID, ByteBuffer chunk, boolean last) {
+        this.receiveChunk(connection, frameID, chunk, last);
+    }
+
+
+    public void receiveComposite(TCPConnection connection, CompositeFrame frame) {
+        final int nextIndex = (handlerIndex + 1);
+        pipeline.fireReceiveComposite(chain, nextIndex, connection, frame);
+    }
+
+    public void receiveComposite(CompositeFrame frame) {
+        this.receiveComposite(connection, frame);
+    }
+
+
+    public void receiveMessage(TCPConnection connection, Object message) {
+        final int nextIndex = (handlerIndex + 1);
+        pipeline.fireReceiveMessage(chain, nextIndex, connection, message);
+    }
+
+    public void receiveMessage(Object message) {
+        this.receiveMessage(connection, message);
+    }
+
+
     public void readComplete(TCPConnection connection) {
         final int nextIndex = (handlerIndex - 1);
-        pipeline.fireReadComplete(handlersShapshot, nextIndex, connection);
+        pipeline.fireReadComplete(chain, nextIndex, connection);
     }
 
     public void readComplete() {
@@ -236,7 +430,10 @@ public class EventInvocationContext {
 
     public boolean send(TCPConnection connection, byte[] data) {
         final int nextIndex = (handlerIndex - 1);
-        return pipeline.fireSend(handlersShapshot, nextIndex, connection, data);
+        final boolean sent = pipeline.fireSend(chain, nextIndex, connection, data, sendPriority);
+        if(sent && connection == this.connection)
+            sendAccepted = true;
+        return sent;
     }
 
     public boolean send(byte[] data) {
@@ -244,8 +441,12 @@ public class EventInvocationContext {
     }
 
     public boolean send(TCPConnection connection, ByteBuffer buffer) {
-        final int nextIndex = (handlerIndex - 1);
-        return pipeline.fireSend(handlersShapshot, nextIndex, connection, buffer);
+        if(buffer == null)
+            throw new IllegalArgumentException("Argument 'buffer' cannot be null");
+
+        final byte[] byteArray = new byte[buffer.remaining()];
+        buffer.duplicate().get(byteArray);
+        return this.send(connection, byteArray);
     }
 
     public boolean send(ByteBuffer buffer) {
@@ -253,8 +454,9 @@ public class EventInvocationContext {
     }
 
     public boolean send(TCPConnection connection, String string) {
-        final int nextIndex = (handlerIndex - 1);
-        return pipeline.fireSend(handlersShapshot, nextIndex, connection, string);
+        if(string == null)
+            throw new IllegalArgumentException("Argument 'string' cannot be null");
+        return this.send(connection, string.getBytes());
     }
 
     public boolean send(String string) {
@@ -262,8 +464,16 @@ public class EventInvocationContext {
     }
 
     public boolean send(TCPConnection connection, BinaryStreamWriter streamWriter) {
-        final int nextIndex = (handlerIndex - 1);
-        return pipeline.fireSend(handlersShapshot, nextIndex, connection, streamWriter);
+        if(streamWriter == null)
+            throw new IllegalArgumentException("Argument 'streamWriter' cannot be null");
+
+        try {
+            final byte[] byteArray = BinaryStreamWriter.toByteArray(streamWriter);
+            return this.send(connection, byteArray);
+        } catch (IOException e) {
+            this.error(connection, ErrorSource.SEND_HANDLER, e);
+            return false;
+        }
     }
 
     public boolean send(BinaryStreamWriter streamWriter) {
@@ -271,8 +481,16 @@ public class EventInvocationContext {
     }
 
     public boolean send(TCPConnection connection, NetPacket packet) {
-        final int nextIndex = (handlerIndex - 1);
-        return pipeline.fireSend(handlersShapshot, nextIndex, connection, packet);
+        if(packet == null)
+            throw new IllegalArgumentException("Argument 'packet' cannot be null");
+
+        try {
+            final byte[] byteArray = packet.toByteArray();
+            return this.send(connection, byteArray);
+        } catch (IOException e) {
+            this.error(connection, ErrorSource.SEND_HANDLER, e);
+            return false;
+        }
     }
 
     public boolean send(NetPacket packet) {
@@ -280,9 +498,32 @@ public class EventInvocationContext {
     }
 
 
+    public boolean sendMessage(TCPConnection connection, Object message) {
+        final int nextIndex = (handlerIndex - 1);
+        final boolean sent = pipeline.fireSendMessage(chain, nextIndex, connection, message, sendPriority);
+        if(sent && connection == this.connection)
+            sendAccepted = true;
+        return sent;
+    }
+
+    /** Reports the send taken over by the handler (queued or handed over, not passed on with send) as done:
+     * a handler returning false otherwise makes the send of the connection return false. */
+    public void acceptSend() {
+        sendAccepted = true;
+    }
+
+    boolean isSendAccepted() {
+        return sendAccepted;
+    }
+
+    public boolean sendMessage(Object message) {
+        return this.sendMessage(connection, message);
+    }
+
+
     public void error(TCPConnection connection, ErrorSource source, Throwable throwable) {
         final int nextIndex = (handlerIndex + 1);
-        pipeline.fireError(handlersShapshot, nextIndex, connection, source, throwable);
+        pipeline.fireError(chain, nextIndex, connection, source, throwable);
     }
 
     public void error(ErrorSource source, Throwable throwable) {
@@ -1,7 +1,9 @@
 package generaloss.networkforge.tcp.pipeline;
 
 import generaloss.networkforge.packet.NetPacket;
+import generaloss.networkforge.tcp.SendPriority;
 import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.codec.CompositeFrame;
 import generaloss.networkforge.tcp.listener.CloseReason;
 import generaloss.networkforge.tcp.listener.ErrorSource;
 import generaloss.networkforge.tcp.listener.ListenersHolder;
@@ -18,141 +20,459 @@ public class EventPipeline extends EventHandlerRegistry {
         this.target = target;
     }
 
+    private EventPipeline(EventPipeline template) {
+        super(template);
+        this.target = template.target;
+    }
+
+    /** Pipeline of a single connection: uses the handlers of this one until its own are changed,
+     * then keeps a copy (later changes of this pipeline no longer reach it). Listeners are shared. */
+    public EventPipeline derive() {
+        return new EventPipeline(this);
+    }
+
     public ListenersHolder getTarget() {
         return target;
     }
 
 
-    private boolean isNoHandlersFor(EventHandler[] handlers, int index) {
+    private boolean isNoHandlersFor(HandlerChain chain, int index) {
+        final EventHandler[] handlers = chain.getHandlers();
         return (
             handlers.length == 0 ||
             index < 0 || index >= handlers.length
         );
     }
+
+    /** @return position of the first handler of the event in the chain, -1 if the event goes straight to the target */
+    private int firstPosition(HandlerChain chain, int event, int handlerIndexFrom) {
+        if(this.isNoHandlersFor(chain, handlerIndexFrom))
+            return -1;
+
+        final int position = chain.firstFrom(event, handlerIndexFrom);
+        return (position == chain.indicesOf(event).length - 1 ? -1 : position);
+    }
     
 
     public void fireConnect(EventHandler[] handlers, int handlerIndexFrom,
                             TCPConnection connection) {
+        this.fireConnect(this.chainOf(handlers), handlerIndexFrom, connection);
+    }
+
+    void fireConnect(HandlerChain chain, int handlerIndexFrom, TCPConnection connection) {
         if(connection == null)
             throw new RuntimeException("Argument 'connection' cannot be null");
 
-        if(this.isNoHandlersFor(handlers, handlerIndexFrom)) {
+        int position = this.firstPosition(chain, HandlerChain.CONNECT, handlerIndexFrom);
+        if(position == -1) {
             target.invokeOnConnect(connection);
             return;
         }
 
-        final EventInvocationContext context = new EventInvocationContext(this, connection, handlers);
-        do {
-            context.setHandlerIndex(handlerIndexFrom++);
-        } while (
-            context.invokeConnect()
-        );
+        final int[] indices = chain.indicesOf(HandlerChain.CONNECT);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeConnect()
+            );
+        } finally {
+            stack.release(context);
+        }
     }
     
     public void fireConnect(TCPConnection connection) {
-        this.fireConnect(super.getHandlers(), 0, connection);
+        this.fireConnect(super.getChain(), 0, connection);
     }
     
 
     public void fireDisconnect(EventHandler[] handlers, int handlerIndexFrom,
                                TCPConnection connection, CloseReason reason, Exception e) {
+        this.fireDisconnect(this.chainOf(handlers), handlerIndexFrom, connection, reason, e);
+    }
+
+    void fireDisconnect(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, CloseReason reason, Exception e) {
         if(connection == null)
             throw new RuntimeException("Argument 'connection' cannot be null");
 
-        if(this.isNoHandlersFor(handlers, handlerIndexFrom)) {
+        int position = this.firstPosition(chain, HandlerChain.DISCONNECT, handlerIndexFrom);
+        if(position == -1) {
             target.invokeOnDisconnect(connection, reason, e);
             return;
         }
 
-        final EventInvocationContext context = new EventInvocationContext(this, connection, handlers);
-        do {
-            context.setHandlerIndex(handlerIndexFrom++);
-        } while (
-            context.invokeDisconnect(reason, e)
-        );
+        final int[] indices = chain.indicesOf(HandlerChain.DISCONNECT);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeDisconnect(reason, e)
+            );
+        } finally {
+            stack.release(context);
+        }
     }
 
     public void fireDisconnect(TCPConnection connection, CloseReason reason, Exception e) {
-        this.fireDisconnect(super.getHandlers(), 0, connection, reason, e);
+        this.fireDisconnect(super.getChain(), 0, connection, reason, e);
     }
 
     
     public void fireReceive(EventHandler[] handlers, int handlerIndexFrom,
                             TCPConnection connection, byte[] data) {
+        this.fireReceive(this.chainOf(handlers), handlerIndexFrom, connection, data);
+    }
+
+    void fireReceive(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, byte[] data) {
         if(connection == null)
             throw new RuntimeException("Argument 'connection' cannot be null");
         if(data == null)
             throw new RuntimeException("Argument 'data' cannot be null");
 
-        if(this.isNoHandlersFor(handlers, handlerIndexFrom)) {
-            target.invokeOnReceive(connection, data);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final FrameBatch batch = stack.batchOf(connection);
+        final boolean batching = (batch != null || chain.hasBatchHandlers() || target.hasReceiveBatchListeners());
+        final int batchHandlerIndex = (batching ? chain.getFirstBatchHandler() : Integer.MAX_VALUE);
+
+        int position = this.firstPosition(chain, HandlerChain.RECEIVE, handlerIndexFrom);
+        if(position == -1 || chain.indicesOf(HandlerChain.RECEIVE)[position] >= batchHandlerIndex) {
+            if(batching) {
+                this.receiveBatched(chain, connection, data, batch);
+            }else{
+                target.invokeOnReceive(connection, data);
+            }
             return;
         }
 
-        final EventInvocationContext context = new EventInvocationContext(this, connection, handlers);
-        do {
-            context.setHandlerIndex(handlerIndexFrom++);
-        } while (
-            context.invokeReceive(data)
-        );
+        final int[] indices = chain.indicesOf(HandlerChain.RECEIVE);
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                final int handlerIndex = indices[position++];
+                if(handlerIndex >= batchHandlerIndex) {
+                    this.receiveBatched(chain, connection, data, batch); // batch handlers continue with it
+                    return;
+                }
+                context.setHandlerIndex(handlerIndex);
+            } while (
+                context.invokeReceive(data)
+            );
+        } finally {
+            stack.release(context);
+        }
     }
 
     public void fireReceive(TCPConnection connection, byte[] data) {
-        this.fireReceive(super.getHandlers(), 0, connection, data);
+        this.fireReceive(super.getChain(), 0, connection, data);
+    }
+
+    private void receiveBatched(HandlerChain chain, TCPConnection connection, byte[] data, FrameBatch batch) {
+        if(batch != null) {
+            batch.add(data);
+            return;
+        }
+        // outside a read cycle (frames fired by handlers later), a batch of one frame
+        final FrameBatch single = new FrameBatch();
+        single.add(data);
+        this.fireReceiveBatch(chain, chain.getFirstBatchHandler(), connection, single);
+    }
+
+
+    public void fireReceiveChunk(EventHandler[] handlers, int handlerIndexFrom,
+                                 TCPConnection connection, int frameID, ByteBuffer chunk, boolean last) {
+        this.fireReceiveChunk(this.chainOf(handlers), handlerIndexFrom, connection, frameID, chunk, last);
+    }
+
+    void fireReceiveChunk(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, int frameID, ByteBuffer chunk, boolean last) {
+        if(connection == null)
+            throw new RuntimeException("Argument 'connection' cannot be null");
+        if(chunk == null)
+            throw new RuntimeException("Argument 'chunk' cannot be null");
+
+        int position = this.firstPosition(chain, HandlerChain.RECEIVE_CHUNK, handlerIndexFrom);
+        if(position == -1) {
+            target.invokeOnReceiveChunk(connection, frameID, chunk, last);
+            return;
+        }
+
+        final int[] indices = chain.indicesOf(HandlerChain.RECEIVE_CHUNK);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeReceiveChunk(frameID, chunk, last)
+            );
+        } finally {
+            stack.release(context);
+        }
+    }
+
+    public void fireReceiveChunk(TCPConnection connection, int frameID, ByteBuffer chunk, boolean last) {
+        this.fireReceiveChunk(super.getChain(), 0, connection, frameID, chunk, last);
+    }
+
+
+    public void fireReceiveComposite(EventHandler[] handlers, int handlerIndexFrom,
+                                     TCPConnection connection, CompositeFrame frame) {
+        this.fireReceiveComposite(this.chainOf(handlers), handlerIndexFrom, connection, frame);
+    }
+
+    void fireReceiveComposite(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, CompositeFrame frame) {
+        if(connection == null)
+            throw new RuntimeException("Argument 'connection' cannot be null");
+        if(frame == null)
+            throw new RuntimeException("Argument 'frame' cannot be null");
+
+        int position = this.firstPosition(chain, HandlerChain.RECEIVE_COMPOSITE, handlerIndexFrom);
+        if(position == -1) {
+            target.invokeOnReceiveComposite(connection, frame);
+            return;
+        }
+
+        final int[] indices = chain.indicesOf(HandlerChain.RECEIVE_COMPOSITE);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeReceiveComposite(frame)
+            );
+        } finally {
+            stack.release(context);
+        }
+    }
+
+    public void fireReceiveComposite(TCPConnection connection, CompositeFrame frame) {
+        this.fireReceiveComposite(super.getChain(), 0, connection, frame);
     }
 
 
-    public void fireReadComplete(EventHandler[] handlers, int handlerIndexFrom, TCPConnection connection) {
+    public void fireReceiveBatch(EventHandler[] handlers, int handlerIndexFrom,
+                                 TCPConnection connection, FrameBatch batch) {
+        this.fireReceiveBatch(this.chainOf(handlers), handlerIndexFrom, connection, batch);
+    }
+
+    void fireReceiveBatch(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, FrameBatch batch) {
         if(connection == null)
             throw new RuntimeException("Argument 'connection' cannot be null");
+        if(batch == null)
+            throw new RuntimeException("Argument 'batch' cannot be null");
+
+        int position = this.firstPosition(chain, HandlerChain.RECEIVE_BATCH, handlerIndexFrom);
+        if(position == -1) {
+            target.invokeOnReceiveBatch(connection, batch);
+            return;
+        }
+
+        final int[] indices = chain.indicesOf(HandlerChain.RECEIVE_BATCH);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeReceiveBatch(batch)
+            );
+        } finally {
+            stack.release(context);
+        }
+    }
+
+    public void fireReceiveBatch(TCPConnection connection, FrameBatch batch) {
+        this.fireReceiveBatch(super.getChain(), 0, connection, batch);
+    }
+
+    /** Fires a frame of a read cycle through the handlers before the first batch handler (one by one, like without batching),
+     * frames reaching it are added to the batch. Then the batch is fired with {@link #fireCollectedBatch(TCPConnection, FrameBatch)}. */
+    public void fireReceiveCollecting(TCPConnection connection, byte[] data, FrameBatch batch) {
+        if(batch == null)
+            throw new RuntimeException("Argument 'batch' cannot be null");
+
+        final InvocationContextStack stack = InvocationContextStack.current();
+        stack.collect(connection, batch);
+        try {
+            this.fireReceive(super.getChain(), 0, connection, data);
+        } finally {
+            stack.collect(null, null);
+        }
+    }
+
+    /** Fires the batch filled by {@link #fireReceiveCollecting(TCPConnection, byte[], FrameBatch)} from the first batch handler. */
+    public void fireCollectedBatch(TCPConnection connection, FrameBatch batch) {
+        final HandlerChain chain = super.getChain();
+        this.fireReceiveBatch(chain, chain.getFirstBatchHandler(), connection, batch);
+    }
+
+    /** @return true if received frames go in batches: a handler overrides handleReceiveBatch or a batch listener is registered */
+    public boolean isBatchingReceive() {
+        return (super.getChain().hasBatchHandlers() || target.hasReceiveBatchListeners());
+    }
+
 
-        if(this.isNoHandlersFor(handlers, handlerIndexFrom)) {
+    public void fireReceiveMessage(EventHandler[] handlers, int handlerIndexFrom,
+                                   TCPConnection connection, Object message) {
+        this.fireReceiveMessage(this.chainOf(handlers), handlerIndexFrom, connection, message);
+    }
+
+    void fireReceiveMessage(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, Object message) {
+        if(connection == null)
+            throw new RuntimeException("Argument 'connection' cannot be null");
+        if(message == null)
+            throw new RuntimeException("Argument 'message' cannot be null");
+
+        int position = this.firstPosition(chain, HandlerChain.RECEIVE_MESSAGE, handlerIndexFrom);
+        if(position == -1) {
+            target.invokeOnReceiveMessage(connection, message);
+            return;
+        }
+
+        final int[] indices = chain.indicesOf(HandlerChain.RECEIVE_MESSAGE);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeReceiveMessage(message)
+            );
+        } finally {
+            stack.release(context);
+        }
+    }
+
+    public void fireReceiveMessage(TCPConnection connection, Object message) {
+        this.fireReceiveMessage(super.getChain(), 0, connection, message);
+    }
+
+
+    public void fireReadComplete(EventHandler[] handlers, int handlerIndexFrom,
+                                 TCPConnection connection) {
+        this.fireReadComplete(this.chainOf(handlers), handlerIndexFrom, connection);
+    }
+
+    void fireReadComplete(HandlerChain chain, int handlerIndexFrom, TCPConnection connection) {
+        if(connection == null)
+            throw new RuntimeException("Argument 'connection' cannot be null");
+
+        int position = this.firstPosition(chain, HandlerChain.READ_COMPLETE, handlerIndexFrom);
+        if(position == -1) {
             target.invokeOnReadComplete(connection);
             return;
         }
 
-        final EventInvocationContext context = new EventInvocationContext(this, connection, handlers);
-        do {
-            context.setHandlerIndex(handlerIndexFrom++);
-        } while (
-            context.invokeReadComplete()
-        );
+        final int[] indices = chain.indicesOf(HandlerChain.READ_COMPLETE);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeReadComplete()
+            );
+        } finally {
+            stack.release(context);
+        }
     }
 
     public void fireReadComplete(TCPConnection connection) {
-        this.fireReadComplete(super.getHandlers(), 0, connection);
+        this.fireReadComplete(super.getChain(), 0, connection);
     }
 
 
     public boolean fireSend(EventHandler[] handlers, int handlerIndexFrom,
-                            TCPConnection connection, byte[] data) {
+                            TCPConnection connection, byte[] data, SendPriority priority) {
+        return this.fireSend(this.chainOf(handlers), handlerIndexFrom, connection, data, priority);
+    }
+
+    boolean fireSend(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, byte[] data, SendPriority priority) {
         if(connection == null)
             throw new RuntimeException("Argument 'connection' cannot be null");
         if(data == null)
             throw new RuntimeException("Argument 'data' cannot be null");
+        if(priority == null)
+            throw new RuntimeException("Argument 'priority' cannot be null");
 
         target.invokeOnSend(connection, data);
 
-        if(this.isNoHandlersFor(handlers, handlerIndexFrom))
-            return connection.sendDirect(data);
+        if(this.isNoHandlersFor(chain, handlerIndexFrom))
+            return connection.sendDirect(data, priority);
 
-        final EventInvocationContext context = new EventInvocationContext(this, connection, handlers);
-        do {
-            if(handlerIndexFrom == -1)
-                return connection.sendDirect(data);
+        int position = chain.lastUpTo(HandlerChain.SEND, handlerIndexFrom);
+        if(position == -1)
+            return connection.sendDirect(data, priority);
+
+        final int[] indices = chain.indicesOf(HandlerChain.SEND);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        context.setSendPriority(priority);
+        try {
+            do {
+                if(position == -1)
+                    return connection.sendDirect(data, priority);
+
+                context.setHandlerIndex(indices[position--]);
+
+            } while (
+                context.invokeSend(data)
+            );
+            return context.isSendAccepted(); // taken over by the handler
+        } finally {
+            stack.release(context);
+        }
+    }
 
-            context.setHandlerIndex(handlerIndexFrom--);
+    public boolean fireSend(TCPConnection connection, byte[] data, SendPriority priority) {
+        final HandlerChain chain = super.getChain();
+        final int lastHandlerIndex = (chain.getHandlers().length - 1);
+        return this.fireSend(chain, lastHandlerIndex, connection, data, priority);
+    }
 
-        } while (
-            context.invokeSend(data)
-        );
-        return false;
+    public boolean fireSend(EventHandler[] handlers, int handlerIndexFrom,
+                            TCPConnection connection, byte[] data) {
+        return this.fireSend(handlers, handlerIndexFrom, connection, data, SendPriority.DEFAULT);
     }
 
     public boolean fireSend(TCPConnection connection, byte[] data) {
-        final EventHandler[] handlers = super.getHandlers();
-        final int lastHandlerIndex = (handlers.length - 1);
-        return this.fireSend(handlers, lastHandlerIndex, connection, data);
+        return this.fireSend(connection, data, SendPriority.DEFAULT);
+    }
+
+    /** Sends data outside of an event from the given handler position towards the socket (the handler itself is skipped). */
+    public boolean fireSendFrom(EventHandler handler, TCPConnection connection, byte[] data, SendPriority priority) {
+        final HandlerChain chain = super.getChain();
+        final int handlerIndex = indexOfHandler(chain.getHandlers(), handler);
+        return this.fireSend(chain, handlerIndex - 1, connection, data, priority);
+    }
+
+    public boolean fireSendFrom(EventHandler handler, TCPConnection connection, byte[] data) {
+        return this.fireSendFrom(handler, connection, data, SendPriority.DEFAULT);
+    }
+
+    /** Receives data outside of an event from the given handler position towards the target (the handler itself is skipped). */
+    public void fireReceiveFrom(EventHandler handler, TCPConnection connection, byte[] data) {
+        final HandlerChain chain = super.getChain();
+        final int handlerIndex = indexOfHandler(chain.getHandlers(), handler);
+        this.fireReceive(chain, handlerIndex + 1, connection, data);
+    }
+
+    /** Fires connect event from the given handler position, for handlers that delay it (the handler itself is skipped). */
+    public void fireConnectFrom(EventHandler handler, TCPConnection connection) {
+        final HandlerChain chain = super.getChain();
+        final int handlerIndex = indexOfHandler(chain.getHandlers(), handler);
+        this.fireConnect(chain, handlerIndex + 1, connection);
+    }
+
+    private static int indexOfHandler(EventHandler[] handlers, EventHandler handler) {
+        for(int i = 0; i < handlers.length; i++)
+            if(handlers[i] == handler)
+                return i;
+        throw new IllegalArgumentException("Handler is not in the pipeline");
     }
 
     public boolean fireSend(EventHandler[] handlers, int handlerIndexFrom,
@@ -227,27 +547,111 @@ public class EventPipeline extends EventHandlerRegistry {
         return this.fireSend(handlers, lastHandlerIndex, connection, packet);
     }
 
+    public boolean fireSend(TCPConnection connection, NetPacket packet, SendPriority priority) {
+        if(packet == null)
+            throw new IllegalArgumentException("Argument 'packet' cannot be null");
+
+        final EventHandler[] handlers = super.getHandlers();
+        final int lastHandlerIndex = (handlers.length - 1);
+        try {
+            final byte[] byteArray = packet.toByteArray();
+            return this.fireSend(handlers, lastHandlerIndex, connection, byteArray, priority);
+
+        } catch (IOException e) {
+            this.fireError(handlers, lastHandlerIndex, connection, ErrorSource.SEND_HANDLER, e);
+            return false;
+        }
+    }
+
+
+    public boolean fireSendMessage(EventHandler[] handlers, int handlerIndexFrom,
+                                   TCPConnection connection, Object message, SendPriority priority) {
+        return this.fireSendMessage(this.chainOf(handlers), handlerIndexFrom, connection, message, priority);
+    }
+
+    /** Message goes down to the first encoder stage that accepts it, it is an error if there is none. */
+    boolean fireSendMessage(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, Object message, SendPriority priority) {
+        if(connection == null)
+            throw new RuntimeException("Argument 'connection' cannot be null");
+        if(message == null)
+            throw new RuntimeException("Argument 'message' cannot be null");
+        if(priority == null)
+            throw new RuntimeException("Argument 'priority' cannot be null");
+
+        if(this.isNoHandlersFor(chain, handlerIndexFrom))
+            return this.noEncoderFor(chain, connection, message);
+
+        int position = chain.lastUpTo(HandlerChain.SEND_MESSAGE, handlerIndexFrom);
+        if(position == -1)
+            return this.noEncoderFor(chain, connection, message);
+
+        final int[] indices = chain.indicesOf(HandlerChain.SEND_MESSAGE);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        context.setSendPriority(priority);
+        try {
+            do {
+                if(position == -1)
+                    return this.noEncoderFor(chain, connection, message);
+
+                context.setHandlerIndex(indices[position--]);
+
+            } while (
+                context.invokeSendMessage(message)
+            );
+            return context.isSendAccepted(); // taken over by the handler
+        } finally {
+            stack.release(context);
+        }
+    }
+
+    private boolean noEncoderFor(HandlerChain chain, TCPConnection connection, Object message) {
+        final String messageType = message.getClass().getName();
+        this.fireError(chain, 0, connection, ErrorSource.SEND_HANDLER, new IllegalStateException("No encoder accepted message of type " + messageType));
+        return false;
+    }
+
+    public boolean fireSendMessage(TCPConnection connection, Object message, SendPriority priority) {
+        final HandlerChain chain = super.getChain();
+        final int lastHandlerIndex = (chain.getHandlers().length - 1);
+        return this.fireSendMessage(chain, lastHandlerIndex, connection, message, priority);
+    }
+
+    public boolean fireSendMessage(TCPConnection connection, Object message) {
+        return this.fireSendMessage(connection, message, SendPriority.DEFAULT);
+    }
+
 
     public void fireError(EventHandler[] handlers, int handlerIndexFrom,
                           TCPConnection connection, ErrorSource source, Throwable throwable) {
+        this.fireError(this.chainOf(handlers), handlerIndexFrom, connection, source, throwable);
+    }
+
+    void fireError(HandlerChain chain, int handlerIndexFrom, TCPConnection connection, ErrorSource source, Throwable throwable) {
         // Argument 'connection' can be null
 
-        if(this.isNoHandlersFor(handlers, handlerIndexFrom)) {
+        int position = this.firstPosition(chain, HandlerChain.ERROR, handlerIndexFrom);
+        if(position == -1) {
             target.invokeOnError(connection, source, throwable);
             return;
         }
 
-        final EventInvocationContext context = new EventInvocationContext(this, connection, handlers);
-
-        do {
-            context.setHandlerIndex(handlerIndexFrom++);
-        } while (
-            context.invokeError(source, throwable)
-        );
+        final int[] indices = chain.indicesOf(HandlerChain.ERROR);
+        final InvocationContextStack stack = InvocationContextStack.current();
+        final EventInvocationContext context = stack.acquire(this, connection, chain);
+        try {
+            do {
+                context.setHandlerIndex(indices[position++]);
+            } while (
+                context.invokeError(source, throwable)
+            );
+        } finally {
+            stack.release(context);
+        }
     }
 
     public void fireError(TCPConnection connection, ErrorSource source, Throwable throwable) {
-        this.fireError(super.getHandlers(), 0, connection, source, throwable);
+        this.fireError(super.getChain(), 0, connection, source, throwable);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+package generaloss.networkforge.tcp.pipeline;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.executor.ConnectionExecutorGroup;
+import generaloss.networkforge.tcp.executor.SerialExecutor;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+
+/** Runs a handler on the connection's {@link SerialExecutor} of the group, off the selector thread:
+ * events of one connection reach it one at a time and in order.
+ * Events continue from it on the same executor, so handlers and listeners after it keep the order too.
+ * Streaming chunks pass by the wrapped handler (their buffers are valid only during the call),
+ * composite frames and batches are handed over frame by frame.
+ * Handed over sends are reported as sent. Past {@link #getMaxQueuedEvents()} events in the connection's executor
+ * the connection stops reading until half of them have run.
+ * The wrapped handler is not in the pipeline itself: fireXFrom(handler, ...) calls should pass this one. */
+public class ExecutorBoundHandler extends EventHandler {
+
+    public static final int DEFAULT_MAX_QUEUED_EVENTS = 1024;
+
+    private final ConnectionExecutorGroup group;
+    private final EventHandler handler;
+    private volatile int maxQueuedEvents;
+
+    public ExecutorBoundHandler(ConnectionExecutorGroup group, EventHandler handler) {
+        if(group == null)
+            throw new IllegalArgumentException("Argument 'group' cannot be null");
+        if(handler == null)
+            throw new IllegalArgumentException("Argument 'handler' cannot be null");
+
+        this.group = group;
+        this.handler = handler;
+        this.maxQueuedEvents = DEFAULT_MAX_QUEUED_EVENTS;
+    }
+
+    public ConnectionExecutorGroup getGroup() {
+        return group;
+    }
+
+    public EventHandler getHandler() {
+        return handler;
+    }
+
+    public int getMaxQueuedEvents() {
+        return maxQueuedEvents;
+    }
+
+    public ExecutorBoundHandler setMaxQueuedEvents(int maxQueuedEvents) {
+        if(maxQueuedEvents < 1)
+            throw new IllegalArgumentException("Argument 'maxQueuedEvents' must be > 0");
+
+        this.maxQueuedEvents = maxQueuedEvents;
+        return this;
+    }
+
+    /** @return executor to hand the event over to, or null if already on it */
+    private SerialExecutor handOverExecutor(EventInvocationContext context) {
+        final SerialExecutor executor = group.executorOf(context.getConnection());
+        return (executor.inExecutor() ? null : executor);
+    }
+
+    /** Received events come as fast as the peer sends, reading is suspended while too many are queued. */
+    private void handOverReceived(SerialExecutor executor, TCPConnection connection, Runnable task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                if(connection.isReadSuspended() && this.isDrained(executor))
+                    connection.setReadSuspended(false);
+            }
+        });
+
+        if(executor.getQueuedTaskCount() > maxQueuedEvents) {
+            connection.setReadSuspended(true);
+            // the queue may have been drained before the suspension
+            if(this.isDrained(executor))
+                connection.setReadSuspended(false);
+        }
+    }
+
+    private boolean isDrained(SerialExecutor executor) {
+        return (executor.getQueuedTaskCount() <= maxQueuedEvents / 2);
+    }
+
+
+    @Override
+    public boolean handleConnect(EventInvocationContext context) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleConnect(context);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        executor.execute(() -> pipeline.fireConnect(handlers, index, connection));
+        return false;
+    }
+
+    @Override
+    public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleDisconnect(context, reason, e);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        executor.execute(() -> pipeline.fireDisconnect(handlers, index, connection, reason, e));
+        return false;
+    }
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleReceive(context, data);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        this.handOverReceived(executor, connection, () -> pipeline.fireReceive(handlers, index, connection, data));
+        return false;
+    }
+
+    @Override
+    public boolean handleReceiveMessage(EventInvocationContext context, Object message) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleReceiveMessage(context, message);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        this.handOverReceived(executor, connection, () -> pipeline.fireReceiveMessage(handlers, index, connection, message));
+        return false;
+    }
+
+    @Override
+    public boolean handleReadComplete(EventInvocationContext context) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleReadComplete(context);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        this.handOverReceived(executor, connection, () -> pipeline.fireReadComplete(handlers, index, connection));
+        return false;
+    }
+
+    @Override
+    public boolean handleError(EventInvocationContext context, ErrorSource source, Throwable throwable) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleError(context, source, throwable);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        executor.execute(() -> pipeline.fireError(handlers, index, connection, source, throwable));
+        return false;
+    }
+
+    @Override
+    public boolean handleSend(EventInvocationContext context, byte[] data) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleSend(context, data);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        final SendPriority priority = context.getSendPriority();
+        executor.execute(() -> pipeline.fireSend(handlers, index, connection, data, priority));
+        context.acceptSend();
+        return false;
+    }
+
+    @Override
+    public boolean handleSendMessage(EventInvocationContext context, Object message) {
+        final SerialExecutor executor = this.handOverExecutor(context);
+        if(executor == null)
+            return handler.handleSendMessage(context, message);
+
+        final EventPipeline pipeline = context.getEventPipeline();
+        final EventHandler[] handlers = context.getHandlersShapshot();
+        final int index = context.getHandlerIndex();
+        final TCPConnection connection = context.getConnection();
+        final SendPriority priority = context.getSendPriority();
+        executor.execute(() -> pipeline.fireSendMessage(handlers, index, connection, message, priority));
+        context.acceptSend();
+        return false;
+    }
+
+}
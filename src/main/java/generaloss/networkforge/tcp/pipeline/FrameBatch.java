@@ -0,0 +1,75 @@
+package generaloss.networkforge.tcp.pipeline;
+
+import java.util.Arrays;
+
+/** Frames decoded in one read cycle of a connection. Reused for every cycle:
+ * valid only during the call, handlers may change it before passing it on. */
+public class FrameBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[][] frames;
+    private int size;
+    private FrameBatch spare; // output of frame handlers inside a batch
+
+    public FrameBatch() {
+        this.frames = new byte[INITIAL_CAPACITY][];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    public byte[] get(int index) {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for batch size " + size);
+        return frames[index];
+    }
+
+    public void set(int index, byte[] frame) {
+        if(frame == null)
+            throw new IllegalArgumentException("Argument 'frame' cannot be null");
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for batch size " + size);
+        frames[index] = frame;
+    }
+
+    public void add(byte[] frame) {
+        if(frame == null)
+            throw new IllegalArgumentException("Argument 'frame' cannot be null");
+
+        if(size == frames.length)
+            frames = Arrays.copyOf(frames, size * 2);
+        frames[size++] = frame;
+    }
+
+    /** Drops frame references, the capacity is kept. */
+    public void clear() {
+        Arrays.fill(frames, 0, size, null);
+        size = 0;
+    }
+
+
+    FrameBatch spare() {
+        if(spare == null)
+            spare = new FrameBatch();
+        spare.clear();
+        return spare;
+    }
+
+    /** Takes the frames of the spare batch. */
+    void takeSpare() {
+        final byte[][] ownFrames = frames;
+        final int ownSize = size;
+        frames = spare.frames;
+        size = spare.size;
+        spare.frames = ownFrames;
+        spare.size = 0;
+        Arrays.fill(ownFrames, 0, ownSize, null);
+    }
+
+}
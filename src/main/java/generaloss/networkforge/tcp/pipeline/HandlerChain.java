@@ -0,0 +1,120 @@
+package generaloss.networkforge.tcp.pipeline;
+
+import generaloss.networkforge.tcp.codec.CompositeFrame;
+import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.listener.ErrorSource;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Committed handlers with, for each event, the positions of handlers that override its method.
+ * Events skip handlers that would only pass them on. */
+final class HandlerChain {
+
+    static final int CONNECT = 0;
+    static final int DISCONNECT = 1;
+    static final int RECEIVE = 2;
+    static final int RECEIVE_CHUNK = 3;
+    static final int RECEIVE_COMPOSITE = 4;
+    static final int READ_COMPLETE = 5;
+    static final int ERROR = 6;
+    static final int SEND = 7;
+    static final int RECEIVE_MESSAGE = 8;
+    static final int SEND_MESSAGE = 9;
+    static final int RECEIVE_BATCH = 10;
+    private static final int EVENTS_COUNT = 11;
+
+    static final HandlerChain EMPTY = new HandlerChain(new EventHandler[0]);
+
+    private static final ClassValue<boolean[]> OVERRIDDEN_EVENTS = new ClassValue<>() {
+        @Override
+        protected boolean[] computeValue(Class<?> type) {
+            final boolean[] overridden = new boolean[EVENTS_COUNT];
+            overridden[CONNECT] = overrides(type, "handleConnect", EventInvocationContext.class);
+            overridden[DISCONNECT] = overrides(type, "handleDisconnect", EventInvocationContext.class, CloseReason.class, Exception.class);
+            overridden[RECEIVE] = overrides(type, "handleReceive", EventInvocationContext.class, byte[].class);
+            overridden[RECEIVE_CHUNK] = overrides(type, "handleReceiveChunk", EventInvocationContext.class, int.class, ByteBuffer.class, boolean.class);
+            // default composite handling flattens frames for handleReceive
+            overridden[RECEIVE_COMPOSITE] = (overridden[RECEIVE] || overrides(type, "handleReceiveComposite", EventInvocationContext.class, CompositeFrame.class));
+            overridden[READ_COMPLETE] = overrides(type, "handleReadComplete", EventInvocationContext.class);
+            overridden[ERROR] = overrides(type, "handleError", EventInvocationContext.class, ErrorSource.class, Throwable.class);
+            overridden[SEND] = overrides(type, "handleSend", EventInvocationContext.class, byte[].class);
+            overridden[RECEIVE_MESSAGE] = overrides(type, "handleReceiveMessage", EventInvocationContext.class, Object.class);
+            overridden[SEND_MESSAGE] = overrides(type, "handleSendMessage", EventInvocationContext.class, Object.class);
+            overridden[RECEIVE_BATCH] = overrides(type, "handleReceiveBatch", EventInvocationContext.class, FrameBatch.class);
+            return overridden;
+        }
+    };
+
+    private final EventHandler[] handlers;
+    private final int[][] indices; // ascending, ends with handlers.length (the target)
+    private final int firstBatchHandler; // handlers.length if none
+
+    HandlerChain(EventHandler[] handlers) {
+        this.handlers = handlers;
+        this.indices = new int[EVENTS_COUNT][];
+
+        final int[] buffer = new int[handlers.length + 1];
+        for(int event = 0; event < EVENTS_COUNT; event++) {
+            int count = 0;
+            for(int i = 0; i < handlers.length; i++)
+                if(overrides(handlers[i], event) || (event == RECEIVE_BATCH && overrides(handlers[i], RECEIVE))) // frame handlers see batches frame by frame
+                    buffer[count++] = i;
+            buffer[count++] = handlers.length;
+            indices[event] = Arrays.copyOf(buffer, count);
+        }
+
+        int firstBatchHandler = handlers.length;
+        for(int i = handlers.length - 1; i >= 0; i--)
+            if(overrides(handlers[i], RECEIVE_BATCH))
+                firstBatchHandler = i;
+        this.firstBatchHandler = firstBatchHandler;
+    }
+
+    EventHandler[] getHandlers() {
+        return handlers;
+    }
+
+    /** @return true if any handler overrides handleReceiveBatch */
+    boolean hasBatchHandlers() {
+        return (firstBatchHandler != handlers.length);
+    }
+
+    /** @return index of the first handler overriding handleReceiveBatch, handlers length if none */
+    int getFirstBatchHandler() {
+        return firstBatchHandler;
+    }
+
+    /** @return handler indices of the event, the last one is handlers length */
+    int[] indicesOf(int event) {
+        return indices[event];
+    }
+
+    /** @return position in {@link #indicesOf(int)} of the first handler at or after the index */
+    int firstFrom(int event, int handlerIndex) {
+        final int position = Arrays.binarySearch(indices[event], handlerIndex);
+        return (position >= 0 ? position : (-position - 1));
+    }
+
+    /** @return position in {@link #indicesOf(int)} of the last handler at or before the index, -1 if none */
+    int lastUpTo(int event, int handlerIndex) {
+        final int[] eventIndices = indices[event];
+        final int position = Arrays.binarySearch(eventIndices, 0, eventIndices.length - 1, handlerIndex);
+        return (position >= 0 ? position : (-position - 2));
+    }
+
+
+    static boolean overrides(EventHandler handler, int event) {
+        return OVERRIDDEN_EVENTS.get(handler.getClass())[event];
+    }
+
+    private static boolean overrides(Class<?> type, String methodName, Class<?>... parameterTypes) {
+        try {
+            final Class<?> declaringClass = type.getMethod(methodName, parameterTypes).getDeclaringClass();
+            return (declaringClass != EventHandler.class);
+        } catch (NoSuchMethodException e) {
+            return true; // visit it to be safe
+        }
+    }
+
+}
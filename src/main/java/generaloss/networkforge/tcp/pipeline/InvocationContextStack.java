@@ -0,0 +1,58 @@
+package generaloss.networkforge.tcp.pipeline;
+
+import generaloss.networkforge.tcp.TCPConnection;
+
+import java.util.Arrays;
+
+/** Contexts reused by the dispatching thread, one per nesting level (handlers fire events from inside events). */
+final class InvocationContextStack {
+
+    private static final int INITIAL_DEPTH = 8;
+    private static final ThreadLocal<InvocationContextStack> STACKS = ThreadLocal.withInitial(InvocationContextStack::new);
+
+    private EventInvocationContext[] contexts;
+    private int depth;
+    private TCPConnection batchConnection; // frames of it reaching the first batch handler are collected
+    private FrameBatch batch;
+
+    private InvocationContextStack() {
+        this.contexts = new EventInvocationContext[INITIAL_DEPTH];
+    }
+
+    static InvocationContextStack current() {
+        return STACKS.get();
+    }
+
+
+    EventInvocationContext acquire(EventPipeline pipeline, TCPConnection connection, HandlerChain chain) {
+        if(depth == contexts.length)
+            contexts = Arrays.copyOf(contexts, depth * 2);
+
+        EventInvocationContext context = contexts[depth];
+        if(context == null) {
+            context = new EventInvocationContext(pipeline, connection, chain);
+            contexts[depth] = context;
+        }else{
+            context.reset(pipeline, connection, chain);
+        }
+        depth++;
+        return context;
+    }
+
+    void release(EventInvocationContext context) {
+        context.clear(); // no references to connections outlive the event
+        depth--;
+    }
+
+
+    /** @return batch collecting frames of the connection, or null */
+    FrameBatch batchOf(TCPConnection connection) {
+        return (connection == batchConnection ? batch : null);
+    }
+
+    void collect(TCPConnection connection, FrameBatch batch) {
+        this.batchConnection = connection;
+        this.batch = batch;
+    }
+
+}
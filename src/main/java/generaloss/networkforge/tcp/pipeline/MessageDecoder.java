@@ -0,0 +1,29 @@
+package generaloss.networkforge.tcp.pipeline;
+
+import generaloss.networkforge.tcp.listener.ErrorSource;
+
+/** Stage turning received frames into objects: handlers after it get them in
+ * {@link EventHandler#handleReceiveMessage}, listeners in onReceiveMessage. */
+public abstract class MessageDecoder<T> extends EventHandler {
+
+    /** @return decoded message, or null to pass the frame on as is */
+    protected abstract T decode(EventInvocationContext context, byte[] data) throws Exception;
+
+    @Override
+    public boolean handleReceive(EventInvocationContext context, byte[] data) {
+        final T message;
+        try {
+            message = this.decode(context, data);
+        } catch (Exception e) {
+            context.error(ErrorSource.RECEIVE_HANDLER, e);
+            return false;
+        }
+
+        if(message == null)
+            return true;
+
+        context.receiveMessage(message);
+        return false;
+    }
+
+}
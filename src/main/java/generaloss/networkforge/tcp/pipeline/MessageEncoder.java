@@ -0,0 +1,41 @@
+package generaloss.networkforge.tcp.pipeline;
+
+import generaloss.networkforge.tcp.listener.ErrorSource;
+
+/** Stage serializing sent messages of its type once, handlers before it (closer to the socket) get the frame.
+ * Messages of other types go on to the next encoder. */
+public abstract class MessageEncoder<T> extends EventHandler {
+
+    private final Class<T> messageType;
+
+    public MessageEncoder(Class<T> messageType) {
+        if(messageType == null)
+            throw new IllegalArgumentException("Argument 'messageType' cannot be null");
+
+        this.messageType = messageType;
+    }
+
+    public Class<T> getMessageType() {
+        return messageType;
+    }
+
+    protected abstract byte[] encode(EventInvocationContext context, T message) throws Exception;
+
+    @Override
+    public boolean handleSendMessage(EventInvocationContext context, Object message) {
+        if(!messageType.isInstance(message))
+            return true;
+
+        final byte[] data;
+        try {
+            data = this.encode(context, messageType.cast(message));
+        } catch (Exception e) {
+            context.error(ErrorSource.SEND_HANDLER, e);
+            return false;
+        }
+
+        context.send(data);
+        return false;
+    }
+
+}
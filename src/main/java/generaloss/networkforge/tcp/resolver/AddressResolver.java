@@ -0,0 +1,11 @@
+package generaloss.networkforge.tcp.resolver;
+
+import java.util.concurrent.CompletableFuture;
+
+@FunctionalInterface
+public interface AddressResolver {
+
+    /** Completes exceptionally with {@link java.net.UnknownHostException} when the host cannot be resolved. */
+    CompletableFuture<ResolvedAddresses> resolve(String hostname);
+
+}
@@ -0,0 +1,119 @@
+package generaloss.networkforge.tcp.resolver;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Positive/negative TTL cache in front of another resolver.
+ * Concurrent lookups of the same host share one delegate request. */
+public class CachingAddressResolver implements AddressResolver {
+
+    public static final long DEFAULT_POSITIVE_TTL_MILLIS = 30_000L;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10_000L;
+
+    private static class CacheEntry {
+        final ResolvedAddresses resolved;
+        final Throwable failure;
+        final long expiresAtMillis;
+
+        CacheEntry(ResolvedAddresses resolved, Throwable failure, long expiresAtMillis) {
+            this.resolved = resolved;
+            this.failure = failure;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final AddressResolver delegate;
+    private final long positiveTtlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, CacheEntry> cache;
+    private final Map<String, CompletableFuture<ResolvedAddresses>> inFlight;
+
+    public CachingAddressResolver(AddressResolver delegate, long positiveTtlMillis, long negativeTtlMillis) {
+        if(delegate == null)
+            throw new IllegalArgumentException("Argument 'delegate' cannot be null");
+        if(positiveTtlMillis < 0L)
+            throw new IllegalArgumentException("Argument 'positiveTtlMillis' must be >= 0");
+        if(negativeTtlMillis < 0L)
+            throw new IllegalArgumentException("Argument 'negativeTtlMillis' must be >= 0");
+
+        this.delegate = delegate;
+        this.positiveTtlMillis = positiveTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.cache = new ConcurrentHashMap<>();
+        this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    public CachingAddressResolver(AddressResolver delegate) {
+        this(delegate, DEFAULT_POSITIVE_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+
+    public AddressResolver getDelegate() {
+        return delegate;
+    }
+
+    public void invalidate(String hostname) {
+        cache.remove(hostname);
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+
+    @Override
+    public CompletableFuture<ResolvedAddresses> resolve(String hostname) {
+        if(hostname == null)
+            throw new IllegalArgumentException("Argument 'hostname' cannot be null");
+
+        final CacheEntry entry = cache.get(hostname);
+        if(entry != null) {
+            if(entry.expiresAtMillis > System.currentTimeMillis()) {
+                if(entry.failure != null)
+                    return CompletableFuture.failedFuture(entry.failure);
+                return CompletableFuture.completedFuture(entry.resolved);
+            }
+            cache.remove(hostname, entry);
+        }
+
+        // coalesce concurrent lookups
+        final CompletableFuture<ResolvedAddresses> newFuture = new CompletableFuture<>();
+        final CompletableFuture<ResolvedAddresses> existingFuture = inFlight.putIfAbsent(hostname, newFuture);
+        if(existingFuture != null)
+            return existingFuture;
+
+        CompletableFuture<ResolvedAddresses> delegateFuture;
+        try {
+            delegateFuture = delegate.resolve(hostname);
+        } catch (Exception e) {
+            delegateFuture = CompletableFuture.failedFuture(e);
+        }
+
+        delegateFuture.whenComplete((resolved, throwable) -> {
+            final long currentMillis = System.currentTimeMillis();
+            if(throwable != null) {
+                final Throwable cause = unwrap(throwable);
+                if(negativeTtlMillis > 0L)
+                    cache.put(hostname, new CacheEntry(null, cause, currentMillis + negativeTtlMillis));
+                inFlight.remove(hostname, newFuture);
+                newFuture.completeExceptionally(cause);
+            } else {
+                final long ttlMillis = (resolved.hasTtl() ? Math.min(resolved.getTtlMillis(), positiveTtlMillis) : positiveTtlMillis);
+                if(ttlMillis > 0L)
+                    cache.put(hostname, new CacheEntry(resolved, null, currentMillis + ttlMillis));
+                inFlight.remove(hostname, newFuture);
+                newFuture.complete(resolved);
+            }
+        });
+        return newFuture;
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        if(throwable instanceof CompletionException && throwable.getCause() != null)
+            return throwable.getCause();
+        return throwable;
+    }
+
+}
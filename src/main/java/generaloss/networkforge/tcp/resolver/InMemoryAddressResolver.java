@@ -0,0 +1,55 @@
+package generaloss.networkforge.tcp.resolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Static host table, mainly for tests. */
+public class InMemoryAddressResolver implements AddressResolver {
+
+    private final Map<String, ResolvedAddresses> hosts;
+    private final AtomicInteger lookupCount;
+
+    public InMemoryAddressResolver() {
+        this.hosts = new ConcurrentHashMap<>();
+        this.lookupCount = new AtomicInteger();
+    }
+
+
+    public InMemoryAddressResolver put(String hostname, long ttlMillis, InetAddress... addresses) {
+        hosts.put(hostname, new ResolvedAddresses(hostname, addresses, ttlMillis));
+        return this;
+    }
+
+    public InMemoryAddressResolver put(String hostname, InetAddress... addresses) {
+        return this.put(hostname, ResolvedAddresses.UNKNOWN_TTL, addresses);
+    }
+
+    public InMemoryAddressResolver remove(String hostname) {
+        hosts.remove(hostname);
+        return this;
+    }
+
+    public int getLookupCount() {
+        return lookupCount.get();
+    }
+
+
+    @Override
+    public CompletableFuture<ResolvedAddresses> resolve(String hostname) {
+        if(hostname == null)
+            throw new IllegalArgumentException("Argument 'hostname' cannot be null");
+
+        lookupCount.incrementAndGet();
+
+        final ResolvedAddresses resolved = hosts.get(hostname);
+        if(resolved == null)
+            return CompletableFuture.failedFuture(new UnknownHostException(hostname));
+
+        return CompletableFuture.completedFuture(resolved);
+    }
+
+}
@@ -0,0 +1,50 @@
+package generaloss.networkforge.tcp.resolver;
+
+import java.net.InetAddress;
+
+public class ResolvedAddresses {
+
+    public static final long UNKNOWN_TTL = -1L;
+
+    private final String hostname;
+    private final InetAddress[] addresses;
+    private final long ttlMillis;
+
+    public ResolvedAddresses(String hostname, InetAddress[] addresses, long ttlMillis) {
+        if(hostname == null)
+            throw new IllegalArgumentException("Argument 'hostname' cannot be null");
+        if(addresses == null || addresses.length == 0)
+            throw new IllegalArgumentException("Argument 'addresses' cannot be null or empty");
+
+        this.hostname = hostname;
+        this.addresses = addresses;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public ResolvedAddresses(String hostname, InetAddress[] addresses) {
+        this(hostname, addresses, UNKNOWN_TTL);
+    }
+
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public InetAddress[] getAddresses() {
+        return addresses.clone();
+    }
+
+    public InetAddress getFirst() {
+        return addresses[0];
+    }
+
+    public boolean hasTtl() {
+        return (ttlMillis >= 0L);
+    }
+
+    /** Record TTL reported by the resolver, {@link #UNKNOWN_TTL} when it is not known. */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+}
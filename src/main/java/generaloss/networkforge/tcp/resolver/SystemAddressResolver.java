@@ -0,0 +1,56 @@
+package generaloss.networkforge.tcp.resolver;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Resolves through {@link InetAddress#getAllByName} off the caller thread. */
+public class SystemAddressResolver implements AddressResolver {
+
+    private static final String CLASS_NAME = SystemAddressResolver.class.getSimpleName();
+    public static final int DEFAULT_THREADS = 2;
+
+    private final Executor executor;
+
+    public SystemAddressResolver(Executor executor) {
+        if(executor == null)
+            throw new IllegalArgumentException("Argument 'executor' cannot be null");
+
+        this.executor = executor;
+    }
+
+    public SystemAddressResolver() {
+        this(createDefaultExecutor());
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(DEFAULT_THREADS, (runnable) -> {
+            final Thread thread = new Thread(runnable, CLASS_NAME + "-thread-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    @Override
+    public CompletableFuture<ResolvedAddresses> resolve(String hostname) {
+        if(hostname == null)
+            throw new IllegalArgumentException("Argument 'hostname' cannot be null");
+
+        final CompletableFuture<ResolvedAddresses> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                final InetAddress[] addresses = InetAddress.getAllByName(hostname);
+                future.complete(new ResolvedAddresses(hostname, addresses));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+}
@@ -4,7 +4,14 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.security.InvalidKeyException;
+import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 
 public class CryptoUtils {
@@ -41,4 +48,53 @@ public class CryptoUtils {
         }
     }
 
+    private static final char[] KEY_STORE_PASSWORD = "networkforge".toCharArray();
+    private static KeyStore selfSignedKeyStore;
+
+    /** Self-signed EC certificate for 'localhost' and 127.0.0.1, made by keytool of the running JDK. */
+    public static synchronized KeyStore getSelfSignedKeyStore() throws Exception {
+        if(selfSignedKeyStore != null)
+            return selfSignedKeyStore;
+
+        final File file = File.createTempFile("networkforge-test", ".p12");
+        file.delete();
+        file.deleteOnExit();
+
+        final String keytool = (System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool");
+        final Process process = new ProcessBuilder(
+            keytool, "-genkeypair", "-alias", "test", "-keyalg", "EC", "-groupname", "secp256r1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1", "-storetype", "PKCS12",
+            "-keystore", file.getAbsolutePath(),
+            "-storepass", new String(KEY_STORE_PASSWORD), "-keypass", new String(KEY_STORE_PASSWORD)
+        ).redirectErrorStream(true).start();
+        process.getInputStream().readAllBytes();
+        if(process.waitFor() != 0)
+            throw new IllegalStateException("keytool failed");
+
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try(InputStream input = new FileInputStream(file)) {
+            keyStore.load(input, KEY_STORE_PASSWORD);
+        }
+        selfSignedKeyStore = keyStore;
+        return keyStore;
+    }
+
+    public static SSLContext createServerSSLContext() throws Exception {
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(getSelfSignedKeyStore(), KEY_STORE_PASSWORD);
+
+        final SSLContext context = SSLContext.getInstance("TLSv1.3");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    public static SSLContext createClientSSLContext() throws Exception {
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(getSelfSignedKeyStore());
+
+        final SSLContext context = SSLContext.getInstance("TLSv1.3");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
 }
@@ -0,0 +1,72 @@
+package generaloss.networkforge.test;
+
+import generaloss.networkforge.tcp.TCPClient;
+import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.TCPServer;
+import generaloss.networkforge.tcp.pipeline.EventHandler;
+import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.EventPipeline;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Consumer;
+
+public class PipelineAllocationBenchmark {
+
+    private static final int[] HANDLER_COUNTS = { 1, 4, 16 };
+    private static final int ITERATIONS = 10_000_000;
+    private static final byte[] FRAME = new byte[64];
+
+    public static void main(String[] args) throws Exception {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        final TCPServer server = new TCPServer();
+        server.run(5445);
+        final TCPClient client = new TCPClient();
+        client.connect("localhost", 5445);
+        final TCPConnection connection = client.getConnection();
+        final EventPipeline pipeline = client.getEventPipeline();
+        client.registerOnReceive((conn, data) -> { });
+
+        // sends stop at the first handler instead of reaching the socket
+        pipeline.addHandlerFirst(new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                return false;
+            }
+        });
+
+        int handlersCount = 1;
+        for(int count : HANDLER_COUNTS) {
+            while(handlersCount < count) {
+                pipeline.addHandlerLast(new EventHandler() { });
+                handlersCount++;
+            }
+            System.out.println("Handlers: " + count);
+
+            run("  fireReceive", threads, conn -> pipeline.fireReceive(conn, FRAME), connection);
+            run("  fireSend", threads, conn -> pipeline.fireSend(conn, FRAME), connection);
+            run("  fireReadComplete", threads, pipeline::fireReadComplete, connection);
+        }
+
+        client.close();
+        server.close();
+    }
+
+    private static void run(String name, com.sun.management.ThreadMXBean threads, Consumer<TCPConnection> event, TCPConnection connection) {
+        final long threadID = Thread.currentThread().getId();
+
+        // warmup
+        for(int i = 0; i < ITERATIONS / 4; i++)
+            event.accept(connection);
+
+        final long startBytes = threads.getThreadAllocatedBytes(threadID);
+        final long startTime = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++)
+            event.accept(connection);
+        final long nanos = (System.nanoTime() - startTime);
+        final long bytes = (threads.getThreadAllocatedBytes(threadID) - startBytes);
+
+        System.out.printf("%-24s %8.2f ns/event, %8.3f bytes/event%n", name, (double) nanos / ITERATIONS, (double) bytes / ITERATIONS);
+    }
+
+}
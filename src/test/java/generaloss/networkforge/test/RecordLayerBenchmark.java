@@ -0,0 +1,81 @@
+package generaloss.networkforge.test;
+
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.crypto.AeadAlgorithm;
+import generaloss.networkforge.tcp.crypto.AeadRecordLayer;
+import generaloss.networkforge.tcp.crypto.CipherPair;
+
+import javax.crypto.SecretKey;
+import java.security.SecureRandom;
+import java.util.function.UnaryOperator;
+
+public class RecordLayerBenchmark {
+
+    private static final int[] FRAME_SIZES = { 64, 1024, 16 * 1024, 256 * 1024 };
+    private static final long BYTES_PER_RUN = (256L * 1024 * 1024);
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        final SecureRandom random = new SecureRandom();
+
+        // current path: JCE ciphers under locks
+        final SecretKey key = CryptoUtils.generateSecretKey(128);
+        final CipherPair cipherPair = new CipherPair();
+        cipherPair.setCiphers(CryptoUtils.getEncryptCipher(key), CryptoUtils.getDecryptCipher(key));
+
+        for(int frameSize : FRAME_SIZES) {
+            final byte[] frame = new byte[frameSize];
+            random.nextBytes(frame);
+            System.out.println("Frame size: " + frameSize + " bytes");
+
+            run("  CipherPair (AES)", frame, cipherPair::encrypt, cipherPair::decrypt);
+            for(AeadAlgorithm algorithm : AeadAlgorithm.values()) {
+                final byte[] keyBytes = new byte[algorithm.getKeySize()];
+                final byte[] iv = new byte[AeadAlgorithm.NONCE_SIZE];
+                random.nextBytes(keyBytes);
+                random.nextBytes(iv);
+
+                final SecretKey aeadKey = algorithm.createKey(keyBytes);
+                final AeadRecordLayer sender = new AeadRecordLayer(algorithm, aeadKey, iv, aeadKey, iv);
+                final AeadRecordLayer receiver = new AeadRecordLayer(algorithm, aeadKey, iv, aeadKey, iv);
+                run("  " + algorithm, frame, data -> sender.encrypt(data, SendPriority.NORMAL), receiver::decrypt);
+            }
+        }
+    }
+
+    private static void run(String name, byte[] frame, UnaryOperator<byte[]> encrypt, UnaryOperator<byte[]> decrypt) throws InterruptedException {
+        final int iterations = (int) Math.max(1000L, BYTES_PER_RUN / frame.length);
+
+        // warmup
+        for(int i = 0; i < iterations / 4; i++)
+            decrypt.apply(encrypt.apply(frame));
+
+        // single sender with receiver
+        long startTime = System.nanoTime();
+        for(int i = 0; i < iterations; i++)
+            decrypt.apply(encrypt.apply(frame));
+        final double roundTripSpeed = megabytesPerSecond(iterations, frame.length, System.nanoTime() - startTime);
+
+        // concurrent senders
+        final Thread[] threads = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(() -> {
+                for(int j = 0; j < iterations / THREADS; j++)
+                    encrypt.apply(frame);
+            });
+        }
+        startTime = System.nanoTime();
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads)
+            thread.join();
+        final double concurrentSpeed = megabytesPerSecond(iterations, frame.length, System.nanoTime() - startTime);
+
+        System.out.printf("%-24s round trip: %8.1f MB/s, %d senders: %8.1f MB/s%n", name, roundTripSpeed, THREADS, concurrentSpeed);
+    }
+
+    private static double megabytesPerSecond(int iterations, int frameSize, long nanos) {
+        return ((double) iterations * frameSize / (1024 * 1024)) / (nanos / 1e9);
+    }
+
+}
@@ -1,9 +1,27 @@
 package generaloss.networkforge.test;
 
+import generaloss.networkforge.tcp.attribute.AttributeKey;
+import generaloss.networkforge.tcp.codec.AdaptiveBufferSizer;
+import generaloss.networkforge.tcp.codec.BufferChunkPool;
 import generaloss.networkforge.tcp.codec.CodecType;
+import generaloss.networkforge.tcp.codec.DelimiterConnectionCodec;
+import generaloss.networkforge.tcp.codec.LengthFieldConnectionCodec;
+import generaloss.networkforge.tcp.codec.TlsConnectionCodec;
+import generaloss.networkforge.tcp.compression.Lz4CompressionHandler;
+import generaloss.networkforge.tcp.compression.Lz4Dictionary;
+import generaloss.networkforge.tcp.compression.StreamingDeflateHandler;
+import generaloss.networkforge.tcp.crypto.AeadAlgorithm;
+import generaloss.networkforge.tcp.crypto.AeadRecordLayer;
+import generaloss.networkforge.tcp.crypto.EncryptionGroup;
+import generaloss.networkforge.tcp.crypto.GroupKeyHandler;
+import generaloss.networkforge.tcp.crypto.X25519HandshakeHandler;
 import generaloss.networkforge.tcp.listener.CloseReason;
+import generaloss.networkforge.tcp.executor.ConnectionExecutorGroup;
 import generaloss.networkforge.tcp.pipeline.EventHandler;
 import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
+import generaloss.networkforge.tcp.pipeline.EventPipeline;
+import generaloss.networkforge.tcp.pipeline.ExecutorBoundHandler;
+import generaloss.networkforge.tcp.pipeline.FrameBatch;
 import generaloss.networkforge.test.handler.DeflateHandler;
 import generaloss.chronokit.TimeUtils;
 import generaloss.networkforge.packet.*;
@@ -13,7 +31,19 @@ import generaloss.networkforge.tcp.TCPConnection;
 import generaloss.networkforge.tcp.listener.ErrorListener;
 import generaloss.networkforge.tcp.options.TCPConnectionOptionsHolder;
 import generaloss.networkforge.tcp.TCPClient;
+import generaloss.networkforge.tcp.TCPClientPool;
+import generaloss.networkforge.tcp.balancer.BalancerEndpoint;
+import generaloss.networkforge.tcp.balancer.TCPLoadBalancer;
 import generaloss.networkforge.tcp.TCPServer;
+import generaloss.networkforge.tcp.MemoryBudget;
+import generaloss.networkforge.tcp.SendPriority;
+import generaloss.networkforge.tcp.mux.MuxHandler;
+import generaloss.networkforge.tcp.mux.MuxStream;
+import generaloss.networkforge.packet.rpc.RpcException;
+import generaloss.networkforge.packet.rpc.RpcHandler;
+import generaloss.networkforge.tcp.resolver.CachingAddressResolver;
+import generaloss.networkforge.tcp.resolver.InMemoryAddressResolver;
+import generaloss.networkforge.tcp.resolver.ResolvedAddresses;
 import generaloss.networkforge.test.packet.TestDisconnectPacket;
 import generaloss.networkforge.test.packet.TestMessagePacket;
 import generaloss.resourceflow.resource.Resource;
@@ -22,13 +52,26 @@ import org.junit.Test;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 public class StressTests {
 
@@ -895,4 +938,2116 @@ public class StressTests {
         Assert.assertEquals(message, result.get());
     }
 
+    @Test
+    public void client_pool_leasing() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int sendCount = 1000;
+        final AtomicInteger counter = new AtomicInteger();
+        final Set<TCPConnection> receivingConnections = ConcurrentHashMap.newKeySet();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnReceive((sender, bytes) -> {
+            receivingConnections.add(sender);
+            counter.incrementAndGet();
+        });
+        server.run(5424);
+
+        final TCPClientPool pool = new TCPClientPool("localhost", 5424)
+            .setConnectionsLimits(2, 4)
+            .setHealthCheckIntervalMillis(100L);
+        pool.registerOnError(ErrorListener::printError);
+        pool.start();
+
+        // pre-warmed
+        TimeUtils.waitFor(() -> server.getConnections().size() == 2, 3000, () -> {
+            pool.close();
+            server.close();
+            Assert.fail();
+        });
+
+        final TCPConnection leased = pool.acquire().get(3, TimeUnit.SECONDS);
+        Assert.assertTrue(leased.isConnected());
+
+        for(int i = 0; i < sendCount; i++)
+            pool.send("Hello, Pool!");
+
+        TimeUtils.waitFor(() -> counter.get() == sendCount, 3000, () -> {
+            pool.close();
+            server.close();
+            Assert.fail(counter.get() + " / " + sendCount);
+        });
+        Assert.assertTrue(server.getConnections().size() <= 4);
+        Assert.assertTrue(receivingConnections.size() >= 2); // idle connections take turns
+
+        // dead connection is replaced in background
+        for(TCPConnection connection : server.getConnections())
+            connection.close();
+
+        TimeUtils.waitFor(() -> server.getConnections().size() >= 2, 3000, () -> {
+            pool.close();
+            server.close();
+            Assert.fail();
+        });
+
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void load_balancer_two_choices() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int sendCount = 400;
+        final AtomicInteger counter1 = new AtomicInteger();
+        final AtomicInteger counter2 = new AtomicInteger();
+
+        final TCPServer server1 = new TCPServer();
+        server1.registerOnError(ErrorListener::printError);
+        server1.registerOnReceive((sender, bytes) -> counter1.incrementAndGet());
+        server1.run(5425);
+
+        final TCPServer server2 = new TCPServer();
+        server2.registerOnError(ErrorListener::printError);
+        server2.registerOnReceive((sender, bytes) -> counter2.incrementAndGet());
+        server2.run(5426);
+
+        final TCPLoadBalancer balancer = new TCPLoadBalancer()
+            .setClientInitializer(client -> client.registerOnError(ErrorListener::printError))
+            .enableHedging(0.95D);
+        balancer.addEndpoint("localhost", 5425);
+        balancer.addEndpoint("localhost", 5426);
+
+        TimeUtils.waitFor(() -> balancer.getEndpoints().stream().allMatch(BalancerEndpoint::isAvailable), 3000, () -> {
+            balancer.close();
+            server1.close();
+            server2.close();
+            Assert.fail();
+        });
+
+        for(int i = 0; i < sendCount; i++) {
+            final String result = balancer.call(connection -> {
+                connection.send("Hello, Balancer!");
+                return CompletableFuture.completedFuture("OK");
+            }).get(1, TimeUnit.SECONDS);
+            Assert.assertEquals("OK", result);
+        }
+
+        TimeUtils.waitFor(() -> counter1.get() + counter2.get() >= sendCount, 3000, () -> {
+            balancer.close();
+            server1.close();
+            server2.close();
+            Assert.fail((counter1.get() + counter2.get()) + " / " + sendCount);
+        });
+
+        balancer.close();
+        server1.close();
+        server2.close();
+        Assert.assertTrue(counter1.get() > 0);
+        Assert.assertTrue(counter2.get() > 0);
+    }
+
+    @Test
+    public void connect_racing_addresses() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.run(5427);
+
+        final InetAddress[] addresses = new InetAddress[] {
+            InetAddress.getByName("10.255.255.1"), // blackhole
+            InetAddress.getLoopbackAddress(),
+        };
+
+        final TCPClient client = new TCPClient();
+        client.setConnectAttemptDelayMillis(50L);
+
+        final TCPConnection connection = client.connectAsyncRacing(addresses, 5427, 3000L).get(2, TimeUnit.SECONDS);
+        Assert.assertTrue(Arrays.asList(addresses).contains(connection.getAddress()));
+        Assert.assertTrue(client.isOpen());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void cached_address_resolver() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.run(5428);
+
+        final InMemoryAddressResolver hosts = new InMemoryAddressResolver();
+        hosts.put("service.local", InetAddress.getLoopbackAddress());
+        final CachingAddressResolver resolver = new CachingAddressResolver(hosts);
+
+        final TCPClient client = new TCPClient();
+        client.setAddressResolver(resolver);
+        for(int i = 0; i < 10; i++) {
+            client.connectAsync("service.local", 5428).get(2, TimeUnit.SECONDS);
+            client.close();
+        }
+        Assert.assertEquals(1, hosts.getLookupCount());
+
+        // negative cache
+        for(int i = 0; i < 3; i++) {
+            try {
+                client.connectAsync("missing.local", 5428).get(2, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof UnknownHostException);
+            }
+        }
+        Assert.assertEquals(2, hosts.getLookupCount());
+
+        // coalescing
+        final AtomicInteger slowLookups = new AtomicInteger();
+        final CompletableFuture<ResolvedAddresses> slowResult = new CompletableFuture<>();
+        final CachingAddressResolver slowResolver = new CachingAddressResolver(hostname -> {
+            slowLookups.incrementAndGet();
+            return slowResult;
+        });
+        final CompletableFuture<ResolvedAddresses> first = slowResolver.resolve("slow.local");
+        final CompletableFuture<ResolvedAddresses> second = slowResolver.resolve("slow.local");
+        slowResult.complete(new ResolvedAddresses("slow.local", new InetAddress[] { InetAddress.getLoopbackAddress() }));
+        Assert.assertEquals(first.get(), second.get());
+        Assert.assertEquals(1, slowLookups.get());
+
+        server.close();
+    }
+
+    @Test
+    public void rpc_pipelined_calls() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int callsNum = 2000;
+
+        final PacketReader packetReader = new PacketReader();
+        packetReader.register(TestMessagePacket.class);
+
+        final PacketDispatcher serverDispatcher = new PacketDispatcher()
+            .async(Executors.newFixedThreadPool(4));
+        serverDispatcher.registerResponder(TestMessagePacket.class, (connection, request) -> {
+            if(request.getMessage().equals("fail"))
+                throw new IllegalStateException("requested failure");
+            if(request.getMessage().equals("slow"))
+                TimeUtils.delayMillis(500);
+            return new TestMessagePacket(request.getMessage().toUpperCase());
+        });
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(new RpcHandler(packetReader, serverDispatcher));
+        server.run(5429);
+
+        final RpcHandler rpc = new RpcHandler(packetReader);
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(rpc);
+        client.connect("localhost", 5429);
+        final TCPConnection connection = client.getConnection();
+
+        final List<CompletableFuture<TestMessagePacket>> futures = new ArrayList<>();
+        for(int i = 0; i < callsNum; i++)
+            futures.add(rpc.call(connection, new TestMessagePacket("message-" + i)));
+
+        for(int i = 0; i < callsNum; i++)
+            Assert.assertEquals("MESSAGE-" + i, futures.get(i).get(5, TimeUnit.SECONDS).getMessage());
+        Assert.assertEquals(0, rpc.getPendingCallCount(connection));
+
+        // remote failure
+        try {
+            rpc.call(connection, new TestMessagePacket("fail")).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RpcException);
+        }
+
+        // deadline
+        try {
+            rpc.call(connection, new TestMessagePacket("slow"), 100L).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // call after close fails at once, even without a deadline
+        client.close();
+        final CompletableFuture<TestMessagePacket> lateCall = rpc.call(connection, new TestMessagePacket("late"), 0L);
+        Assert.assertTrue(lateCall.isCompletedExceptionally());
+        Assert.assertEquals(0, rpc.getPendingCallCount(connection));
+
+        rpc.close();
+        server.close();
+    }
+
+    @Test
+    public void mux_streams_interleave() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int smallMessagesNum = 100;
+        final byte[] largeMessage = new byte[1024 * 1024];
+        final AtomicInteger serverClosedStreams = new AtomicInteger();
+
+        final MuxHandler serverMux = new MuxHandler(false)
+            .setChunkSize(8 * 1024)
+            .setInitialWindow(64 * 1024);
+        serverMux.registerOnStreamOpen(stream -> {
+            stream.setDataListener(MuxStream::send); // echo
+            stream.setCloseListener(closed -> serverClosedStreams.incrementAndGet());
+        });
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(serverMux);
+        server.run(5430);
+
+        final MuxHandler clientMux = new MuxHandler(true)
+            .setChunkSize(8 * 1024)
+            .setInitialWindow(64 * 1024);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(clientMux);
+        client.connect("localhost", 5430);
+
+        final AtomicInteger smallReceived = new AtomicInteger();
+        final AtomicInteger smallReceivedBeforeLarge = new AtomicInteger(-1);
+
+        final MuxStream largeStream = clientMux.openStream(client.getConnection());
+        largeStream.setDataListener((stream, data) -> {
+            Assert.assertEquals(largeMessage.length, data.length);
+            smallReceivedBeforeLarge.set(smallReceived.get());
+        });
+        final MuxStream smallStream = clientMux.openStream(client.getConnection());
+        smallStream.setDataListener((stream, data) -> smallReceived.incrementAndGet());
+
+        largeStream.send(largeMessage);
+        for(int i = 0; i < smallMessagesNum; i++)
+            smallStream.send("small-" + i);
+
+        TimeUtils.waitFor(() -> smallReceivedBeforeLarge.get() != -1, 10000, Assert::fail);
+        Assert.assertEquals(smallMessagesNum, smallReceivedBeforeLarge.get()); // not blocked behind the large frame
+
+        smallStream.close();
+        largeStream.close();
+        TimeUtils.waitFor(() -> serverClosedStreams.get() == 2, 3000, Assert::fail);
+        Assert.assertEquals(0, clientMux.getStreamCount(client.getConnection()));
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void mux_limits_peer_streams_and_message_size() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final AtomicInteger serverOpened = new AtomicInteger();
+        final AtomicReference<CloseReason> serverCloseReason = new AtomicReference<>();
+
+        final MuxHandler serverMux = new MuxHandler(false)
+            .setMaxPeerStreams(2);
+        serverMux.registerOnStreamOpen(stream -> serverOpened.incrementAndGet());
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setMaxReadFrameSize(64 * 1024);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setInitialOptions(options);
+        server.getEventPipeline().addHandlerLast(serverMux);
+        server.registerOnDisconnect((connection, reason, e) -> serverCloseReason.set(reason));
+        server.run(5453);
+
+        final MuxHandler clientMux = new MuxHandler(true)
+            .setChunkSize(8 * 1024);
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(clientMux);
+        client.connect("localhost", 5453);
+
+        final MuxStream first = clientMux.openStream(client.getConnection());
+        clientMux.openStream(client.getConnection());
+        final MuxStream refused = clientMux.openStream(client.getConnection());
+
+        // third stream is over the limit
+        TimeUtils.waitFor(refused::isClosed, 3000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(2, serverOpened.get());
+
+        // chunks fit the frame limit, the assembled message does not
+        first.send(new byte[256 * 1024]);
+        TimeUtils.waitFor(() -> serverCloseReason.get() != null, 3000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, serverCloseReason.get());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void mux_limits_queued_bytes_and_closes_outside_lock() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        // no mux on the server: credit is never returned
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.run(5463);
+
+        final MuxHandler clientMux = new MuxHandler(true)
+            .setInitialWindow(1024)
+            .setMaxQueuedBytes(4096);
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(clientMux);
+        client.connect("localhost", 5463);
+
+        final MuxStream stream = clientMux.openStream(client.getConnection());
+        Assert.assertTrue(stream.send(new byte[1024])); // fits the window
+        Assert.assertTrue(stream.send(new byte[2048]));
+        Assert.assertTrue(stream.send(new byte[2048]));
+        Assert.assertFalse(stream.send(new byte[1])); // over the queue limit
+
+        // close listener may use the session from another thread
+        final AtomicBoolean openedFromListener = new AtomicBoolean();
+        final MuxStream closing = clientMux.openStream(client.getConnection());
+        closing.setCloseListener(closed -> {
+            final Thread opener = new Thread(() -> clientMux.openStream(client.getConnection()));
+            opener.start();
+            try {
+                opener.join(3000);
+            } catch (InterruptedException ignored) { }
+            openedFromListener.set(!opener.isAlive());
+        });
+        closing.close();
+
+        Assert.assertTrue(closing.isClosed());
+        Assert.assertTrue(openedFromListener.get());
+        Assert.assertEquals(2, clientMux.getStreamCount(client.getConnection()));
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void high_priority_preempts_large_frame() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final byte[] largeFrame = new byte[16 * 1024 * 1024];
+        final byte[] controlFrame = "control".getBytes();
+        final List<Integer> receivedSizes = new CopyOnWriteArrayList<>();
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setMaxFrameSize(largeFrame.length);
+        options.setSendChunkSize(64 * 1024);
+        options.setSendBufferSize(64 * 1024);
+        options.setReceiveBufferSize(64 * 1024);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setInitialOptions(options);
+        server.registerOnReceive((sender, bytes) -> receivedSizes.add(bytes.length));
+        server.run(5431);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.setInitialOptions(options);
+        client.connect("localhost", 5431);
+
+        client.send(largeFrame, SendPriority.LOW);
+        client.send(controlFrame, SendPriority.HIGH);
+
+        TimeUtils.waitFor(() -> receivedSizes.size() == 2, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(controlFrame.length, (int) receivedSizes.get(0)); // went out between chunks
+        Assert.assertEquals(largeFrame.length, (int) receivedSizes.get(1));
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void length_field_codec_discards_oversized() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int framesCount = 1000;
+        final List<byte[]> received = new CopyOnWriteArrayList<>();
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setMaxReadFrameSize(1024);
+        options.setCloseOnFrameReadSizeExceed(false);
+
+        // [type][2-byte LE length including itself][body]
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setCodecFactory(() -> new LengthFieldConnectionCodec(2, ByteOrder.LITTLE_ENDIAN, 1, -2));
+        server.setInitialOptions(options);
+        server.registerOnReceive((sender, bytes) -> received.add(bytes));
+        server.run(5432);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.setCodec(new LengthFieldConnectionCodec(2, ByteOrder.LITTLE_ENDIAN, 1, -2));
+        client.connect("localhost", 5432);
+
+        client.send(new byte[4096]); // discarded by server
+        for(int i = 0; i < framesCount; i++) {
+            final byte[] frame = new byte[1 + (i % 64)];
+            frame[0] = (byte) i;
+            client.send(frame);
+        }
+
+        TimeUtils.waitFor(() -> received.size() == framesCount, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        for(int i = 0; i < framesCount; i++) {
+            Assert.assertEquals(1 + (i % 64), received.get(i).length);
+            Assert.assertEquals((byte) i, received.get(i)[0]);
+        }
+        Assert.assertTrue(client.isOpen());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void varint_codec_round_trip_and_malformed_length() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final List<CloseReason> serverCloseReasons = new CopyOnWriteArrayList<>();
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setCodecFactory(CodecType.VARINT.getFactory());
+        server.registerOnReceive(TCPConnection::send); // echo
+        server.registerOnDisconnect((connection, reason, e) -> serverCloseReasons.add(reason));
+        server.run(5464);
+
+        // 1-, 2- and 3-byte length prefixes
+        final int[] sizes = { 0, 1, 127, 128, 16383, 16384, 100_000 };
+        final Random random = new Random(33);
+        final List<byte[]> sent = new ArrayList<>();
+        final List<byte[]> echoed = new CopyOnWriteArrayList<>();
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.setCodec(CodecType.VARINT);
+        client.registerOnReceive((connection, bytes) -> echoed.add(bytes));
+        client.connect("localhost", 5464);
+        for(int size : sizes) {
+            final byte[] frame = new byte[size];
+            random.nextBytes(frame);
+            sent.add(frame);
+            client.send(frame);
+        }
+
+        TimeUtils.waitFor(() -> echoed.size() == sizes.length, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        for(int i = 0; i < sizes.length; i++)
+            Assert.assertArrayEquals(sent.get(i), echoed.get(i));
+        client.close();
+
+        TimeUtils.waitFor(() -> serverCloseReasons.size() == 1, 5000, () -> {
+            server.close();
+            Assert.fail();
+        });
+
+        // no terminating byte within 5 bytes
+        final TCPClient malformed = new TCPClient();
+        malformed.setCodec(CodecType.STREAM);
+        malformed.connect("localhost", 5464);
+        malformed.send(new byte[]{ (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 });
+
+        TimeUtils.waitFor(() -> serverCloseReasons.size() == 2, 5000, () -> {
+            malformed.close();
+            server.close();
+            Assert.fail();
+        });
+
+        // 35-bit length
+        final TCPClient overflowing = new TCPClient();
+        overflowing.setCodec(CodecType.STREAM);
+        overflowing.connect("localhost", 5464);
+        overflowing.send(new byte[]{ (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F });
+
+        TimeUtils.waitFor(() -> serverCloseReasons.size() == 3, 5000, () -> {
+            overflowing.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(CloseReason.INVALID_FRAME_SIZE, serverCloseReasons.get(2));
+
+        malformed.close();
+        overflowing.close();
+        server.close();
+    }
+
+    @Test
+    public void delimiter_codec_splits_stream() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setMaxReadFrameSize(1024);
+        options.setCloseOnFrameReadSizeExceed(false);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setCodecFactory(() -> new DelimiterConnectionCodec("\r\n"));
+        server.setInitialOptions(options);
+        server.registerOnReceive((sender, bytes) -> received.add(new String(bytes)));
+        server.run(5433);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.setCodec(CodecType.STREAM);
+        client.connect("localhost", 5433);
+
+        final String oversized = new String(new char[3000]).replace('\0', 'x');
+        final String[] parts = { "hello\r", "\nwor", "ld\r\n" + oversized, oversized + "\r\nlong line of text\r\nend\r\n" };
+        for(String part: parts) {
+            client.send(part.getBytes());
+            TimeUtils.delayMillis(20);
+        }
+
+        TimeUtils.waitFor(() -> received.size() == 4, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(Arrays.asList("hello", "world", "long line of text", "end"), received);
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void streaming_receive_large_frames() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final Random random = new Random(35);
+        final byte[] chunkedFrame = new byte[1024 * 1024]; // split by sender into send chunks
+        final byte[] highFrame = new byte[200 * 1024]; // HIGH frames are not split
+        random.nextBytes(chunkedFrame);
+        random.nextBytes(highFrame);
+
+        final Map<Integer, CRC32> checksums = new ConcurrentHashMap<>();
+        final List<Long> completedChecksums = new CopyOnWriteArrayList<>();
+        final List<byte[]> receivedFrames = new CopyOnWriteArrayList<>();
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setMaxReadFrameSize(128 * 1024); // streamed frames are not limited
+        options.setStreamingReceiveThreshold(64 * 1024);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setInitialOptions(options);
+        server.registerOnReceive((sender, bytes) -> receivedFrames.add(bytes));
+        server.registerOnReceiveChunk((sender, frameID, chunk, last) -> {
+            final CRC32 checksum = checksums.computeIfAbsent(frameID, id -> new CRC32());
+            checksum.update(chunk);
+            if(last)
+                completedChecksums.add(checksums.remove(frameID).getValue());
+        });
+        server.run(5434);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.connect("localhost", 5434);
+
+        client.send(chunkedFrame, SendPriority.LOW);
+        client.send("small".getBytes());
+        client.send(highFrame, SendPriority.HIGH);
+
+        TimeUtils.waitFor(() -> completedChecksums.size() == 2 && receivedFrames.size() == 1, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        final CRC32 expectedChunked = new CRC32();
+        expectedChunked.update(chunkedFrame);
+        final CRC32 expectedHigh = new CRC32();
+        expectedHigh.update(highFrame);
+        Assert.assertTrue(completedChecksums.contains(expectedChunked.getValue()));
+        Assert.assertTrue(completedChecksums.contains(expectedHigh.getValue()));
+        Assert.assertEquals("small", new String(receivedFrames.get(0)));
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void adaptive_buffer_sizer_follows_traffic() {
+        final AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(8192, 1024 * 1024, 50L);
+
+        // grows at once
+        sizer.record(300_000);
+        Assert.assertEquals(512 * 1024, sizer.getBufferSize());
+
+        // a few small frames do not shrink it
+        for(int i = 0; i < 5; i++)
+            sizer.record(1000);
+        Assert.assertEquals(512 * 1024, sizer.getBufferSize());
+
+        // sustained small traffic does
+        for(int i = 0; i < 50; i++)
+            sizer.record(1000);
+        Assert.assertEquals(1024, sizer.getBufferSize());
+
+        // limited by max size
+        sizer.record(5_000_000);
+        Assert.assertEquals(1024 * 1024, sizer.getBufferSize());
+
+        Assert.assertFalse(sizer.isIdle());
+        Assert.assertTrue(sizer.isIdle(System.nanoTime() + 100_000_000L));
+    }
+
+    @Test
+    public void memory_budget_pauses_and_closes_heavy_connections() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final byte[] largeFrame = new byte[100 * 1024];
+        final AtomicInteger receivedCount = new AtomicInteger();
+        final AtomicReference<CloseReason> closeReason = new AtomicReference<>();
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setSendChunkSize(0);
+
+        // soft limit: reading pauses
+        final MemoryBudget softBudget = new MemoryBudget(16 * 1024, 1024 * 1024);
+        final TCPServer softServer = new TCPServer();
+        softServer.registerOnError(ErrorListener::printError);
+        softServer.setMemoryBudget(softBudget);
+        softServer.registerOnReceive((sender, bytes) -> receivedCount.incrementAndGet());
+        softServer.run(5435);
+
+        // hard limit: heavy connection closes
+        final MemoryBudget hardBudget = new MemoryBudget(16 * 1024, 64 * 1024);
+        final TCPServer hardServer = new TCPServer();
+        hardServer.registerOnError(ErrorListener::printError);
+        hardServer.setMemoryBudget(hardBudget);
+        hardServer.registerOnDisconnect((connection, reason, e) -> closeReason.set(reason));
+        hardServer.run(5436);
+
+        final TCPClient softClient = new TCPClient();
+        softClient.setInitialOptions(options);
+        softClient.connect("localhost", 5435);
+        softClient.send(largeFrame);
+
+        final TCPClient hardClient = new TCPClient();
+        hardClient.setInitialOptions(options);
+        hardClient.connect("localhost", 5436);
+        hardClient.send(largeFrame);
+
+        TimeUtils.waitFor(() -> softBudget.getPausedConnectionCount() == 1 && closeReason.get() != null, 5000, () -> {
+            softClient.close();
+            hardClient.close();
+            softServer.close();
+            hardServer.close();
+            Assert.fail(softBudget + " / " + hardBudget);
+        });
+
+        Assert.assertEquals(1, receivedCount.get());
+        Assert.assertTrue(softServer.getConnections().iterator().next().isReadPaused());
+        Assert.assertTrue(softBudget.getUsedBytes() >= largeFrame.length);
+
+        Assert.assertEquals(CloseReason.MEMORY_LIMIT_EXCEEDED, closeReason.get());
+        Assert.assertEquals(1, hardBudget.getClosedConnectionCount());
+        Assert.assertEquals(0, hardBudget.getUsedBytes());
+        Assert.assertTrue(hardBudget.getPeakUsedBytes() >= largeFrame.length);
+
+        softClient.close();
+        hardClient.close();
+        softServer.close();
+        hardServer.close();
+        Assert.assertEquals(0, softBudget.getUsedBytes());
+    }
+
+    @Test
+    public void composite_receive_keeps_large_frames_in_chunks() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final Random random = new Random(38);
+        final byte[] chunkedFrame = new byte[1024 * 1024]; // split by sender into send chunks
+        final byte[] highFrame = new byte[300 * 1024]; // HIGH frames are not split
+        random.nextBytes(chunkedFrame);
+        random.nextBytes(highFrame);
+
+        final List<byte[]> compositeFrames = new CopyOnWriteArrayList<>();
+        final List<byte[]> receivedFrames = new CopyOnWriteArrayList<>();
+
+        final TCPConnectionOptionsHolder options = new TCPConnectionOptionsHolder();
+        options.setCompositeReceiveThreshold(128 * 1024);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setInitialOptions(options);
+        server.registerOnReceive((sender, bytes) -> receivedFrames.add(bytes));
+        server.registerOnReceiveComposite((sender, frame) -> {
+            try {
+                // read through the stream, check buffers cover the same bytes
+                final byte[] bytes = frame.newInputStream().readAllBytes();
+                int buffersSize = 0;
+                for(ByteBuffer buffer : frame.getBuffers())
+                    buffersSize += buffer.remaining();
+                if(buffersSize == frame.size())
+                    compositeFrames.add(bytes);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        server.run(5437);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.connect("localhost", 5437);
+
+        client.send(chunkedFrame, SendPriority.LOW);
+        client.send("small".getBytes());
+        client.send(highFrame, SendPriority.HIGH);
+
+        TimeUtils.waitFor(() -> compositeFrames.size() == 2 && receivedFrames.size() == 3, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        // composite frames are also flattened for byte[] listeners
+        Assert.assertTrue(compositeFrames.stream().anyMatch(bytes -> Arrays.equals(chunkedFrame, bytes)));
+        Assert.assertTrue(compositeFrames.stream().anyMatch(bytes -> Arrays.equals(highFrame, bytes)));
+        Assert.assertTrue(receivedFrames.stream().anyMatch(bytes -> Arrays.equals(chunkedFrame, bytes)));
+        Assert.assertTrue(receivedFrames.stream().anyMatch(bytes -> "small".equals(new String(bytes))));
+        Assert.assertTrue(BufferChunkPool.DEFAULT.getPooledCount() > 0);
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void aead_record_layer_encrypts_frames() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final Random random = new Random(39);
+        final byte[] clientKey = new byte[32];
+        final byte[] serverKey = new byte[32];
+        final byte[] clientIV = new byte[AeadAlgorithm.NONCE_SIZE];
+        final byte[] serverIV = new byte[AeadAlgorithm.NONCE_SIZE];
+        random.nextBytes(clientKey);
+        random.nextBytes(serverKey);
+        random.nextBytes(clientIV);
+        random.nextBytes(serverIV);
+
+        final AeadAlgorithm algorithm = AeadAlgorithm.AES_256_GCM;
+        final SecretKey clientWriteKey = algorithm.createKey(clientKey);
+        final SecretKey serverWriteKey = algorithm.createKey(serverKey);
+
+        // tampered and replayed records are rejected
+        final AeadRecordLayer clientLayer = new AeadRecordLayer(algorithm, clientWriteKey, clientIV, serverWriteKey, serverIV);
+        final AeadRecordLayer serverLayer = new AeadRecordLayer(algorithm, serverWriteKey, serverIV, clientWriteKey, clientIV);
+        final byte[] record = clientLayer.encrypt("record".getBytes(), SendPriority.NORMAL);
+        final byte[] tampered = record.clone();
+        tampered[AeadRecordLayer.SEQUENCE_SIZE] ^= 1;
+        Assert.assertFalse(isDecrypted(serverLayer, tampered));
+        Assert.assertTrue(isDecrypted(serverLayer, record));
+        Assert.assertFalse(isDecrypted(serverLayer, record));
+
+        final byte[] largeFrame = new byte[512 * 1024]; // chunked, interleaves with HIGH frames
+        random.nextBytes(largeFrame);
+        final int iterations = 1000;
+        final AtomicInteger receivedCount = new AtomicInteger();
+        final AtomicBoolean hasNotEqual = new AtomicBoolean();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnConnect((connection) -> connection.getCiphers().setRecordLayer(
+            new AeadRecordLayer(algorithm, serverWriteKey, serverIV, clientWriteKey, clientIV)
+        ));
+        server.registerOnReceive((sender, bytes) -> {
+            if(bytes.length != largeFrame.length && !"message".equals(new String(bytes)))
+                hasNotEqual.set(true);
+            if(bytes.length == largeFrame.length && !Arrays.equals(largeFrame, bytes))
+                hasNotEqual.set(true);
+            receivedCount.incrementAndGet();
+        });
+        server.run(5438);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.registerOnConnect((connection) -> connection.getCiphers().setRecordLayer(
+            new AeadRecordLayer(algorithm, clientWriteKey, clientIV, serverWriteKey, serverIV)
+        ));
+        client.connect("localhost", 5438);
+
+        client.send(largeFrame, SendPriority.LOW);
+        for(int i = 0; i < iterations; i++)
+            client.send("message".getBytes(), (i % 2 == 0 ? SendPriority.HIGH : SendPriority.NORMAL));
+
+        TimeUtils.waitFor(() -> receivedCount.get() == iterations + 1, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertFalse(hasNotEqual.get());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void tls_codec_resumes_sessions() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final SSLContext serverContext = CryptoUtils.createServerSSLContext();
+        final SSLContext clientContext = CryptoUtils.createClientSSLContext(); // shared: keeps sessions
+
+        final byte[] largeFrame = new byte[1024 * 1024];
+        new Random(40).nextBytes(largeFrame);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setCodecFactory(TlsConnectionCodec.serverFactory(serverContext));
+        server.registerOnReceive(TCPConnection::send); // echo
+        server.run(5439);
+
+        final long[] sessionCreationTimes = new long[2];
+        for(int i = 0; i < sessionCreationTimes.length; i++) {
+            final List<byte[]> echoed = new CopyOnWriteArrayList<>();
+            final TlsConnectionCodec codec = new TlsConnectionCodec(clientContext, true);
+
+            final TCPClient client = new TCPClient();
+            client.registerOnError(ErrorListener::printError);
+            client.setCodec(codec);
+            client.registerOnReceive((connection, bytes) -> echoed.add(bytes));
+            client.connect("localhost", 5439);
+
+            // sent before handshake completion
+            client.send("hello");
+            client.send(largeFrame, SendPriority.LOW);
+
+            TimeUtils.waitFor(() -> echoed.size() == 2, 5000, () -> {
+                client.close();
+                server.close();
+                Assert.fail();
+            });
+            Assert.assertEquals("hello", new String(echoed.get(0)));
+            Assert.assertArrayEquals(largeFrame, echoed.get(1));
+            Assert.assertTrue(codec.isHandshakeComplete());
+
+            sessionCreationTimes[i] = codec.getEngine().getSession().getCreationTime();
+            client.close();
+        }
+
+        // resumed session keeps its creation time
+        Assert.assertEquals(sessionCreationTimes[0], sessionCreationTimes[1]);
+        server.close();
+    }
+
+
+    @Test
+    public void tls_codec_verifies_host_and_sends_close_notify() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final SSLContext serverContext = CryptoUtils.createServerSSLContext();
+        final SSLContext clientContext = CryptoUtils.createClientSSLContext();
+
+        final AtomicBoolean closeNotifyReceived = new AtomicBoolean();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final TCPServer server = new TCPServer();
+        server.setCodecFactory(TlsConnectionCodec.serverFactory(serverContext));
+        server.registerOnReceive(TCPConnection::send); // echo
+        server.registerOnDisconnect((connection, reason, e) -> {
+            if(((TlsConnectionCodec) connection.getCodec()).getEngine().isInboundDone())
+                closeNotifyReceived.set(true);
+            disconnects.incrementAndGet();
+        });
+        server.run(5461);
+
+        // certificate matches 'localhost'
+        final AtomicReference<String> echoed = new AtomicReference<>();
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.setCodec(new TlsConnectionCodec(clientContext, true));
+        client.registerOnReceive((connection, bytes) -> echoed.set(new String(bytes)));
+        client.connect("localhost", 5461);
+        client.send("hello");
+
+        TimeUtils.waitFor(() -> echoed.get() != null, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        client.close();
+        TimeUtils.waitFor(() -> disconnects.get() == 1, 5000, () -> {
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertTrue(closeNotifyReceived.get());
+
+        // certificate does not match the host name
+        final AtomicBoolean mismatchReceived = new AtomicBoolean();
+        final TCPClient mismatch = new TCPClient();
+        mismatch.setCodec(new TlsConnectionCodec(clientContext, true));
+        mismatch.registerOnReceive((connection, bytes) -> mismatchReceived.set(true));
+        mismatch.connect(new InetSocketAddress(InetAddress.getByAddress("unknown.host", new byte[]{ 127, 0, 0, 1 }), 5461));
+        mismatch.send("hello");
+
+        TimeUtils.waitFor(() -> disconnects.get() == 2, 5000, () -> {
+            mismatch.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertFalse(mismatchReceived.get());
+
+        mismatch.close();
+        server.close();
+    }
+
+    @Test
+    public void tls_codec_reconnects_repeatedly() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final SSLContext serverContext = CryptoUtils.createServerSSLContext();
+        final SSLContext clientContext = CryptoUtils.createClientSSLContext(); // shared: resumed sessions
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.setCodecFactory(TlsConnectionCodec.serverFactory(serverContext));
+        server.registerOnReceive(TCPConnection::send); // echo
+        server.run(5451);
+
+        for(int i = 0; i < 20; i++) {
+            final List<String> echoed = new CopyOnWriteArrayList<>();
+            final TlsConnectionCodec codec = new TlsConnectionCodec(clientContext, true);
+
+            final TCPClient client = new TCPClient();
+            client.registerOnError(ErrorListener::printError);
+            client.setCodec(codec);
+            client.registerOnReceive((connection, bytes) -> echoed.add(new String(bytes)));
+            client.connect("localhost", 5451);
+            client.send("hello " + i);
+
+            // handshake must not stall on a lost selector wakeup
+            TimeUtils.waitFor(() -> echoed.size() == 1, 5000, () -> {
+                client.close();
+                server.close();
+                Assert.fail();
+            });
+            Assert.assertEquals("hello " + i, echoed.get(0));
+            client.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void x25519_handshake_installs_record_layer() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int iterations = 100;
+        final AtomicInteger echoedCount = new AtomicInteger();
+        final AtomicBoolean hasNotEqual = new AtomicBoolean();
+        final AtomicBoolean connectedBeforeHandshake = new AtomicBoolean();
+
+        final X25519HandshakeHandler serverHandshake = new X25519HandshakeHandler(false, AeadAlgorithm.CHACHA20_POLY1305);
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerFirst(serverHandshake);
+        server.registerOnConnect((connection) -> {
+            if(!serverHandshake.isHandshakeComplete(connection))
+                connectedBeforeHandshake.set(true);
+        });
+        server.registerOnReceive(TCPConnection::send); // echo
+        server.run(5440);
+
+        final X25519HandshakeHandler clientHandshake = new X25519HandshakeHandler(true, AeadAlgorithm.CHACHA20_POLY1305);
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerFirst(clientHandshake);
+        client.registerOnReceive((connection, bytes) -> {
+            if(!new String(bytes).startsWith("message"))
+                hasNotEqual.set(true);
+            echoedCount.incrementAndGet();
+        });
+        client.connect("localhost", 5440);
+
+        // sent before handshake completion
+        for(int i = 0; i < iterations; i++)
+            client.send("message" + i);
+
+        TimeUtils.waitFor(() -> echoedCount.get() == iterations, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertFalse(hasNotEqual.get());
+        Assert.assertFalse(connectedBeforeHandshake.get());
+        Assert.assertTrue(clientHandshake.isHandshakeComplete(client.getConnection()));
+        Assert.assertNotNull(client.getConnection().getCiphers().getRecordLayer());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void x25519_handshake_limits_buffered_frames() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final AtomicReference<CloseReason> serverCloseReason = new AtomicReference<>();
+        final X25519HandshakeHandler serverHandshake = new X25519HandshakeHandler(false, AeadAlgorithm.AES_128_GCM, runnable -> { }) // never completes
+            .setMaxBufferedSize(1024);
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerFirst(serverHandshake);
+        server.registerOnDisconnect((connection, reason, e) -> serverCloseReason.set(reason));
+        server.run(5455);
+
+        final TCPClient client = new TCPClient();
+        client.connect("localhost", 5455);
+        for(int i = 0; i < 8; i++)
+            client.send(new byte[256]);
+
+        TimeUtils.waitFor(() -> serverCloseReason.get() != null, 3000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(CloseReason.HANDSHAKE_FAILED, serverCloseReason.get());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void x25519_handshake_checks_pre_shared_key() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final byte[] serverKey = "server pre-shared key".getBytes();
+        final byte[] otherKey = "another pre-shared key".getBytes();
+
+        final AtomicReference<CloseReason> serverCloseReason = new AtomicReference<>();
+        final AtomicInteger serverConnects = new AtomicInteger();
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(false).setPreSharedKey(serverKey));
+        server.registerOnConnect(connection -> serverConnects.incrementAndGet());
+        server.registerOnDisconnect((connection, reason, e) -> serverCloseReason.set(reason));
+        server.registerOnReceive(TCPConnection::send); // echo
+        server.run(5460);
+
+        // same key
+        final AtomicReference<String> echoed = new AtomicReference<>();
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(true).setPreSharedKey(serverKey));
+        client.registerOnReceive((connection, bytes) -> echoed.set(new String(bytes)));
+        client.connect("localhost", 5460);
+        client.send("message");
+
+        TimeUtils.waitFor(() -> echoed.get() != null, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals("message", echoed.get());
+        client.close();
+
+        TimeUtils.waitFor(() -> serverCloseReason.get() != null, 5000, () -> {
+            server.close();
+            Assert.fail();
+        });
+        serverCloseReason.set(null);
+
+        // another key
+        final AtomicReference<CloseReason> clientCloseReason = new AtomicReference<>();
+        final AtomicBoolean clientConnected = new AtomicBoolean();
+        final TCPClient impostor = new TCPClient();
+        impostor.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(true).setPreSharedKey(otherKey));
+        impostor.registerOnConnect(connection -> clientConnected.set(true));
+        impostor.registerOnDisconnect((connection, reason, e) -> clientCloseReason.set(reason));
+        impostor.connect("localhost", 5460);
+
+        TimeUtils.waitFor(() -> serverCloseReason.get() != null && clientCloseReason.get() != null, 5000, () -> {
+            impostor.close();
+            server.close();
+            Assert.fail();
+        });
+        server.close();
+
+        Assert.assertEquals(CloseReason.HANDSHAKE_FAILED, serverCloseReason.get());
+        Assert.assertEquals(1, serverConnects.get());
+        Assert.assertFalse(clientConnected.get());
+    }
+
+    @Test
+    public void encryption_group_broadcasts_one_record() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int clientsCount = 3;
+        final int iterations = 50;
+        final EncryptionGroup group = new EncryptionGroup(7);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(false));
+        server.registerOnConnect(group::join); // after the handshake
+        server.run(5441);
+
+        final List<TCPClient> clients = new ArrayList<>();
+        final AtomicInteger[] receivedCounts = new AtomicInteger[clientsCount];
+        final AtomicBoolean hasNotEqual = new AtomicBoolean();
+        for(int i = 0; i < clientsCount; i++) {
+            final AtomicInteger receivedCount = new AtomicInteger();
+            receivedCounts[i] = receivedCount;
+
+            final TCPClient client = new TCPClient();
+            client.registerOnError(ErrorListener::printError);
+            client.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(true));
+            client.getEventPipeline().addHandlerLast(new GroupKeyHandler());
+            client.registerOnReceive((connection, bytes) -> {
+                if(!new String(bytes).equals("update"))
+                    hasNotEqual.set(true);
+                receivedCount.incrementAndGet();
+            });
+            client.connect("localhost", 5441);
+            clients.add(client);
+        }
+
+        final Runnable closeAll = () -> {
+            clients.forEach(TCPClient::close);
+            server.close();
+        };
+        TimeUtils.waitFor(() -> group.size() == clientsCount, 5000, () -> {
+            closeAll.run();
+            Assert.fail();
+        });
+        final int joinedEpoch = group.getEpoch();
+        Assert.assertEquals(clientsCount, joinedEpoch); // rotated on every join
+
+        for(int i = 0; i < iterations; i++)
+            Assert.assertEquals(0, group.broadcast("update"));
+
+        TimeUtils.waitFor(() -> Arrays.stream(receivedCounts).allMatch(count -> count.get() == iterations), 5000, () -> {
+            closeAll.run();
+            Assert.fail();
+        });
+
+        // leaving member does not get records of the next epoch
+        final TCPConnection leaving = group.getMembers().get(0);
+        Assert.assertTrue(group.leave(leaving));
+        Assert.assertEquals(joinedEpoch + 1, group.getEpoch());
+
+        for(int i = 0; i < iterations; i++)
+            Assert.assertEquals(0, group.broadcast("update"));
+
+        TimeUtils.waitFor(() -> Arrays.stream(receivedCounts).mapToInt(AtomicInteger::get).sum() == iterations * (2 * clientsCount - 1), 5000, () -> {
+            closeAll.run();
+            Assert.fail();
+        });
+        Assert.assertFalse(hasNotEqual.get());
+
+        closeAll.run();
+    }
+
+    @Test
+    public void encryption_group_drops_closed_members() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final EncryptionGroup group = new EncryptionGroup(9);
+        final AtomicInteger disconnects = new AtomicInteger();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(false));
+        server.registerOnConnect(group::join);
+        server.registerOnDisconnect((connection, reason, e) -> disconnects.incrementAndGet()); // no leave
+        server.run(5457);
+
+        final AtomicInteger received = new AtomicInteger();
+        final TCPClient remaining = new TCPClient();
+        remaining.registerOnError(ErrorListener::printError);
+        remaining.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(true));
+        remaining.getEventPipeline().addHandlerLast(new GroupKeyHandler());
+        remaining.registerOnReceive((connection, bytes) -> received.incrementAndGet());
+        remaining.connect("localhost", 5457);
+
+        final TCPClient closing = new TCPClient();
+        closing.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(true));
+        closing.getEventPipeline().addHandlerLast(new GroupKeyHandler());
+        closing.connect("localhost", 5457);
+
+        TimeUtils.waitFor(() -> group.size() == 2, 5000, () -> {
+            remaining.close();
+            closing.close();
+            server.close();
+            Assert.fail();
+        });
+        final int joinedEpoch = group.getEpoch();
+
+        closing.close();
+        TimeUtils.waitFor(() -> disconnects.get() == 1, 5000, () -> {
+            remaining.close();
+            server.close();
+            Assert.fail();
+        });
+
+        Assert.assertEquals(0, group.broadcast("update"));
+        Assert.assertEquals(1, group.size());
+        Assert.assertEquals(joinedEpoch + 1, group.getEpoch()); // rotated as on leave
+
+        Assert.assertEquals(0, group.broadcast("update"));
+        TimeUtils.waitFor(() -> received.get() == 2, 5000, () -> {
+            remaining.close();
+            server.close();
+            Assert.fail();
+        });
+
+        remaining.close();
+        server.close();
+    }
+
+    @Test
+    public void encryption_group_rejects_plain_connections() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final EncryptionGroup group = new EncryptionGroup(9);
+        final AtomicBoolean joinRejected = new AtomicBoolean();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnConnect(connection -> {
+            try{
+                group.join(connection);
+            }catch(IllegalArgumentException ignored){
+                joinRejected.set(true);
+            }
+            // key frame cut off right after the algorithm index
+            connection.send(ByteBuffer.allocate(2 + 1 + 4 + 4 + 1)
+                .putShort(EncryptionGroup.GROUP_FRAME_ID)
+                .put((byte) 1)
+                .putInt(9)
+                .putInt(1)
+                .put((byte) 0)
+                .array());
+        });
+        server.run(5459);
+
+        final AtomicReference<CloseReason> closeReason = new AtomicReference<>();
+        final TCPClient client = new TCPClient();
+        client.getEventPipeline().addHandlerLast(new GroupKeyHandler());
+        client.registerOnDisconnect((connection, reason, e) -> closeReason.set(reason));
+        client.connect("localhost", 5459);
+
+        TimeUtils.waitFor(() -> closeReason.get() != null, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        server.close();
+
+        Assert.assertTrue(joinRejected.get());
+        Assert.assertEquals(0, group.size());
+        Assert.assertEquals(CloseReason.PROTOCOL_ERROR, closeReason.get());
+    }
+
+    @Test
+    public void batched_receive_follows_group_key_rotation() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int iterations = 100;
+        final EncryptionGroup group = new EncryptionGroup(8);
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(false));
+        server.registerOnConnect(group::join);
+        server.run(5452);
+
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicBoolean hasNotEqual = new AtomicBoolean();
+        final TCPClient client = new TCPClient();
+        client.registerOnError((connection, source, throwable) -> errors.incrementAndGet());
+        client.getEventPipeline().addHandlerFirst(new X25519HandshakeHandler(true));
+        client.getEventPipeline().addHandlerLast(new GroupKeyHandler());
+        client.registerOnReceiveBatch((connection, batch) -> {
+            for(int i = 0; i < batch.size(); i++)
+                if(!new String(batch.get(i)).equals("update"))
+                    hasNotEqual.set(true);
+            received.addAndGet(batch.size());
+        });
+        client.connect("localhost", 5452);
+
+        TimeUtils.waitFor(() -> group.size() == 1, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        // key frames and records of the next epoch arrive in the same reads
+        for(int i = 0; i < iterations; i++) {
+            group.rotateKey();
+            Assert.assertEquals(0, group.broadcast("update"));
+        }
+
+        TimeUtils.waitFor(() -> received.get() == iterations, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(0, errors.get());
+        Assert.assertFalse(hasNotEqual.get());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void streaming_deflate_shares_history_between_frames() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final int iterations = 200;
+        final List<byte[]> sentMessages = new ArrayList<>();
+        for(int i = 0; i < iterations; i++)
+            sentMessages.add(String.format("{\"type\":\"position\",\"player\":%d,\"x\":%d,\"y\":%d,\"z\":0}", i % 10, i * 3, i * 7).getBytes());
+        final byte[] largeFrame = new byte[200 * 1024];
+        new Random(43).nextBytes(largeFrame);
+
+        final List<byte[]> receivedMessages = new CopyOnWriteArrayList<>();
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(new StreamingDeflateHandler());
+        server.registerOnReceive((connection, bytes) -> receivedMessages.add(bytes));
+        server.run(5442);
+
+        final AtomicLong wireBytes = new AtomicLong();
+        final StreamingDeflateHandler deflate = new StreamingDeflateHandler();
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(deflate);
+        client.getEventPipeline().addHandlerFirst(new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                wireBytes.addAndGet(data.length);
+                return true;
+            }
+        });
+        client.connect("localhost", 5442);
+
+        // sent before negotiation
+        for(byte[] message : sentMessages)
+            client.send(message);
+        TimeUtils.waitFor(() -> receivedMessages.size() == iterations, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertTrue(deflate.isNegotiated(client.getConnection()));
+
+        final long rawBytes = sentMessages.stream().mapToLong(message -> message.length).sum();
+        Assert.assertTrue("wire: " + wireBytes.get() + ", raw: " + rawBytes, wireBytes.get() * 3 < rawBytes);
+        for(int i = 0; i < iterations; i++)
+            Assert.assertArrayEquals(sentMessages.get(i), receivedMessages.get(i));
+
+        client.send(largeFrame, SendPriority.LOW);
+        client.send(sentMessages.get(0), SendPriority.HIGH);
+        TimeUtils.waitFor(() -> receivedMessages.size() == iterations + 2, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertTrue(receivedMessages.stream().anyMatch(bytes -> Arrays.equals(bytes, largeFrame)));
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void streaming_deflate_falls_back_without_peer_hello() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final byte[] message = "plain message".getBytes();
+        final List<byte[]> receivedMessages = new CopyOnWriteArrayList<>();
+        final AtomicInteger connects = new AtomicInteger();
+        final StreamingDeflateHandler serverDeflate = new StreamingDeflateHandler().setHelloTimeoutMillis(0L);
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(serverDeflate);
+        server.registerOnConnect(connection -> connects.incrementAndGet());
+        server.registerOnReceive((connection, bytes) -> receivedMessages.add(bytes));
+        server.run(5454);
+
+        // client without handler: its first frame is not a hello
+        final TCPClient plainClient = new TCPClient();
+        plainClient.registerOnError(ErrorListener::printError);
+        plainClient.connect("localhost", 5454);
+        plainClient.send(message);
+        TimeUtils.waitFor(() -> receivedMessages.size() == 1, 5000, () -> {
+            plainClient.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(1, connects.get());
+        Assert.assertArrayEquals(message, receivedMessages.get(0));
+        plainClient.close();
+
+        // plain server: the client's handler gives up waiting for the hello
+        server.close();
+        receivedMessages.clear();
+        final TCPServer plainServer = new TCPServer();
+        plainServer.registerOnError(ErrorListener::printError);
+        plainServer.registerOnReceive((connection, bytes) -> receivedMessages.add(bytes));
+        plainServer.run(5454);
+
+        final AtomicInteger clientConnects = new AtomicInteger();
+        final StreamingDeflateHandler clientDeflate = new StreamingDeflateHandler()
+            .setHelloTimeoutMillis(200L)
+            .setMaxPendingSize(message.length);
+        final List<Throwable> clientErrors = new CopyOnWriteArrayList<>();
+        final TCPClient client = new TCPClient();
+        client.registerOnError((connection, source, throwable) -> clientErrors.add(throwable));
+        client.registerOnConnect(connection -> clientConnects.incrementAndGet());
+        client.getEventPipeline().addHandlerLast(clientDeflate);
+        client.connect("localhost", 5454);
+        client.send(message);
+        client.send(message); // over the pending limit
+        Assert.assertEquals(1, clientErrors.size());
+
+        // the client's hello comes first
+        TimeUtils.waitFor(() -> (receivedMessages.size() == 2 && clientConnects.get() == 1), 5000, () -> {
+            client.close();
+            plainServer.close();
+            Assert.fail();
+        });
+        Assert.assertArrayEquals(message, receivedMessages.get(1));
+        Assert.assertFalse(clientDeflate.isNegotiated(client.getConnection()));
+
+        client.send(message);
+        TimeUtils.waitFor(() -> receivedMessages.size() == 3, 5000, () -> {
+            client.close();
+            plainServer.close();
+            Assert.fail();
+        });
+        Assert.assertArrayEquals(message, receivedMessages.get(2));
+
+        client.close();
+        plainServer.close();
+    }
+
+    @Test
+    public void lz4_dictionary_compresses_small_frames() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final Random random = new Random(44);
+        final List<byte[]> samples = new ArrayList<>();
+        for(int i = 0; i < 400; i++)
+            samples.add(String.format("{\"type\":\"position\",\"player\":%d,\"x\":%d,\"y\":%d}", random.nextInt(20), random.nextInt(1000), random.nextInt(1000)).getBytes());
+        final Lz4Dictionary dictionary = Lz4Dictionary.train(samples.subList(0, 200), 4096);
+
+        final List<byte[]> receivedMessages = new CopyOnWriteArrayList<>();
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(new Lz4CompressionHandler(dictionary));
+        server.registerOnReceive((connection, bytes) -> receivedMessages.add(bytes));
+        server.run(5443);
+
+        final AtomicLong wireBytes = new AtomicLong();
+        final Lz4CompressionHandler lz4 = new Lz4CompressionHandler(dictionary);
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(lz4);
+        client.getEventPipeline().addHandlerFirst(new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                wireBytes.addAndGet(data.length);
+                return true;
+            }
+        });
+        client.connect("localhost", 5443);
+        TimeUtils.waitFor(() -> lz4.isDictionaryNegotiated(client.getConnection()), 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        // frames not seen in training
+        wireBytes.set(0);
+        final List<byte[]> sentMessages = samples.subList(200, 400);
+        for(byte[] message : sentMessages)
+            client.send(message);
+        TimeUtils.waitFor(() -> receivedMessages.size() == sentMessages.size(), 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        for(int i = 0; i < sentMessages.size(); i++)
+            Assert.assertArrayEquals(sentMessages.get(i), receivedMessages.get(i));
+
+        final long rawBytes = sentMessages.stream().mapToLong(message -> message.length).sum();
+        Assert.assertTrue("wire: " + wireBytes.get() + ", raw: " + rawBytes, wireBytes.get() * 2 < rawBytes);
+
+        // incompressible traffic pauses compression
+        final byte[] noise = new byte[1024];
+        for(int i = 0; i < Lz4CompressionHandler.SAMPLE_FRAMES; i++) {
+            random.nextBytes(noise);
+            client.send(noise);
+        }
+        Assert.assertFalse(lz4.isCompressing(client.getConnection()));
+        TimeUtils.waitFor(() -> receivedMessages.size() == sentMessages.size() + Lz4CompressionHandler.SAMPLE_FRAMES, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertArrayEquals(noise, receivedMessages.get(receivedMessages.size() - 1));
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void lz4_rejects_malformed_frame_size() throws Exception {
+        TimeUtils.delayMillis(100);
+
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicReference<CloseReason> closeReason = new AtomicReference<>();
+        final TCPServer server = new TCPServer();
+        server.getEventPipeline().addHandlerLast(new Lz4CompressionHandler());
+        server.registerOnError((connection, source, throwable) -> errors.incrementAndGet());
+        server.registerOnDisconnect((connection, reason, e) -> closeReason.set(reason));
+        server.run(5462);
+
+        final TCPClient client = new TCPClient();
+        client.connect("localhost", 5462);
+
+        // [mode lz4][varint size]
+        client.send(new byte[]{ 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x1F }); // 5th byte over 4 bits
+        TimeUtils.waitFor(() -> errors.get() == 1, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        client.send(new byte[]{ 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x0F }); // -1
+        TimeUtils.waitFor(() -> closeReason.get() != null, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+        Assert.assertEquals(CloseReason.FRAME_READ_SIZE_LIMIT_EXCEEDED, closeReason.get());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void pipeline_dispatch_reuses_contexts() throws IOException {
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.run(5444);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.connect("localhost", 5444);
+        final TCPConnection connection = client.getConnection();
+
+        final List<EventInvocationContext> contexts = new ArrayList<>();
+        final AtomicInteger received = new AtomicInteger();
+        client.registerOnReceive((conn, data) -> received.incrementAndGet());
+        client.getEventPipeline().addHandlerFirst(new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                return false; // keep the socket out of the measurement
+            }
+        });
+        client.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                if(contexts.size() < 2)
+                    contexts.add(context);
+                if(data.length == 1)
+                    context.send(data); // nested event gets its own context
+                return true;
+            }
+        });
+
+        // nested dispatch
+        client.getEventPipeline().fireReceive(connection, new byte[1]);
+        client.getEventPipeline().fireReceive(connection, new byte[2]);
+        Assert.assertEquals(2, received.get());
+        Assert.assertSame(contexts.get(0), contexts.get(1));
+        Assert.assertNull(contexts.get(0).getConnection());
+
+        // steady state allocates nothing
+        final java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+            final long threadID = Thread.currentThread().getId();
+            final byte[] frame = new byte[16];
+            final int iterations = 200_000;
+            for(int i = 0; i < iterations; i++) {
+                client.getEventPipeline().fireReceive(connection, frame);
+                client.getEventPipeline().fireSend(connection, frame);
+            }
+            final long startBytes = allocations.getThreadAllocatedBytes(threadID);
+            for(int i = 0; i < iterations; i++) {
+                client.getEventPipeline().fireReceive(connection, frame);
+                client.getEventPipeline().fireSend(connection, frame);
+            }
+            final long bytes = (allocations.getThreadAllocatedBytes(threadID) - startBytes);
+            Assert.assertTrue("allocated " + bytes + " bytes", bytes < iterations);
+        }
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void pipeline_skips_handlers_not_overriding_event() throws IOException {
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.run(5446);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.connect("localhost", 5446);
+        final TCPConnection connection = client.getConnection();
+
+        final List<String> calls = new ArrayList<>();
+        client.registerOnReceive((conn, data) -> calls.add("target"));
+        client.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                calls.add("first send");
+                return false; // keep the socket out of the test
+            }
+        });
+        client.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                calls.add("reply");
+                context.send(data); // goes to the handlers before this one only
+                return true;
+            }
+        });
+        client.getEventPipeline().addHandlerLast(new EventHandler() { });
+        client.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                calls.add("last send");
+                return true;
+            }
+        });
+
+        client.getEventPipeline().fireReceive(connection, new byte[1]);
+        Assert.assertEquals(List.of("reply", "first send", "target"), calls);
+
+        calls.clear();
+        client.getEventPipeline().fireSend(connection, new byte[1]);
+        Assert.assertEquals(List.of("last send", "first send"), calls);
+
+        // chain is recompiled on change
+        calls.clear();
+        client.getEventPipeline().addHandlerFirst(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                calls.add("new receive");
+                return true;
+            }
+        });
+        client.getEventPipeline().fireReceive(connection, new byte[1]);
+        Assert.assertEquals(List.of("new receive", "reply", "first send", "target"), calls);
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void connection_pipeline_derives_from_template() throws IOException {
+        final AttributeKey<AtomicInteger> receivedKey = new AttributeKey<>("received");
+        final Queue<String> received = new ConcurrentLinkedQueue<>();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnReceive((connection, data) -> received.add(new String(data)));
+        server.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                context.getAttributes().computeIfAbsent(receivedKey, AtomicInteger::new).incrementAndGet();
+                return true;
+            }
+        });
+        server.run(5447);
+
+        final TCPClient clientA = new TCPClient();
+        clientA.connect("localhost", 5447);
+        final TCPClient clientB = new TCPClient();
+        clientB.connect("localhost", 5447);
+        TimeUtils.waitFor(() -> server.getConnections().size() == 2, 5000, Assert::fail);
+
+        final int portA = clientA.getConnection().getLocalPort();
+        final TCPConnection connectionA = server.getConnections().stream().filter(connection -> connection.getPort() == portA).findFirst().orElseThrow();
+        final TCPConnection connectionB = server.getConnections().stream().filter(connection -> connection.getPort() != portA).findFirst().orElseThrow();
+
+        // handler of a single connection
+        connectionA.getEventPipeline().addHandlerLast(new PrefixHandler("A:"));
+        Assert.assertTrue(connectionA.getEventPipeline().hasOwnHandlers());
+        Assert.assertFalse(connectionB.getEventPipeline().hasOwnHandlers());
+
+        clientA.send("x");
+        TimeUtils.waitFor(() -> received.size() == 1, 5000, Assert::fail);
+        clientB.send("y");
+        TimeUtils.waitFor(() -> received.size() == 2, 5000, Assert::fail);
+        Assert.assertEquals(List.of("A:x", "y"), new ArrayList<>(received));
+
+        // template changes reach only connections without own handlers
+        server.getEventPipeline().addHandlerLast(new PrefixHandler("T:"));
+        clientA.send("x");
+        TimeUtils.waitFor(() -> received.size() == 3, 5000, Assert::fail);
+        clientB.send("y");
+        TimeUtils.waitFor(() -> received.size() == 4, 5000, Assert::fail);
+        Assert.assertEquals(List.of("A:x", "y", "A:x", "T:y"), new ArrayList<>(received));
+
+        Assert.assertEquals(2, connectionA.getAttribute(receivedKey).get());
+        Assert.assertEquals(2, connectionB.getAttribute(receivedKey).get());
+
+        clientA.close();
+        clientB.close();
+        server.close();
+    }
+
+    @Test
+    public void typed_stages_decode_and_encode_once() throws IOException {
+        final AtomicInteger encoded = new AtomicInteger();
+        final Queue<Object> serverMessages = new ConcurrentLinkedQueue<>();
+        final Queue<String> serverFrames = new ConcurrentLinkedQueue<>();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnReceiveMessage((connection, message) -> serverMessages.add(message));
+        server.registerOnReceive((connection, data) -> serverFrames.add(new String(data)));
+        server.getEventPipeline().addHandlerLast(new PacketEncoder() {
+            @Override
+            protected byte[] encode(EventInvocationContext context, NetPacket packet) throws Exception {
+                encoded.incrementAndGet();
+                return super.encode(context, packet);
+            }
+        });
+        server.getEventPipeline().addHandlerLast(new PacketDecoder(new PacketReader().register(TestMessagePacket.class)));
+        server.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceiveMessage(EventInvocationContext context, Object message) {
+                final String text = ((TestMessagePacket) message).getMessage();
+                context.getConnection().sendMessage(new TestMessagePacket("echo " + text)); // from the top of the pipeline
+                return true;
+            }
+            @Override
+            public boolean handleSendMessage(EventInvocationContext context, Object message) {
+                final String text = ((TestMessagePacket) message).getMessage();
+                context.sendMessage(new TestMessagePacket(text + "!")); // typed send stage
+                return false;
+            }
+        });
+        server.run(5448);
+
+        final PacketReader clientReader = new PacketReader().register(TestMessagePacket.class);
+        final Queue<String> clientMessages = new ConcurrentLinkedQueue<>();
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.registerOnReceive((connection, data) -> {
+            final TestMessagePacket packet = clientReader.readOrNull(data);
+            clientMessages.add(packet.getMessage());
+        });
+        client.connect("localhost", 5448);
+
+        client.send(new TestMessagePacket("hello"));
+        client.send("raw");
+        TimeUtils.waitFor(() -> clientMessages.size() == 1 && serverFrames.size() == 1, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        // reply went through the stage handler before the encoder
+        Assert.assertEquals("echo hello!", clientMessages.peek());
+        Assert.assertEquals(1, encoded.get());
+        Assert.assertEquals(1, serverMessages.size());
+        Assert.assertEquals("hello", ((TestMessagePacket) serverMessages.peek()).getMessage());
+        // unknown frames stay bytes
+        Assert.assertEquals("raw", serverFrames.peek());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void batched_receive_delivers_read_cycle_frames() throws IOException {
+        final int count = 500;
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger batchedFrames = new AtomicInteger();
+        final AtomicInteger listenerFrames = new AtomicInteger();
+        final Queue<String> received = new ConcurrentLinkedQueue<>();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnReceiveBatch((connection, batch) -> listenerFrames.addAndGet(batch.size()));
+        server.registerOnReceive((connection, data) -> received.add(new String(data)));
+        // frame handler goes through the batch frame by frame
+        server.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                context.receive(new String(data).toUpperCase());
+                return false;
+            }
+        });
+        server.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceiveBatch(EventInvocationContext context, FrameBatch batch) {
+                batches.incrementAndGet();
+                batchedFrames.addAndGet(batch.size());
+                return true;
+            }
+        });
+        server.run(5449);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.connect("localhost", 5449);
+        for(int i = 0; i < count; i++)
+            client.send("frame " + i);
+
+        TimeUtils.waitFor(() -> received.size() == count, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        int i = 0;
+        for(String frame : received)
+            Assert.assertEquals("FRAME " + (i++), frame);
+        Assert.assertEquals(count, batchedFrames.get());
+        Assert.assertEquals(count, listenerFrames.get());
+        Assert.assertTrue(batches.get() < count);
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void batched_receive_delivers_frames_fired_later() throws IOException {
+        final int count = 50;
+        final AtomicInteger batchedFrames = new AtomicInteger();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.registerOnReceiveBatch((connection, batch) -> batchedFrames.addAndGet(batch.size()));
+        // frames leave the read cycle and come back on the next selector pass
+        server.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                final TCPConnection connection = context.getConnection();
+                final EventPipeline pipeline = context.getEventPipeline();
+                connection.executeOnSelector(() -> pipeline.fireReceiveFrom(this, connection, data));
+                return false;
+            }
+        });
+        server.run(5456);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.connect("localhost", 5456);
+        for(int i = 0; i < count; i++)
+            client.send("frame " + i);
+
+        TimeUtils.waitFor(() -> batchedFrames.get() == count, 5000, () -> {
+            client.close();
+            server.close();
+            Assert.fail();
+        });
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void executor_group_keeps_connection_order() throws IOException {
+        final int count = 200;
+        final ExecutorService threads = Executors.newFixedThreadPool(4);
+        final ConnectionExecutorGroup group = new ConnectionExecutorGroup(threads);
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger selectorCalls = new AtomicInteger();
+        final Map<TCPConnection, List<Integer>> handled = new ConcurrentHashMap<>();
+        final Map<TCPConnection, List<Integer>> dispatched = new ConcurrentHashMap<>();
+        final Map<TCPConnection, AtomicInteger> active = new ConcurrentHashMap<>();
+        final AtomicReference<Thread> selectorThread = new AtomicReference<>();
+
+        final PacketReader packetReader = new PacketReader().register(TestMessagePacket.class);
+        final PacketDispatcher packetDispatcher = new PacketDispatcher().async(group);
+        packetDispatcher.register(TestMessagePacket.class, (connection, packet) ->
+            dispatched.computeIfAbsent(connection, key -> new ArrayList<>()).add(Integer.parseInt(packet.getMessage()))
+        );
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                selectorThread.set(Thread.currentThread());
+                return true;
+            }
+        });
+        server.getEventPipeline().addHandlerLast(new ExecutorBoundHandler(group, new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                if(Thread.currentThread() == selectorThread.get())
+                    selectorCalls.incrementAndGet();
+
+                final AtomicInteger counter = active.computeIfAbsent(context.getConnection(), key -> new AtomicInteger());
+                if(counter.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+
+                final TestMessagePacket packet = packetReader.readOrNull(data);
+                handled.computeIfAbsent(context.getConnection(), key -> new ArrayList<>()).add(Integer.parseInt(packet.getMessage()));
+                if(packet.getMessage().endsWith("7"))
+                    TimeUtils.delayMillis(1); // slow packets must not let later ones overtake them
+
+                counter.decrementAndGet();
+                context.receive(data);
+                return false;
+            }
+        }));
+        server.registerOnReceive((connection, data) -> {
+            final NetPacket packet = packetReader.readOrNull(data);
+            packetDispatcher.dispatch(connection, packet);
+        });
+        server.run(5450);
+
+        final TCPClient clientA = new TCPClient().connect("localhost", 5450);
+        final TCPClient clientB = new TCPClient().connect("localhost", 5450);
+        for(int i = 0; i < count; i++) {
+            clientA.send(new TestMessagePacket(String.valueOf(i)));
+            clientB.send(new TestMessagePacket(String.valueOf(i)));
+        }
+
+        TimeUtils.waitFor(() -> dispatched.size() == 2 && dispatched.values().stream().allMatch(list -> list.size() == count), 5000, () -> {
+            clientA.close();
+            clientB.close();
+            server.close();
+            threads.shutdown();
+            Assert.fail();
+        });
+
+        final List<Integer> expected = new ArrayList<>();
+        for(int i = 0; i < count; i++)
+            expected.add(i);
+        for(List<Integer> list : handled.values())
+            Assert.assertEquals(expected, list);
+        for(List<Integer> list : dispatched.values())
+            Assert.assertEquals(expected, list);
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(0, selectorCalls.get());
+
+        clientA.close();
+        clientB.close();
+        server.close();
+        threads.shutdown();
+    }
+
+    @Test
+    public void executor_bound_handler_accepts_sends_and_limits_queue() throws Exception {
+        final int count = 100;
+        final ExecutorService threads = Executors.newSingleThreadExecutor();
+        final ConnectionExecutorGroup group = new ConnectionExecutorGroup(threads);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicReference<TCPConnection> serverConnection = new AtomicReference<>();
+
+        final TCPServer server = new TCPServer();
+        server.registerOnError(ErrorListener::printError);
+        server.getEventPipeline().addHandlerLast(new ExecutorBoundHandler(group, new EventHandler() {
+            @Override
+            public boolean handleReceive(EventInvocationContext context, byte[] data) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ignored) { }
+                return true;
+            }
+        }).setMaxQueuedEvents(8));
+        server.registerOnConnect(serverConnection::set);
+        server.registerOnReceive((connection, data) -> received.incrementAndGet());
+        server.run(5458);
+
+        final TCPClient client = new TCPClient();
+        client.registerOnError(ErrorListener::printError);
+        client.getEventPipeline().addHandlerLast(new ExecutorBoundHandler(new ConnectionExecutorGroup(ForkJoinPool.commonPool()), new EventHandler() {
+            @Override
+            public boolean handleSend(EventInvocationContext context, byte[] data) {
+                return true;
+            }
+        }));
+        client.connect("localhost", 5458);
+
+        // handed over to the executor, reported as sent
+        for(int i = 0; i < count; i++)
+            Assert.assertTrue(client.send("frame " + i));
+
+        final Runnable closeAll = () -> {
+            blocked.countDown();
+            client.close();
+            server.close();
+            threads.shutdown();
+        };
+        TimeUtils.waitFor(() -> serverConnection.get() != null && serverConnection.get().isReadSuspended(), 5000, () -> {
+            closeAll.run();
+            Assert.fail();
+        });
+
+        blocked.countDown();
+        TimeUtils.waitFor(() -> received.get() == count, 5000, () -> {
+            closeAll.run();
+            Assert.fail();
+        });
+        Assert.assertFalse(serverConnection.get().isReadSuspended());
+
+        closeAll.run();
+    }
+
+    private static boolean isDecrypted(AeadRecordLayer layer, byte[] record) {
+        try {
+            layer.decrypt(record);
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private static class PrefixHandler extends EventHandler {
+        private final String prefix;
+
+        PrefixHandler(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean handleReceive(EventInvocationContext context, byte[] data) {
+            context.receive(prefix + new String(data));
+            return false;
+        }
+    }
+
 }
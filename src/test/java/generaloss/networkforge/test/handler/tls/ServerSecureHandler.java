@@ -1,6 +1,7 @@
 package generaloss.networkforge.test.handler.tls;
 
 import generaloss.networkforge.tcp.TCPConnection;
+import generaloss.networkforge.tcp.attribute.AttributeKey;
 import generaloss.networkforge.tcp.pipeline.EventHandler;
 import generaloss.networkforge.tcp.listener.CloseReason;
 import generaloss.networkforge.tcp.pipeline.EventInvocationContext;
@@ -13,17 +14,14 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.*;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class ServerSecureHandler extends EventHandler {
 
     public static final int RSA_KEY_SIZE = 2048;
 
     private final KeyPair keyPair;
-    private final Map<TCPConnection, ByteArrayOutputStream> pendingDataMap;
-    private final ConcurrentLinkedQueue<TCPConnection> handshakeCompleted;
+    private final AttributeKey<ByteArrayOutputStream> pendingDataKey;
+    private final AttributeKey<Boolean> handshakeCompletedKey;
 
     public ServerSecureHandler() {
         try {
@@ -35,8 +33,8 @@ public class ServerSecureHandler extends EventHandler {
             throw new RuntimeException("Failed to generate RSA key pair");
         }
 
-        this.pendingDataMap = new ConcurrentHashMap<>();
-        this.handshakeCompleted = new ConcurrentLinkedQueue<>();
+        this.pendingDataKey = new AttributeKey<>("pending data");
+        this.handshakeCompletedKey = new AttributeKey<>("handshake completed");
     }
 
     @Override
@@ -57,7 +55,7 @@ public class ServerSecureHandler extends EventHandler {
 
     @Override
     public boolean handleReceive(EventInvocationContext context, byte[] data) {
-        if(handshakeCompleted.contains(context.getConnection()))
+        if(context.getAttributes().has(handshakeCompletedKey))
             return true;
 
         try (final BinaryInputStream stream = new BinaryInputStream(data)) {
@@ -102,10 +100,10 @@ public class ServerSecureHandler extends EventHandler {
 
                 connection.getCiphers().setCiphers(encryptCipher, decryptCipher);
 
-                handshakeCompleted.add(context.getConnection());
+                connection.setAttribute(handshakeCompletedKey, true);
 
-                if(pendingDataMap.containsKey(connection)) {
-                    final ByteArrayOutputStream pendingData = pendingDataMap.remove(connection);
+                final ByteArrayOutputStream pendingData = connection.getAttributes().remove(pendingDataKey);
+                if(pendingData != null) {
                     final byte[] bufferedData = pendingData.toByteArray();
                     pendingData.reset();
 
@@ -132,22 +130,17 @@ public class ServerSecureHandler extends EventHandler {
 
     @Override
     public boolean handleSend(EventInvocationContext context, byte[] data) {
-        if(handshakeCompleted.contains(context.getConnection()))
+        if(context.getAttributes().has(handshakeCompletedKey))
             return true;
 
-        final TCPConnection connection = context.getConnection();
-        if(!pendingDataMap.containsKey(connection))
-            pendingDataMap.put(connection, new ByteArrayOutputStream());
-
-        pendingDataMap.get(connection).writeBytes(data);
+        context.getAttributes().computeIfAbsent(pendingDataKey, ByteArrayOutputStream::new).writeBytes(data);
         return false;
     }
 
     @Override
     public boolean handleDisconnect(EventInvocationContext context, CloseReason reason, Exception e) {
-        final TCPConnection connection = context.getConnection();
-        handshakeCompleted.remove(connection);
-        pendingDataMap.remove(connection);
+        context.setAttribute(handshakeCompletedKey, null);
+        context.setAttribute(pendingDataKey, null);
         return true;
     }
 